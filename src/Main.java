@@ -1,4 +1,5 @@
-import index.BTreeIndex;
+import index.KeyIndex;
+import index.Locator;
 import io.*;
 import manager.*;
 import metadata.MetadataHandler;
@@ -6,6 +7,7 @@ import model.FileControlBlock;
 import utils.*;
 import java.io.*;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 public class Main {
     public static void main(String[] args) throws IOException {
@@ -14,9 +16,11 @@ public class Main {
         String dbFile = "";
         boolean exit = false;
         boolean fileOpened = false;
-        RandomAccessFile file = null;
+        BlockDevice file = null;
         Scanner scanner = new Scanner(System.in);
         IndexManager indexManager = new IndexManager();
+        QueryManager queryManager = new QueryManager(indexManager);
+        SecondaryIndexManager secondaryIndexManager = new SecondaryIndexManager(queryManager);
         BlockManager blockManager = new BlockManager();
         BlockWriter blockWriter = null;
 
@@ -31,19 +35,26 @@ public class Main {
                     ApplicationContext.setDbFileName(dbFile); // Set the database file name in the application context
                     fileCreator = new FileCreator(); // Create a new file creator
                     file = fileCreator.openFile(dbFile); // Open the file
+                    blockManager = new BlockManager(file); // Load the block manager from the bitmap on disk
                     blockWriter = new BlockWriter(file, blockManager); // Create a new block writer
                     fileOpened = true;
                 } else if (!fileOpened && !parts[0].equalsIgnoreCase("kill") && !parts[0].equalsIgnoreCase("quit")) {
                     System.out.println("No file opened. Please open a file first.");
-                } else if (parts.length == 2 && parts[0].equals("put")) { // Process the put command
-                    csvFileName = parts[1];
+                } else if (parts[0].equals("put") && putFileName(parts) != null) { // Process the put command
+                    csvFileName = putFileName(parts);
+                    boolean compress = hasOption(parts, "--compress");
+                    boolean columnar = hasOption(parts, "--columnar");
                     FCBManager fcbManager = new FCBManager();
                     FileControlBlock fcb = fcbManager.findFCBByFileName(file,csvFileName); // Find the FCB by file name
 
                     if(fcb == null){ // If the FCB does not exist
                         ApplicationContext.setCsvFileName(csvFileName);
-                        blockManager = new BlockManager(file);
-                        blockWriter = new BlockWriter(file, blockManager);
+                        blockWriter = new BlockWriter(file, blockManager); // Reuse the block manager loaded on open
+                        blockWriter.setCompressed(compress && !columnar); // Store the data blocks as deflated extents
+                        blockWriter.setColumnar(columnar); // Store the fields in per-column runs
+                        if (compress && columnar) {
+                            System.out.println("Columnar files are not compressed; ignoring --compress");
+                        }
                         CSVReader reader = new CSVReader(blockWriter);
 
                         File csvFile = new File(csvFileName);
@@ -56,6 +67,8 @@ public class Main {
 
                             blockWriter.writeBitmapToHeader(); // Write the bitmap to the header
                             indexManager.writeIndexToFile(file, blockManager, blockWriter.getIndexTree()); // Write the index to the file
+                            new MetadataHandler(file).commit(); // Make the import durable as one transaction
+                            blockManager.reclaimReleasedBlocks(); // Free the catalog blocks a rehash released
                             List<FileControlBlock> blocklist = fcbManager.readFCBListFromMetadata(file); // Read the FCB list from the metadata
                             FileControlBlock tempFCB = null;
 
@@ -69,6 +82,17 @@ public class Main {
                             if (tempFCB != null) {
                                 System.out.println("Import successfully: " + csvFileName);
                                 System.out.println("File size: " + tempFCB.getFileSize()+ " bytes");
+                                if (tempFCB.getCodec() != FileControlBlock.CODEC_NONE) {
+                                    CompressedFile data = (CompressedFile) CompressedFile.of(file, tempFCB);
+                                    System.out.printf("Compressed %d data blocks into %d (%.1f:1)%n", data.getBlocks(),
+                                            tempFCB.getUsedBlocks(), (double) data.getBlocks() / tempFCB.getUsedBlocks());
+                                }
+                                if (tempFCB.getLayout() == FileControlBlock.LAYOUT_COLUMNS) {
+                                    System.out.println("Stored in columns: " + describeColumns(ColumnarFile.of(file, tempFCB)));
+                                }
+                                if (tempFCB.getLayout() == FileControlBlock.LAYOUT_FIXED) {
+                                    System.out.println("Stored as fixed-width records: " + describeRecords(FixedWidthFile.of(file, tempFCB)));
+                                }
 //                                System.out.println("Block number: " + tempFCB.getUsedBlocks());
 //                                System.out.println("Start block: " + tempFCB.getStartBlock());
                             }
@@ -78,10 +102,97 @@ public class Main {
                     } else {
                         System.out.println("File already exists: " + csvFileName);
                     }
+                } else if (parts[0].equals("find") && command.contains("=")) { // find filename.column=value[&column=value]
+                    String query = command.substring(command.indexOf(' ') + 1).trim(); // The values may hold spaces
+                    int dot = query.lastIndexOf('.', query.indexOf('='));
+                    String[] terms = dot > 0 ? query.substring(dot + 1).split("&") : new String[0];
+                    String[] columns = new String[terms.length];
+                    String[] values = new String[terms.length];
+                    boolean valid = terms.length == 1 || terms.length == 2;
+                    for (int i = 0; i < terms.length; i++) {
+                        int equals = terms[i].indexOf('=');
+                        valid &= equals > 0;
+                        columns[i] = equals > 0 ? terms[i].substring(0, equals) : null;
+                        values[i] = terms[i].substring(equals + 1);
+                    }
+                    String fileName = dot > 0 ? query.substring(0, dot) + ".csv" : null;
+                    FileControlBlock fcb = valid ? new FCBManager().findFCBByFileName(file, fileName) : null;
+                    if (!valid) {
+                        System.out.println("Invalid format. Please use the format: find filename.column=value, "
+                                + "find filename.column=from..to, find filename.column=prefix* "
+                                + "or find filename.column=value&column=value");
+                    } else if (fcb == null) {
+                        System.out.println("File not found: " + fileName);
+                    } else {
+                        long start = System.nanoTime();
+                        Map<Integer, String> records;
+                        if (terms.length == 1 && values[0].matches("-?\\d+\\.\\.-?\\d+")) { // A range of int values
+                            String[] bounds = values[0].split("\\.\\.");
+                            records = secondaryIndexManager.findRange(file, fcb, columns[0],
+                                    Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]));
+                        } else if (terms.length == 1 && values[0].endsWith("*")) { // Values starting with a prefix
+                            records = secondaryIndexManager.findPrefix(file, fcb, columns[0],
+                                    values[0].substring(0, values[0].length() - 1));
+                        } else {
+                            records = secondaryIndexManager.find(file, fcb, columns, values);
+                        }
+                        if (records == null) {
+                            System.out.println("No column " + String.join(" or ", columns) + " in " + fileName);
+                        } else {
+                            for (String data : records.values()) {
+                                System.out.println("found data: " + data);
+                            }
+                            FileControlBlock.SecondaryIndex index = secondaryIndexManager.getLastIndex();
+                            System.out.printf("%d records with %s from %d blocks in %d reads, %s, in %.1f ms%n",
+                                    records.size(), String.join("&", terms), queryManager.getLastBlocksRead(),
+                                    queryManager.getLastDeviceReads(), index != null
+                                            ? "through the index on " + index.getColumn() + " ("
+                                            + secondaryIndexManager.getLastPostingBytes() + " bytes of posting lists)"
+                                            : "by a scan (no index)", (System.nanoTime() - start) / 1e6);
+                        }
+                    }
                 } else if (parts.length == 2 && parts[0].equals("find")) {  // Process the find command
 
                     String[] findParts = parts[1].split("\\.");
-                    if (findParts.length == 2) {
+                    String[] rangeParts = findParts.length == 2 ? findParts[1].split("-") : null;
+                    if (findParts.length == 2 && findParts[1].contains(",")) { // find filename.id1,id2,...
+                        String fileName = findParts[0] + ".csv";
+                        String[] idParts = findParts[1].split(",");
+                        int[] ids = new int[idParts.length];
+                        for (int i = 0; i < idParts.length; i++) {
+                            ids[i] = Integer.parseInt(idParts[i].trim());
+                        }
+                        ApplicationContext.setCsvFileName(fileName);
+
+                        FCBManager fcbManager = new FCBManager();
+                        if (fcbManager.findFCBByFileName(file, fileName) == null) {
+                            System.out.println("File not found: " + fileName);
+                        } else {
+                            Map<Integer, String> records = queryManager.findMany(file, fileName, ids);
+                            for (Map.Entry<Integer, String> record : records.entrySet()) {
+                                System.out.println("found data: " + record.getValue());
+                            }
+                            System.out.println(records.size() + " of " + ids.length + " records from "
+                                    + queryManager.getLastBlocksRead() + " blocks in " + queryManager.getLastDeviceReads() + " reads");
+                        }
+                    } else if (rangeParts != null && rangeParts.length == 2) { // find filename.from-to
+                        String fileName = findParts[0] + ".csv";
+                        int fromId = Integer.parseInt(rangeParts[0]);
+                        int toId = Integer.parseInt(rangeParts[1]);
+                        ApplicationContext.setCsvFileName(fileName);
+
+                        FCBManager fcbManager = new FCBManager();
+                        if (fcbManager.findFCBByFileName(file, fileName) == null) {
+                            System.out.println("File not found: " + fileName);
+                        } else {
+                            Map<Integer, String> records = queryManager.findRange(file, fileName, fromId, toId);
+                            for (String data : records.values()) {
+                                System.out.println("found data: " + data);
+                            }
+                            System.out.println(records.size() + " records from " + queryManager.getLastBlocksRead()
+                                    + " blocks in " + queryManager.getLastDeviceReads() + " reads");
+                        }
+                    } else if (findParts.length == 2) {
                         String fileName = findParts[0] + ".csv";
                         int id = Integer.parseInt(findParts[1]);
                         ApplicationContext.setCsvFileName(fileName);
@@ -91,13 +202,18 @@ public class Main {
 
                         if(fcb == null){
                             System.out.println("File not found: " + fileName);
+                        } else if (fcb.getLayout() != FileControlBlock.LAYOUT_ROWS) {
+                            String[] row = TableFile.of(file, fcb).readRows(id, 1); // Address the record by its row
+                            System.out.println("found data: " + (row.length == 1 ? row[0] : null));
                         }else {
-                            BTreeIndex result = indexManager.readIndexFromFile(file, ApplicationContext.getCsvFileName()); // Read the index from the file
-                            System.out.println("found data: " + blockWriter.readData(result.get(id), id)); // Read the data from the block
-                            System.out.println("Block #" + result.get(id)); // Print the block number
+                            KeyIndex result = indexManager.readIndexFromFile(file, ApplicationContext.getCsvFileName()); // Read the index from the file
+                            long locator = result.get(id);
+                            RecordReader reader = new RecordReader(CompressedFile.of(file, fcb)); // Reads compressed files through their extents
+                            System.out.println("found data: " + reader.readRecord(locator, id)); // Read the record at its locator
+                            System.out.println("Block #" + Locator.block(locator)); // Print the block number
                         }
                     }else {
-                        System.out.println("Invalid format. Please use the format: find filename.id");
+                        System.out.println("Invalid format. Please use the format: find filename.id, find filename.id1,id2,..., find filename.from-to or find filename.column=value");
                     }
                 }else if (parts.length == 2 && parts[0].equals("get")) { // Process the get command
                     String fileName = parts[1];
@@ -112,27 +228,41 @@ public class Main {
                         String outputFileName = fileName.replace(".csv", "_output.csv"); // Generate the output file name
 
                         try (PrintWriter writer = new PrintWriter(new FileWriter(outputFileName))) { // Create a new print writer
-                            BTreeIndex index = indexManager.readIndexFromFile(file, fileName);
-                            int id = 1;
-                            String data;
-
-                            while (true) {
-                                int blockId = index.get(id);
-                                if (blockId == -1) {
-                                    // Node not found, break the loop
-                                    break;
-                                }
+                            if (fcb.getLayout() != FileControlBlock.LAYOUT_ROWS) {
+                                // Render the records of a columnar or fixed-width file, a batch of rows at a time
+                                queryManager.scanRecords(file, fileName, (data, id) -> writer.println(data));
+                            } else {
+                                KeyIndex index = indexManager.readIndexFromFile(file, fileName);
+                                RecordReader reader = new RecordReader(CompressedFile.of(file, fcb));
+                                // Walk all entries in ID order along the leaves; records with an exact locator are read
+                                // directly, others through their block, which is decoded once
+                                KeyIndex.Cursor cursor = index.scan(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                                int currentBlock = -1;
+                                Map<String, String> blockRecords = null;
 
-                                try {
-                                    data = blockWriter.readData(blockId, id);
-                                    if (data != null) {
-                                        writer.println(data);
+                                while (cursor.next()) {
+                                    long locator = cursor.value();
+                                    int blockId = Locator.block(locator);
+                                    try {
+                                        String data;
+                                        if (Locator.isExact(locator)) {
+                                            data = reader.readRecord(locator, cursor.key());
+                                        } else {
+                                            if (blockId != currentBlock) {
+                                                byte[] block = reader.readBlock(blockId);
+                                                blockRecords = block == null ? null : reader.decodeBlock(block, blockId);
+                                                currentBlock = blockId;
+                                            }
+                                            data = blockRecords == null ? null : blockRecords.get(String.valueOf(cursor.key()));
+                                        }
+                                        if (data != null) {
+                                            writer.println(data);
+                                        }
+                                    } catch (IllegalArgumentException e) {
+                                        // Invalid blockId, skip this block
+                                        System.out.println("Skipping invalid block: " + e.getMessage());
                                     }
-                                } catch (IllegalArgumentException e) {
-                                    // Invalid blockId, skip this block
-                                    System.out.println("Skipping invalid block: " + e.getMessage());
                                 }
-                                id++;
                             }
 
                             System.out.println("Data downloaded successfully. Output file: " + outputFileName);
@@ -141,6 +271,50 @@ public class Main {
                         }
                     }
 
+                }else if (parts.length == 3 && parts[0].equals("agg")) { // Process the aggregate command
+                    String fileName = parts[1];
+                    FileControlBlock fcb = new FCBManager().findFCBByFileName(file, fileName);
+                    if (fcb == null) {
+                        System.out.println("File not found: " + fileName);
+                    } else {
+                        AggregateManager aggregateManager = new AggregateManager(queryManager);
+                        long start = System.nanoTime();
+                        AggregateManager.Summary summary = aggregateManager.aggregate(file, fcb, parts[2]);
+                        if (summary == null) {
+                            System.out.println("No column " + parts[2] + " in " + fileName
+                                    + (fcb.getLayout() != FileControlBlock.LAYOUT_ROWS ? "" : "; files stored in rows take a column number"));
+                        } else {
+                            System.out.println(summary);
+                            System.out.printf("Read %.1f KB in %.1f ms%n", aggregateManager.getLastBytesRead() / 1024.0,
+                                    (System.nanoTime() - start) / 1e6);
+                        }
+                    }
+                }else if (parts.length == 3 && parts[0].equals("index")) { // Process the secondary index command
+                    String fileName = parts[1];
+                    if (new FCBManager().findFCBByFileName(file, fileName) == null) {
+                        System.out.println("File not found: " + fileName);
+                    } else {
+                        long start = System.nanoTime();
+                        FileControlBlock.SecondaryIndex index = null;
+                        String failure = null;
+                        try {
+                            index = secondaryIndexManager.createIndex(file, blockManager, fileName, parts[2]);
+                        } catch (IOException e) {
+                            failure = e.getMessage(); // Such as a catalog entry with no room for another index
+                        }
+                        if (failure != null) {
+                            System.out.println("Cannot index " + fileName + ": " + failure);
+                        } else if (index == null) {
+                            System.out.println("No column " + parts[2] + " in " + fileName
+                                    + "; name a column of its CSV header or give its number");
+                        } else {
+                            new MetadataHandler(file).commit(); // Make the index durable as one transaction
+                            blockManager.reclaimReleasedBlocks(); // Free the blocks of an index it replaced
+                            System.out.printf("Indexed %s on %s: %s, %d blocks of posting lists, in %.1f ms%n",
+                                    fileName, parts[2], secondaryIndexManager.describe(file, index),
+                                    index.getPostingsBlocks(), (System.nanoTime() - start) / 1e6);
+                        }
+                    }
                 }else if (parts.length == 2 && parts[0].equals("rm")) { // Process the delete command
                     String fileName = parts[1];
                     ApplicationContext.setCsvFileName(fileName);
@@ -153,14 +327,57 @@ public class Main {
                     } else {
                         int startBlock = fcb.getStartBlock();
                         int numBlocks = fcb.getUsedBlocks();
+                        secondaryIndexManager.removeIndexes(file, blockManager, fileName); // Remove the column indexes
                         indexManager.removeIndexForFile(file, blockManager, fileName); // Remove the index for the file
                         blockManager.releaseContiguousBlocks(startBlock, numBlocks); // Release the contiguous blocks
                         blockWriter.clearBlocks(startBlock, numBlocks); // Clear the blocks
-                        fcbManager.removeFCBFromMetadata(file, fcb); // Remove the FCB from the metadata
+                        fcbManager.removeFCBFromMetadata(file, blockManager, fcb); // Remove the FCB from the metadata
+                        CompressedFile.forget(file, fileName); // Drop the inflated extents of a compressed file
+                        new MetadataHandler(file).commit(); // Write the header ranges changed by the delete and commit them
+                        blockManager.reclaimReleasedBlocks(); // Clear and free the released blocks once the delete is durable
 
                         System.out.println("File deleted successfully: " + fileName);
                     }
                 }
+                else if (parts[0].equalsIgnoreCase("upgrade")) { // Rewrite text-format or block-indexed files into slotted pages with locators
+                    FCBManager fcbManager = new FCBManager();
+                    UpgradeManager upgradeManager = new UpgradeManager();
+                    List<FileControlBlock> blocklist = fcbManager.readFCBListFromMetadata(file);
+                    boolean found = false;
+                    for (FileControlBlock block : blocklist) {
+                        if (parts.length == 2 && !block.getFileName().equals(parts[1])) {
+                            continue;
+                        }
+                        found = true;
+                        int oldBlocks = block.getUsedBlocks();
+                        int newBlocks = upgradeManager.upgradeFile(file, blockManager, indexManager, block.getFileName());
+                        if (newBlocks == -1) {
+                            System.out.println("Already up to date: " + block.getFileName());
+                        } else {
+                            System.out.println("Upgraded " + block.getFileName() + " to slotted pages: "
+                                    + oldBlocks + " -> " + newBlocks + " blocks");
+                        }
+                    }
+                    if (!found && parts.length == 2) {
+                        System.out.println("File not found: " + parts[1]);
+                    }
+                    new MetadataHandler(file).commit(); // Make the upgrade durable
+                    blockManager.reclaimReleasedBlocks(); // Clear and free the blocks of the old copies
+                }
+                else if (parts[0].equalsIgnoreCase("frag")) { // Process the fragmentation report command
+                    System.out.print(blockManager.getFragmentationReport());
+                }
+                else if (parts[0].equalsIgnoreCase("cache")) { // Process the cache statistics command
+                    if (file instanceof BufferPool) {
+                        System.out.println(((BufferPool) file).getStats());
+                    } else {
+                        System.out.println("Buffer pool disabled.");
+                    }
+                    System.out.print(indexManager.getCacheStats());
+                    System.out.print(new MetadataHandler(file).getStats());
+                    WriteAheadLog log = WriteAheadLog.of(file);
+                    System.out.print(log == null ? "Write-ahead log disabled.\n" : log.getStats());
+                }
                 else if (parts[0].equalsIgnoreCase("dir")) { // Process the dir command
                     FCBManager fcbManager = new FCBManager();
                     List<FileControlBlock> blocklist = fcbManager.readFCBListFromMetadata(file);
@@ -172,6 +389,23 @@ public class Main {
                         System.out.println("Created date: " + block.getDate());
                         System.out.println("Start block ID: " + block.getStartBlock());
                         System.out.println("End block ID: " + (block.getStartBlock()+block.getUsedBlocks()));
+                        if (block.getCodec() != FileControlBlock.CODEC_NONE) {
+                            System.out.println("Codec: " + CompressedFile.codecName(block.getCodec()));
+                        }
+                        if (block.getLayout() == FileControlBlock.LAYOUT_COLUMNS) {
+                            System.out.println("Columns: " + describeColumns(ColumnarFile.of(file, block)));
+                        }
+                        if (block.getLayout() == FileControlBlock.LAYOUT_FIXED) {
+                            System.out.println("Fixed-width records: " + describeRecords(FixedWidthFile.of(file, block)));
+                        }
+                        if (!block.getSecondaryIndexes().isEmpty()) {
+                            StringBuilder columns = new StringBuilder();
+                            for (FileControlBlock.SecondaryIndex index : block.getSecondaryIndexes()) {
+                                columns.append(columns.length() == 0 ? "" : ", ").append(index.getTrailingField() < 0
+                                        ? index.getColumn() : "(" + index.getColumn() + ")");
+                            }
+                            System.out.println("Secondary indexes: " + columns);
+                        }
                     }
                 }else if (parts[0].equalsIgnoreCase("kill")) { // Process the kill command
                     if (parts.length == 2) {
@@ -181,6 +415,7 @@ public class Main {
 
                         if (databaseFile.exists()) {
                             assert file != null;
+                            new MetadataHandler(file).close(); // Forget the header image of the deleted file
                             file.close();
                             if (databaseFile.delete()) {
                                 System.out.println("PFS file deleted successfully: " + filePath);
@@ -196,11 +431,12 @@ public class Main {
                 }
                 else if (parts[0].equalsIgnoreCase("quit")) {
                     if (file != null) {
+                        new MetadataHandler(file).close(); // Write the header changes still in memory
                         file.close();
                     }
                     exit = true;
                 }else{
-                    System.out.println("Invalid command. Supported commands: open, put, find, dir, kill, get,rm, quit");
+                    System.out.println("Invalid command. Supported commands: open, put, find, index, agg, dir, frag, cache, upgrade, kill, get,rm, quit");
 
                 }
             } catch (FileNotFoundException e) {
@@ -208,4 +444,54 @@ public class Main {
             }
         }
     }
+
+    /**
+     * Returns the CSV file name of a put command: its one argument that is not an option.
+     * @param parts the words of the command
+     * @return the file name, or null if the command does not name exactly one file or has an unknown option
+     */
+    private static String putFileName(String[] parts) {
+        String fileName = null;
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equals("--compress") || parts[i].equals("--columnar")) {
+                continue;
+            }
+            if (fileName != null || parts[i].startsWith("--")) {
+                return null;
+            }
+            fileName = parts[i];
+        }
+        return fileName;
+    }
+
+    private static boolean hasOption(String[] parts, String option) {
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equals(option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Lists the rows and the columns of a columnar file with their types and blocks
+    private static String describeColumns(ColumnarFile columns) {
+        StringBuilder sb = new StringBuilder().append(columns.getRows()).append(" rows;");
+        for (int c = 0; c < columns.getColumnCount(); c++) {
+            sb.append(c == 0 ? " " : ", ").append(columns.getColumnName(c)).append(' ')
+                    .append(ColumnarFile.typeName(columns.getColumnType(c)))
+                    .append(" (").append(columns.getColumnBlocks(c)).append(" blocks)");
+        }
+        return sb.toString();
+    }
+
+    // Lists the rows, the record width and the typed columns of a fixed-width file
+    private static String describeRecords(FixedWidthFile records) {
+        StringBuilder sb = new StringBuilder().append(records.getRows()).append(" rows of ")
+                .append(records.getRecordWidth()).append(" bytes;");
+        for (int c = 0; c < records.getColumnCount(); c++) {
+            sb.append(c == 0 ? " " : ", ").append(records.getColumnName(c)).append(' ')
+                    .append(FixedWidthFile.typeName(records.getColumnType(c)));
+        }
+        return sb.toString();
+    }
 }
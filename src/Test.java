@@ -1,4 +1,5 @@
-import index.BTreeIndex;
+import index.KeyIndex;
+import io.BlockDevice;
 import io.BlockWriter;
 import io.CSVReader;
 import io.FileCreator;
@@ -9,14 +10,13 @@ import metadata.MetadataHandler;
 import model.FileControlBlock;
 import utils.ApplicationContext;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.*;
 
 public class Test {
     public static void main(String[] args) throws IOException {
         String csvFileName = "";
         FileCreator fileCreator;
-        RandomAccessFile file = null;
+        BlockDevice file = null;
         String dbFile = "";
         boolean exit = false;
         Scanner scanner = new Scanner(System.in);
@@ -117,9 +117,9 @@ public class Test {
 
 
         System.out.println("=======================Search result===========================");
-        BTreeIndex result = indexManager.readIndexFromFile(file, ApplicationContext.getCsvFileName());
+        KeyIndex result = indexManager.readIndexFromFile(file, ApplicationContext.getCsvFileName());
         System.out.println("Block #" + result.get(22));
-        System.out.println("found movie data: " + blockWriter.readData(result.get(22),22));
+        System.out.println("found movie data: " + blockWriter.readRecord(result.get(22),22));
 
         metadataHandler = new MetadataHandler(file);
 //        Tools.printBitmap(metadataHandler.readBitmapFromMetadata());
@@ -194,7 +194,7 @@ public class Test {
         System.out.println("=======================Search result： rating ===========================");
         result = indexManager.readIndexFromFile(file, ApplicationContext.getCsvFileName());
         System.out.println("Block #" + result.get(11));
-        System.out.println("found movie data: " + blockWriter.readData(result.get(11),11));
+        System.out.println("found movie data: " + blockWriter.readRecord(result.get(11),11));
 
 
 
@@ -203,7 +203,7 @@ public class Test {
         ApplicationContext.setCsvFileName("movies.csv");
         result = indexManager.readIndexFromFile(file, ApplicationContext.getCsvFileName());
         System.out.println("Block #" + result.get(22));
-        System.out.println("found movie data: " + blockWriter.readData(result.get(22),22));
+        System.out.println("found movie data: " + blockWriter.readRecord(result.get(22),22));
 
 
 
@@ -244,7 +244,7 @@ public class Test {
 //        System.out.println("========================Search data============================");
 //        result = indexManager1.readIndexFromFile(file, ApplicationContext.getCsvFileName());
 //
-//        System.out.println("found movie data: " + blockWriter.readData(result.get(1),1));
+//        System.out.println("found movie data: " + blockWriter.readRecord(result.get(1),1));
 //
 //        csvFileName = "movie.csv"  ;
 //        ApplicationContext.setCsvFileName(csvFileName);
@@ -265,7 +265,7 @@ public class Test {
 //            result = indexManager.readIndexFromFile(file, ApplicationContext.getCsvFileName());
 //            System.out.println("Block #" + result.get(22));
 //
-//            System.out.println("found movie data: " + blockWriter.readData(result.get(22),22));
+//            System.out.println("found movie data: " + blockWriter.readRecord(result.get(22),22));
         //--------
 
 //
@@ -0,0 +1,51 @@
+package bench;
+
+import index.BTreeIndex;
+
+/**
+ * Measures put and get throughput of the in-memory BTreeIndex for several node fanouts.
+ * Keys are distinct pseudo-random ints, so every insertion and lookup lands on a different path.
+ * Usage: java bench.BTreeIndexBenchmark [sizes, comma separated] [fanouts, comma separated] [number of gets]
+ */
+public class BTreeIndexBenchmark {
+    private static final int MIX = 0x9E3779B1; // Odd multiplier: i * MIX is a permutation of the ints
+
+    public static void main(String[] args) {
+        String[] sizes = (args.length > 0 ? args[0] : "1000000,100000000").split(",");
+        String[] fanouts = (args.length > 1 ? args[1] : "5,64,128,256,512").split(",");
+        int gets = args.length > 2 ? Integer.parseInt(args[2]) : 5_000_000;
+
+        run(200_000, 128, gets / 10, false); // Warm up before measuring
+        for (String size : sizes) {
+            for (String fanout : fanouts) {
+                run(Integer.parseInt(size.trim()), Integer.parseInt(fanout.trim()), gets, true);
+            }
+        }
+    }
+
+    private static void run(int keys, int fanout, int gets, boolean print) {
+        try {
+            BTreeIndex tree = new BTreeIndex(fanout);
+            long start = System.nanoTime();
+            for (int i = 0; i < keys; i++) {
+                tree.put(i * MIX, i);
+            }
+            double putSeconds = (System.nanoTime() - start) / 1e9;
+
+            long checksum = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < gets; i++) {
+                int j = (int) ((i * 7919L) % keys);
+                checksum += tree.get(j * MIX);
+            }
+            double getSeconds = (System.nanoTime() - start) / 1e9;
+
+            if (print) {
+                System.out.printf("%,12d keys  fanout %4d  height %2d   put: %10.0f ops/s   get: %10.0f ops/s   (%d)%n",
+                        keys, fanout, tree.height(), keys / putSeconds, gets / getSeconds, checksum);
+            }
+        } catch (OutOfMemoryError e) {
+            System.out.printf("%,12d keys  fanout %4d  does not fit in the heap%n", keys, fanout);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package bench;
+
+import constants.Constants;
+import index.BTreeIndex;
+import index.KeyIndex;
+import index.PagedBTree;
+import io.BlockDevice;
+import io.FileCreator;
+import io.WriteAheadLog;
+import manager.BlockManager;
+import utils.ApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares building the import index one key at a time with put() against the bottom-up bulk loaders.
+ * The keys are the ones a CSV import of the given number of rows produces: ascending line numbers, each mapped
+ * to the block where its record starts. The in-memory BTreeIndex is built for all rows; the paged B+tree is
+ * built for fewer rows by default, because the header bitmap only addresses a few MB of data blocks.
+ * Usage: java bench.BulkLoadBenchmark [rows] [paged rows] [fill factor]
+ */
+public class BulkLoadBenchmark {
+    private static final int RECORD_BYTES = 40; // Typical size of a serialized record
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int pagedRows = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        double fillFactor = args.length > 2 ? Double.parseDouble(args[2]) : Constants.INDEX_FILL_FACTOR;
+
+        // Warm up both paths before measuring
+        buildWithPut(Math.min(rows, 100_000));
+        buildWithBuilder(Math.min(rows, 100_000), fillFactor);
+
+        long start = System.nanoTime();
+        BTreeIndex putTree = buildWithPut(rows);
+        report("BTreeIndex put", rows, start, putTree);
+        putTree = null;
+
+        start = System.nanoTime();
+        BTreeIndex bulkTree = buildWithBuilder(rows, fillFactor);
+        report("BTreeIndex bulk", rows, start, bulkTree);
+        verify(bulkTree, rows);
+        bulkTree = null;
+
+        BTreeIndex source = buildWithBuilder(pagedRows, fillFactor);
+        for (boolean bulk : new boolean[]{false, true}) {
+            File dbFile = File.createTempFile("pfs-bulk", ".db0");
+            dbFile.delete();
+            ApplicationContext.setDbFileName(dbFile.getPath());
+            BlockDevice file = new FileCreator().openFile(dbFile.getPath());
+            BlockManager blockManager = new BlockManager(file);
+
+            start = System.nanoTime();
+            PagedBTree paged;
+            if (bulk) {
+                paged = PagedBTree.bulkLoad(file, blockManager, source, fillFactor);
+            } else {
+                paged = PagedBTree.create(file, blockManager);
+                source.forEach(paged::put);
+            }
+            file.force();
+            report(bulk ? "PagedBTree bulk" : "PagedBTree put", pagedRows, start, paged);
+            System.out.printf("%-16s pages: %d%n", "", blockManager.getUsedBlocks());
+            verify(paged, pagedRows);
+            WriteAheadLog.close(file); // Deletes the log next to the database
+            file.close();
+            dbFile.delete();
+        }
+    }
+
+    private static BTreeIndex buildWithPut(int rows) {
+        BTreeIndex tree = new BTreeIndex();
+        for (int id = 1; id <= rows; id++) {
+            tree.put(id, blockOf(id));
+        }
+        return tree;
+    }
+
+    private static BTreeIndex buildWithBuilder(int rows, double fillFactor) {
+        BTreeIndex.Builder builder = new BTreeIndex.Builder(fillFactor);
+        for (int id = 1; id <= rows; id++) {
+            builder.add(id, blockOf(id));
+        }
+        return builder.build();
+    }
+
+    private static int blockOf(int id) {
+        return (int) ((long) id * RECORD_BYTES / Constants.BLOCK_SIZE);
+    }
+
+    private static void report(String name, int rows, long start, KeyIndex index) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-16s %,12d keys %10.1f ms %12.0f keys/s   height: %d%n",
+                name, rows, seconds * 1000, rows / seconds, index.height());
+    }
+
+    private static void verify(KeyIndex index, int rows) throws IOException {
+        for (int id = 1; id <= rows; id += Math.max(1, rows / 1000)) {
+            if (index.get(id) != blockOf(id)) {
+                throw new IllegalStateException("Wrong value for key " + id);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package bench;
+
+import constants.Constants;
+import io.BlockDevice;
+import io.BlockWriter;
+import io.CSVReader;
+import io.FileCreator;
+import io.FixedWidthFile;
+import manager.AggregateManager;
+import manager.BlockManager;
+import manager.FCBManager;
+import manager.IndexManager;
+import manager.QueryManager;
+import metadata.MetadataHandler;
+import model.FileControlBlock;
+import utils.ApplicationContext;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares a ratings file stored in slotted pages with the same file stored as fixed-width records and in
+ * columns: the import time, the blocks the data takes, and the bytes read and time taken by aggregates over one
+ * column, by a scan rendering every record and by random point lookups. The file is generated with the columns
+ * of the MovieLens ratings.csv (userId,movieId,rating,timestamp), unless one is given. The database is closed and
+ * reopened after the import, so the first aggregate starts with empty caches.
+ * Usage: java bench.ColumnarBenchmark [rows or csv file] [lookups]
+ */
+public class ColumnarBenchmark {
+    public static void main(String[] args) throws IOException {
+        String source = args.length > 0 ? args[0] : "1000000";
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        File generated = source.endsWith(".csv") ? null : writeRatings(Integer.parseInt(source));
+        String csvFileName = generated == null ? source : generated.getPath();
+        long csvBytes = new File(csvFileName).length();
+
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            for (String layout : new String[]{"rows", "fixed", "columns"}) {
+                System.setProperty(FixedWidthFile.MODE_PROPERTY, layout.equals("fixed") ? "auto" : "off");
+                File dbFile = File.createTempFile("pfs-columnar", ".db0");
+                dbFile.delete();
+                ApplicationContext.setDbFileName(dbFile.getPath());
+                BlockDevice file = new FileCreator().openFile(dbFile.getPath());
+                BlockManager blockManager = new BlockManager(file);
+                long start = System.nanoTime();
+                ApplicationContext.setCsvFileName(csvFileName);
+                BlockWriter blockWriter = new BlockWriter(file, blockManager);
+                blockWriter.setColumnar(layout.equals("columns"));
+                new CSVReader(blockWriter).readAndWriteCSV(file, csvFileName);
+                blockWriter.writeBitmapToHeader();
+                new IndexManager().writeIndexToFile(file, blockManager, blockWriter.getIndexTree());
+                new MetadataHandler(file).close();
+                file.close();
+                double importSeconds = (System.nanoTime() - start) / 1e9;
+
+                file = new FileCreator().openFile(dbFile.getPath());
+                FileControlBlock fcb = new FCBManager().findFCBByFileName(file, csvFileName);
+                QueryManager queryManager = new QueryManager(new IndexManager());
+                AggregateManager aggregateManager = new AggregateManager(queryManager);
+                if (round > 0) {
+                    System.out.printf("%-8s import %6.2f MB/s   %7d data blocks (%7.1f KB)%n", layout,
+                            csvBytes / 1048576.0 / importSeconds, fcb.getUsedBlocks(),
+                            fcb.getUsedBlocks() * Constants.BLOCK_SIZE / 1024.0);
+                }
+                for (String column : new String[]{"3", "2"}) { // rating, then movieId
+                    start = System.nanoTime();
+                    AggregateManager.Summary summary = aggregateManager.aggregate(file, fcb, column);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    if (round > 0) {
+                        System.out.printf("         agg column %s: reads %8.1f KB in %7.1f ms   (avg %.4f of %d)%n", column,
+                                aggregateManager.getLastBytesRead() / 1024.0, seconds * 1e3,
+                                summary.getAverage(), summary.getNumbers());
+                    }
+                }
+
+                start = System.nanoTime();
+                QueryManager scanner = new QueryManager(new IndexManager());
+                long[] scanned = new long[2];
+                scanner.scanRecords(file, csvFileName, (record, id) -> {
+                    scanned[0]++;
+                    scanned[1] += record.length();
+                });
+                double scanSeconds = (System.nanoTime() - start) / 1e9;
+
+                Random random = new Random(7);
+                start = System.nanoTime();
+                long checksum = 0;
+                for (int i = 0; i < lookups; i++) {
+                    int id = 1 + random.nextInt((int) scanned[0]);
+                    checksum += queryManager.findMany(file, csvFileName, new int[]{id}).get(id).length();
+                }
+                double lookupSeconds = (System.nanoTime() - start) / 1e9;
+                if (round > 0) {
+                    System.out.printf("         scan %9.0f records/s, %d blocks   lookups %8.0f/s   (%d %d %d)%n",
+                            scanned[0] / scanSeconds, scanner.getLastBlocksRead(), lookups / lookupSeconds,
+                            scanned[0], scanned[1], checksum);
+                }
+                new MetadataHandler(file).close();
+                file.close();
+                dbFile.delete();
+            }
+        }
+        if (generated != null) {
+            generated.delete();
+        }
+    }
+
+    // Writes a ratings file: users rate 20 to 200 movies each, in ascending user order, with half-star ratings
+    private static File writeRatings(int rows) throws IOException {
+        File file = File.createTempFile("pfs-ratings", ".csv");
+        Random random = new Random(42);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("userId,movieId,rating,timestamp\n");
+            int userId = 1;
+            int left = 20 + random.nextInt(181);
+            for (int i = 0; i < rows; i++) {
+                if (left-- == 0) {
+                    userId++;
+                    left = 20 + random.nextInt(181);
+                }
+                int movieId = 1 + (int) (200_000 * Math.pow(random.nextDouble(), 3)); // Popular movies are rated more
+                float rating = (1 + random.nextInt(10)) / 2.0f;
+                long timestamp = 828_000_000L + random.nextInt(700_000_000);
+                writer.write(userId + "," + movieId + "," + rating + "," + timestamp + "\n");
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,105 @@
+package bench;
+
+import constants.Constants;
+import index.KeyIndex;
+import io.BlockDevice;
+import io.BlockWriter;
+import io.CSVReader;
+import io.CompressedFile;
+import io.FileCreator;
+import io.RecordReader;
+import manager.BlockManager;
+import manager.FCBManager;
+import manager.IndexManager;
+import manager.QueryManager;
+import metadata.MetadataHandler;
+import model.FileControlBlock;
+import utils.ApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares a file stored in plain slotted pages with the same file stored as deflate-compressed extents: the
+ * import time, the blocks the data takes, the bytes a full scan reads from the database, and the throughput of
+ * a full scan in ID order, of range queries and of random point lookups. The database is closed and reopened
+ * after the import, so the first scan starts with empty caches.
+ * Usage: java bench.CompressionBenchmark [csv file] [lookups]
+ */
+public class CompressionBenchmark {
+    public static void main(String[] args) throws IOException {
+        String csvFileName = args.length > 0 ? args[0] : "movies.csv";
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        long csvBytes = new File(csvFileName).length();
+
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            for (boolean compressed : new boolean[]{false, true}) {
+                File dbFile = File.createTempFile("pfs-compress", ".db0");
+                dbFile.delete();
+                ApplicationContext.setDbFileName(dbFile.getPath());
+                BlockDevice file = new FileCreator().openFile(dbFile.getPath());
+                BlockManager blockManager = new BlockManager(file);
+                long start = System.nanoTime();
+                ApplicationContext.setCsvFileName(csvFileName);
+                BlockWriter blockWriter = new BlockWriter(file, blockManager);
+                blockWriter.setCompressed(compressed);
+                new CSVReader(blockWriter).readAndWriteCSV(file, csvFileName);
+                blockWriter.writeBitmapToHeader();
+                new IndexManager().writeIndexToFile(file, blockManager, blockWriter.getIndexTree());
+                new MetadataHandler(file).close();
+                file.close();
+                double importSeconds = (System.nanoTime() - start) / 1e9;
+
+                file = new FileCreator().openFile(dbFile.getPath());
+                IndexManager indexManager = new IndexManager();
+                FileControlBlock fcb = new FCBManager().findFCBByFileName(file, csvFileName);
+                BlockDevice data = CompressedFile.of(file, fcb);
+                KeyIndex index = indexManager.readIndexFromFile(file, csvFileName);
+                RecordReader reader = new RecordReader(data);
+
+                start = System.nanoTime();
+                long scanned = 0;
+                int records = 0;
+                KeyIndex.Cursor cursor = index.scan(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                while (cursor.next()) {
+                    scanned += reader.readRecord(cursor.value(), cursor.key()).length();
+                    records++;
+                }
+                double scanSeconds = (System.nanoTime() - start) / 1e9;
+                long scanBytesRead = compressed ? ((CompressedFile) data).getBytesRead()
+                        : (long) fcb.getUsedBlocks() * Constants.BLOCK_SIZE;
+
+                QueryManager queryManager = new QueryManager(indexManager);
+                start = System.nanoTime();
+                long ranged = 0;
+                for (int from = 1; from <= records; from += 1000) {
+                    ranged += queryManager.findRange(file, csvFileName, from, from + 999).size();
+                }
+                double rangeSeconds = (System.nanoTime() - start) / 1e9;
+
+                Random random = new Random(7);
+                start = System.nanoTime();
+                long checksum = 0;
+                for (int i = 0; i < lookups; i++) {
+                    int id = 1 + random.nextInt(records);
+                    checksum += reader.readRecord(index.get(id), id).length();
+                }
+                double lookupSeconds = (System.nanoTime() - start) / 1e9;
+
+                if (round > 0) {
+                    System.out.printf("%-10s import %6.2f MB/s   %6d data blocks (%7.1f KB)   scan reads %7.1f KB%n",
+                            compressed ? "deflate" : "plain", csvBytes / 1048576.0 / importSeconds,
+                            fcb.getUsedBlocks(), fcb.getUsedBlocks() * Constants.BLOCK_SIZE / 1024.0, scanBytesRead / 1024.0);
+                    System.out.printf("           scan %7.2f MB/s (%d records, cold)   ranges %9.0f records/s   "
+                                    + "lookups %9.0f/s   (%d %d %d)%n",
+                            scanned / 1048576.0 / scanSeconds, records, ranged / rangeSeconds, lookups / lookupSeconds,
+                            scanned, ranged, checksum);
+                }
+                new MetadataHandler(file).close();
+                file.close();
+                dbFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package bench;
+
+import constants.Constants;
+import io.BlockDevice;
+import io.BlockWriter;
+import io.CSVReader;
+import io.CsvTokenizer;
+import io.FileCreator;
+import io.ImportPipeline;
+import io.WriteAheadLog;
+import manager.BlockManager;
+import utils.ApplicationContext;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the time and the bytes allocated per record of splitting a CSV file into records the way the import
+ * used to (BufferedReader.readLine, a map per row and a String to size it) against the byte-level CsvTokenizer,
+ * which copies each record from its read buffer into a block image. The file is read into memory first, so only
+ * tokenizing is measured. A last line reports the allocation per record of a whole sequential import.
+ * Usage: java bench.CsvTokenizerBenchmark [csv file] [passes]
+ */
+public class CsvTokenizerBenchmark {
+    public static void main(String[] args) throws IOException {
+        String csvFileName = args.length > 0 ? args[0] : "movies.csv";
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        byte[] csv = Files.readAllBytes(Paths.get(csvFileName));
+        System.out.printf("%s: %d bytes%n", csvFileName, csv.length);
+
+        long rows = 0;
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            long records = 0;
+            long checksum = 0;
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv), StandardCharsets.UTF_8))) {
+                    reader.readLine(); // Skip the header line
+                    int id = 1;
+                    for (String line; (line = reader.readLine()) != null; id++) {
+                        Map<String, String> data = new HashMap<>();
+                        data.put("id", String.valueOf(id));
+                        data.put("data", line);
+                        checksum += data.toString().getBytes().length;
+                        checksum += data.get("data").getBytes(StandardCharsets.UTF_8).length;
+                    }
+                    records += id - 1;
+                }
+            }
+            report(round, "readLine", records, start, allocated, checksum);
+
+            records = 0;
+            checksum = 0;
+            byte[] block = new byte[Constants.BLOCK_SIZE];
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                CsvTokenizer tokenizer = new CsvTokenizer(new ByteArrayInputStream(csv), Constants.TOKENIZER_BUFFER_BYTES);
+                tokenizer.next(); // Skip the header record
+                while (tokenizer.next()) {
+                    int length = Math.min(tokenizer.recordLength(), block.length);
+                    System.arraycopy(tokenizer.array(), tokenizer.recordStart(), block, 0, length);
+                    checksum += length + tokenizer.fieldCount();
+                }
+                records += tokenizer.getRecords() - 1;
+            }
+            report(round, "tokenizer", records, start, allocated, checksum);
+            rows = records / passes;
+        }
+
+        // Whole sequential import into a temporary database, in both record formats
+        for (String format : new String[]{"text", "slotted"}) {
+            System.setProperty(BlockWriter.FORMAT_PROPERTY, format);
+            System.setProperty(ImportPipeline.THREADS_PROPERTY, "1");
+            for (int round = 0; round < 2; round++) {
+                File dbFile = File.createTempFile("pfs-tokenizer", ".db0");
+                dbFile.delete();
+                ApplicationContext.setDbFileName(dbFile.getPath());
+                ApplicationContext.setCsvFileName(csvFileName);
+                BlockDevice file = new FileCreator().openFile(dbFile.getPath());
+                BlockWriter blockWriter = new BlockWriter(file, new BlockManager(file));
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                new CSVReader(blockWriter).readAndWriteCSV(file, csvFileName);
+                report(round, "import " + format, rows, start, allocated, 0);
+                WriteAheadLog.close(file); // Deletes the log next to the database
+                file.close();
+                dbFile.delete();
+            }
+        }
+    }
+
+    private static void report(int round, String name, long records, long start, long allocatedBefore, long checksum) {
+        double nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (round > 0) {
+            System.out.printf("%-14s %8.1f ns/record %8.1f bytes allocated/record   (%d)%n",
+                    name, nanos / records, (double) allocated / records, checksum);
+        }
+    }
+
+    // Bytes allocated by this thread so far, or 0 if the JVM does not report it
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import index.KeyIndex;
+import io.BlockDevice;
+import io.BlockWriter;
+import io.CSVReader;
+import io.FileCreator;
+import io.WriteAheadLog;
+import manager.BlockManager;
+import manager.IndexManager;
+import utils.ApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares import and find throughput of the RandomAccessFile and memory-mapped I/O engines.
+ * Usage: java bench.IOBenchmark [csv file] [number of finds]
+ */
+public class IOBenchmark {
+    public static void main(String[] args) throws IOException {
+        String csvFileName = args.length > 0 ? args[0] : "movies.csv";
+        int finds = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        for (String engine : new String[]{BlockDevice.ENGINE_RAF, BlockDevice.ENGINE_MMAP}) {
+            System.setProperty(BlockDevice.ENGINE_PROPERTY, engine);
+            File dbFile = File.createTempFile("pfs-bench-" + engine, ".db0");
+            dbFile.delete();
+            ApplicationContext.setDbFileName(dbFile.getPath());
+            ApplicationContext.setCsvFileName(csvFileName);
+
+            BlockDevice file = new FileCreator().openFile(dbFile.getPath());
+            BlockManager blockManager = new BlockManager(file);
+            BlockWriter blockWriter = new BlockWriter(file, blockManager);
+            IndexManager indexManager = new IndexManager();
+
+            long start = System.nanoTime();
+            new CSVReader(blockWriter).readAndWriteCSV(file, csvFileName);
+            blockWriter.writeBitmapToHeader();
+            indexManager.writeIndexToFile(file, blockManager, blockWriter.getIndexTree());
+            double importSeconds = (System.nanoTime() - start) / 1e9;
+            long csvBytes = new File(csvFileName).length();
+
+            KeyIndex index = indexManager.readIndexFromFile(file, csvFileName);
+            Random random = new Random(42);
+            start = System.nanoTime();
+            for (int i = 0; i < finds; i++) {
+                int id = 1 + random.nextInt(index.size());
+                blockWriter.readRecord(index.get(id), id);
+            }
+            double findSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-5s import: %8.1f ms (%6.2f MB/s)   find: %10.0f ops/s%n", engine,
+                    importSeconds * 1000, csvBytes / 1048576.0 / importSeconds, finds / findSeconds);
+            WriteAheadLog.close(file); // Deletes the log next to the database
+            file.close();
+            dbFile.delete();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import constants.Constants;
+import io.BlockDevice;
+import io.BlockWriter;
+import io.BufferPool;
+import io.CSVReader;
+import io.FileCreator;
+import io.ImportPipeline;
+import io.WriteAheadLog;
+import io.WriteBatch;
+import manager.BlockManager;
+import utils.ApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares the sequential CSV import with the pipelined import at several worker counts, and writing each
+ * block through against batching the writes, reporting the system calls per MB of input alongside the time.
+ * Each run imports the file into a new temporary database; the first round warms up the JIT. Unless set on the
+ * command line, the RandomAccessFile engine without a buffer pool is used, so every device call is a system call.
+ * Usage: java bench.ImportBenchmark [csv file] [rounds]
+ */
+public class ImportBenchmark {
+    public static void main(String[] args) throws IOException {
+        String csvFileName = args.length > 0 ? args[0] : "movies.csv";
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[][] configurations = { // {worker threads, write batch blocks}
+                {1, 1}, {1, Constants.WRITE_BATCH_BLOCKS}, {2, Constants.WRITE_BATCH_BLOCKS}, {Math.max(4, cores), Constants.WRITE_BATCH_BLOCKS}};
+        double megabytes = new File(csvFileName).length() / (1024.0 * 1024.0);
+        if (System.getProperty(BlockDevice.ENGINE_PROPERTY) == null) {
+            System.setProperty(BlockDevice.ENGINE_PROPERTY, BlockDevice.ENGINE_RAF);
+            System.setProperty(BufferPool.CAPACITY_PROPERTY, "0");
+        }
+        System.out.printf("%s: %.2f MB, %d processors, %s engine%n", csvFileName, megabytes, cores,
+                System.getProperty(BlockDevice.ENGINE_PROPERTY));
+
+        for (int round = 0; round <= rounds; round++) {
+            for (int[] configuration : configurations) {
+                long[] result = importOnce(csvFileName, configuration[0], configuration[1]);
+                if (round > 0) {
+                    System.out.printf("%-10s %2d threads, batch %3d: %8.1f ms (%6.2f MB/s), %8.0f syscalls/MB%n",
+                            configuration[0] == 1 ? "sequential" : "pipelined", configuration[0], configuration[1],
+                            result[0] / 1e6, megabytes / (result[0] / 1e9), result[1] / megabytes);
+                }
+            }
+        }
+    }
+
+    // Returns the import time in nanoseconds and the number of system calls issued
+    private static long[] importOnce(String csvFileName, int threads, int batchBlocks) throws IOException {
+        System.setProperty(ImportPipeline.THREADS_PROPERTY, String.valueOf(threads));
+        System.setProperty(WriteBatch.BLOCKS_PROPERTY, String.valueOf(batchBlocks));
+        File dbFile = File.createTempFile("pfs-import", ".db0");
+        dbFile.delete();
+        ApplicationContext.setDbFileName(dbFile.getPath());
+        ApplicationContext.setCsvFileName(csvFileName);
+        BlockDevice file = new FileCreator().openFile(dbFile.getPath());
+        BlockManager blockManager = new BlockManager(file);
+        BlockWriter blockWriter = new BlockWriter(file, blockManager);
+
+        long syscalls = file.getSyscalls();
+        long start = System.nanoTime();
+        new CSVReader(blockWriter).readAndWriteCSV(file, csvFileName);
+        file.force();
+        long nanos = System.nanoTime() - start;
+        syscalls = file.getSyscalls() - syscalls;
+
+        WriteAheadLog.close(file); // Deletes the log next to the database
+        file.close();
+        dbFile.delete();
+        return new long[]{nanos, syscalls};
+    }
+}
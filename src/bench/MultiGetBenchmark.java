@@ -0,0 +1,77 @@
+package bench;
+
+import index.KeyIndex;
+import io.BlockDevice;
+import io.BlockWriter;
+import io.CSVReader;
+import io.FileCreator;
+import io.WriteAheadLog;
+import manager.BlockManager;
+import manager.IndexManager;
+import manager.QueryManager;
+import utils.ApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares fetching a batch of records with one find per ID against QueryManager.findMany.
+ * Reports the median and 99th percentile latency of a batch.
+ * Usage: java bench.MultiGetBenchmark [csv file] [IDs per batch] [batches]
+ */
+public class MultiGetBenchmark {
+    public static void main(String[] args) throws IOException {
+        String csvFileName = args.length > 0 ? args[0] : "movies.csv";
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int batches = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        File dbFile = File.createTempFile("pfs-multiget", ".db0");
+        dbFile.delete();
+        ApplicationContext.setDbFileName(dbFile.getPath());
+        ApplicationContext.setCsvFileName(csvFileName);
+        BlockDevice file = new FileCreator().openFile(dbFile.getPath());
+        BlockManager blockManager = new BlockManager(file);
+        BlockWriter blockWriter = new BlockWriter(file, blockManager);
+        IndexManager indexManager = new IndexManager();
+        new CSVReader(blockWriter).readAndWriteCSV(file, csvFileName);
+        blockWriter.writeBitmapToHeader();
+        indexManager.writeIndexToFile(file, blockManager, blockWriter.getIndexTree());
+        QueryManager queryManager = new QueryManager(indexManager);
+        int rows = indexManager.readIndexFromFile(file, csvFileName).size();
+
+        for (int pass = 0; pass < 2; pass++) { // The first pass warms up the JIT and the caches
+            Random random = new Random(42);
+            long[] single = new long[batches];
+            long[] many = new long[batches];
+            for (int b = 0; b < batches; b++) {
+                int[] ids = random.ints(batchSize, 1, rows + 1).toArray();
+
+                long start = System.nanoTime();
+                for (int id : ids) {
+                    KeyIndex index = indexManager.readIndexFromFile(file, csvFileName);
+                    blockWriter.readRecord(index.get(id), id);
+                }
+                single[b] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                queryManager.findMany(file, csvFileName, ids);
+                many[b] = System.nanoTime() - start;
+            }
+            if (pass == 1) {
+                report("find per ID", single);
+                report("findMany", many);
+            }
+        }
+        WriteAheadLog.close(file); // Deletes the log next to the database
+        file.close();
+        dbFile.delete();
+    }
+
+    private static void report(String name, long[] nanos) {
+        Arrays.sort(nanos);
+        System.out.printf("%-12s p50: %8.1f us   p99: %8.1f us%n", name,
+                nanos[nanos.length / 2] / 1e3, nanos[(int) (nanos.length * 0.99)] / 1e3);
+    }
+}
@@ -0,0 +1,114 @@
+package bench;
+
+import constants.Constants;
+import model.SlottedPage;
+import utils.SerializationUtils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the cost of decoding one record from a data block in the text format ("id:N;data:...;", parsed
+ * into a map per lookup) and in the binary slotted-page format (binary search over the slots plus one slice).
+ * The blocks are built in memory from the rows of a CSV file, so only decoding is measured.
+ * Usage: java bench.RecordDecodeBenchmark [csv file] [lookups]
+ */
+public class RecordDecodeBenchmark {
+    public static void main(String[] args) throws IOException {
+        String csvFileName = args.length > 0 ? args[0] : "movies.csv";
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        List<String> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(csvFileName))) {
+            reader.readLine(); // Skip the header line
+            for (String line; (line = reader.readLine()) != null; ) {
+                rows.add(line);
+            }
+        }
+        SerializationUtils serializationUtils = new SerializationUtils();
+        List<byte[]> textBlocks = new ArrayList<>();
+        List<byte[]> slottedBlocks = new ArrayList<>();
+        int[] textBlockOf = new int[rows.size() + 1];
+        int[] slottedBlockOf = new int[rows.size() + 1];
+
+        // Pack the rows the way BlockWriter does: text records fill a block until the next one does not fit
+        byte[] text = null;
+        int textPos = 0;
+        byte[] page = null;
+        for (int id = 1; id <= rows.size(); id++) {
+            Map<String, String> record = new HashMap<>();
+            record.put("id", String.valueOf(id));
+            record.put("data", rows.get(id - 1));
+            byte[] serialized = serializationUtils.serializeData(record).getBytes(StandardCharsets.UTF_8);
+            if (text == null || textPos + serialized.length > Constants.BLOCK_SIZE) {
+                text = new byte[Constants.BLOCK_SIZE];
+                textBlocks.add(text);
+                textPos = 0;
+            }
+            System.arraycopy(serialized, 0, text, textPos, Math.min(serialized.length, Constants.BLOCK_SIZE));
+            textPos += serialized.length;
+            textBlockOf[id] = textBlocks.size() - 1;
+
+            byte[] payload = rows.get(id - 1).getBytes(StandardCharsets.UTF_8);
+            if (page == null || SlottedPage.add(page, id, payload) == -1) {
+                page = new byte[Constants.BLOCK_SIZE];
+                SlottedPage.init(page);
+                SlottedPage.add(page, id, payload);
+                slottedBlocks.add(page);
+            }
+            slottedBlockOf[id] = slottedBlocks.size() - 1;
+        }
+        System.out.printf("%d rows: %d text blocks, %d slotted blocks%n", rows.size(), textBlocks.size(), slottedBlocks.size());
+
+        for (int pass = 0; pass < 2; pass++) { // The first pass warms up the JIT
+            Random random = new Random(7);
+            long checksum = 0;
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int id = 1 + random.nextInt(rows.size());
+                String data = serializationUtils.deserializeData(new String(textBlocks.get(textBlockOf[id])))
+                        .get(String.valueOf(id));
+                checksum += data.length();
+            }
+            report(pass, "text", lookups, start, allocated, checksum);
+
+            random = new Random(7);
+            checksum = 0;
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int id = 1 + random.nextInt(rows.size());
+                byte[] block = slottedBlocks.get(slottedBlockOf[id]);
+                checksum += SlottedPage.getPayload(block, SlottedPage.find(block, id)).length();
+            }
+            report(pass, "slotted", lookups, start, allocated, checksum);
+        }
+    }
+
+    private static void report(int pass, String name, int lookups, long start, long allocatedBefore, long checksum) {
+        double nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (pass > 0) {
+            System.out.printf("%-8s %8.1f ns/lookup %8.0f bytes allocated/lookup   (%d)%n",
+                    name, nanos / lookups, (double) allocated / lookups, checksum);
+        }
+    }
+
+    // Bytes allocated by this thread so far, or 0 if the JVM does not report it
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
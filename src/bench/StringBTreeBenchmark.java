@@ -0,0 +1,147 @@
+package bench;
+
+import constants.Constants;
+import index.BTreeIndex;
+import index.PagedBTree;
+import index.StringBTree;
+import io.BlockDevice;
+import io.FileCreator;
+import io.WriteAheadLog;
+import manager.BlockManager;
+import utils.ApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Compares a string-keyed paged B+tree over movie-like titles with the int-keyed paged B+tree over the hashes
+ * of the same titles: the levels and pages of each tree, the bytes its leaves take against the raw bytes of the
+ * keys, and the random lookups per second. The hash tree is what an index on a text column had before; it cannot
+ * tell titles with the same hash apart and serves no prefix search. Every key, and a key just after it, is
+ * looked up in the string-keyed tree to check it, then a few prefixes are counted against the sorted keys.
+ * Usage: java bench.StringBTreeBenchmark [titles] [lookups]
+ */
+public class StringBTreeBenchmark {
+    private static final String[] WORDS = {"The", "Of", "Love", "Night", "Story", "Man", "Last", "Dark", "Return",
+            "City", "Dead", "War", "Girl", "House", "Blood", "Life", "King", "Secret", "Day", "Little", "Lost",
+            "Star", "Time", "World", "Big", "American", "Black", "Dream", "Ghost", "Heart", "Island", "Journey",
+            "Kiss", "Moon", "Road", "Shadow", "Summer", "Wild", "Winter", "Zombie"};
+
+    public static void main(String[] args) throws IOException {
+        int titles = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        byte[][] keys = generateTitles(titles);
+        int n = keys.length;
+        long[] values = new long[n];
+        long rawBytes = 0;
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+            rawBytes += keys[i].length;
+        }
+        BTreeIndex.Builder hashes = new BTreeIndex.Builder(Constants.INDEX_FILL_FACTOR);
+        long[] hashKeys = new long[n];
+        for (int i = 0; i < n; i++) {
+            hashKeys[i] = (long) new String(keys[i], StandardCharsets.UTF_8).hashCode() << 32 | i;
+        }
+        Arrays.sort(hashKeys);
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || (int) (hashKeys[i] >> 32) != (int) (hashKeys[i - 1] >> 32)) {
+                hashes.add((int) (hashKeys[i] >> 32), (int) hashKeys[i]); // The first title of a shared hash
+            }
+        }
+        System.out.printf("%,d distinct titles, %.1f bytes each on average, %,d raw key bytes%n",
+                n, rawBytes / (double) n, rawBytes);
+
+        File dbFile = File.createTempFile("pfs-strings", ".db0");
+        dbFile.delete();
+        ApplicationContext.setDbFileName(dbFile.getPath());
+        BlockDevice file = new FileCreator().openFile(dbFile.getPath());
+        BlockManager blockManager = new BlockManager(file);
+
+        long start = System.nanoTime();
+        StringBTree strings = StringBTree.bulkLoad(file, blockManager, keys, values, n);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-12s build %8.1f ms   height %d   pages %,9d (%,d KB)%n", "StringBTree",
+                seconds * 1e3, strings.height(), strings.getPages(),
+                (long) strings.getPages() * Constants.BLOCK_SIZE / 1024);
+
+        start = System.nanoTime();
+        int usedBefore = blockManager.getUsedBlocks();
+        PagedBTree paged = PagedBTree.bulkLoad(file, blockManager, hashes.build(), Constants.INDEX_FILL_FACTOR);
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-12s build %8.1f ms   height %d   pages %,9d (%,d KB), %,d distinct hashes%n",
+                "PagedBTree", seconds * 1e3, paged.height(), blockManager.getUsedBlocks() - usedBefore,
+                (long) (blockManager.getUsedBlocks() - usedBefore) * Constants.BLOCK_SIZE / 1024, paged.size());
+
+        // Check every key, and keys that are not in the tree
+        for (int i = 0; i < n; i++) {
+            if (strings.get(keys[i]) != i) {
+                throw new IllegalStateException("Wrong value for " + new String(keys[i], StandardCharsets.UTF_8));
+            }
+            byte[] missing = Arrays.copyOf(keys[i], keys[i].length + 1); // Sorts right after the key
+            if ((i + 1 == n || !Arrays.equals(missing, keys[i + 1])) && strings.get(missing) != -1) {
+                throw new IllegalStateException("Found a missing key");
+            }
+        }
+        TreeSet<String> sorted = new TreeSet<>();
+        for (byte[] key : keys) {
+            sorted.add(new String(key, StandardCharsets.US_ASCII));
+        }
+        for (String prefix : new String[]{"A", "Dark ", "The Last Night", "Zombie Zombie", "Q"}) {
+            int[] found = new int[1];
+            strings.scanPrefix(prefix.getBytes(StandardCharsets.US_ASCII), value -> found[0]++);
+            int expected = sorted.subSet(prefix, prefix + '\uffff').size();
+            if (found[0] != expected) {
+                throw new IllegalStateException("Prefix " + prefix + ": " + found[0] + " keys, expected " + expected);
+            }
+            System.out.printf("%-12s prefix %-16s %,8d keys%n", "", '"' + prefix + '"', found[0]);
+        }
+
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            Random random = new Random(7);
+            start = System.nanoTime();
+            long checksum = 0;
+            for (int i = 0; i < lookups; i++) {
+                checksum += strings.get(keys[random.nextInt(n)]);
+            }
+            double stringSeconds = (System.nanoTime() - start) / 1e9;
+            random = new Random(7);
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                checksum += paged.get(new String(keys[random.nextInt(n)], StandardCharsets.UTF_8).hashCode());
+            }
+            double pagedSeconds = (System.nanoTime() - start) / 1e9;
+            if (round > 0) {
+                System.out.printf("lookups/s: StringBTree %,.0f   PagedBTree by hash %,.0f   (%d)%n",
+                        lookups / stringSeconds, lookups / pagedSeconds, checksum);
+            }
+        }
+        WriteAheadLog.close(file); // Deletes the log next to the database
+        file.close();
+        dbFile.delete();
+    }
+
+    // Generates distinct titles of two to five words and a year, sorted as unsigned bytes
+    private static byte[][] generateTitles(int count) {
+        Random random = new Random(42);
+        TreeSet<String> titles = new TreeSet<>();
+        while (titles.size() < count) {
+            StringBuilder title = new StringBuilder();
+            for (int words = 2 + random.nextInt(4); words > 0; words--) {
+                title.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            titles.add(title.append('(').append(1920 + random.nextInt(100)).append(')').toString());
+        }
+        byte[][] keys = new byte[titles.size()][];
+        int i = 0;
+        for (String title : titles) { // ASCII, so String order is byte order
+            keys[i++] = title.getBytes(StandardCharsets.US_ASCII);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,113 @@
+package bench;
+
+import io.BlockDevice;
+import io.BlockWriter;
+import io.CSVReader;
+import io.FileCreator;
+import io.WriteAheadLog;
+import manager.BlockManager;
+import manager.IndexManager;
+import metadata.MetadataHandler;
+import utils.ApplicationContext;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the ingest throughput of each write-ahead log durability mode. Every import is done as the put
+ * command does it, ending with a commit: first a series of small imports, where the cost of each commit shows,
+ * then one import of the whole file.
+ * Usage: java bench.WalBenchmark [csv file] [small imports] [rows per small import]
+ */
+public class WalBenchmark {
+    private static final String[][] MODES = {
+            {"none", "0"},
+            {"import", "0"},
+            {"periodic", "10"},
+            {"periodic", "100"}
+    };
+
+    public static void main(String[] args) throws IOException {
+        String csvFileName = args.length > 0 ? args[0] : "movies.csv";
+        int imports = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        File[] parts = new File[imports];
+        long partBytes = 0;
+        for (int i = 0; i < imports; i++) {
+            parts[i] = writePart(csvFileName, rows, i);
+            partBytes += parts[i].length();
+        }
+        long csvBytes = new File(csvFileName).length();
+
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            for (String[] mode : MODES) {
+                System.setProperty(WriteAheadLog.MODE_PROPERTY, mode[0]);
+                System.setProperty(WriteAheadLog.INTERVAL_PROPERTY, mode[1]);
+                String name = mode[0].equals("periodic") ? mode[0] + " " + mode[1] + "ms" : mode[0];
+                File dbFile = File.createTempFile("pfs-wal", ".db0");
+                dbFile.delete();
+                ApplicationContext.setDbFileName(dbFile.getPath());
+                BlockDevice file = new FileCreator().openFile(dbFile.getPath());
+                BlockManager blockManager = new BlockManager(file);
+                IndexManager indexManager = new IndexManager();
+
+                long start = System.nanoTime();
+                for (File part : parts) {
+                    put(file, blockManager, indexManager, part.getPath());
+                }
+                double smallSeconds = (System.nanoTime() - start) / 1e9;
+                start = System.nanoTime();
+                put(file, blockManager, indexManager, csvFileName);
+                double bulkSeconds = (System.nanoTime() - start) / 1e9;
+
+                WriteAheadLog log = WriteAheadLog.of(file);
+                if (round > 0) {
+                    System.out.printf("%-13s %d x %d rows: %7.1f imports/s (%6.2f MB/s)   whole file: %6.2f MB/s%n",
+                            name, imports, rows, imports / smallSeconds, partBytes / 1048576.0 / smallSeconds,
+                            csvBytes / 1048576.0 / bulkSeconds);
+                    System.out.print(log == null ? "              no log\n" : "              " + log.getStats());
+                }
+                new MetadataHandler(file).close();
+                file.close();
+                dbFile.delete();
+            }
+        }
+        for (File part : parts) {
+            part.delete();
+        }
+    }
+
+    // Imports a CSV file the way the put command does, as one transaction
+    private static void put(BlockDevice file, BlockManager blockManager, IndexManager indexManager,
+                            String csvFileName) throws IOException {
+        ApplicationContext.setCsvFileName(csvFileName);
+        BlockWriter blockWriter = new BlockWriter(file, blockManager);
+        new CSVReader(blockWriter).readAndWriteCSV(file, csvFileName);
+        blockWriter.writeBitmapToHeader();
+        indexManager.writeIndexToFile(file, blockManager, blockWriter.getIndexTree());
+        new MetadataHandler(file).commit();
+        blockManager.reclaimReleasedBlocks();
+    }
+
+    // Writes the header line and the given number of rows, starting at row part * rows, to a temporary file
+    private static File writePart(String csvFileName, int rows, int part) throws IOException {
+        File file = File.createTempFile("pfs-wal-part" + part + "-", ".csv");
+        try (BufferedReader reader = new BufferedReader(new FileReader(csvFileName, StandardCharsets.UTF_8));
+             PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            writer.println(reader.readLine());
+            for (int i = 0; i < part * rows && reader.readLine() != null; i++) {
+                // Skip the rows of the earlier parts
+            }
+            String line;
+            for (int i = 0; i < rows && (line = reader.readLine()) != null; i++) {
+                writer.println(line);
+            }
+        }
+        return file;
+    }
+}
@@ -8,6 +8,25 @@ public class Constants {
     public static final int HEADER_SIZE = HEADER_BLOCKS * BLOCK_SIZE; // Header size (8KB)
     public static final int BLOCKS_PER_MB = (FILE_INNIT_SIZE - HEADER_SIZE) / BLOCK_SIZE; // Number of blocks per MB
     public static final int FCB_ENTRY_SIZE = 64; // Reserved size for each FCB entry (64 bytes)
+    public static final int MAPPED_SEGMENT_SIZE = 16 * FILE_INNIT_SIZE; // Size of each memory-mapped segment (16MB)
+    public static final int BUFFER_POOL_BLOCKS = 4096; // Default number of frames in the buffer pool (1MB)
+    public static final long INDEX_CACHE_BYTES = 64L * 1024 * 1024; // Default memory budget of the open-index cache (64MB)
+    public static final int QUERY_READ_BLOCKS = 64; // Maximum number of adjacent blocks fetched by one read of a range query (16KB)
+    public static final int QUERY_SCAN_RECORDS = 4096; // Records read per batch by a scan of a whole file
+    public static final double INDEX_FILL_FACTOR = 1.0; // Fraction of each index node filled by the bulk loader
+    public static final int IMPORT_CHUNK_BYTES = 1024 * 1024; // Bytes of CSV input handed to one import worker at a time (1MB)
+    public static final int WRITE_BATCH_BLOCKS = 256; // Data blocks staged by a BlockWriter before a gathering flush (64KB)
+    public static final int TOKENIZER_BUFFER_BYTES = 64 * 1024; // Initial read buffer of a sequential CSV import (64KB)
+    public static final long WAL_GROUP_INTERVAL_MS = 50; // Default interval between forces of the write-ahead log in periodic mode
+    public static final int WAL_GROUP_BYTES = 1024 * 1024; // Log bytes that make a periodic-mode commit force at once (1MB)
+    public static final long WAL_CHECKPOINT_BYTES = 4L * 1024 * 1024; // Log size past which it is emptied after a commit (4MB)
+    public static final int COMPRESSED_EXTENT_BLOCKS = 32; // Data blocks of a compressed file deflated together as one extent (8KB)
+    public static final int EXTENT_CACHE_EXTENTS = 128; // Inflated extents kept per open compressed file (1MB)
+    public static final int SCHEMA_SAMPLE_ROWS = 1000; // Rows sampled to infer the schema of a fixed-width file
+    public static final int COLUMN_DICTIONARY_ENTRIES = 65536; // Most distinct fields of a column stored as dictionary codes
+    public static final int COLUMN_DICTIONARY_LOAD_ROWS = 256; // Rows read at once from a dict column that load its whole dictionary
+    public static final int COLUMN_SCAN_BYTES = 64 * 1024; // Bytes of one column fetched by one read of a column scan (64KB)
+    public static final int COLUMN_WRITE_BYTES = 16 * 1024; // Bytes of one column buffered by an import before they are written (16KB)
 
     // Metadata related constants
     public static final int METADATA_SIZE = 512; // Total metadata size
@@ -32,4 +51,5 @@ public class Constants {
 
     // Bitmap related constants
     public static final int BITMAP_OFFSET = METADATA_SIZE; // Bitmap offset
+    public static final int BITMAP_INLINE_SIZE = HEADER_SIZE - BITMAP_OFFSET; // Bitmap bytes kept in the header; the rest is in the last blocks of the file
 }
\ No newline at end of file
@@ -1,70 +1,203 @@
 package index;
 
-public class BTreeIndex {
-    private static final int NODESIZE = 5;
-    private static final int M = NODESIZE+1;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BTreeIndex implements KeyIndex {
+    public static final int DEFAULT_FANOUT = 128; // Default maximum number of entries per node
+    public static final int MIN_FANOUT = 3;       // Smallest fanout that still splits into two non-empty nodes
+    private final int fanout;  // maximum number of entries per node
     public Node root;       // root node of the B-tree
     public int height;      // height of the B-tree
     public int n;           // number of key-value pairs in the B-tree
 
-    // helper B-tree node data type
+    // helper B-tree node data type, stored as parallel primitive arrays
+    // leaf nodes: keys[j] maps to vals[j]
+    // internal nodes: keys[j] is the smallest key of the subtree children[j]
     public static final class Node
     {
         private static int nextId = 0;  // Static variable used to generate a unique ID for each node instance.
 
         public int m;  // Number of children for this node. This is the count of keys (or entries) that the node currently holds.
 
-        public Entry[] children = new Entry[M];   // Array to store children entries. Each entry can be a key-value pair in leaf nodes or a key and a reference to the next child node in internal nodes.
-        public int id;                          // Unique identifier for the node, assigned automatically upon node creation.
+        public final int[] keys;       // Keys of the entries, in ascending order.
+        public final long[] vals;      // Values (record locators) of the entries in a leaf node; null in internal nodes.
+        public final Node[] children;  // Child nodes of an internal node; null in leaf nodes.
+        public Node next;              // Right sibling of a leaf node, or null for the last leaf.
+        public int id;                 // Unique identifier for the node, assigned automatically upon node creation.
 
 
         /**
          * Constructs a node with a specified number of children.
          * This constructor initializes the node with a given number of children and assigns a unique ID to the node.
          * The unique ID is generated sequentially, ensuring that each node receives a distinct ID.
+         * The arrays hold one slot more than the capacity, so an insertion can overflow the node before it is split.
          *
-         * @param k the initial number of children (or entries) the node should have. This can be less than M, allowing the node to grow.
+         * @param k the initial number of children (or entries) the node should have. This can be less than the capacity, allowing the node to grow.
+         * @param capacity the maximum number of entries the node holds once an insertion has completed.
+         * @param leaf true for a leaf node holding values, false for an internal node holding child references.
          */
-        public Node(int k)
+        public Node(int k, int capacity, boolean leaf)
         {
             m = k; // Set the initial number of children (or entries).
+            keys = new int[capacity + 1];
+            vals = leaf ? new long[capacity + 1] : null;
+            children = leaf ? null : new Node[capacity + 1];
             id = nextId++; // Assign the next unique ID to this node and increment the ID counter for the next node.
         }
+
+        public boolean isLeaf()
+        {
+            return children == null;
+        }
     }
 
-    // internal nodes: only use key and next
-    // external nodes: only use key and value
-    public static class Entry
+    /**
+     * Builds a B-tree bottom-up from keys supplied in ascending order.
+     * Leaves are filled left to right up to the fill factor, then each internal level is built over the level below,
+     * so no node is ever split. Used during CSV import, where record IDs are assigned in increasing order.
+     */
+    public static final class Builder
     {
-        public int key;
-        public int val; // offset
-        public Node next; // Reference to the next node. This is used in internal nodes to point to child nodes that may contain or are related to this key.
+        private final int fanout;
+        private final int perNode; // Entries placed in each node
+        private final List<Node> leaves = new ArrayList<>();
+        private Node leaf; // Leaf currently being filled
+        private int lastKey;
+        private int n;
+
+        /**
+         * Creates a builder for a tree with the default fanout.
+         *
+         * @param fillFactor The fraction of each node to fill, between 0 and 1. Nodes hold at least two entries.
+         */
+        public Builder(double fillFactor)
+        {
+            this(DEFAULT_FANOUT, fillFactor);
+        }
 
+        /**
+         * Creates a builder.
+         *
+         * @param fanout The maximum number of entries per node of the built tree.
+         * @param fillFactor The fraction of each node to fill, between 0 and 1. Nodes hold at least two entries.
+         */
+        public Builder(int fanout, double fillFactor)
+        {
+            this.fanout = checkFanout(fanout);
+            perNode = Math.max(2, Math.min(fanout, (int) Math.round(fillFactor * fanout)));
+        }
 
         /**
-         * Constructs an entry with a given key, value, and reference to the next node.
-         * This constructor initializes an entry that can be used either in a leaf node or an internal node of the B-tree.
-         * For leaf nodes, the key and value represent the actual data stored in the B-tree.
-         * For internal nodes, the key is used for navigation, and the 'next' reference points to the child node that may contain further keys or values.
+         * Appends a key-value pair. Keys must be strictly increasing.
          *
-         * @param key The key part of the entry, used for searching within the B-tree.
-         * @param val The value associated with the key; relevant for leaf nodes where actual data is stored.
-         * @param next In internal nodes, this points to the next child node related to this entry. For leaf nodes, this can be null.
+         * @param key The key, greater than every key added before.
+         * @param val The value associated with the key.
+         * @throws IllegalArgumentException If the key is not greater than the previous key.
          */
-        public Entry(int key, int val, Node next)
+        public void add(int key, long val)
         {
-            this.key  = key;
-            this.val  = val;
-            this.next = next;
+            if (n > 0 && key <= lastKey)
+            {
+                throw new IllegalArgumentException("Keys must be added in increasing order: " + key + " after " + lastKey);
+            }
+            if (leaf == null || leaf.m == perNode)
+            {
+                Node previous = leaf;
+                leaf = new Node(0, fanout, true);
+                if (previous != null)
+                {
+                    previous.next = leaf; // Link the leaves left to right
+                }
+                leaves.add(leaf);
+            }
+            leaf.keys[leaf.m] = key;
+            leaf.vals[leaf.m++] = val;
+            lastKey = key;
+            n++;
+        }
+
+        public int size()
+        {
+            return n;
+        }
+
+        public int lastKey()
+        {
+            return lastKey;
+        }
+
+        /**
+         * Builds the internal levels over the leaves added so far and returns the tree.
+         *
+         * @return The bulk-loaded B-tree.
+         */
+        public BTreeIndex build()
+        {
+            BTreeIndex tree = new BTreeIndex(fanout);
+            List<Node> level = leaves;
+            while (level.size() > 1)
+            {
+                // Each parent entry holds the smallest key of its child, as put() maintains for internal nodes
+                List<Node> parents = new ArrayList<>();
+                Node parent = null;
+                for (Node child : level)
+                {
+                    if (parent == null || parent.m == perNode)
+                    {
+                        parent = new Node(0, fanout, false);
+                        parents.add(parent);
+                    }
+                    parent.keys[parent.m] = child.keys[0];
+                    parent.children[parent.m++] = child;
+                }
+                level = parents;
+                tree.height++;
+            }
+            if (!level.isEmpty())
+            {
+                tree.root = level.get(0);
+            }
+            tree.n = n;
+            return tree;
         }
     }
 
     /**
-     * Initializes an B-tree.
+     * Initializes an B-tree with the default fanout.
      */
     public BTreeIndex()
     {
-        root = new Node(0);
+        this(DEFAULT_FANOUT);
+    }
+
+    /**
+     * Initializes an B-tree whose nodes hold up to the given number of entries.
+     * Larger nodes make the tree shallower; a search inside a node is a binary search over its keys.
+     *
+     * @param fanout The maximum number of entries per node, at least MIN_FANOUT.
+     * @throws IllegalArgumentException If the fanout is below MIN_FANOUT.
+     */
+    public BTreeIndex(int fanout)
+    {
+        this.fanout = checkFanout(fanout);
+        root = new Node(0, fanout, true);
+    }
+
+    private static int checkFanout(int fanout)
+    {
+        if (fanout < MIN_FANOUT)
+        {
+            throw new IllegalArgumentException("Fanout must be at least " + MIN_FANOUT + ": " + fanout);
+        }
+        return fanout;
+    }
+
+    public int getFanout()
+    {
+        return fanout;
     }
 
     public boolean isEmpty()
@@ -90,54 +223,65 @@ public class BTreeIndex {
      * @param key The key for which the associated value is to be retrieved.
      * @return The value associated with the specified key if found; -1 if the key is not found.
      */
-    public int get(int key)
+    public long get(int key)
     {
-        return search(root, key, height);
+        Node x = root;
+        // Internal nodes: follow the last child whose smallest key is <= key, or the first child if there is none.
+        for (int ht = height; ht > 0; ht--)
+        {
+            x = x.children[Math.max(0, upperBound(x, key) - 1)];
+        }
+        // Leaf node: binary search among the entries.
+        int j = lowerBound(x, key);
+        if (j < x.m && eq(key, x.keys[j]))
+        {
+            return x.vals[j]; // Key found, return associated value.
+        }
+        return -1; // Key not found.
     }
 
     /**
-     * Recursively searches for a given key in the subtree rooted at a specified node.
-     * This method prints the ID of each visited node, helping in debugging and understanding the tree traversal process.
-     * It differentiates between leaf nodes (external nodes) and internal nodes during the search:
-     * - In leaf nodes, it directly searches for the key among the entries.
-     * - In internal nodes, it navigates through the children based on the key's value.
+     * Retrieves the values of many keys with one descent: the sorted keys are split among the children of each
+     * node, so each node on the paths to the keys is visited once.
      *
-     * @param x The current node being searched.
-     * @param key The key to search for.
-     * @param ht The height of the current node from the leaf level (height = 0 for leaf nodes).
-     * @return The value associated with the key if found; -1 if the key is not found.
+     * @param sortedKeys The keys to look up, in ascending order.
+     * @return The value of each key at the same position, or -1 for keys not in the tree.
      */
-    private int search(Node x, int key, int ht)
+    public long[] getMany(int[] sortedKeys)
     {
-        Entry[] children = x.children;
-        //Visiting Node ID
-//        System.out.println("Visiting Node ID: " + x.id);
+        long[] vals = new long[sortedKeys.length];
+        getMany(root, height, sortedKeys, 0, sortedKeys.length, vals);
+        return vals;
+    }
 
-        // Leaf node case: perform linear search among all entries in the node.
+    private void getMany(Node x, int ht, int[] keys, int lo, int hi, long[] vals)
+    {
         if (ht == 0)
         {
-            for (int j = 0; j < x.m; j++)
+            // Merge the sorted keys with the sorted entries of the leaf.
+            int j = lo < hi ? lowerBound(x, keys[lo]) : 0;
+            for (int i = lo; i < hi; i++)
             {
-                if (eq(key, children[j].key))
+                while (j < x.m && less(x.keys[j], keys[i]))
                 {
-                    return children[j].val; // Key found, return associated value.
+                    j++;
                 }
+                vals[i] = j < x.m && eq(keys[i], x.keys[j]) ? x.vals[j] : -1;
             }
+            return;
         }
-
-        // Internal node case: navigate to the appropriate child node based on the key's value.
-        else
+        for (int i = lo; i < hi; )
         {
-            for (int j = 0; j < x.m; j++)
+            // Keys from i up to the smallest key of the next child all belong to the same child.
+            int j = Math.max(0, upperBound(x, keys[i]) - 1);
+            int end = i + 1;
+            while (end < hi && (j + 1 == x.m || less(keys[end], x.keys[j + 1])))
             {
-                // If this is the last child or the key is less than the next child's key, search in the current child's subtree.
-                if (j+1 == x.m || less(key, children[j+1].key))
-                {
-                    return search(children[j].next, key, ht-1);
-                }
+                end++;
             }
+            getMany(x.children[j], ht - 1, keys, i, end, vals);
+            i = end;
         }
-        return -1;// Key not found in this subtree.
     }
 
     /**
@@ -147,10 +291,9 @@ public class BTreeIndex {
      * @param key The key to insert into the B-tree.
      * @param val The value associated with the key.
      */
-    public void put(int key, int val)
+    public void put(int key, long val)
     {
         Node u = insert(root, key, val, height); // Attempt to insert the key-value pair, which might result in a split at the root.
-        n++; // Increment the number of key-value pairs in the B-tree.
 
         // If no split occurred at the root, insertion is complete.
         if (u == null)
@@ -159,9 +302,11 @@ public class BTreeIndex {
         }
 
         // Split the root: Create a new root node with two children.
-        Node t = new Node(2);
-        t.children[0] = new Entry(root.children[0].key, -1, root); // First child of the new root is the old root.
-        t.children[1] = new Entry(u.children[0].key, -1, u); // Second child is the node returned from the split.
+        Node t = new Node(2, fanout, false);
+        t.keys[0] = root.keys[0];
+        t.children[0] = root; // First child of the new root is the old root.
+        t.keys[1] = u.keys[0];
+        t.children[1] = u; // Second child is the node returned from the split.
         root = t; // Update the root of the B-tree
         height++; // Increase the height of the B-tree as a result of splitting the root.
     }
@@ -175,52 +320,52 @@ public class BTreeIndex {
      * @param ht The height of the current node from the bottom.
      * @return A new node if the current node was split, null otherwise.
      */
-    private Node insert(Node h, int key, int val, int ht)
+    private Node insert(Node h, int key, long val, int ht)
     {
         int j;
-        Entry t = new Entry(key, val, null); // Create a new entry for the key-value pair.
+        Node child = null;
 
         // Handle insertion in a leaf node.
         if (ht == 0)
         {
-            for (j = 0; j < h.m; j++)
+            j = lowerBound(h, key);
+            if (j < h.m && eq(key, h.keys[j]))
             {
-                if (less(key, h.children[j].key))// Find the correct position for the new key.
-                {
-                    break;
-                }
+                h.vals[j] = val; // Existing key: overwrite its value.
+                return null;
             }
+            n++; // Increment the number of key-value pairs in the B-tree.
         }
 
         // Handle insertion in an internal node.
         else
         {
-            for (j = 0; j < h.m; j++)
+            // Descend into the last child whose smallest key is <= key, and insert recursively.
+            j = Math.max(0, upperBound(h, key) - 1);
+            child = insert(h.children[j++], key, val, ht - 1);
+            if (child == null)
             {
-                // Move to the next child if necessary, and insert recursively.
-                if ((j+1 == h.m) || less(key, h.children[j+1].key))
-                {
-                    Node u = insert(h.children[j++].next, key, val, ht-1);
-                    if (u == null)
-                    {
-                        return null; // No split occurred.
-                    }
-                    t.key = u.children[0].key; // Update the key to be the smallest key in the new node.
-                    t.val = -1; // For internal nodes, val is not used.
-                    t.next = u; // Link to the newly created node as a result of the split.
-                    break;
-                }
+                return null; // No split occurred.
             }
+            key = child.keys[0]; // The new entry points to the node created by the split, keyed by its smallest key.
         }
 
         // Shift entries to make room for the new entry.
-        for (int i = h.m; i > j; i--)
+        int moved = h.m - j;
+        System.arraycopy(h.keys, j, h.keys, j + 1, moved);
+        h.keys[j] = key;
+        if (ht == 0)
         {
-            h.children[i] = h.children[i-1];
+            System.arraycopy(h.vals, j, h.vals, j + 1, moved);
+            h.vals[j] = val;
+        }
+        else
+        {
+            System.arraycopy(h.children, j, h.children, j + 1, moved);
+            h.children[j] = child;
         }
-        h.children[j] = t; // Insert the new entry at the found position.
         h.m++;  // Increment the number of entries in the node.
-        if (h.m < M)
+        if (h.m <= fanout)
         {
             // If the node is not full, return null.
             return null;
@@ -237,22 +382,175 @@ public class BTreeIndex {
      *
      * @param h The node to split.
      * @return The new node created as a result of the split.
-     */    private Node split(Node h) {
-        int splitPoint = M / 2; // Determine the split point. For odd M, adjust to ensure more keys on the left.
-        if (M % 2 != 0) {
-            // Adjust split point for odd M to balance the split.
-            splitPoint++;
-        }
-        Node t = new Node(splitPoint);  // Create a new node to hold the entries from the split.
-        h.m = M - splitPoint; // Update the number of entries in the original node.
+     */
+    private Node split(Node h)
+    {
+        int moved = h.m / 2; // Number of entries moved to the new node; the left node keeps the extra entry for odd sizes.
+        int keep = h.m - moved;
+        Node t = new Node(moved, fanout, h.isLeaf());  // Create a new node to hold the entries from the split.
 
         // Move entries to the new node.
-        for (int j = 0; j < splitPoint; j++) {
-            t.children[j] = h.children[M - splitPoint + j];
+        System.arraycopy(h.keys, keep, t.keys, 0, moved);
+        if (h.isLeaf())
+        {
+            System.arraycopy(h.vals, keep, t.vals, 0, moved);
+            t.next = h.next; // Link the new leaf between h and its old right sibling.
+            h.next = t;
         }
+        else
+        {
+            System.arraycopy(h.children, keep, t.children, 0, moved);
+            Arrays.fill(h.children, keep, h.m, null); // Drop references to the moved children.
+        }
+        h.m = keep; // Update the number of entries in the original node.
         return t;  // Return the new node resulting from the split.
     }
 
+    /**
+     * Finds the first entry of a node whose key is greater than or equal to the given key.
+     *
+     * @param x The node to search.
+     * @param key The key to search for.
+     * @return The index of the first entry with a key >= key, or x.m if there is none.
+     */
+    private int lowerBound(Node x, int key)
+    {
+        int lo = 0;
+        int hi = x.m;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (less(x.keys[mid], key))
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Finds the first entry of a node whose key is greater than the given key.
+     *
+     * @param x The node to search.
+     * @param key The key to search for.
+     * @return The index of the first entry with a key > key, or x.m if there is none.
+     */
+    private int upperBound(Node x, int key)
+    {
+        int lo = 0;
+        int hi = x.m;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (less(key, x.keys[mid]))
+            {
+                hi = mid;
+            }
+            else
+            {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+
+    /**
+     * Visits every key-value pair stored in the leaves, in ascending key order.
+     *
+     * @param visitor The callback receiving each key-value pair.
+     * @throws IOException If the visitor fails.
+     */
+    public void forEach(EntryVisitor visitor) throws IOException
+    {
+        forEach(root, height, visitor);
+    }
+
+    private void forEach(Node h, int ht, EntryVisitor visitor) throws IOException
+    {
+        for (int j = 0; j < h.m; j++)
+        {
+            if (ht == 0)
+            {
+                visitor.visit(h.keys[j], h.vals[j]);
+            }
+            else
+            {
+                forEach(h.children[j], ht - 1, visitor);
+            }
+        }
+    }
+
+    /**
+     * Opens a cursor over the entries with fromKey <= key <= toKey.
+     * The tree is descended once to the leaf that holds fromKey; the cursor then walks the sibling links.
+     *
+     * @param fromKey The smallest key of the range.
+     * @param toKey The largest key of the range.
+     * @return A cursor positioned before the first entry of the range.
+     */
+    public Cursor scan(int fromKey, int toKey)
+    {
+        Node x = root;
+        for (int ht = height; ht > 0; ht--)
+        {
+            x = x.children[Math.max(0, upperBound(x, fromKey) - 1)];
+        }
+        return new LeafCursor(x, lowerBound(x, fromKey) - 1, toKey);
+    }
+
+    // Cursor over the linked leaves; j is the position of the current entry in leaf x
+    private static final class LeafCursor implements Cursor
+    {
+        private Node x;
+        private int j;
+        private final int toKey;
+
+        LeafCursor(Node x, int j, int toKey)
+        {
+            this.x = x;
+            this.j = j;
+            this.toKey = toKey;
+        }
+
+        public boolean next()
+        {
+            if (x == null)
+            {
+                return false;
+            }
+            j++;
+            while (j >= x.m)
+            {
+                x = x.next;
+                j = 0;
+                if (x == null)
+                {
+                    return false;
+                }
+            }
+            if (x.keys[j] > toKey)
+            {
+                x = null;
+                return false;
+            }
+            return true;
+        }
+
+        public int key()
+        {
+            return x.keys[j];
+        }
+
+        public long value()
+        {
+            return x.vals[j];
+        }
+    }
 
     public String toString()
     {
@@ -270,40 +568,24 @@ public class BTreeIndex {
      */
     private String toString(Node h, int ht, String indent) {
         StringBuilder s = new StringBuilder();
-        Entry[] children = h.children;
 
         if (ht == 0) {
             // Formatting for leaf nodes
             s.append(indent).append("Node ID: ").append(h.id).append(" Leaf child keys: [");
-            for (int j = 0; j < h.m; j++) {
-                s.append(children[j].key);
-                if (j < h.m - 1) s.append(", ");
-            }
-
-            // Pad the representation for nodes with fewer than NODESIZE keys
-            for (int j = h.m; j < NODESIZE; j++) {
-                s.append(", "); // Add commas for missing children for consistent formatting
-            }
+            appendKeys(s, h);
             s.append("]");
             s.append("\n");
         } else {
             // Formatting for internal nodes
             s.append(indent).append("Node ID: ").append(h.id).append(" Index: [");
-            for (int j = 0; j < h.m; j++) {
-                s.append(children[j].key);
-                if (j < h.m - 1) s.append(", ");
-            }
-            // Pad the representation for nodes with fewer than NODESIZE keys
-            for (int j = h.m; j < NODESIZE; j++) {
-                s.append(", "); // Consistent formatting for missing children
-            }
+            appendKeys(s, h);
             s.append("]");
             s.append("\n");
 
             // Recursively include string representations of child nodes
             for (int j = 0; j < h.m; j++) {
-                if (children[j] != null && children[j].next != null) {
-                    s.append(toString(children[j].next, ht - 1, indent + "  "));
+                if (h.children[j] != null) {
+                    s.append(toString(h.children[j], ht - 1, indent + "  "));
                 } else {
                     // Mark non-existent children in the representation
                     s.append(indent + "  ").append("Node ID: N/A, [N/A]\n");
@@ -313,6 +595,13 @@ public class BTreeIndex {
         return s.toString();
     }
 
+    private static void appendKeys(StringBuilder s, Node h) {
+        for (int j = 0; j < h.m; j++) {
+            s.append(h.keys[j]);
+            if (j < h.m - 1) s.append(", ");
+        }
+    }
+
     /**
      * Searches for a node by its unique ID throughout the B-tree.
      * This method traverses the tree starting from the root and checks each node's ID against the target ID.
@@ -340,15 +629,11 @@ public class BTreeIndex {
             // Node found, format and return its details
             StringBuilder sb = new StringBuilder();
             sb.append("Node ID: ").append(id).append(", Level: ").append(level).append(", Keys: ");
-            for (int i = 0; i < node.m; i++) {
-                sb.append(node.children[i].key);
-                if (i < node.m - 1) sb.append(", ");
-            }
+            appendKeys(sb, node);
 
             sb.append(", Value: ");
             for (int i = 0; i < node.m; i++) {
-                sb.append(node.children[i].val);
-                //sb.append(node.children[i].next.children[0].val);
+                sb.append(node.isLeaf() ? node.vals[i] : -1);
                 if (i < node.m - 1) sb.append(", ");
             }
 
@@ -356,9 +641,9 @@ public class BTreeIndex {
         }
 
         // Node not found at the current level, search in child nodes
-        for (int i = 0; i < node.m; i++) {
-            if (node.children[i].next != null) {
-                String result = findNodeById(node.children[i].next, id, level + 1);
+        if (!node.isLeaf()) {
+            for (int i = 0; i < node.m; i++) {
+                String result = findNodeById(node.children[i], id, level + 1);
                 if (!result.equals("Node not found")) {
                     // Node found in a subtree, return its details
                     return result;
@@ -399,4 +684,4 @@ public class BTreeIndex {
         return k1 == k2;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+package index;
+
+import java.io.IOException;
+
+/**
+ * Read-side contract shared by the in-memory BTreeIndex and the on-disk PagedBTree:
+ * an ordered map from int keys to long values, the packed record addresses described in Locator.
+ */
+public interface KeyIndex {
+
+    /**
+     * Callback used to walk the entries of an index in ascending key order.
+     */
+    interface EntryVisitor {
+        void visit(int key, long val) throws IOException;
+    }
+
+    /**
+     * Forward cursor over the entries of a key range, in ascending key order.
+     * Call next() before reading the first entry.
+     */
+    interface Cursor {
+        /**
+         * Moves to the next entry of the range.
+         * @return true if there is an entry, false once the range is exhausted
+         * @throws IOException if the next leaf page cannot be read
+         */
+        boolean next() throws IOException;
+
+        int key();
+
+        long value();
+    }
+
+    /**
+     * Returns the value associated with the key.
+     * @param key the key to look up
+     * @return the associated value, or Locator.NONE (-1) if the key is not in the index
+     * @throws IOException if the index pages cannot be read
+     */
+    long get(int key) throws IOException;
+
+    /**
+     * Looks up many keys in one pass: the sorted keys are partitioned among the children of each node,
+     * so every node on the paths to the keys is visited once instead of once per key.
+     * @param sortedKeys the keys to look up, in ascending order
+     * @return the value of each key at the same position, or Locator.NONE for keys not in the index
+     * @throws IOException if the index pages cannot be read
+     */
+    long[] getMany(int[] sortedKeys) throws IOException;
+
+    int size();
+
+    int height();
+
+    /**
+     * Visits every entry of the index in ascending key order.
+     * @param visitor the callback receiving each key-value pair
+     * @throws IOException if the index pages cannot be read or the visitor fails
+     */
+    void forEach(EntryVisitor visitor) throws IOException;
+
+    /**
+     * Opens a cursor over the entries with fromKey <= key <= toKey. The tree is descended once to the leaf
+     * holding fromKey; the cursor then follows the sibling links between leaves.
+     * @param fromKey the smallest key of the range
+     * @param toKey the largest key of the range
+     * @return a cursor positioned before the first entry of the range
+     * @throws IOException if the index pages cannot be read
+     */
+    Cursor scan(int fromKey, int toKey) throws IOException;
+}
@@ -0,0 +1,80 @@
+package index;
+
+import constants.Constants;
+
+/**
+ * Packed 64-bit address of a record, stored as the index value:
+ *   bits 63..32  block number
+ *   bits 31..20  offset of the record's first byte within that block
+ *   bits 19..0   length of the record in bytes
+ * The record's bytes are contiguous in the file from that position, even when they cross block boundaries,
+ * so a lookup is one positioned read. A locator with length 0 only names the block that holds the start of the
+ * record (indexes written before locators existed); the block then has to be decoded to find the record.
+ */
+public final class Locator {
+    public static final long NONE = -1L; // Returned for keys that are not in an index
+    private static final int OFFSET_BITS = 12;
+    private static final int LENGTH_BITS = 20;
+    public static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    private Locator() {
+    }
+
+    /**
+     * Packs a record address.
+     * @param block the block holding the first byte of the record
+     * @param offset the offset of the first byte within the block
+     * @param length the length of the record; 0 if unknown
+     * @return the packed locator
+     * @throws IllegalArgumentException if a field does not fit its bits
+     */
+    public static long of(int block, int offset, int length) {
+        if (block < 0 || offset < 0 || offset >= (1 << OFFSET_BITS) || length < 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Cannot address block " + block + " offset " + offset + " length " + length);
+        }
+        return ((long) block << 32) | ((long) offset << LENGTH_BITS) | length;
+    }
+
+    /**
+     * Returns the locator of a value written before locators existed, which names only a block.
+     * @param block the block number, or -1 for a missing key
+     * @return the locator naming the block, or NONE
+     */
+    public static long ofBlock(int block) {
+        return block < 0 ? NONE : (long) block << 32;
+    }
+
+    public static int block(long locator) {
+        return (int) (locator >>> 32);
+    }
+
+    public static int offset(long locator) {
+        return (int) (locator >>> LENGTH_BITS) & ((1 << OFFSET_BITS) - 1);
+    }
+
+    public static int length(long locator) {
+        return (int) locator & MAX_LENGTH;
+    }
+
+    /**
+     * Checks whether a locator gives the exact position and length of the record.
+     * @param locator the locator
+     * @return true if the record can be read with one positioned read
+     */
+    public static boolean isExact(long locator) {
+        return locator != NONE && length(locator) > 0;
+    }
+
+    /**
+     * Returns the file position of the record's first byte.
+     * @param locator the locator
+     * @return the absolute position in the database file
+     */
+    public static long position(long locator) {
+        return (long) (block(locator) + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE + offset(locator);
+    }
+
+    public static String toString(long locator) {
+        return locator == NONE ? "none" : "block " + block(locator) + " offset " + offset(locator) + " length " + length(locator);
+    }
+}
@@ -0,0 +1,655 @@
+package index;
+
+import constants.Constants;
+import io.BlockDevice;
+import io.FileCreator;
+import manager.BlockManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Persistent B+tree stored in the .db0 file, one node per block-sized page.
+ * A lookup reads only the pages on the root-to-leaf path; the pages come through the database's
+ * BlockDevice, so the buffer pool acts as the page cache. Inserts rewrite only the pages they modify.
+ *
+ * Page layout (all values big-endian):
+ *   meta page:     magic, root block, height, number of entries
+ *   leaf page:     type, entry count (short), next leaf block, then (key, value) pairs; the value is a long
+ *                  record locator, or an int block number in trees written before locators ("PBT1")
+ *   internal page: type, key count (short), unused, then child 0 followed by (key, child) pairs
+ * In an internal page, child i holds the keys in [key i-1, key i).
+ */
+public class PagedBTree implements KeyIndex {
+    public static final int MAGIC = 0x50425432; // "PBT2": values are 8-byte record locators
+    public static final int MAGIC_V1 = 0x50425431; // "PBT1": values are 4-byte block numbers; read-only
+
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+    private static final int TYPE_OFFSET = 0;
+    private static final int COUNT_OFFSET = 1;
+    private static final int NEXT_OFFSET = 3;
+    private static final int PAGE_HEADER_SIZE = 8;
+    static final int LEAF_CAPACITY = (Constants.BLOCK_SIZE - PAGE_HEADER_SIZE) / 12; // Entries per leaf page
+    static final int INTERNAL_CAPACITY = (Constants.BLOCK_SIZE - PAGE_HEADER_SIZE - 4) / 8; // Keys per internal page
+    static final int BULK_RUN_PAGES = 256; // Pages reserved at a time by a bulk load (64KB)
+
+    private final BlockDevice device;
+    private final BlockManager blockManager; // Used to allocate and release pages; null for a read-only tree
+    private final int metaBlock;
+    private final int valueSize; // Bytes per leaf value: 8 for locators, 4 in a "PBT1" tree
+    private final int entrySize; // Bytes per leaf entry
+    private final int leafCapacity; // Entries per leaf page
+    private int rootBlock;
+    private int height;
+    private int n;
+
+    // Result of splitting a page: the separator key and the new right sibling
+    private static final class Split {
+        final int key;
+        final int block;
+
+        Split(int key, int block) {
+            this.key = key;
+            this.block = block;
+        }
+    }
+
+    private PagedBTree(BlockDevice device, BlockManager blockManager, int metaBlock, int valueSize) {
+        this.device = device;
+        this.blockManager = blockManager;
+        this.metaBlock = metaBlock;
+        this.valueSize = valueSize;
+        this.entrySize = 4 + valueSize;
+        this.leafCapacity = (Constants.BLOCK_SIZE - PAGE_HEADER_SIZE) / entrySize;
+    }
+
+    /**
+     * Creates an empty tree: a meta page and an empty root leaf.
+     * @param device the database device
+     * @param blockManager the block manager used to allocate pages
+     * @return the new tree
+     * @throws IOException if the pages cannot be written
+     */
+    public static PagedBTree create(BlockDevice device, BlockManager blockManager) throws IOException {
+        PagedBTree tree = new PagedBTree(device, blockManager, allocatePage(device, blockManager), 8);
+        tree.rootBlock = allocatePage(device, blockManager);
+        tree.writePage(tree.rootBlock, newPage(LEAF));
+        tree.writeMeta();
+        return tree;
+    }
+
+    /**
+     * Builds a tree bottom-up from the entries of another index, which are visited in ascending key order.
+     * Leaves are filled left to right up to the fill factor and linked as they are written, then each internal
+     * level is built over the level below; no page is ever split or rewritten. Pages are reserved in contiguous
+     * runs, so consecutive leaves are adjacent in the file and a scan of the leaf chain reads sequentially.
+     * @param device the database device
+     * @param blockManager the block manager used to allocate pages
+     * @param source the index to copy; if it holds a key more than once, the last value wins
+     * @param fillFactor the fraction of each page to fill, between 0 and 1; a lower value leaves room for later inserts
+     * @return the new tree
+     * @throws IOException if the pages cannot be written or the source cannot be read
+     * @throws IllegalArgumentException if the source does not visit its keys in ascending order
+     */
+    public static PagedBTree bulkLoad(BlockDevice device, BlockManager blockManager, KeyIndex source,
+                                      double fillFactor) throws IOException {
+        PagedBTree tree = new PagedBTree(device, blockManager, allocatePage(device, blockManager), 8);
+        BulkLoader loader = tree.new BulkLoader(fillFactor);
+        source.forEach(loader::add);
+        loader.finish();
+        tree.writeMeta();
+        return tree;
+    }
+
+    // Streams sorted entries into leaf pages and builds the internal levels once the last leaf is written
+    private final class BulkLoader {
+        private final int leafEntries; // Entries placed in each leaf
+        private final int internalKeys; // Keys placed in each internal page
+        private final int[] keys = new int[leafCapacity];
+        private final long[] vals = new long[leafCapacity];
+        private int count; // Entries in the current leaf
+        private int leafBlock = -1; // Block of the current leaf
+        private int[] levelKeys = new int[16]; // Smallest key of each page of the level being built
+        private int[] levelBlocks = new int[16];
+        private int levelSize;
+        private int[] run = new int[0]; // Pages reserved but not yet used
+        private int runPos;
+
+        BulkLoader(double fillFactor) {
+            leafEntries = Math.max(1, Math.min(leafCapacity, (int) Math.round(fillFactor * leafCapacity)));
+            internalKeys = Math.max(1, Math.min(INTERNAL_CAPACITY, (int) Math.round(fillFactor * INTERNAL_CAPACITY)));
+        }
+
+        void add(int key, long val) throws IOException {
+            if (n > 0 && key <= keys[count - 1]) {
+                if (key == keys[count - 1]) {
+                    vals[count - 1] = val; // Repeated key: keep the last value, as put() would
+                    return;
+                }
+                throw new IllegalArgumentException("Bulk load needs ascending keys: " + key + " after " + keys[count - 1]);
+            }
+            if (leafBlock == -1) {
+                leafBlock = nextPage();
+            } else if (count == leafEntries) {
+                int next = nextPage();
+                writePage(leafBlock, leafPage(keys, vals, 0, count, next));
+                leafBlock = next;
+                count = 0;
+            }
+            if (count == 0) {
+                addToLevel(key, leafBlock);
+            }
+            keys[count] = key;
+            vals[count++] = val;
+            n++;
+        }
+
+        void finish() throws IOException {
+            if (leafBlock == -1) {
+                leafBlock = nextPage();
+                addToLevel(0, leafBlock);
+            }
+            writePage(leafBlock, leafPage(keys, vals, 0, count, -1));
+
+            // Build each internal level over the pages of the level below
+            while (levelSize > 1) {
+                int[] childKeys = Arrays.copyOf(levelKeys, levelSize);
+                int[] children = Arrays.copyOf(levelBlocks, levelSize);
+                int total = levelSize;
+                levelSize = 0;
+                int perPage = internalKeys + 1;
+                for (int from = 0; from < total; ) {
+                    int to = Math.min(total, from + perPage);
+                    if (total - to == 1) {
+                        to--; // Leave two children for the last page rather than one
+                    }
+                    int block = nextPage();
+                    // The separator in front of child i is the smallest key of that child
+                    writePage(block, internalPage(childKeys, children, from + 1, to, from));
+                    addToLevel(childKeys[from], block);
+                    from = to;
+                }
+                height++;
+            }
+            rootBlock = levelBlocks[0];
+
+            // Give back the pages reserved but not used
+            while (runPos < run.length) {
+                blockManager.freeBlock(run[runPos++]);
+            }
+        }
+
+        private void addToLevel(int key, int block) {
+            if (levelSize == levelKeys.length) {
+                levelKeys = Arrays.copyOf(levelKeys, levelSize * 2);
+                levelBlocks = Arrays.copyOf(levelBlocks, levelSize * 2);
+            }
+            levelKeys[levelSize] = key;
+            levelBlocks[levelSize++] = block;
+        }
+
+        private int nextPage() throws IOException {
+            if (runPos == run.length) {
+                run = allocatePages(device, blockManager, BULK_RUN_PAGES);
+                runPos = 0;
+            }
+            return run[runPos++];
+        }
+    }
+
+    /**
+     * Opens an existing tree from its meta page.
+     * @param device the database device
+     * @param blockManager the block manager used for inserts and release, or null for a read-only tree
+     * @param metaPosition the file position of the meta page
+     * @return the opened tree
+     * @throws IOException if the meta page cannot be read or is not a B+tree meta page
+     */
+    public static PagedBTree open(BlockDevice device, BlockManager blockManager, long metaPosition) throws IOException {
+        int magic = device.readInt(metaPosition);
+        if (magic != MAGIC && magic != MAGIC_V1) {
+            throw new IOException("No paged index at position " + metaPosition);
+        }
+        PagedBTree tree = new PagedBTree(device, blockManager, toBlock(metaPosition), magic == MAGIC ? 8 : 4);
+        ByteBuffer meta = ByteBuffer.wrap(tree.readPage(tree.metaBlock));
+        meta.getInt();
+        tree.rootBlock = meta.getInt();
+        tree.height = meta.getInt();
+        tree.n = meta.getInt();
+        return tree;
+    }
+
+    /**
+     * Checks whether the given position holds the meta page of a paged index.
+     * @param device the database device
+     * @param position the file position to check
+     * @return true if the magic number of a paged index is found
+     * @throws IOException if an I/O error occurs
+     */
+    public static boolean isPagedIndex(BlockDevice device, long position) throws IOException {
+        if (position < Constants.HEADER_SIZE) {
+            return false;
+        }
+        int magic = device.readInt(position);
+        return magic == MAGIC || magic == MAGIC_V1;
+    }
+
+    /**
+     * Checks whether the values of the tree are full record locators rather than block numbers.
+     * @return false for a tree written before locators existed
+     */
+    public boolean hasLocators() {
+        return valueSize == 8;
+    }
+
+    public long getMetaPosition() {
+        return toPosition(metaBlock);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Looks up a key by reading the pages from the root down to one leaf.
+     * @param key the key to look up
+     * @return the associated value, or -1 if the key is not in the index
+     * @throws IOException if a page cannot be read
+     */
+    public long get(int key) throws IOException {
+        int block = rootBlock;
+        for (int ht = height; ht > 0; ht--) {
+            ByteBuffer page = ByteBuffer.wrap(readPage(block));
+            block = childAt(page, upperBound(page, key));
+        }
+        ByteBuffer leaf = ByteBuffer.wrap(readPage(block));
+        int count = leaf.getShort(COUNT_OFFSET);
+        int j = lowerBound(leaf, count, key);
+        if (j < count && leafKey(leaf, j) == key) {
+            return leafVal(leaf, j);
+        }
+        return -1;
+    }
+
+    /**
+     * Looks up many keys with one descent; each page on the paths to the keys is read once.
+     * @param sortedKeys the keys to look up, in ascending order
+     * @return the value of each key at the same position, or -1 for keys not in the index
+     * @throws IOException if a page cannot be read
+     */
+    public long[] getMany(int[] sortedKeys) throws IOException {
+        long[] vals = new long[sortedKeys.length];
+        if (sortedKeys.length > 0) {
+            getMany(rootBlock, height, sortedKeys, 0, sortedKeys.length, vals);
+        }
+        return vals;
+    }
+
+    private void getMany(int block, int ht, int[] keys, int lo, int hi, long[] vals) throws IOException {
+        ByteBuffer page = ByteBuffer.wrap(readPage(block));
+        int count = page.getShort(COUNT_OFFSET);
+        if (ht == 0) {
+            // Merge the sorted keys with the sorted entries of the leaf
+            int j = lowerBound(page, count, keys[lo]);
+            for (int i = lo; i < hi; i++) {
+                while (j < count && leafKey(page, j) < keys[i]) {
+                    j++;
+                }
+                vals[i] = j < count && leafKey(page, j) == keys[i] ? leafVal(page, j) : -1;
+            }
+            return;
+        }
+        for (int i = lo; i < hi; ) {
+            // Keys below the separator that follows child j all belong to child j
+            int j = upperBound(page, keys[i]);
+            int end = i + 1;
+            while (end < hi && (j == count || keys[end] < page.getInt(PAGE_HEADER_SIZE + 4 + 8 * j))) {
+                end++;
+            }
+            getMany(childAt(page, j), ht - 1, keys, i, end, vals);
+            i = end;
+        }
+    }
+
+    /**
+     * Inserts a key-value pair, overwriting the value if the key already exists.
+     * Only the pages on the insertion path that actually change are written.
+     * @param key the key to insert
+     * @param val the value associated with the key
+     * @throws IOException if a page cannot be read, written or allocated
+     */
+    public void put(int key, long val) throws IOException {
+        if (blockManager == null) {
+            throw new IllegalStateException("Index opened read-only");
+        }
+        if (!hasLocators()) {
+            throw new IllegalStateException("Index written before record locators is read-only; upgrade the file");
+        }
+        int before = n;
+        Split split = insert(rootBlock, height, key, val);
+        if (split != null) {
+            // Split the root: the new root has the old root and the new sibling as children
+            int newRoot = allocatePage(device, blockManager);
+            ByteBuffer page = ByteBuffer.wrap(newPage(INTERNAL));
+            page.putShort(COUNT_OFFSET, (short) 1);
+            page.putInt(PAGE_HEADER_SIZE, rootBlock);
+            page.putInt(PAGE_HEADER_SIZE + 4, split.key);
+            page.putInt(PAGE_HEADER_SIZE + 8, split.block);
+            writePage(newRoot, page.array());
+            rootBlock = newRoot;
+            height++;
+        }
+        if (split != null || n != before) {
+            writeMeta();
+        }
+    }
+
+    private Split insert(int block, int ht, int key, long val) throws IOException {
+        ByteBuffer page = ByteBuffer.wrap(readPage(block));
+        int count = page.getShort(COUNT_OFFSET);
+        if (ht == 0) {
+            int j = lowerBound(page, count, key);
+            if (j < count && leafKey(page, j) == key) {
+                page.putLong(PAGE_HEADER_SIZE + entrySize * j + 4, val); // Existing key: overwrite in place
+                writePage(block, page.array());
+                return null;
+            }
+            n++;
+            int[] keys = new int[count + 1];
+            long[] vals = new long[count + 1];
+            for (int i = 0, k = 0; i <= count; i++) {
+                if (i == j) {
+                    keys[i] = key;
+                    vals[i] = val;
+                } else {
+                    keys[i] = leafKey(page, k);
+                    vals[i] = leafVal(page, k++);
+                }
+            }
+            int next = page.getInt(NEXT_OFFSET);
+            if (count + 1 <= leafCapacity) {
+                writePage(block, leafPage(keys, vals, 0, count + 1, next));
+                return null;
+            }
+            // Split the leaf in half and link the new right sibling into the leaf chain
+            int mid = (count + 1) / 2;
+            int right = allocatePage(device, blockManager);
+            writePage(right, leafPage(keys, vals, mid, count + 1, next));
+            writePage(block, leafPage(keys, vals, 0, mid, right));
+            return new Split(keys[mid], right);
+        }
+
+        int j = upperBound(page, key);
+        Split split = insert(childAt(page, j), ht - 1, key, val);
+        if (split == null) {
+            return null;
+        }
+        int[] keys = new int[count + 1];
+        int[] children = new int[count + 2];
+        children[0] = childAt(page, 0);
+        for (int i = 0, k = 0; i <= count; i++) {
+            if (i == j) {
+                keys[i] = split.key;
+                children[i + 1] = split.block;
+            } else {
+                keys[i] = page.getInt(PAGE_HEADER_SIZE + 4 + 8 * k);
+                children[i + 1] = childAt(page, ++k);
+            }
+        }
+        if (count + 1 <= INTERNAL_CAPACITY) {
+            writePage(block, internalPage(keys, children, 0, count + 1));
+            return null;
+        }
+        // Split the internal page; the middle key moves up to the parent
+        int mid = (count + 1) / 2;
+        int right = allocatePage(device, blockManager);
+        writePage(right, internalPage(keys, children, mid + 1, count + 1));
+        writePage(block, internalPage(keys, children, 0, mid));
+        return new Split(keys[mid], right);
+    }
+
+    /**
+     * Visits all entries by walking the leaf chain from the leftmost leaf.
+     * @param visitor the callback receiving each key-value pair
+     * @throws IOException if a page cannot be read or the visitor fails
+     */
+    public void forEach(EntryVisitor visitor) throws IOException {
+        int block = rootBlock;
+        for (int ht = height; ht > 0; ht--) {
+            block = childAt(ByteBuffer.wrap(readPage(block)), 0);
+        }
+        while (block != -1) {
+            ByteBuffer leaf = ByteBuffer.wrap(readPage(block));
+            int count = leaf.getShort(COUNT_OFFSET);
+            for (int j = 0; j < count; j++) {
+                visitor.visit(leafKey(leaf, j), leafVal(leaf, j));
+            }
+            block = leaf.getInt(NEXT_OFFSET);
+        }
+    }
+
+    /**
+     * Opens a cursor over the entries with fromKey <= key <= toKey. The tree is descended once;
+     * the cursor then reads one leaf page at a time along the leaf chain.
+     * @param fromKey the smallest key of the range
+     * @param toKey the largest key of the range
+     * @return a cursor positioned before the first entry of the range
+     * @throws IOException if a page cannot be read
+     */
+    public Cursor scan(int fromKey, int toKey) throws IOException {
+        int block = rootBlock;
+        for (int ht = height; ht > 0; ht--) {
+            ByteBuffer page = ByteBuffer.wrap(readPage(block));
+            block = childAt(page, upperBound(page, fromKey));
+        }
+        ByteBuffer leaf = ByteBuffer.wrap(readPage(block));
+        return new PageCursor(leaf, lowerBound(leaf, leaf.getShort(COUNT_OFFSET), fromKey) - 1, toKey);
+    }
+
+    // Cursor over the leaf chain; j is the position of the current entry in the leaf page
+    private final class PageCursor implements Cursor {
+        private ByteBuffer leaf;
+        private int count;
+        private int j;
+        private final int toKey;
+
+        PageCursor(ByteBuffer leaf, int j, int toKey) {
+            this.leaf = leaf;
+            this.count = leaf.getShort(COUNT_OFFSET);
+            this.j = j;
+            this.toKey = toKey;
+        }
+
+        public boolean next() throws IOException {
+            if (leaf == null) {
+                return false;
+            }
+            j++;
+            while (j >= count) {
+                int next = leaf.getInt(NEXT_OFFSET);
+                if (next == -1) {
+                    leaf = null;
+                    return false;
+                }
+                leaf = ByteBuffer.wrap(readPage(next));
+                count = leaf.getShort(COUNT_OFFSET);
+                j = 0;
+            }
+            if (leafKey(leaf, j) > toKey) {
+                leaf = null;
+                return false;
+            }
+            return true;
+        }
+
+        public int key() {
+            return leafKey(leaf, j);
+        }
+
+        public long value() {
+            return leafVal(leaf, j);
+        }
+    }
+
+    /**
+     * Releases every page of the tree, including the meta page, and clears them.
+     * @throws IOException if a page cannot be read or cleared
+     */
+    public void free() throws IOException {
+        freeSubtree(rootBlock, height);
+        releasePage(metaBlock);
+    }
+
+    private void freeSubtree(int block, int ht) throws IOException {
+        if (ht > 0) {
+            ByteBuffer page = ByteBuffer.wrap(readPage(block));
+            int count = page.getShort(COUNT_OFFSET);
+            for (int j = 0; j <= count; j++) {
+                freeSubtree(childAt(page, j), ht - 1);
+            }
+        }
+        releasePage(block);
+    }
+
+    private void releasePage(int block) throws IOException {
+        if (!blockManager.isDeferringRelease()) { // Otherwise the block manager clears it once the release is durable
+            writePage(block, new byte[Constants.BLOCK_SIZE]);
+        }
+        blockManager.freeBlock(block);
+    }
+
+    // Number of keys in an internal page that are <= key, i.e. the index of the child to follow
+    private static int upperBound(ByteBuffer page, int key) {
+        int lo = 0;
+        int hi = page.getShort(COUNT_OFFSET);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (page.getInt(PAGE_HEADER_SIZE + 4 + 8 * mid) <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Index of the first leaf entry whose key is >= key
+    private int lowerBound(ByteBuffer leaf, int count, int key) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (leafKey(leaf, mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int leafKey(ByteBuffer leaf, int j) {
+        return leaf.getInt(PAGE_HEADER_SIZE + entrySize * j);
+    }
+
+    private long leafVal(ByteBuffer leaf, int j) {
+        int pos = PAGE_HEADER_SIZE + entrySize * j + 4;
+        return valueSize == 8 ? leaf.getLong(pos) : Locator.ofBlock(leaf.getInt(pos));
+    }
+
+    private static int childAt(ByteBuffer page, int j) {
+        return page.getInt(PAGE_HEADER_SIZE + 8 * j);
+    }
+
+    private static byte[] newPage(byte type) {
+        byte[] page = new byte[Constants.BLOCK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(page);
+        buffer.put(TYPE_OFFSET, type);
+        buffer.putInt(NEXT_OFFSET, -1);
+        return page;
+    }
+
+    private byte[] leafPage(int[] keys, long[] vals, int from, int to, int next) {
+        ByteBuffer page = ByteBuffer.wrap(newPage(LEAF));
+        page.putShort(COUNT_OFFSET, (short) (to - from));
+        page.putInt(NEXT_OFFSET, next);
+        for (int i = from; i < to; i++) {
+            page.putInt(PAGE_HEADER_SIZE + entrySize * (i - from), keys[i]);
+            page.putLong(PAGE_HEADER_SIZE + entrySize * (i - from) + 4, vals[i]);
+        }
+        return page.array();
+    }
+
+    // Builds an internal page from keys[from, to) and children[from, to]
+    private static byte[] internalPage(int[] keys, int[] children, int from, int to) {
+        return internalPage(keys, children, from, to, from);
+    }
+
+    // Builds an internal page from children[first, first + to - from] with keys[from, to) as separators
+    private static byte[] internalPage(int[] keys, int[] children, int from, int to, int first) {
+        ByteBuffer page = ByteBuffer.wrap(newPage(INTERNAL));
+        page.putShort(COUNT_OFFSET, (short) (to - from));
+        page.putInt(PAGE_HEADER_SIZE, children[first]);
+        for (int i = from; i < to; i++) {
+            page.putInt(PAGE_HEADER_SIZE + 4 + 8 * (i - from), keys[i]);
+            page.putInt(PAGE_HEADER_SIZE + 8 + 8 * (i - from), children[first + 1 + i - from]);
+        }
+        return page.array();
+    }
+
+    private void writeMeta() throws IOException {
+        ByteBuffer meta = ByteBuffer.wrap(new byte[Constants.BLOCK_SIZE]);
+        meta.putInt(MAGIC).putInt(rootBlock).putInt(height).putInt(n);
+        writePage(metaBlock, meta.array());
+    }
+
+    private byte[] readPage(int block) throws IOException {
+        byte[] page = new byte[Constants.BLOCK_SIZE];
+        device.read(toPosition(block), page);
+        return page;
+    }
+
+    private void writePage(int block, byte[] page) throws IOException {
+        device.write(toPosition(block), page);
+    }
+
+    static int allocatePage(BlockDevice device, BlockManager blockManager) throws IOException {
+        int block = blockManager.allocateBlock(0);
+        if (block == -1) {
+            new FileCreator().extendFile(device, blockManager, Constants.FILE_INNIT_SIZE);
+            block = blockManager.allocateBlock(0);
+        }
+        return block;
+    }
+
+    // Reserves count pages, contiguous when the free space allows it
+    static int[] allocatePages(BlockDevice device, BlockManager blockManager, int count) throws IOException {
+        int[] blocks = blockManager.allocateContiguousBlocks(count);
+        if (blocks == null) {
+            long bytes = (long) count * Constants.BLOCK_SIZE;
+            new FileCreator().extendFile(device, blockManager, Math.max(Constants.FILE_INNIT_SIZE, bytes));
+            blocks = blockManager.allocateContiguousBlocks(count);
+        }
+        if (blocks == null) {
+            blocks = new int[count];
+            for (int i = 0; i < count; i++) {
+                blocks[i] = allocatePage(device, blockManager);
+            }
+        }
+        return blocks;
+    }
+
+    static long toPosition(int block) {
+        return (long) (block + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+    }
+
+    static int toBlock(long position) {
+        return (int) (position / Constants.BLOCK_SIZE - Constants.HEADER_BLOCKS);
+    }
+}
@@ -0,0 +1,430 @@
+package index;
+
+import constants.Constants;
+import io.BlockDevice;
+import manager.BlockManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Persistent B+tree over variable-length byte-string keys, such as UTF-8 text, stored in the .db0 file one node
+ * per block-sized page. The tree is bulk-loaded from sorted keys and read-only afterwards. Keys are compared as
+ * unsigned bytes in place in the pages, without decoding them.
+ *
+ * Page layout (all values big-endian):
+ *   meta page:     magic, root block, height, number of entries, number of pages
+ *   leaf page:     type, entry count (short), next leaf block, then front-coded entries: the length of the
+ *                  prefix shared with the previous key of the page (byte), the length of the rest (byte), the
+ *                  rest of the key and the value (long); the first key of a page is stored whole
+ *   internal page: type, separator count (short), the length of the prefix common to all its separators (byte)
+ *                  and that prefix, child 0, then (length (byte), separator without the prefix, child) triples
+ * Separators are suffix-truncated: the separator in front of a page is the shortest prefix of its first key
+ * that sorts after the last key of the page before it. Child i holds the keys in [separator i-1, separator i).
+ */
+public class StringBTree {
+    public static final int MAGIC = 0x53425431; // "SBT1"
+    public static final int MAX_KEY_BYTES = 100; // Longer keys are cut to this length, so two entries fit a leaf
+
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+    private static final int TYPE_OFFSET = 0;
+    private static final int COUNT_OFFSET = 1;
+    private static final int NEXT_OFFSET = 3;
+    private static final int LEAF_HEADER_SIZE = 7;
+    private static final int PREFIX_OFFSET = 3; // Length of the common prefix of an internal page, then the prefix
+    private static final int LEAF_ENTRY_OVERHEAD = 10; // Shared length, rest length and value
+    private static final int SEPARATOR_OVERHEAD = 5; // Separator length and child
+
+    private final BlockDevice device;
+    private final BlockManager blockManager; // Used to allocate and release pages; null for a read-only tree
+    private final int metaBlock;
+    private int rootBlock;
+    private int height;
+    private int n;
+    private int pages;
+
+    private StringBTree(BlockDevice device, BlockManager blockManager, int metaBlock) {
+        this.device = device;
+        this.blockManager = blockManager;
+        this.metaBlock = metaBlock;
+    }
+
+    /**
+     * Builds a tree bottom-up from sorted keys. Leaves are filled with front-coded entries until the next one does
+     * not fit, then each internal level is built over the level below with suffix-truncated separators, as many
+     * per page as fit once their common prefix is taken out. Pages are reserved in contiguous runs, so
+     * consecutive leaves are adjacent in the file.
+     * @param device the database device
+     * @param blockManager the block manager used to allocate pages
+     * @param keys the keys, in ascending unsigned byte order without duplicates, each at most MAX_KEY_BYTES long
+     * @param values the value of each key
+     * @param count the number of keys
+     * @return the new tree
+     * @throws IOException if the pages cannot be written
+     * @throws IllegalArgumentException if the keys are not ascending or one is too long
+     */
+    public static StringBTree bulkLoad(BlockDevice device, BlockManager blockManager, byte[][] keys, long[] values,
+                                       int count) throws IOException {
+        StringBTree tree = new StringBTree(device, blockManager, PagedBTree.allocatePage(device, blockManager));
+        tree.new BulkLoader().load(keys, values, count);
+        tree.writeMeta();
+        return tree;
+    }
+
+    // Writes the leaves, then the internal levels, each page as full as its keys allow
+    private final class BulkLoader {
+        private List<byte[]> levelSeparators = new ArrayList<>(); // Separator in front of each page of the level
+        private List<Integer> levelBlocks = new ArrayList<>();
+        private int[] run = new int[0]; // Pages reserved but not yet used
+        private int runPos;
+
+        void load(byte[][] keys, long[] values, int count) throws IOException {
+            ByteBuffer leaf = newPage(LEAF);
+            int leafBlock = nextPage();
+            int pos = LEAF_HEADER_SIZE;
+            int entries = 0;
+            levelSeparators.add(new byte[0]);
+            levelBlocks.add(leafBlock);
+            for (int i = 0; i < count; i++) {
+                byte[] key = keys[i];
+                if (key.length > MAX_KEY_BYTES) {
+                    throw new IllegalArgumentException("Key longer than " + MAX_KEY_BYTES + " bytes");
+                }
+                int shared = 0;
+                if (i > 0) {
+                    shared = Arrays.mismatch(keys[i - 1], key);
+                    if (shared == -1 || shared == key.length || (shared < keys[i - 1].length
+                            && Byte.toUnsignedInt(keys[i - 1][shared]) > Byte.toUnsignedInt(key[shared]))) {
+                        throw new IllegalArgumentException("Bulk load needs ascending keys");
+                    }
+                }
+                if (entries > 0 && pos + LEAF_ENTRY_OVERHEAD + key.length - shared > Constants.BLOCK_SIZE) {
+                    int next = nextPage();
+                    leaf.putShort(COUNT_OFFSET, (short) entries);
+                    leaf.putInt(NEXT_OFFSET, next);
+                    writePage(leafBlock, leaf.array());
+                    leaf = newPage(LEAF);
+                    leafBlock = next;
+                    pos = LEAF_HEADER_SIZE;
+                    entries = 0;
+                    levelSeparators.add(Arrays.copyOf(key, shared + 1)); // Sorts after the last key of the page before
+                    levelBlocks.add(leafBlock);
+                    shared = 0; // The first key of a page is stored whole
+                }
+                leaf.put(pos, (byte) shared);
+                leaf.put(pos + 1, (byte) (key.length - shared));
+                System.arraycopy(key, shared, leaf.array(), pos + 2, key.length - shared);
+                leaf.putLong(pos + 2 + key.length - shared, values[i]);
+                pos += LEAF_ENTRY_OVERHEAD + key.length - shared;
+                entries++;
+                n++;
+            }
+            leaf.putShort(COUNT_OFFSET, (short) entries);
+            writePage(leafBlock, leaf.array());
+
+            // Build each internal level over the pages of the level below
+            while (levelBlocks.size() > 1) {
+                List<byte[]> separators = levelSeparators;
+                List<Integer> children = levelBlocks;
+                levelSeparators = new ArrayList<>();
+                levelBlocks = new ArrayList<>();
+                for (int from = 0; from < children.size(); ) {
+                    // Take children while the page holds their separators with the prefix they share taken out
+                    int to = from + 1;
+                    int prefix = MAX_KEY_BYTES;
+                    int separatorBytes = 0;
+                    while (to < children.size()) {
+                        byte[] first = separators.get(from + 1);
+                        byte[] separator = separators.get(to);
+                        int common = to == from + 1 ? separator.length : commonPrefix(first, separator, prefix);
+                        int separatorCount = to - from;
+                        int size = PREFIX_OFFSET + 1 + common + 4 + separatorCount * SEPARATOR_OVERHEAD
+                                + separatorBytes + separator.length - separatorCount * common;
+                        if (to > from + 1 && size > Constants.BLOCK_SIZE) {
+                            break;
+                        }
+                        prefix = common;
+                        separatorBytes += separator.length;
+                        to++;
+                    }
+                    int block = nextPage();
+                    writePage(block, internalPage(separators, children, from, to, to > from + 1 ? prefix : 0));
+                    levelSeparators.add(separators.get(from));
+                    levelBlocks.add(block);
+                    from = to;
+                }
+                height++;
+            }
+            rootBlock = levelBlocks.get(0);
+
+            // Give back the pages reserved but not used
+            while (runPos < run.length) {
+                blockManager.freeBlock(run[runPos++]);
+            }
+        }
+
+        private int nextPage() throws IOException {
+            if (runPos == run.length) {
+                run = PagedBTree.allocatePages(device, blockManager, PagedBTree.BULK_RUN_PAGES);
+                runPos = 0;
+            }
+            pages++;
+            return run[runPos++];
+        }
+    }
+
+    /**
+     * Opens an existing tree from its meta page.
+     * @param device the database device
+     * @param blockManager the block manager used to release the tree, or null for a read-only tree
+     * @param metaPosition the file position of the meta page
+     * @return the opened tree
+     * @throws IOException if the meta page cannot be read or is not the meta page of a string-keyed tree
+     */
+    public static StringBTree open(BlockDevice device, BlockManager blockManager, long metaPosition) throws IOException {
+        if (!isStringIndex(device, metaPosition)) {
+            throw new IOException("No string-keyed index at position " + metaPosition);
+        }
+        StringBTree tree = new StringBTree(device, blockManager, PagedBTree.toBlock(metaPosition));
+        ByteBuffer meta = ByteBuffer.wrap(tree.readPage(tree.metaBlock));
+        meta.getInt();
+        tree.rootBlock = meta.getInt();
+        tree.height = meta.getInt();
+        tree.n = meta.getInt();
+        tree.pages = meta.getInt();
+        return tree;
+    }
+
+    /**
+     * Checks whether the given position holds the meta page of a string-keyed tree.
+     * @param device the database device
+     * @param position the file position to check
+     * @return true if the magic number of a string-keyed tree is found
+     * @throws IOException if an I/O error occurs
+     */
+    public static boolean isStringIndex(BlockDevice device, long position) throws IOException {
+        return position >= Constants.HEADER_SIZE && device.readInt(position) == MAGIC;
+    }
+
+    /**
+     * Returns the key a text is stored under: its UTF-8 bytes, cut to MAX_KEY_BYTES.
+     * @param bytes the UTF-8 bytes of the text
+     * @return the key; texts that share their first MAX_KEY_BYTES bytes share it
+     */
+    public static byte[] keyOf(byte[] bytes) {
+        return bytes.length > MAX_KEY_BYTES ? Arrays.copyOf(bytes, MAX_KEY_BYTES) : bytes;
+    }
+
+    public long getMetaPosition() {
+        return PagedBTree.toPosition(metaBlock);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Returns the pages of the tree, without the meta page.
+     * @return the number of leaf and internal pages
+     */
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * Looks up a key by reading the pages from the root down to one leaf.
+     * @param key the key; one longer than MAX_KEY_BYTES is looked up by its first MAX_KEY_BYTES bytes
+     * @return the value, or Locator.NONE (-1) if the key is not in the tree
+     * @throws IOException if a page cannot be read
+     */
+    public long get(byte[] key) throws IOException {
+        key = keyOf(key);
+        ByteBuffer leaf = findLeaf(key);
+        int count = leaf.getShort(COUNT_OFFSET);
+        byte[] page = leaf.array();
+        int matched = 0; // Bytes the previous entry has in common with the key; the previous entry is smaller
+        int pos = LEAF_HEADER_SIZE;
+        for (int j = 0; j < count; j++) {
+            int shared = page[pos] & 0xFF;
+            int rest = page[pos + 1] & 0xFF;
+            if (shared < matched) {
+                return Locator.NONE; // This entry differs from the key where it rises above the previous one
+            }
+            if (shared == matched) {
+                // Compare the rest of the entry with the key from where they start to differ
+                int length = shared + rest;
+                int i = shared;
+                while (i < length && i < key.length && page[pos + 2 + i - shared] == key[i]) {
+                    i++;
+                }
+                if (i == length && i == key.length) {
+                    return leaf.getLong(pos + 2 + rest);
+                }
+                if (i < length && (i == key.length || Byte.toUnsignedInt(page[pos + 2 + i - shared]) > Byte.toUnsignedInt(key[i]))) {
+                    return Locator.NONE; // Past the key
+                }
+                matched = i;
+            }
+            // An entry sharing more with the previous one than the key does is still below the key
+            pos += LEAF_ENTRY_OVERHEAD + rest;
+        }
+        return Locator.NONE;
+    }
+
+    /**
+     * Visits the entries whose keys start with a prefix, in key order, along the leaf chain.
+     * @param prefix the prefix; one longer than MAX_KEY_BYTES is cut to that length
+     * @param visitor receives the value of each entry
+     * @throws IOException if a page cannot be read
+     */
+    public void scanPrefix(byte[] prefix, LongConsumer visitor) throws IOException {
+        prefix = keyOf(prefix);
+        ByteBuffer leaf = findLeaf(prefix);
+        byte[] key = new byte[MAX_KEY_BYTES];
+        while (leaf != null) {
+            int count = leaf.getShort(COUNT_OFFSET);
+            byte[] page = leaf.array();
+            int pos = LEAF_HEADER_SIZE;
+            for (int j = 0; j < count; j++) {
+                int shared = page[pos] & 0xFF;
+                int rest = page[pos + 1] & 0xFF;
+                System.arraycopy(page, pos + 2, key, shared, rest);
+                int c = Arrays.compareUnsigned(key, 0, Math.min(shared + rest, prefix.length), prefix, 0, prefix.length);
+                if (c > 0) {
+                    return; // Past the keys that start with the prefix
+                }
+                if (c == 0) {
+                    visitor.accept(leaf.getLong(pos + 2 + rest));
+                }
+                pos += LEAF_ENTRY_OVERHEAD + rest;
+            }
+            int next = leaf.getInt(NEXT_OFFSET);
+            leaf = next == -1 ? null : ByteBuffer.wrap(readPage(next));
+        }
+    }
+
+    /**
+     * Releases every page of the tree, including the meta page, and clears them.
+     * @throws IOException if a page cannot be read or cleared
+     */
+    public void free() throws IOException {
+        freeSubtree(rootBlock, height);
+        releasePage(metaBlock);
+    }
+
+    private void freeSubtree(int block, int ht) throws IOException {
+        if (ht > 0) {
+            byte[] page = readPage(block);
+            int count = ByteBuffer.wrap(page).getShort(COUNT_OFFSET);
+            int pos = PREFIX_OFFSET + 1 + (page[PREFIX_OFFSET] & 0xFF);
+            freeSubtree(ByteBuffer.wrap(page).getInt(pos), ht - 1);
+            pos += 4;
+            for (int j = 0; j < count; j++) {
+                pos += 1 + (page[pos] & 0xFF);
+                freeSubtree(ByteBuffer.wrap(page).getInt(pos), ht - 1);
+                pos += 4;
+            }
+        }
+        releasePage(block);
+    }
+
+    private void releasePage(int block) throws IOException {
+        if (!blockManager.isDeferringRelease()) { // Otherwise the block manager clears it once the release is durable
+            writePage(block, new byte[Constants.BLOCK_SIZE]);
+        }
+        blockManager.freeBlock(block);
+    }
+
+    // Descends from the root to the leaf that holds the key, if any
+    private ByteBuffer findLeaf(byte[] key) throws IOException {
+        int block = rootBlock;
+        for (int ht = height; ht > 0; ht--) {
+            block = childFor(readPage(block), key);
+        }
+        return ByteBuffer.wrap(readPage(block));
+    }
+
+    // Follows the last child whose separator is <= key; the common prefix of the page is compared once
+    private static int childFor(byte[] page, byte[] key) {
+        ByteBuffer buffer = ByteBuffer.wrap(page);
+        int count = buffer.getShort(COUNT_OFFSET);
+        int prefix = page[PREFIX_OFFSET] & 0xFF;
+        int pos = PREFIX_OFFSET + 1;
+        int c = Arrays.compareUnsigned(key, 0, Math.min(prefix, key.length), page, pos, pos + Math.min(prefix, key.length));
+        pos += prefix;
+        int child = buffer.getInt(pos);
+        pos += 4;
+        if (c < 0 || (c == 0 && key.length < prefix)) {
+            return child; // Below every separator
+        }
+        for (int j = 0; j < count; j++) {
+            int length = page[pos] & 0xFF;
+            // Above every separator if the key leaves the common prefix upwards
+            if (c == 0 && Arrays.compareUnsigned(key, prefix, key.length, page, pos + 1, pos + 1 + length) < 0) {
+                return child;
+            }
+            pos += 1 + length;
+            child = buffer.getInt(pos);
+            pos += 4;
+        }
+        return child;
+    }
+
+    // Length of the common prefix of two keys, at most limit
+    private static int commonPrefix(byte[] a, byte[] b, int limit) {
+        int mismatch = Arrays.mismatch(a, 0, Math.min(a.length, limit), b, 0, Math.min(b.length, limit));
+        return mismatch == -1 ? Math.min(limit, Math.min(a.length, b.length)) : mismatch;
+    }
+
+    private static ByteBuffer newPage(byte type) {
+        ByteBuffer page = ByteBuffer.wrap(new byte[Constants.BLOCK_SIZE]);
+        page.put(TYPE_OFFSET, type);
+        page.putInt(NEXT_OFFSET, -1);
+        return page;
+    }
+
+    // Builds an internal page over children [from, to), taking the prefix out of separators [from + 1, to)
+    private static byte[] internalPage(List<byte[]> separators, List<Integer> children, int from, int to, int prefix) {
+        ByteBuffer page = ByteBuffer.wrap(new byte[Constants.BLOCK_SIZE]);
+        page.put(TYPE_OFFSET, INTERNAL);
+        page.putShort(COUNT_OFFSET, (short) (to - from - 1));
+        page.put(PREFIX_OFFSET, (byte) prefix);
+        page.position(PREFIX_OFFSET + 1);
+        if (prefix > 0) {
+            page.put(separators.get(from + 1), 0, prefix);
+        }
+        page.putInt(children.get(from));
+        for (int i = from + 1; i < to; i++) {
+            byte[] separator = separators.get(i);
+            page.put((byte) (separator.length - prefix));
+            page.put(separator, prefix, separator.length - prefix);
+            page.putInt(children.get(i));
+        }
+        return page.array();
+    }
+
+    private void writeMeta() throws IOException {
+        ByteBuffer meta = ByteBuffer.wrap(new byte[Constants.BLOCK_SIZE]);
+        meta.putInt(MAGIC).putInt(rootBlock).putInt(height).putInt(n).putInt(pages);
+        writePage(metaBlock, meta.array());
+    }
+
+    private byte[] readPage(int block) throws IOException {
+        byte[] page = new byte[Constants.BLOCK_SIZE];
+        device.read(PagedBTree.toPosition(block), page);
+        return page;
+    }
+
+    private void writePage(int block, byte[] page) throws IOException {
+        device.write(PagedBTree.toPosition(block), page);
+    }
+}
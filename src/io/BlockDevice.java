@@ -0,0 +1,153 @@
+package io;
+
+import constants.Constants;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Positioned byte-level access to the database file. All components that touch the .db0 file
+ * (BlockWriter, IndexManager, FCBManager, MetadataHandler, ...) go through this interface so the
+ * underlying I/O engine can be swapped without touching the callers.
+ * Multi-byte values are stored big-endian, matching the layout written by RandomAccessFile.
+ */
+public interface BlockDevice extends Closeable {
+
+    String ENGINE_PROPERTY = "pfs.io"; // System property used to select the I/O engine
+    String ENGINE_MMAP = "mmap"; // FileChannel/MappedByteBuffer engine (default)
+    String ENGINE_RAF = "raf"; // Plain RandomAccessFile engine
+
+    /**
+     * Reads up to length bytes starting at the given file position.
+     * @param position the absolute position in the file
+     * @param buffer the buffer to read into
+     * @param offset the offset in the buffer
+     * @param length the maximum number of bytes to read
+     * @return the number of bytes read, or -1 if the position is at or beyond the end of the file
+     * @throws IOException if an I/O error occurs
+     */
+    int read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Writes length bytes from the buffer at the given file position.
+     * @param position the absolute position in the file
+     * @param data the bytes to write
+     * @param offset the offset in the data array
+     * @param length the number of bytes to write
+     * @throws IOException if an I/O error occurs
+     */
+    void write(long position, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Returns the current length of the file.
+     * @return the file length in bytes
+     * @throws IOException if an I/O error occurs
+     */
+    long length() throws IOException;
+
+    /**
+     * Sets the length of the file, growing or truncating it.
+     * @param newLength the new file length in bytes
+     * @throws IOException if an I/O error occurs
+     */
+    void setLength(long newLength) throws IOException;
+
+    /**
+     * Forces all pending changes to the storage device.
+     * @throws IOException if an I/O error occurs
+     */
+    void force() throws IOException;
+
+    /**
+     * Writes the remaining bytes of several buffers back to back, starting at the given file position.
+     * Engines that issue system calls write them with a single gathering write.
+     * @param position the absolute position in the file
+     * @param buffers the buffers to write, in order; their positions are advanced
+     * @throws IOException if an I/O error occurs
+     */
+    default void write(long position, ByteBuffer[] buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            int length = buffer.remaining();
+            write(position, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.limit());
+            position += length;
+        }
+    }
+
+    /**
+     * Returns the number of read, write, seek and sync system calls the engine has issued on the file.
+     * Accesses to memory-mapped segments are plain memory copies and are not counted.
+     * @return the number of system calls
+     */
+    default long getSyscalls() {
+        return 0;
+    }
+
+    default int read(long position, byte[] buffer) throws IOException {
+        return read(position, buffer, 0, buffer.length);
+    }
+
+    default void write(long position, byte[] data) throws IOException {
+        write(position, data, 0, data.length);
+    }
+
+    default int readInt(long position) throws IOException {
+        byte[] b = new byte[4];
+        read(position, b);
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+
+    default void writeInt(long position, int value) throws IOException {
+        write(position, new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+    }
+
+    default long readLong(long position) throws IOException {
+        return ((long) readInt(position) << 32) | (readInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    default void writeLong(long position, long value) throws IOException {
+        byte[] b = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            b[i] = (byte) value;
+            value >>>= 8;
+        }
+        write(position, b);
+    }
+
+    /**
+     * Opens a block device on the given file using the engine selected by the {@value #ENGINE_PROPERTY}
+     * system property. The memory-mapped engine is used unless "raf" is requested.
+     * @param file the database file
+     * @return the opened block device
+     * @throws IOException if the file cannot be opened
+     */
+    static BlockDevice open(File file) throws IOException {
+        return open(file, System.getProperty(ENGINE_PROPERTY, ENGINE_MMAP));
+    }
+
+    /**
+     * Opens a block device on the given file using the named engine. Unless the
+     * {@value BufferPool#CAPACITY_PROPERTY} system property is 0, the engine is wrapped in a BufferPool
+     * whose eviction policy is taken from {@value BufferPool#POLICY_PROPERTY}.
+     * @param file the database file
+     * @param engine the engine name, "mmap" or "raf"
+     * @return the opened block device
+     * @throws IOException if the file cannot be opened
+     */
+    static BlockDevice open(File file, String engine) throws IOException {
+        BlockDevice device;
+        if (ENGINE_RAF.equalsIgnoreCase(engine)) {
+            device = new RandomAccessBlockDevice(file);
+        } else {
+            device = new MappedBlockDevice(file);
+        }
+        int capacity = Integer.getInteger(BufferPool.CAPACITY_PROPERTY, Constants.BUFFER_POOL_BLOCKS);
+        if (capacity <= 0) {
+            return device;
+        }
+        String policy = System.getProperty(BufferPool.POLICY_PROPERTY, BufferPool.EvictionPolicy.CLOCK.name());
+        return new BufferPool(device, capacity, BufferPool.EvictionPolicy.valueOf(policy.toUpperCase()));
+    }
+}
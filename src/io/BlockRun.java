@@ -0,0 +1,219 @@
+package io;
+
+import constants.Constants;
+import manager.BlockManager;
+import metadata.MetadataHandler;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The run of adjacent blocks a compressed or fixed-width file is written into while it is imported, so that the
+ * file stays one range of blocks without being held in memory. Bytes are appended behind a head of blocks that
+ * is written last, such as a map or a schema, and go to the device a batch of WRITE_BATCH_BLOCKS blocks at a time.
+ * The run is reserved ahead of the bytes: it grows in place while the blocks after it are free, or can be made
+ * free by extending the file, and otherwise moves to a free run twice as long, the blocks written so far copied
+ * over a batch at a time. finish() gives back the reserved blocks the file did not use.
+ */
+final class BlockRun {
+    private final BlockDevice file;
+    private final BlockManager blockManager;
+    private final byte[] buffer = new byte[Constants.WRITE_BATCH_BLOCKS * Constants.BLOCK_SIZE];
+    private int buffered; // Bytes appended to buffer and not yet written
+    private int headBlocks; // Blocks at the front of the run kept for the head
+    private int start = -1; // First block of the run, or -1 while nothing is reserved
+    private int reserved; // Blocks reserved, the head included
+    private int written; // Blocks written behind the head
+
+    /**
+     * Creates a run; no blocks are reserved until the first batch is written.
+     * @param file the BlockDevice of the database
+     * @param blockManager the block manager to reserve the run from
+     * @param headBlocks the blocks to keep for the head, which reserveHead() can raise later
+     */
+    BlockRun(BlockDevice file, BlockManager blockManager, int headBlocks) {
+        this.file = file;
+        this.blockManager = blockManager;
+        this.headBlocks = Math.max(1, headBlocks);
+    }
+
+    /**
+     * Appends bytes behind the head.
+     * @param src the array holding the bytes
+     * @param from the position of the first byte in src
+     * @param length the number of bytes
+     * @throws IOException if an I/O error occurs
+     */
+    void append(byte[] src, int from, int length) throws IOException {
+        while (length > 0) {
+            int chunk = Math.min(length, buffer.length - buffered);
+            System.arraycopy(src, from, buffer, buffered, chunk);
+            buffered += chunk;
+            from += chunk;
+            length -= chunk;
+            if (buffered == buffer.length) {
+                writeBuffer();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes appended so far, which is also the position of the next one behind the head.
+     * @return the number of bytes
+     */
+    long size() {
+        return (long) written * Constants.BLOCK_SIZE + buffered;
+    }
+
+    int getHeadBlocks() {
+        return headBlocks;
+    }
+
+    /**
+     * Makes room for a head of at least the given number of blocks, moving the run if it has to grow.
+     * @param blocks the blocks the head needs
+     * @throws IOException if an I/O error occurs
+     */
+    void reserveHead(int blocks) throws IOException {
+        if (blocks > headBlocks) {
+            move(blocks, blocks + written + (buffered + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Writes the bytes still buffered, padded to a whole block, and the head, then gives back the reserved
+     * blocks past the end of the file.
+     * @param head the head, at most getHeadBlocks() blocks long
+     * @return the first block of the run
+     * @throws IOException if an I/O error occurs
+     */
+    int finish(byte[] head) throws IOException {
+        if (buffered > 0) {
+            writeBuffer();
+        }
+        ensure(headBlocks + written);
+        byte[] padded = Arrays.copyOf(head, (head.length + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE * Constants.BLOCK_SIZE);
+        file.write(position(start), padded);
+        int used = headBlocks + written;
+        blockManager.freeUncommittedBlocks(start + used, reserved - used);
+        reserved = used;
+        return start;
+    }
+
+    int getStartBlock() {
+        return start;
+    }
+
+    /**
+     * Returns the blocks of the finished run, the head included.
+     * @return the number of blocks
+     */
+    int getBlocks() {
+        return reserved;
+    }
+
+    /**
+     * Clears the blocks written and gives back the whole run, such as when an import starts over another way.
+     * @throws IOException if an I/O error occurs
+     */
+    void abort() throws IOException {
+        if (start != -1) {
+            clear(start + headBlocks, written);
+            blockManager.freeUncommittedBlocks(start, reserved);
+        }
+        start = -1;
+        reserved = 0;
+        written = 0;
+        buffered = 0;
+    }
+
+    // Writes the buffered bytes behind the blocks written so far, zero-padding the last block
+    private void writeBuffer() throws IOException {
+        int blocks = (buffered + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE;
+        Arrays.fill(buffer, buffered, blocks * Constants.BLOCK_SIZE, (byte) 0);
+        ensure(headBlocks + written + blocks);
+        file.write(position(start + headBlocks + written), buffer, 0, blocks * Constants.BLOCK_SIZE);
+        written += blocks;
+        buffered = 0;
+    }
+
+    // Makes the run at least the given number of blocks long: in place if the blocks after it are free or the
+    // file can be extended behind it, otherwise by moving it to a free run twice as long
+    private void ensure(int blocks) throws IOException {
+        if (start == -1) {
+            start = allocate(file, blockManager, Math.max(blocks, headBlocks + Constants.WRITE_BATCH_BLOCKS));
+            reserved = Math.max(blocks, headBlocks + Constants.WRITE_BATCH_BLOCKS);
+            return;
+        }
+        if (blocks <= reserved) {
+            return;
+        }
+        int target = (int) Math.min(Integer.MAX_VALUE, Math.max(blocks, 2L * reserved));
+        int end = start + reserved;
+        if (!blockManager.allocateBlocksAt(end, target - reserved)) {
+            int free = blockManager.freeBlocksFrom(end);
+            int total = blockManager.getTotalBlocks();
+            if (end + free == total - MetadataHandler.bitmapTailBlocks(total)) {
+                // Free up to the end of the file: extend it, with room for the bitmap tail to grow
+                long bytes = (long) (target - reserved - free) * Constants.BLOCK_SIZE + Constants.FILE_INNIT_SIZE;
+                new FileCreator().extendFile(file, blockManager, bytes);
+            }
+            if (!blockManager.allocateBlocksAt(end, target - reserved)) {
+                move(headBlocks, target);
+                return;
+            }
+        }
+        reserved = target;
+    }
+
+    // Moves the blocks written so far to a newly reserved run, then clears and gives back the old one
+    private void move(int newHeadBlocks, int newReserved) throws IOException {
+        if (start == -1) {
+            headBlocks = newHeadBlocks;
+            return;
+        }
+        int newStart = allocate(file, blockManager, newReserved);
+        byte[] copy = new byte[Math.min(Math.max(1, written), Constants.WRITE_BATCH_BLOCKS) * Constants.BLOCK_SIZE];
+        for (int block = 0; block < written; block += copy.length / Constants.BLOCK_SIZE) {
+            int length = Math.min(copy.length, (written - block) * Constants.BLOCK_SIZE);
+            file.read(position(start + headBlocks + block), copy, 0, length);
+            file.write(position(newStart + newHeadBlocks + block), copy, 0, length);
+        }
+        clear(start + headBlocks, written);
+        blockManager.freeUncommittedBlocks(start, reserved);
+        start = newStart;
+        reserved = newReserved;
+        headBlocks = newHeadBlocks;
+    }
+
+    // Overwrites blocks with zeros, since they become free at once
+    private void clear(int from, int blocks) throws IOException {
+        byte[] zeros = new byte[Math.min(Math.max(1, blocks), Constants.WRITE_BATCH_BLOCKS) * Constants.BLOCK_SIZE];
+        for (int block = 0; block < blocks; block += zeros.length / Constants.BLOCK_SIZE) {
+            int length = Math.min(zeros.length, (blocks - block) * Constants.BLOCK_SIZE);
+            file.write(position(from + block), zeros, 0, length);
+        }
+    }
+
+    /**
+     * Allocates adjacent blocks, extending the file if no free run is long enough.
+     * @param file the BlockDevice of the database
+     * @param blockManager the block manager to allocate from
+     * @param numBlocks the number of blocks
+     * @return the first block
+     * @throws IOException if an I/O error occurs
+     */
+    static int allocate(BlockDevice file, BlockManager blockManager, int numBlocks) throws IOException {
+        int[] blocks = blockManager.allocateContiguousBlocks(numBlocks);
+        if (blocks == null) {
+            long bytes = (long) numBlocks * Constants.BLOCK_SIZE;
+            new FileCreator().extendFile(file, blockManager, Math.max(Constants.FILE_INNIT_SIZE, bytes));
+            blocks = blockManager.allocateContiguousBlocks(numBlocks);
+        }
+        return blocks[0];
+    }
+
+    private static long position(int block) {
+        return (long) (block + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+    }
+}
@@ -2,33 +2,51 @@ package io;
 import manager.BlockManager;
 import constants.Constants;
 import index.BTreeIndex;
+import index.Locator;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import metadata.MetadataHandler;
 import model.FileControlBlock;
-import utils.SerializationUtils;
+import model.SlottedPage;
 import utils.Tools;
 
 public class BlockWriter {
-    private RandomAccessFile file;
+    public static final String FORMAT_PROPERTY = "pfs.records"; // Record format of new imports
+    public static final String FORMAT_SLOTTED = "slotted";
+    public static final String FORMAT_TEXT = "text";
+
+    private BlockDevice file;
     private BlockManager blockManager; // BlockManager 实例
     private int currentBlockIndex = -1;; // 当前块索引，-1 表示尚未分配
     private int currentPosition = 0; // 当前块内的写入位置
     private BTreeIndex indexTree;
+    private BTreeIndex.Builder indexBuilder; // Bulk-loads the index while record IDs arrive in ascending order
     private List<FileControlBlock> fcbList;
     private FileControlBlock fcb;
     private int usedBlocks = 0; // 已使用的块数
-    private final SerializationUtils serializationUtils;
+    private final RecordReader recordReader;
+    private boolean slotted; // Write binary slotted pages instead of "id:N;data:...;" text
+    private byte[] page; // Image of the slotted page being filled, or null if a new page must be started
+    private byte[] textBlock; // Image of the text-format block being filled
+    private final WriteBatch batch; // Stages block images and writes runs of adjacent blocks together
+    private byte[] scratch = new byte[Constants.BLOCK_SIZE]; // Reused buffer for encoding a text record
+    private CompressedFile.Writer compressor; // Deflates the pages of a compressed file; null when storing them in place
+    private ColumnarFile.Writer columns; // Writes the columns of a columnar file; null when storing whole records
+    private FixedWidthFile.Writer fixed; // Writes the records of a fixed-width file; null when storing them in pages
 
 
-    public BlockWriter(RandomAccessFile file, BlockManager blockManager) throws IOException {
+    public BlockWriter(BlockDevice file, BlockManager blockManager) throws IOException {
         this.file = file;
         this.blockManager = blockManager;
         this.indexTree = new BTreeIndex();
+        this.indexBuilder = new BTreeIndex.Builder(Constants.INDEX_FILL_FACTOR);
         this.fcbList = new ArrayList<>();
-        this.serializationUtils = new SerializationUtils();
+        this.recordReader = new RecordReader(file);
+        this.batch = new WriteBatch(file);
+        this.slotted = !FORMAT_TEXT.equals(System.getProperty(FORMAT_PROPERTY, FORMAT_SLOTTED));
     }
 
 
@@ -38,33 +56,99 @@ public class BlockWriter {
      */
     public void writeBitmapToHeader() throws IOException {
         byte[] bitmapBytes = blockManager.getBitmapAsBytes();
-        file.seek(Constants.BITMAP_OFFSET);
-        file.write(bitmapBytes);
+        new MetadataHandler(file).updateBitmapInMetadata(bitmapBytes, blockManager.getTotalBlocks());
     }
 
     /**
      * Writes the serialized data to the blocks. It allocates new blocks if the current block is full or not available.
-     * It also updates the BTreeIndex with the data ID and block index.
+     * It also updates the BTreeIndex with the data ID and the locator of the record.
      * @param blockManager the BlockManager instance
      * @param rawData the raw data to be written
      * @throws IOException if an I/O error occurs
      */
     public void write(BlockManager blockManager, Map<String, String> rawData) throws IOException {
-        String serializedData = serializationUtils.serializeData(rawData);
-        byte[] dataBytes  = serializedData.getBytes();
+        byte[] data = rawData.get("data").getBytes(StandardCharsets.UTF_8);
+        writeRecord(Integer.parseInt(rawData.get("id")), data, 0, data.length);
+    }
+
+    /**
+     * Writes one record given as a slice of a byte array, such as a record of the CSV tokenizer's buffer.
+     * The bytes are copied straight into the block images, without intermediate strings.
+     * @param dataId the record ID
+     * @param src the array holding the record bytes (UTF-8)
+     * @param from the position of the first record byte in src
+     * @param length the number of record bytes
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeRecord(int dataId, byte[] src, int from, int length) throws IOException {
+        if (slotted) {
+            writeSlotted(dataId, src, from, length);
+            return;
+        }
+        // Encode "id:N;data:...;" into the reused scratch array
+        if (scratch.length < length + 32) {
+            scratch = new byte[Math.max(scratch.length * 2, length + 32)];
+        }
+        int size = putAscii(scratch, 0, "id:");
+        size = putDecimal(scratch, size, dataId);
+        size = putAscii(scratch, size, ";data:");
+        System.arraycopy(src, from, scratch, size, length);
+        size += length;
+        scratch[size++] = ';';
+        writeText(dataId, scratch, size);
+    }
+
+    /**
+     * Reads a CSV file once to plan the columns of a columnar file: their names from the header line, and their
+     * types, dictionaries and sizes from the records, which then go to writeFields().
+     * @param csvFileName the CSV file
+     * @throws IOException if the file cannot be read or a record does not have one field per column
+     */
+    public void planColumns(String csvFileName) throws IOException {
+        columns.plan(csvFileName);
+    }
+
+    /**
+     * Writes the fields of one record to the columns of a columnar file.
+     * @param dataId the record ID, which must be the next line number
+     * @param tokenizer the tokenizer positioned on the record
+     * @throws IOException if the record does not have one field per column or does not fit the plan
+     */
+    public void writeFields(int dataId, CsvTokenizer tokenizer) throws IOException {
+        columns.add(dataId, tokenizer);
+    }
+
+    /**
+     * Adds one record to a file stored as fixed-width records.
+     * @param dataId the record ID, which must be the next line number
+     * @param tokenizer the tokenizer positioned on the record
+     * @return false if the record does not fit the schema; the import must then start over another way
+     * @throws IOException if an I/O error occurs
+     */
+    boolean writeFixed(int dataId, CsvTokenizer tokenizer) throws IOException {
+        return fixed.add(dataId, tokenizer);
+    }
+
+    // Writes an encoded text record, continuing in the current block while it has room for the whole record
+    private void writeText(int dataId, byte[] dataBytes, int dataLength) throws IOException {
         int dataOffset = 0;
-        while (dataOffset < dataBytes .length) {
+        int recordBlockIndex = -1; // Block holding the start of the record
+        int recordOffset = 0; // Position of the record within its first block
+        boolean adjacent = true; // Whether the record lies in one block or a run of adjacent blocks
+        while (dataOffset < dataLength) {
 
             if (currentBlockIndex == -1) {
                 // Find the next free block in the block manager for writing.
                 currentBlockIndex = blockManager.findFirstFreeBlock();
                 currentPosition = 0;    // Reset the current position within the block to the start since it's a new block.
+                textBlock = new byte[Constants.BLOCK_SIZE];
                 blockManager.setBlockUsed( currentBlockIndex, true);    // Mark the found block as used in the block manager.
                 usedBlocks++;   // Increment the count of used blocks.
 
             }
             // If there's no block available or the current block doesn't have enough space for the remaining data...
-            if (currentBlockIndex == -1 || Constants.BLOCK_SIZE - currentPosition < dataBytes .length - dataOffset) {
+            if (currentBlockIndex == -1 || Constants.BLOCK_SIZE - currentPosition < dataLength - dataOffset) {
+                int previousBlockIndex = currentBlockIndex;
                 // Allocate a new block, attempting to do so sequentially by using the next block index.
                 currentBlockIndex = blockManager.allocateBlock(currentBlockIndex+1);
                 // If allocation fails (returns -1), extend the file to create more blocks.
@@ -75,28 +159,242 @@ public class BlockWriter {
                     currentBlockIndex = blockManager.allocateBlock(currentBlockIndex + 1);
                 }
                 currentPosition = 0;    // Reset the position within the new block to start at the beginning.
+                textBlock = new byte[Constants.BLOCK_SIZE];
                 usedBlocks++;   // Increment the used blocks counter since a new block is allocated.
+                adjacent &= recordBlockIndex == -1 || currentBlockIndex == previousBlockIndex + 1;
             }
 
             // Calculate the remaining amount of data that needs to be written.
-            int remainingDataToWrite = dataBytes .length - dataOffset;
+            int remainingDataToWrite = dataLength - dataOffset;
             // Determine the amount of data to write in this iteration, limited by block size or remaining data size.
             int bytesToWrite = Math.min(Constants.BLOCK_SIZE - currentPosition, remainingDataToWrite);
-            // Calculate the file position to start writing, accounting for header blocks and current block position.
-            long position = (long) (currentBlockIndex + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE + currentPosition;
-            // Seek to the calculated position in the file.
-            file.seek(position);
-            // Write the determined bytes from the data array to the file at the current position.
-            file.write(dataBytes , dataOffset, bytesToWrite);
+            // Copy the bytes into the image of the current block and stage it; the batch writes whole blocks later.
+            System.arraycopy(dataBytes, dataOffset, textBlock, currentPosition, bytesToWrite);
+            batch.stage(currentBlockIndex, textBlock);
+            if (recordBlockIndex == -1) {
+                recordBlockIndex = currentBlockIndex;
+                recordOffset = currentPosition;
+            }
             // Update the current position within the block after writing.
             currentPosition += bytesToWrite;
             // Update the data offset to reflect the amount of data written.
             dataOffset += bytesToWrite;
-            // Extract the data ID from the raw data map and parse it to an integer.
-            int dataId = Integer.parseInt(rawData.get("id"));
-            // Update the index tree with the data ID and the block index where it's stored.
-            indexTree.put(dataId, currentBlockIndex);
         }
+        // Update the index tree once per record; a record split over non-adjacent blocks is located by block only.
+        boolean exact = adjacent && dataLength <= Locator.MAX_LENGTH;
+        addToIndex(dataId, Locator.of(recordBlockIndex, recordOffset, exact ? dataLength : 0));
+    }
+
+    private static int putAscii(byte[] dst, int pos, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            dst[pos++] = (byte) text.charAt(i);
+        }
+        return pos;
+    }
+
+    // Writes the decimal digits of value and returns the position after them
+    private static int putDecimal(byte[] dst, int pos, int value) {
+        long v = value;
+        if (v < 0) {
+            dst[pos++] = '-';
+            v = -v;
+        }
+        int end = pos;
+        for (long rest = v; rest >= 10; rest /= 10) {
+            end++;
+        }
+        for (int i = end; i >= pos; i--) {
+            dst[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return end + 1;
+    }
+
+    /**
+     * Writes a record into the current slotted page, starting a new page in the next free block when it is full.
+     * A record too large for an empty page is written alone into a run of adjacent blocks.
+     * The page is staged in the write batch after every record; flush() writes it out.
+     * @param dataId the record ID
+     * @param src the array holding the record bytes
+     * @param from the position of the first record byte in src
+     * @param length the number of record bytes
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeSlotted(int dataId, byte[] src, int from, int length) throws IOException {
+        if (length > SlottedPage.MAX_INLINE_PAYLOAD) {
+            writeSpanning(dataId, src, from, length);
+            return;
+        }
+        int offset = page == null ? -1 : SlottedPage.add(page, dataId, src, from, length);
+        if (offset == -1) {
+            if (compressor != null) {
+                addPendingPage();
+                currentBlockIndex = compressor.getBlocks(); // The page is numbered when it is started, added when full
+            } else {
+                currentBlockIndex = nextBlock(currentBlockIndex + 1);
+            }
+            usedBlocks++;
+            page = new byte[Constants.BLOCK_SIZE];
+            SlottedPage.init(page);
+            offset = SlottedPage.add(page, dataId, src, from, length);
+        }
+        if (compressor == null) {
+            batch.stage(currentBlockIndex, page);
+        }
+        addToIndex(dataId, Locator.of(currentBlockIndex, offset, length));
+    }
+
+    private void writeSpanning(int dataId, byte[] src, int from, int length) throws IOException {
+        if (length > 0xFFFF) {
+            throw new IOException("Record " + dataId + " is too large: " + length + " bytes");
+        }
+        byte[] run = SlottedPage.spanning(dataId, src, from, length);
+        int numBlocks = run.length / Constants.BLOCK_SIZE;
+        int first = writeRun(run, numBlocks);
+        usedBlocks += numBlocks;
+        currentBlockIndex = first + numBlocks - 1;
+        page = null; // The run is full; the next record starts a new page
+        addToIndex(dataId, Locator.of(first, SlottedPage.SPANNING_PAYLOAD_OFFSET, length));
+    }
+
+    /**
+     * Writes a run of slotted pages built ahead of time, such as by the workers of a pipelined import, into
+     * newly allocated adjacent blocks with one device write, and indexes its records.
+     * @param run the pages, concatenated
+     * @param ids the IDs of the records in the run, ascending
+     * @param locators the locators of the records, with blocks numbered from 0 at the start of the run
+     * @param count the number of records
+     * @throws IOException if an I/O error occurs
+     */
+    public void writePages(byte[] run, int[] ids, long[] locators, int count) throws IOException {
+        int numBlocks = run.length / Constants.BLOCK_SIZE;
+        if (numBlocks == 0) {
+            return;
+        }
+        int first;
+        if (compressor != null) {
+            addPendingPage();
+            first = compressor.add(run, 0, numBlocks);
+        } else {
+            int[] blocks = allocateRun(numBlocks);
+            file.write(blockPosition(blocks[0]), run);
+            first = blocks[0];
+        }
+        usedBlocks += numBlocks;
+        currentBlockIndex = first + numBlocks - 1;
+        page = null; // The last page of the run is not topped up; the next record starts a new page
+        for (int i = 0; i < count; i++) {
+            long locator = locators[i];
+            addToIndex(ids[i], Locator.of(first + Locator.block(locator), Locator.offset(locator), Locator.length(locator)));
+        }
+    }
+
+    // Stages a run of blocks in newly allocated adjacent blocks, or adds it to the compressed file; returns its first block
+    private int writeRun(byte[] run, int numBlocks) throws IOException {
+        if (compressor != null) {
+            addPendingPage();
+            return compressor.add(run, 0, numBlocks);
+        }
+        int[] blocks = allocateRun(numBlocks);
+        for (int i = 0; i < numBlocks; i++) {
+            batch.stage(blocks[0] + i, run, i * Constants.BLOCK_SIZE);
+        }
+        return blocks[0];
+    }
+
+    // Hands the slotted page being filled to the compressor; it takes no more records
+    private void addPendingPage() throws IOException {
+        if (page != null) {
+            compressor.add(page, 0, 1);
+            page = null;
+        }
+    }
+
+    // Allocates numBlocks adjacent blocks, extending the file if no free run is long enough
+    private int[] allocateRun(int numBlocks) throws IOException {
+        int[] blocks = blockManager.allocateContiguousBlocks(numBlocks);
+        if (blocks == null) {
+            long bytes = (long) numBlocks * Constants.BLOCK_SIZE;
+            new FileCreator().extendFile(file, blockManager, Math.max(Constants.FILE_INNIT_SIZE, bytes));
+            blocks = blockManager.allocateContiguousBlocks(numBlocks);
+        }
+        return blocks;
+    }
+
+    // Allocates the first free block at or after startIndex, extending the file if there is none
+    private int nextBlock(int startIndex) throws IOException {
+        int block = blockManager.allocateBlock(startIndex);
+        if (block == -1) {
+            new FileCreator().extendFile(file, blockManager, Constants.FILE_INNIT_SIZE);
+            block = blockManager.allocateBlock(startIndex);
+        }
+        return block;
+    }
+
+    private static long blockPosition(int blockIndex) {
+        return (long) (blockIndex + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+    }
+
+    /**
+     * Writes the staged data blocks to the device. Reads through this writer flush first; callers that read
+     * the database another way, or are done writing, must flush themselves.
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        batch.flush();
+    }
+
+    /**
+     * Ends the import of a file: writes the staged data blocks and, for a compressed file, the last extent and
+     * the map in front of the extents, in the run of adjacent blocks the FCB is pointed at; a columnar file's
+     * columns and their directory, and a fixed-width file's records and schema, are stored in one run too.
+     * @param fcb the FCB of the file being imported
+     * @throws IOException if an I/O error occurs
+     */
+    public void finish(FileControlBlock fcb) throws IOException {
+        flush();
+        BlockRun stored;
+        if (fixed != null) {
+            stored = fixed.finish();
+            fixed = null;
+            fcb.setLayout(FileControlBlock.LAYOUT_FIXED);
+        } else if (columns != null) {
+            int startBlock = columns.finish();
+            usedBlocks = columns.getBlocks();
+            columns = null;
+            fcb.setLayout(FileControlBlock.LAYOUT_COLUMNS);
+            currentBlockIndex = startBlock + usedBlocks - 1;
+            fcb.setStartBlock(startBlock);
+            return;
+        } else if (compressor != null) {
+            addPendingPage();
+            stored = compressor.finish();
+            compressor = null;
+            fcb.setCodec(FileControlBlock.CODEC_DEFLATE);
+        } else {
+            return;
+        }
+        usedBlocks = stored.getBlocks();
+        currentBlockIndex = stored.getStartBlock() + usedBlocks - 1;
+        fcb.setStartBlock(stored.getStartBlock());
+    }
+
+    /**
+     * Adds a record to the index. IDs from the CSV import are ascending, so they are appended to the bulk loader;
+     * the first ID out of order finishes the bulk-loaded tree and the remaining records are inserted one by one.
+     * @param dataId the record ID
+     * @param locator the locator of the record, see index.Locator
+     */
+    private void addToIndex(int dataId, long locator) {
+        if (indexBuilder != null) {
+            if (indexBuilder.size() == 0 || dataId > indexBuilder.lastKey()) {
+                indexBuilder.add(dataId, locator);
+                return;
+            }
+            indexTree = indexBuilder.build();
+            indexBuilder = null;
+        }
+        indexTree.put(dataId, locator);
     }
 
     /**
@@ -107,29 +405,49 @@ public class BlockWriter {
      * @throws IOException if an I/O error occurs
      */
     public String readData(int blockId, int movieId) throws IOException {
+        byte[] block = readRawBlock(blockId);
+        return block == null ? null : recordReader.readRecord(block, blockId, movieId);
+    }
+
+    /**
+     * Reads one record through its index locator: a single read of the record bytes when the locator gives their
+     * exact position, otherwise a read of the block the record starts in.
+     * @param locator the locator stored in the index for the record
+     * @param movieId the movie ID
+     * @return the record, or null if it could not be found
+     * @throws IOException if an I/O error occurs
+     */
+    public String readRecord(long locator, int movieId) throws IOException {
+        flush();
+        return recordReader.readRecord(locator, movieId);
+    }
+
+    /**
+     * Reads the specified block and returns all records it holds, keyed by record ID.
+     * @param blockId the block ID
+     * @return the deserialized records of the block, or null if the block lies past the end of the file
+     * @throws IOException if an I/O error occurs
+     */
+    public Map<String, String> readBlock(int blockId) throws IOException {
+        byte[] block = readRawBlock(blockId);
+        // Decode the block, slotted or text, into a map to retrieve structured data.
+        return block == null ? null : recordReader.decodeBlock(block, blockId);
+    }
+
+    private byte[] readRawBlock(int blockId) throws IOException {
+        flush();
         // Check if the provided blockId is out of the file system's range.
         if (blockId < 0 || blockId >= blockManager.getTotalBlocks()) {
             // If the blockId is invalid, throw an exception.
             System.out.println("ID out of range");
         }
-        byte[] blockData = new byte[Constants.BLOCK_SIZE];
-        // Calculate the position in the file from which to start reading, considering the block ID and header size.
-        long position = (long) blockId * Constants.BLOCK_SIZE + Constants.HEADER_SIZE;
-        file.seek(position);
-        // Read the block data into the byte array and capture the number of bytes read.
-        int bytesRead = file.read(blockData);
-        if (bytesRead != -1) {
-            String serializedData = new String(blockData, 0, bytesRead);
-            // Deserialize the string back into a map to retrieve structured data.
-            Map<String, String> movieData = serializationUtils.deserializeData(serializedData);
-            return movieData.get(String.valueOf(movieId));
-        }
-
-        return null;
+        return recordReader.readBlock(blockId);
     }
 
     public void close() throws IOException {
+        flush();
         if (file != null) {
+            new MetadataHandler(file).close();
             file.close();
         }
     }
@@ -149,6 +467,10 @@ public class BlockWriter {
         return fcbList;
     }
     public BTreeIndex getIndexTree() {
+        if (indexBuilder != null) {
+            indexTree = indexBuilder.build();
+            indexBuilder = null;
+        }
         return indexTree;
     }
     public BlockManager getBlockManager() {
@@ -159,6 +481,7 @@ public class BlockWriter {
     //setters
     public void setIndexTree(BTreeIndex indexTree) {
         this.indexTree = indexTree;
+        this.indexBuilder = null;
     }
     public void setFCBList(List<FileControlBlock> fcbList) {
         this.fcbList = fcbList;
@@ -190,16 +513,88 @@ public class BlockWriter {
         }
     }
 
+    public boolean isSlotted() {
+        return slotted;
+    }
+
+    public void setSlotted(boolean slotted) {
+        this.slotted = slotted;
+    }
+
+    public boolean isCompressed() {
+        return compressor != null;
+    }
+
+    /**
+     * Selects whether the next import is stored as deflate-compressed extents, see CompressedFile.
+     * Compressed files are always written as slotted pages.
+     * @param compressed true to compress the file
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressor = compressed ? new CompressedFile.Writer(new BlockRun(file, blockManager, 1)) : null;
+        if (compressed) {
+            this.slotted = true;
+        }
+    }
+
+    public boolean isColumnar() {
+        return columns != null;
+    }
+
+    /**
+     * Selects whether the next import is stored in columns, see ColumnarFile. The CSV file then goes to
+     * planColumns() and its records to writeFields() instead of writeRecord(), and the file is not indexed.
+     * @param columnar true to store the file in columns
+     */
+    public void setColumnar(boolean columnar) {
+        this.columns = columnar ? new ColumnarFile.Writer(file, blockManager) : null;
+    }
+
+    public boolean isFixedWidth() {
+        return fixed != null;
+    }
+
+    /**
+     * Selects whether the next import is stored as fixed-width records of the given schema, see FixedWidthFile.
+     * Records then go to writeFixed() instead of writeRecord(), and the file is not indexed.
+     * Records already written for a previous schema are dropped.
+     * @param schema the schema of the records, or null to store them in pages
+     * @throws IOException if an I/O error occurs
+     */
+    void setFixedWidth(FixedWidthFile.Schema schema) throws IOException {
+        if (fixed != null) {
+            fixed.abort();
+        }
+        this.fixed = schema == null ? null : new FixedWidthFile.Writer(schema, file, blockManager);
+    }
+
+    /**
+     * Tells the writer the size of the CSV file about to be imported, so that a compressed file keeps room for
+     * the map of its extents up front.
+     * @param bytes the size of the CSV file
+     * @throws IOException if an I/O error occurs
+     */
+    void expectBytes(long bytes) throws IOException {
+        if (compressor != null) {
+            compressor.expect(bytes);
+        }
+    }
+
     public void setBlockManager(BlockManager blockManager) {
         this.blockManager = blockManager;
     }
 
+    /**
+     * Overwrites a range of data blocks with zeros, a run of blocks per gathering write. While the file has a
+     * write-ahead log the released blocks are cleared by the block manager once the release is durable instead,
+     * since until then the committed metadata still points at them.
+     * @param startBlock the first block
+     * @param numBlocks the number of blocks
+     * @throws IOException if an I/O error occurs
+     */
     public void clearBlocks(int startBlock, int numBlocks) throws IOException {
-        byte[] emptyData = new byte[Constants.BLOCK_SIZE];
-        for (int i = startBlock; i < startBlock + numBlocks; i++) {
-            long position = (long) (i + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
-            file.seek(position);
-            file.write(emptyData);
+        if (!blockManager.isDeferringRelease()) {
+            batch.zero(startBlock, numBlocks);
         }
     }
 }
@@ -0,0 +1,284 @@
+package io;
+
+import constants.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixed-capacity cache of database blocks, keyed by absolute block number (file position / BLOCK_SIZE,
+ * header blocks included). The pool is itself a BlockDevice wrapping the real engine, so every component
+ * that reads or writes the database goes through it without code changes. Frames are pinned while in use,
+ * modified frames are written back lazily (on eviction, force or close), and the victim is chosen by
+ * either the CLOCK or the LRU policy. Write-back is batched: evicting a dirty frame writes all dirty frames
+ * in block order, each run of adjacent blocks with one gathering write.
+ */
+public class BufferPool implements BlockDevice {
+
+    public static final String CAPACITY_PROPERTY = "pfs.cache.blocks"; // Number of frames in the pool
+    public static final String POLICY_PROPERTY = "pfs.cache.policy"; // "clock" or "lru"
+
+    public enum EvictionPolicy { CLOCK, LRU }
+
+    /**
+     * A cached block. The data array always holds BLOCK_SIZE bytes.
+     */
+    public static final class Frame {
+        private long blockNumber = -1;
+        private final byte[] data = new byte[Constants.BLOCK_SIZE];
+        private int pinCount;
+        private boolean dirty;
+        private boolean referenced; // CLOCK reference bit
+
+        public long getBlockNumber() {
+            return blockNumber;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    private final BlockDevice device;
+    private final EvictionPolicy policy;
+    private final Frame[] frames;
+    private final Map<Long, Frame> table; // block number -> frame; in access order when the policy is LRU
+    private int used;       // Frames handed out so far; frames are allocated lazily up to capacity
+    private final ArrayDeque<Frame> dropped = new ArrayDeque<>(); // Frames setLength cut loose, reused before any eviction
+    private int clockHand;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    public BufferPool(BlockDevice device, int capacity, EvictionPolicy policy) {
+        this.device = device;
+        this.policy = policy;
+        this.frames = new Frame[Math.max(1, capacity)];
+        this.table = policy == EvictionPolicy.LRU ? new LinkedHashMap<>(16, 0.75f, true) : new HashMap<>();
+    }
+
+    /**
+     * Pins the given block in the pool, reading it from the device on a miss.
+     * The caller must call unpin when done with the frame.
+     * @param blockNumber the absolute block number
+     * @return the pinned frame
+     * @throws IOException if the block cannot be read or a victim cannot be written back
+     */
+    public synchronized Frame pin(long blockNumber) throws IOException {
+        return pin(blockNumber, true);
+    }
+
+    private Frame pin(long blockNumber, boolean load) throws IOException {
+        Frame frame = table.get(blockNumber);
+        if (frame != null) {
+            hits++;
+        } else {
+            misses++;
+            frame = victim();
+            frame.blockNumber = blockNumber;
+            frame.dirty = false;
+            if (load) {
+                int read = device.read(blockNumber * Constants.BLOCK_SIZE, frame.data, 0, Constants.BLOCK_SIZE);
+                Arrays.fill(frame.data, Math.max(read, 0), Constants.BLOCK_SIZE, (byte) 0);
+            }
+            table.put(blockNumber, frame);
+        }
+        frame.pinCount++;
+        frame.referenced = true;
+        return frame;
+    }
+
+    /**
+     * Releases a pin taken with pin.
+     * @param frame the pinned frame
+     * @param dirty true if the caller modified the frame's data
+     */
+    public synchronized void unpin(Frame frame, boolean dirty) {
+        frame.pinCount--;
+        frame.dirty |= dirty;
+    }
+
+    // Returns a free or evicted frame, writing the victim back if it is dirty.
+    private Frame victim() throws IOException {
+        if (used < frames.length) {
+            Frame frame = new Frame();
+            frames[used++] = frame;
+            return frame;
+        }
+        if (!dropped.isEmpty()) {
+            return dropped.poll();
+        }
+        Frame victim = null;
+        if (policy == EvictionPolicy.LRU) {
+            Iterator<Frame> eldestFirst = table.values().iterator();
+            while (eldestFirst.hasNext()) {
+                Frame candidate = eldestFirst.next();
+                if (candidate.pinCount == 0) {
+                    victim = candidate;
+                    break;
+                }
+            }
+        } else {
+            // Sweep the clock, clearing reference bits, until an unpinned, unreferenced frame is found
+            for (int step = 0; step < 2 * frames.length && victim == null; step++) {
+                Frame candidate = frames[clockHand];
+                clockHand = (clockHand + 1) % frames.length;
+                if (candidate.pinCount > 0) {
+                    continue;
+                }
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                } else {
+                    victim = candidate;
+                }
+            }
+        }
+        if (victim == null) {
+            throw new IOException("Buffer pool exhausted: all " + frames.length + " frames are pinned");
+        }
+        if (victim.dirty) {
+            writeBackAll(); // Write behind: the other dirty frames go out in the same sorted pass
+        }
+        table.remove(victim.blockNumber);
+        evictions++;
+        return victim;
+    }
+
+    // Writes every dirty frame back in block order, with one gathering write per run of adjacent blocks
+    private void writeBackAll() throws IOException {
+        Frame[] dirty = new Frame[used];
+        int count = 0;
+        for (int i = 0; i < used; i++) {
+            if (frames[i].dirty && frames[i].blockNumber >= 0) {
+                dirty[count++] = frames[i];
+            }
+        }
+        Arrays.sort(dirty, 0, count, Comparator.comparingLong(Frame::getBlockNumber));
+        for (int start = 0; start < count; ) {
+            int end = start + 1;
+            while (end < count && dirty[end].blockNumber == dirty[end - 1].blockNumber + 1) {
+                end++;
+            }
+            ByteBuffer[] run = new ByteBuffer[end - start];
+            for (int i = start; i < end; i++) {
+                run[i - start] = ByteBuffer.wrap(dirty[i].data);
+                dirty[i].dirty = false;
+            }
+            device.write(dirty[start].blockNumber * Constants.BLOCK_SIZE, run);
+            writeBacks += run.length;
+            start = end;
+        }
+    }
+
+    @Override
+    public synchronized int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        long fileLength = device.length();
+        if (position >= fileLength) {
+            return -1;
+        }
+        int total = (int) Math.min(length, fileLength - position);
+        int done = 0;
+        while (done < total) {
+            long current = position + done;
+            int blockOffset = (int) (current % Constants.BLOCK_SIZE);
+            int chunk = Math.min(total - done, Constants.BLOCK_SIZE - blockOffset);
+            Frame frame = pin(current / Constants.BLOCK_SIZE, true);
+            System.arraycopy(frame.data, blockOffset, buffer, offset + done, chunk);
+            unpin(frame, false);
+            done += chunk;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void write(long position, byte[] data, int offset, int length) throws IOException {
+        if (position + length > device.length()) {
+            device.setLength(position + length);
+        }
+        int done = 0;
+        while (done < length) {
+            long current = position + done;
+            int blockOffset = (int) (current % Constants.BLOCK_SIZE);
+            int chunk = Math.min(length - done, Constants.BLOCK_SIZE - blockOffset);
+            // A write covering the whole block does not need the old contents
+            Frame frame = pin(current / Constants.BLOCK_SIZE, chunk != Constants.BLOCK_SIZE);
+            System.arraycopy(data, offset + done, frame.data, blockOffset, chunk);
+            unpin(frame, true);
+            done += chunk;
+        }
+    }
+
+    @Override
+    public synchronized long length() throws IOException {
+        return device.length();
+    }
+
+    @Override
+    public synchronized void setLength(long newLength) throws IOException {
+        if (newLength < device.length()) {
+            // Drop the frames that fall beyond the new end of the file
+            long firstDropped = (newLength + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE;
+            table.values().removeIf(frame -> frame.blockNumber >= firstDropped && frame.pinCount == 0);
+            for (Frame frame : frames) {
+                if (frame != null && frame.blockNumber >= firstDropped && frame.pinCount == 0) {
+                    frame.blockNumber = -1;
+                    frame.dirty = false;
+                    dropped.add(frame);
+                }
+            }
+        }
+        device.setLength(newLength);
+    }
+
+    /**
+     * Writes every dirty frame back to the device without forcing it to disk.
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void flush() throws IOException {
+        writeBackAll();
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        flush();
+        device.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        device.close();
+    }
+
+    @Override
+    public long getSyscalls() {
+        return device.getSyscalls();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns a one-line summary of the pool's counters.
+     * @return the statistics
+     */
+    public synchronized String getStats() {
+        long requests = hits + misses;
+        return String.format("Buffer pool (%s, %d/%d frames): %d hits, %d misses (%.1f%% hit rate), %d evictions, %d write-backs",
+                policy, table.size(), frames.length, hits, misses, requests == 0 ? 0.0 : 100.0 * hits / requests,
+                evictions, writeBacks);
+    }
+}
@@ -1,4 +1,5 @@
 package io;
+import constants.Constants;
 import index.BTreeIndex;
 import manager.BlockManager;
 import manager.FCBManager;
@@ -7,13 +8,11 @@ import model.FileControlBlock;
 import utils.Tools;
 
 import javax.swing.*;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 public class CSVReader {
     private BlockWriter writer;
     private FCBManager fcbManager;
@@ -29,47 +28,70 @@ public class CSVReader {
     /**
      * Reads data from a CSV file and writes it to the database using the BlockWriter.
      * It also updates the FileControlBlock (FCB) and metadata.
-     * @param database the RandomAccessFile representing the database
+     * A slotted-page import of a file whose first rows fit a fixed-width schema stores fixed-width records, see
+     * FixedWidthFile, and starts over as below if a later row does not fit.
+     * Other slotted-page imports run through the ImportPipeline when more than one import thread is configured;
+     * text-format and columnar imports and -Dpfs.import.threads=1 tokenize and write the records one by one in this thread,
+     * a columnar import after a first read of the file that plans its columns.
+     * @param database the BlockDevice representing the database
      * @param csvFileName the name of the CSV file to read from
      */
-    public void readAndWriteCSV(RandomAccessFile database, String csvFileName) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(csvFileName))) {
-            String line;
+    public void readAndWriteCSV(BlockDevice database, String csvFileName) {
+        try (InputStream in = new FileInputStream(csvFileName)) {
             boolean isFirstLine = true;  // To skip the header line in CSV if present.
             String fileName = csvFileName; // Use the CSV file name as the file name in the database.
 
-            isFirstLine = true; // To skip the header line in CSV if present.
-
-            int startBlock=blockManager.findFirstFreeBlock(); // Find the first free block to start writing the data.
             Date date = new Date();
             // The FCB contains metadata about the file such as the file name, start block, file size, etc.
-            FileControlBlock fcb = new FileControlBlock(fileName, startBlock, 0, 0, 0, 0,date);
-            // Update the FCB in the metadata.
-            fcbManager.updateOrAddFCBInMetadata(database,fcb);
+            FileControlBlock fcb = new FileControlBlock(fileName, 0, 0, 0, 0, 0,date);
+            // Add the FCB to the catalog first, since the catalog may take free blocks when it grows.
+            fcbManager.updateOrAddFCBInMetadata(database,blockManager,fcb);
+            int startBlock=blockManager.findFirstFreeBlock(); // Find the first free block to start writing the data.
+            fcb.setStartBlock(startBlock);
             // Reset the BTreeIndex to start from the beginning.
             BTreeIndex.resetNextId();
+            writer.expectBytes(new File(csvFileName).length());
 
-            // Read each line from the CSV file and write it to the database.
-            while ((line = reader.readLine()) != null) {
-                if (isFirstLine) {
-                    isFirstLine = false;
-                    continue;
+            int threads = ImportPipeline.configuredThreads();
+            FixedWidthFile.Schema schema = writer.isSlotted() && !writer.isCompressed() && !writer.isColumnar()
+                    && FixedWidthFile.isEnabled() ? FixedWidthFile.Schema.infer(csvFileName) : null;
+            if (schema != null && writeFixedWidth(csvFileName, schema)) {
+                // Stored as fixed-width records
+            } else if (writer.isSlotted() && !writer.isColumnar() && threads > 1) {
+                // Tokenize and pack the records on worker threads; pages are written and indexed here in file order
+                ImportPipeline pipeline = new ImportPipeline(writer, threads);
+                pipeline.run(csvFileName);
+                dataSize += (int) pipeline.getDataSize();
+            } else {
+                // Read each record from the CSV file and copy its bytes from the tokenizer buffer into the blocks.
+                if (writer.isColumnar()) {
+                    writer.planColumns(csvFileName); // A first read settles the types and sizes of the columns
+                }
+                CsvTokenizer tokenizer = new CsvTokenizer(in, Constants.TOKENIZER_BUFFER_BYTES);
+                while (tokenizer.next()) {
+                    if (isFirstLine) {
+                        isFirstLine = false;
+                        continue;
+                    }
+                    dataSize += recordSize(lineNumber, tokenizer.recordLength()); // Calculate the size of the data to be written.
+                    if (writer.isColumnar()) {
+                        writer.writeFields(lineNumber, tokenizer); // Write the fields of the record to their columns
+                    } else {
+                        writer.writeRecord(lineNumber, tokenizer.array(), tokenizer.recordStart(), tokenizer.recordLength());
+                    }
+                    lineNumber++; // Increment the line number.
                 }
-                Map<String, String> data = new HashMap<>();
-                data.put("id", String.valueOf(lineNumber));
-                data.put("data", line);
-                dataSize += data.toString().getBytes().length; // Calculate the size of the data to be written.
-                writer.write(blockManager,data);// Write the data to the database using the BlockWriter.
-                lineNumber++; // Increment the line number.
             }
+            writer.finish(fcb); // Write the data blocks still staged in the writer, or the run of a compressed, columnar or fixed-width file
 
             MetadataHandler metadataHandler = new MetadataHandler(database);
             fcb.setFileSize(dataSize); // Update the file size in the FCB.
-            fcb.setUsedBlocks(blockManager.getUsedBlocks()); // Update the used blocks in the FCB.
-            fcbManager.updateOrAddFCBInMetadata(database,fcb); // Update the FCB in the metadata.
+            fcb.setUsedBlocks(writer.getUsedBlocks()); // Update the blocks used by this file in the FCB.
+            fcbManager.updateOrAddFCBInMetadata(database,blockManager,fcb); // Update the FCB in the catalog.
 
             dataSize = 0; // Reset the data size.
             metadataHandler.updateBitmapInMetadata(blockManager.getBitmapAsBytes(),blockManager.getTotalBlocks()); // Update the bitmap in the metadata.
+            metadataHandler.flush(); // Write the header ranges changed by the import.
             lineNumber=1; // Reset the line number.
 
         } catch (IOException e) {
@@ -77,6 +99,52 @@ public class CSVReader {
         }
     }
 
+    /**
+     * Writes every record of a CSV file as a fixed-width record of the schema inferred from its first rows.
+     * @param csvFileName the name of the CSV file
+     * @param schema the inferred schema
+     * @return true if every record fit the schema; false if one did not, in which case the records written have
+     *         been dropped and the file must be imported another way
+     * @throws IOException if the file cannot be read
+     */
+    private boolean writeFixedWidth(String csvFileName, FixedWidthFile.Schema schema) throws IOException {
+        try (InputStream in = new FileInputStream(csvFileName)) {
+            writer.setFixedWidth(schema);
+            CsvTokenizer tokenizer = new CsvTokenizer(in, Constants.TOKENIZER_BUFFER_BYTES);
+            boolean isFirstLine = true;
+            while (tokenizer.next()) {
+                if (isFirstLine) {
+                    isFirstLine = false;
+                    continue;
+                }
+                if (!writer.writeFixed(lineNumber, tokenizer)) {
+                    writer.setFixedWidth(null); // Drop the records written so far and free their blocks
+                    dataSize = 0;
+                    lineNumber = 1;
+                    return false;
+                }
+                dataSize += recordSize(lineNumber, tokenizer.recordLength());
+                lineNumber++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the size counted in the FCB for one record: the length of its "{data=..., id=N}" form,
+     * computed without building the string.
+     * @param id the record ID
+     * @param length the length of the record data in bytes
+     * @return the size in bytes
+     */
+    static long recordSize(int id, int length) {
+        int digits = 1;
+        for (int n = id; n >= 10; n /= 10) {
+            digits++;
+        }
+        return length + digits + 12L;
+    }
+
     /**
      * Closes the BlockWriter.
      * @throws IOException if an I/O error occurs
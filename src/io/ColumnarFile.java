@@ -0,0 +1,930 @@
+package io;
+
+import constants.Constants;
+import manager.BlockManager;
+import model.FileControlBlock;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reader of a file stored in columns. The import splits every row into its fields by the CSV header and keeps
+ * each column as a run of its own, typed where that is lossless; it reads the CSV file twice, see Writer, so that
+ * every column can be written straight to its place:
+ *   int:    4-byte values, for a column whose every field is a decimal int written the way Integer.toString writes it
+ *   float:  4-byte IEEE values, for a column whose every field is written the way Float.toString writes it
+ *   dict:   1- or 2-byte codes into a table of the distinct fields, for other columns with at most
+ *           COLUMN_DICTIONARY_ENTRIES distinct fields, and at most one for every two rows
+ *   string: a table of every field
+ * A table is an int count, count + 1 int offsets from the end of the offsets, then the bytes of the entries.
+ * String fields are stored as they appear in the CSV, quotes included, so a row is rebuilt byte for byte by
+ * joining its fields with commas.
+ *
+ * The columns are stored in one run of adjacent blocks that starts at the FCB's start block, behind the column
+ * directory:
+ *   directory: int magic "PCC1", rows, column count, then per column its type byte, name (short length and
+ *              UTF-8 bytes), first block relative to the run, blocks, and dictionary entries; padded to whole blocks
+ *   columns:   each starting on a block boundary; a dict column holds its codes, then its dictionary table
+ * Record IDs are line numbers, so row i holds record i + 1 and a columnar file needs no index: a record is read
+ * from the same position of every column, and a scan of one column reads that column's blocks only.
+ */
+public class ColumnarFile implements TableFile {
+    public static final byte TYPE_INT = 1;
+    public static final byte TYPE_FLOAT = 2;
+    public static final byte TYPE_DICT = 3;
+    public static final byte TYPE_STRING = 4;
+    private static final int MAGIC = 0x50434331; // "PCC1"
+
+    private final BlockDevice database;
+    private final String fileName;
+    private final long runPosition;
+    private final int rows;
+    private final String[] names;
+    private final byte[] types;
+    private final int[] firstBlocks;
+    private final int[] columnBlocks;
+    private final int[] entries;
+    private final byte[][][] dictionaries; // Loaded on first use
+    private long bytesRead;
+    private long reads;
+
+    private ColumnarFile(BlockDevice database, FileControlBlock fcb) throws IOException {
+        this.database = database;
+        this.fileName = fcb.getFileName();
+        this.runPosition = blockPosition(fcb.getStartBlock());
+        // The directory fills the blocks up to the first column, which its first entry names: read the first
+        // block, and the rest of the directory only if it is longer
+        ByteBuffer directory = read(runPosition, Constants.BLOCK_SIZE);
+        if (directory.getInt() != MAGIC) {
+            throw new IOException("No column directory at block " + fcb.getStartBlock() + " of columnar file " + fileName);
+        }
+        this.rows = directory.getInt();
+        int columns = directory.getInt();
+        if (columns > 0) {
+            int firstBlockAt = 15 + (directory.getShort(13) & 0xFFFF);
+            if (firstBlockAt + 4 > directory.capacity()) {
+                directory = read(runPosition, (firstBlockAt + 4 + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE * Constants.BLOCK_SIZE);
+            }
+            int directoryBlocks = directory.getInt(firstBlockAt);
+            if (directoryBlocks * Constants.BLOCK_SIZE > directory.capacity()) {
+                directory = read(runPosition, directoryBlocks * Constants.BLOCK_SIZE);
+            }
+            directory.position(12);
+        }
+        this.names = new String[columns];
+        this.types = new byte[columns];
+        this.firstBlocks = new int[columns];
+        this.columnBlocks = new int[columns];
+        this.entries = new int[columns];
+        this.dictionaries = new byte[columns][][];
+        for (int c = 0; c < columns; c++) {
+            types[c] = directory.get();
+            byte[] name = new byte[directory.getShort() & 0xFFFF];
+            directory.get(name);
+            names[c] = new String(name, StandardCharsets.UTF_8);
+            firstBlocks[c] = directory.getInt();
+            columnBlocks[c] = directory.getInt();
+            entries[c] = directory.getInt();
+        }
+    }
+
+    /**
+     * Opens the columns of a file.
+     * @param database the BlockDevice of the database
+     * @param fcb the FCB of a file stored in columns
+     * @return the reader
+     * @throws IOException if the column directory cannot be read
+     */
+    public static ColumnarFile of(BlockDevice database, FileControlBlock fcb) throws IOException {
+        if (fcb.getLayout() != FileControlBlock.LAYOUT_COLUMNS) {
+            throw new IOException("File " + fcb.getFileName() + " is not stored in columns");
+        }
+        return new ColumnarFile(database, fcb);
+    }
+
+    /**
+     * Returns the name of a column type, as shown by dir.
+     * @param type the type stored in the column directory
+     * @return the type name
+     */
+    public static String typeName(byte type) {
+        switch (type) {
+            case TYPE_INT:
+                return "int";
+            case TYPE_FLOAT:
+                return "float";
+            case TYPE_DICT:
+                return "dict";
+            case TYPE_STRING:
+                return "string";
+            default:
+                return "unknown (" + type + ")";
+        }
+    }
+
+    @Override
+    public int findColumn(String column) {
+        for (int c = 0; c < names.length; c++) {
+            if (names[c].equals(column)) {
+                return c;
+            }
+        }
+        try {
+            int number = Integer.parseInt(column);
+            return number >= 1 && number <= names.length ? number - 1 : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String[] readRows(int fromId, int count) throws IOException {
+        int from = Math.max(0, fromId - 1);
+        int to = (int) Math.min(rows, Math.max(0L, (long) fromId - 1 + count));
+        if (from >= to) {
+            return new String[0];
+        }
+        byte[][][] fields = new byte[names.length][][];
+        for (int c = 0; c < names.length; c++) {
+            fields[c] = readFields(c, from, to - from);
+        }
+        return join(fields, to - from);
+    }
+
+    /**
+     * Reads the records with the given IDs. Each column is read on its own: the blocks that hold the IDs' values,
+     * offsets or codes are read once, in ascending order, and runs of adjacent blocks up to QUERY_READ_BLOCKS long
+     * with one device read; the string bytes and dictionary entries they point to are then read the same way.
+     */
+    @Override
+    public Map<Integer, String> readRows(int[] ids, int count) throws IOException {
+        int[] found = new int[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (ids[i] >= 1 && ids[i] <= rows) {
+                found[n++] = ids[i] - 1;
+            }
+        }
+        byte[][][] fields = new byte[names.length][][];
+        for (int c = 0; c < names.length; c++) {
+            fields[c] = readFields(c, found, n);
+        }
+        String[] lines = join(fields, n);
+        Map<Integer, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            result.put(found[i] + 1, lines[i]);
+        }
+        return result;
+    }
+
+    // Joins the fields of each row with commas
+    private String[] join(byte[][][] fields, int count) {
+        String[] result = new String[count];
+        byte[] line = new byte[256];
+        for (int r = 0; r < count; r++) {
+            int length = 0;
+            for (int c = 0; c < names.length; c++) {
+                byte[] field = fields[c][r];
+                if (length + field.length + 1 > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, length + field.length + 1));
+                }
+                if (c > 0) {
+                    line[length++] = ',';
+                }
+                System.arraycopy(field, 0, line, length, field.length);
+                length += field.length;
+            }
+            result[r] = new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    // Reads the fields of rows [from, from + count) of a column, as they appear in the CSV
+    private byte[][] readFields(int column, int from, int count) throws IOException {
+        byte[][] fields = new byte[count][];
+        long start = columnPosition(column);
+        switch (types[column]) {
+            case TYPE_INT: {
+                ByteBuffer values = read(start + 4L * from, 4 * count);
+                for (int i = 0; i < count; i++) {
+                    fields[i] = ascii(Integer.toString(values.getInt()));
+                }
+                break;
+            }
+            case TYPE_FLOAT: {
+                ByteBuffer values = read(start + 4L * from, 4 * count);
+                for (int i = 0; i < count; i++) {
+                    fields[i] = ascii(Float.toString(values.getFloat()));
+                }
+                break;
+            }
+            case TYPE_DICT: {
+                int width = codeWidth(entries[column]);
+                ByteBuffer codes = read(start + (long) width * from, width * count);
+                if (dictionaries[column] == null && count < Constants.COLUMN_DICTIONARY_LOAD_ROWS) {
+                    // A few rows read their own entries rather than the whole dictionary
+                    int[] rowCodes = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        rowCodes[i] = width == 1 ? codes.get() & 0xFF : codes.getShort() & 0xFFFF;
+                    }
+                    return readEntries(start + (long) width * rows, entries[column], rowCodes, count);
+                }
+                byte[][] dictionary = dictionary(column);
+                for (int i = 0; i < count; i++) {
+                    fields[i] = dictionary[width == 1 ? codes.get() & 0xFF : codes.getShort() & 0xFFFF];
+                }
+                break;
+            }
+            default: {
+                ByteBuffer offsets = read(start + 4 + 4L * from, 4 * (count + 1));
+                int first = offsets.getInt(0);
+                long bytesStart = start + 4 + 4L * (rows + 1);
+                ByteBuffer bytes = read(bytesStart + first, offsets.getInt(4 * count) - first);
+                for (int i = 0; i < count; i++) {
+                    fields[i] = Arrays.copyOfRange(bytes.array(), offsets.getInt(4 * i) - first, offsets.getInt(4 * i + 4) - first);
+                }
+                break;
+            }
+        }
+        return fields;
+    }
+
+    // Reads the fields of the given rows of a column, in ascending order, as they appear in the CSV
+    private byte[][] readFields(int column, int[] rowIds, int count) throws IOException {
+        byte[][] fields = new byte[count][];
+        long start = columnPosition(column);
+        long[] positions = new long[count];
+        int[] lengths = new int[count];
+        int width = types[column] == TYPE_DICT ? codeWidth(entries[column]) : 4;
+        for (int i = 0; i < count; i++) {
+            positions[i] = types[column] == TYPE_STRING ? start + 4 + 4L * rowIds[i] : start + (long) width * rowIds[i];
+            lengths[i] = types[column] == TYPE_STRING ? 8 : width; // A string's offset and the next one
+        }
+        byte[][] values = readRanges(positions, lengths, count);
+        switch (types[column]) {
+            case TYPE_INT:
+                for (int i = 0; i < count; i++) {
+                    fields[i] = ascii(Integer.toString(ByteBuffer.wrap(values[i]).getInt()));
+                }
+                break;
+            case TYPE_FLOAT:
+                for (int i = 0; i < count; i++) {
+                    fields[i] = ascii(Float.toString(ByteBuffer.wrap(values[i]).getFloat()));
+                }
+                break;
+            case TYPE_DICT: {
+                int[] rowCodes = new int[count];
+                for (int i = 0; i < count; i++) {
+                    rowCodes[i] = width == 1 ? values[i][0] & 0xFF : ByteBuffer.wrap(values[i]).getShort() & 0xFFFF;
+                }
+                if (dictionaries[column] == null && count < Constants.COLUMN_DICTIONARY_LOAD_ROWS) {
+                    return readEntries(start + (long) width * rows, entries[column], rowCodes, count);
+                }
+                byte[][] dictionary = dictionary(column);
+                for (int i = 0; i < count; i++) {
+                    fields[i] = dictionary[rowCodes[i]];
+                }
+                break;
+            }
+            default: {
+                long bytesStart = start + 4 + 4L * (rows + 1);
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer offsets = ByteBuffer.wrap(values[i]);
+                    positions[i] = bytesStart + offsets.getInt(0);
+                    lengths[i] = offsets.getInt(4) - offsets.getInt(0);
+                }
+                fields = readRanges(positions, lengths, count);
+                break;
+            }
+        }
+        return fields;
+    }
+
+    // Reads the entries of a table with the given codes, in any order: the distinct codes are sorted, and their
+    // offsets and then their bytes are read as readRanges() reads them
+    private byte[][] readEntries(long tablePosition, int tableCount, int[] codes, int count) throws IOException {
+        int[] distinct = Arrays.stream(codes, 0, count).sorted().distinct().toArray();
+        long[] positions = new long[distinct.length];
+        int[] lengths = new int[distinct.length];
+        for (int i = 0; i < distinct.length; i++) {
+            positions[i] = tablePosition + 4 + 4L * distinct[i];
+            lengths[i] = 8;
+        }
+        byte[][] offsets = readRanges(positions, lengths, distinct.length);
+        long bytesStart = tablePosition + 4 + 4L * (tableCount + 1);
+        for (int i = 0; i < distinct.length; i++) {
+            ByteBuffer offset = ByteBuffer.wrap(offsets[i]);
+            positions[i] = bytesStart + offset.getInt(0);
+            lengths[i] = offset.getInt(4) - offset.getInt(0);
+        }
+        byte[][] entryBytes = readRanges(positions, lengths, distinct.length);
+        byte[][] fields = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            fields[i] = entryBytes[Arrays.binarySearch(distinct, codes[i])];
+        }
+        return fields;
+    }
+
+    /**
+     * Reads byte ranges given in ascending order of position. Ranges whose blocks are the same or adjacent are
+     * fetched by one device read, as long as it spans at most QUERY_READ_BLOCKS blocks, so each block is read once.
+     * @param positions the position of each range in the database
+     * @param lengths the length of each range
+     * @param count the number of ranges
+     * @return the bytes of each range
+     * @throws IOException if an I/O error occurs
+     */
+    private byte[][] readRanges(long[] positions, int[] lengths, int count) throws IOException {
+        byte[][] ranges = new byte[count][];
+        for (int i = 0; i < count; ) {
+            long firstBlock = positions[i] / Constants.BLOCK_SIZE;
+            long lastBlock = (positions[i] + Math.max(1, lengths[i]) - 1) / Constants.BLOCK_SIZE;
+            long end = positions[i] + lengths[i];
+            int next = i + 1;
+            while (next < count) {
+                long from = positions[next] / Constants.BLOCK_SIZE;
+                long to = (positions[next] + Math.max(1, lengths[next]) - 1) / Constants.BLOCK_SIZE;
+                if (from > lastBlock + 1 || Math.max(lastBlock, to) - firstBlock >= Constants.QUERY_READ_BLOCKS) {
+                    break;
+                }
+                lastBlock = Math.max(lastBlock, to);
+                end = Math.max(end, positions[next] + lengths[next]);
+                next++;
+            }
+            long readStart = positions[i];
+            byte[] bytes = read(readStart, (int) (end - readStart)).array();
+            for (; i < next; i++) {
+                int from = (int) (positions[i] - readStart);
+                ranges[i] = Arrays.copyOfRange(bytes, from, from + lengths[i]);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Visits every value of one column, reading only that column's blocks.
+     * Int and float columns report each value as a number; a dict column reports each dictionary entry once
+     * with the number of rows that hold it; a string column reports each field with a count of 1.
+     * Strings are reported without the quotes of the CSV.
+     * @param column the column index, from 0
+     * @param visitor receives the values
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void scan(int column, Visitor visitor) throws IOException {
+        long start = columnPosition(column);
+        int perRead = Constants.COLUMN_SCAN_BYTES / 4;
+        switch (types[column]) {
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                for (int from = 0; from < rows; from += perRead) {
+                    int count = Math.min(perRead, rows - from);
+                    ByteBuffer values = read(start + 4L * from, 4 * count);
+                    for (int i = 0; i < count; i++) {
+                        visitor.number(types[column] == TYPE_INT ? values.getInt() : values.getFloat());
+                    }
+                }
+                break;
+            case TYPE_DICT: {
+                byte[][] dictionary = dictionary(column);
+                int width = codeWidth(entries[column]);
+                int[] counts = new int[dictionary.length];
+                perRead = Constants.COLUMN_SCAN_BYTES / width;
+                for (int from = 0; from < rows; from += perRead) {
+                    int count = Math.min(perRead, rows - from);
+                    ByteBuffer codes = read(start + (long) width * from, width * count);
+                    for (int i = 0; i < count; i++) {
+                        counts[width == 1 ? codes.get() & 0xFF : codes.getShort() & 0xFFFF]++;
+                    }
+                }
+                for (int code = 0; code < dictionary.length; code++) {
+                    if (counts[code] > 0) {
+                        visitor.text(unquote(dictionary[code]), counts[code]);
+                    }
+                }
+                break;
+            }
+            default:
+                for (int from = 0; from < rows; from += perRead) {
+                    for (byte[] field : readFields(column, from, Math.min(perRead, rows - from))) {
+                        visitor.text(unquote(field), 1);
+                    }
+                }
+                break;
+        }
+    }
+
+    // Reads the dictionary table that follows the codes of a dict column
+    private byte[][] dictionary(int column) throws IOException {
+        if (dictionaries[column] == null) {
+            long tablePosition = columnPosition(column) + (long) codeWidth(entries[column]) * rows;
+            int count = read(tablePosition, 4).getInt();
+            ByteBuffer offsets = read(tablePosition + 4, 4 * (count + 1));
+            ByteBuffer bytes = read(tablePosition + 4 + 4L * (count + 1), offsets.getInt(4 * count));
+            byte[][] dictionary = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                dictionary[i] = Arrays.copyOfRange(bytes.array(), offsets.getInt(4 * i), offsets.getInt(4 * i + 4));
+            }
+            dictionaries[column] = dictionary;
+        }
+        return dictionaries[column];
+    }
+
+    private long columnPosition(int column) {
+        return runPosition + (long) firstBlocks[column] * Constants.BLOCK_SIZE;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        if (length > 0) {
+            database.read(position, bytes);
+            reads++;
+        }
+        bytesRead += length;
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static long blockPosition(int blockIndex) {
+        return (long) (blockIndex + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+    }
+
+    private static int codeWidth(int dictionaryEntries) {
+        return dictionaryEntries <= 256 ? 1 : 2;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Decodes a field as the CSV holds it, removing its quotes and turning "" inside them into one quote
+    private static String unquote(byte[] field) {
+        if (field.length >= 2 && field[0] == '"' && field[field.length - 1] == '"') {
+            return new String(field, 1, field.length - 2, StandardCharsets.UTF_8).replace("\"\"", "\"");
+        }
+        return new String(field, StandardCharsets.UTF_8);
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    public byte getColumnType(int column) {
+        return types[column];
+    }
+
+    public int getColumnBlocks(int column) {
+        return columnBlocks[column];
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public long getReads() {
+        return reads;
+    }
+
+    /**
+     * Writes the columns of a file being imported, in two passes over the CSV file. The first, plan(), settles
+     * the type of every column: it starts out as int, or float if its first field is one, and becomes a string
+     * column at the first field that does not fit its type. It also collects the distinct fields of the string
+     * columns while they may still fit a dictionary, and adds up their bytes, so that the size of every column
+     * is known and the whole run is allocated at once. The second pass hands every row to add(), which writes
+     * each field straight to its place in its column through a buffer of COLUMN_WRITE_BYTES per column part;
+     * finish() writes the dictionaries and the directory. Only the dictionaries are held in memory.
+     */
+    static class Writer {
+        private final BlockDevice file;
+        private final BlockManager blockManager;
+        private Column[] columns;
+        private int rows; // Rows counted by plan()
+        private int written; // Rows written by add()
+        private int startBlock;
+        private int blocks;
+
+        /**
+         * Creates a writer that stores the columns in a new run of the database.
+         * @param file the BlockDevice of the database
+         * @param blockManager the block manager to allocate the run from
+         */
+        Writer(BlockDevice file, BlockManager blockManager) {
+            this.file = file;
+            this.blockManager = blockManager;
+        }
+
+        /**
+         * Reads the CSV file once to settle the names, types and sizes of its columns, then allocates the run.
+         * @param csvFileName the CSV file
+         * @throws IOException if the file cannot be read, a row does not have one field per column, or the
+         *         columns are too large for the int offsets of the format
+         */
+        void plan(String csvFileName) throws IOException {
+            int stringsFrom = 0; // Rows of numbers read again, for the dictionaries of columns that became strings
+            try (InputStream in = new FileInputStream(csvFileName)) {
+                CsvTokenizer tokenizer = new CsvTokenizer(in, Constants.TOKENIZER_BUFFER_BYTES);
+                if (!tokenizer.next()) {
+                    columns = new Column[0];
+                } else {
+                    columns = new Column[tokenizer.fieldCount()];
+                    for (int c = 0; c < columns.length; c++) {
+                        columns[c] = new Column(tokenizer.fieldString(c).trim());
+                    }
+                }
+                while (tokenizer.next()) {
+                    checkFields(rows + 1, tokenizer);
+                    byte[] b = tokenizer.array();
+                    for (int c = 0; c < columns.length; c++) {
+                        columns[c].plan(rows, b, tokenizer.rawFieldStart(c), tokenizer.rawFieldEnd(c));
+                    }
+                    rows++;
+                }
+            }
+            for (Column column : columns) {
+                if (column.codes != null) {
+                    stringsFrom = Math.max(stringsFrom, column.stringFrom);
+                }
+            }
+            if (stringsFrom > 0) {
+                // The numbers are written the way they are printed, so the fields read again are their texts
+                try (InputStream in = new FileInputStream(csvFileName)) {
+                    CsvTokenizer tokenizer = new CsvTokenizer(in, Constants.TOKENIZER_BUFFER_BYTES);
+                    tokenizer.next();
+                    for (int row = 0; row < stringsFrom && tokenizer.next(); row++) {
+                        byte[] b = tokenizer.array();
+                        for (int c = 0; c < columns.length; c++) {
+                            if (row < columns[c].stringFrom) {
+                                columns[c].count(b, tokenizer.rawFieldStart(c), tokenizer.rawFieldEnd(c));
+                            }
+                        }
+                    }
+                }
+            }
+            long total = blocksFor(directoryLength());
+            for (Column column : columns) {
+                column.settle(rows);
+                column.firstBlock = (int) Math.min(Integer.MAX_VALUE, total);
+                total += blocksFor(column.length(rows));
+            }
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException("Columnar file too large: " + total + " blocks");
+            }
+            blocks = (int) Math.max(1, total);
+            startBlock = BlockRun.allocate(file, blockManager, blocks);
+            long runPosition = blockPosition(startBlock);
+            for (Column column : columns) {
+                column.open(file, runPosition + (long) column.firstBlock * Constants.BLOCK_SIZE, rows);
+            }
+        }
+
+        /**
+         * Writes the fields of a row to their columns.
+         * @param dataId the record ID, which must be the next line number
+         * @param tokenizer the tokenizer positioned on the row
+         * @throws IOException if the row does not have one field per column, is out of order, or does not fit
+         *         the plan because the CSV file changed since plan() read it
+         */
+        void add(int dataId, CsvTokenizer tokenizer) throws IOException {
+            if (dataId != written + 1) {
+                throw new IOException("Record " + dataId + " of a columnar file is out of order");
+            }
+            checkFields(dataId, tokenizer);
+            if (written == rows) {
+                throw new IOException("The CSV file has grown since its columns were planned");
+            }
+            byte[] b = tokenizer.array();
+            for (int c = 0; c < columns.length; c++) {
+                columns[c].write(b, tokenizer.rawFieldStart(c), tokenizer.rawFieldEnd(c));
+            }
+            written++;
+        }
+
+        private void checkFields(int dataId, CsvTokenizer tokenizer) throws IOException {
+            if (tokenizer.fieldCount() != columns.length) {
+                throw new IOException("Line " + (dataId + 1) + " has " + tokenizer.fieldCount()
+                        + " fields and the header " + columns.length + "; a columnar file needs one value per column");
+            }
+        }
+
+        int getRows() {
+            return written;
+        }
+
+        /**
+         * Writes the last buffered fields, the dictionaries and the column directory.
+         * @return the first block of the run
+         * @throws IOException if an I/O error occurs, or fewer rows were written than planned
+         */
+        int finish() throws IOException {
+            if (written != rows) {
+                throw new IOException("The CSV file has shrunk since its columns were planned");
+            }
+            ByteBuffer directory = ByteBuffer.allocate(directoryLength());
+            directory.putInt(MAGIC).putInt(rows).putInt(columns.length);
+            for (Column column : columns) {
+                column.close(file, rows);
+                byte[] name = column.name.getBytes(StandardCharsets.UTF_8);
+                directory.put(column.type).putShort((short) name.length).put(name);
+                directory.putInt(column.firstBlock).putInt((int) blocksFor(column.length(rows))).putInt(column.dictionaryEntries());
+            }
+            file.write(blockPosition(startBlock), directory.array());
+            return startBlock;
+        }
+
+        /**
+         * Returns the blocks of the run, the directory included.
+         * @return the number of blocks
+         */
+        int getBlocks() {
+            return blocks;
+        }
+
+        private int directoryLength() {
+            int length = 12;
+            for (Column column : columns) {
+                length += 3 + column.name.getBytes(StandardCharsets.UTF_8).length + 12;
+            }
+            return length;
+        }
+
+        private static long blocksFor(long length) {
+            return (length + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * One column of a file being imported: its type and size, settled by the first pass, then the buffers that
+     * write its values, codes or string table to their place in the run.
+     */
+    private static final class Column {
+        final String name;
+        byte type = TYPE_INT;
+        int stringFrom; // Row at which the column became a string column
+        long bytes; // Bytes of all its fields as the CSV holds them
+        Map<String, Integer> codes; // Distinct fields while they may fit a dictionary, as ISO-8859-1 strings of their bytes
+        List<byte[]> table;
+        int entries; // Dictionary entries of a dict column
+        long tableBytes; // Bytes of the entries of a dict column
+        int firstBlock; // First block relative to the run
+        private long position; // Position of the column in the database
+        private Cursor values; // Values, codes, or the count and offsets of a string table
+        private Cursor strings; // Bytes of a string table
+        private long offset; // Bytes of a string table written so far
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        // Takes a field into account in the first pass
+        void plan(int row, byte[] b, int start, int end) {
+            bytes += end - start;
+            if (type == TYPE_INT) {
+                if (CsvFields.isInt(CsvFields.parseLong(b, start, end))) {
+                    return;
+                }
+                if (row == 0 && CsvFields.isFloat(b, start, end)) {
+                    type = TYPE_FLOAT;
+                } else {
+                    toStrings(row);
+                }
+            }
+            if (type == TYPE_FLOAT) {
+                if (CsvFields.isFloat(b, start, end)) {
+                    return;
+                }
+                toStrings(row);
+            }
+            count(b, start, end);
+        }
+
+        // Makes this a string column from a row on; the fields of the rows before it are counted by a later read
+        private void toStrings(int row) {
+            type = TYPE_STRING;
+            stringFrom = row;
+            codes = new HashMap<>();
+            table = new ArrayList<>();
+        }
+
+        // Adds a field to the distinct fields, giving up on a dictionary once there are too many
+        void count(byte[] b, int start, int end) {
+            if (codes == null) {
+                return;
+            }
+            String field = new String(b, start, end - start, StandardCharsets.ISO_8859_1);
+            if (!codes.containsKey(field)) {
+                if (table.size() == Constants.COLUMN_DICTIONARY_ENTRIES) {
+                    codes = null;
+                    table = null;
+                    return;
+                }
+                codes.put(field, table.size());
+                table.add(field.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        // Ends the first pass: a string column with few enough distinct fields becomes a dict column
+        void settle(int rows) throws IOException {
+            if (type != TYPE_STRING) {
+                return;
+            }
+            if (codes != null && table.size() <= Math.max(256, rows / 2)) {
+                type = TYPE_DICT;
+                entries = table.size();
+                for (byte[] entry : table) {
+                    tableBytes += entry.length;
+                }
+            } else {
+                codes = null;
+                table = null;
+                if (bytes > Integer.MAX_VALUE) {
+                    throw new IOException("Column " + name + " too large: " + bytes + " bytes");
+                }
+            }
+        }
+
+        // Bytes the column takes in the run
+        long length(int rows) {
+            switch (type) {
+                case TYPE_INT:
+                case TYPE_FLOAT:
+                    return 4L * rows;
+                case TYPE_DICT:
+                    return (long) codeWidth(entries) * rows + 4 + 4L * (entries + 1) + tableBytes;
+                default:
+                    return 4 + 4L * (rows + 1) + bytes;
+            }
+        }
+
+        int dictionaryEntries() {
+            return entries;
+        }
+
+        // Starts the second pass, with the column written from a position of the database on
+        void open(BlockDevice file, long position, int rows) throws IOException {
+            this.position = position;
+            values = new Cursor(file, position);
+            if (type == TYPE_STRING) {
+                values.putInt(rows);
+                values.putInt(0);
+                strings = new Cursor(file, position + 4 + 4L * (rows + 1));
+            }
+        }
+
+        // Writes a field in the second pass
+        void write(byte[] b, int start, int end) throws IOException {
+            switch (type) {
+                case TYPE_INT: {
+                    long value = CsvFields.parseLong(b, start, end);
+                    if (!CsvFields.isInt(value)) {
+                        throw changed();
+                    }
+                    values.putInt((int) value);
+                    break;
+                }
+                case TYPE_FLOAT:
+                    if (!CsvFields.isFloat(b, start, end)) {
+                        throw changed();
+                    }
+                    values.putInt(Float.floatToIntBits(CsvFields.parseFloat(b, start, end)));
+                    break;
+                case TYPE_DICT: {
+                    Integer code = codes.get(new String(b, start, end - start, StandardCharsets.ISO_8859_1));
+                    if (code == null) {
+                        throw changed();
+                    }
+                    if (codeWidth(entries) == 1) {
+                        values.put((byte) (int) code);
+                    } else {
+                        values.putShort((short) (int) code);
+                    }
+                    break;
+                }
+                default:
+                    offset += end - start;
+                    if (offset > bytes) {
+                        throw changed();
+                    }
+                    values.putInt((int) offset);
+                    strings.put(b, start, end - start);
+                    break;
+            }
+        }
+
+        // Ends the second pass: writes what is still buffered, and the dictionary table behind the codes
+        void close(BlockDevice file, int rows) throws IOException {
+            values.flush();
+            if (strings != null) {
+                strings.flush();
+                if (offset != bytes) {
+                    throw changed();
+                }
+            }
+            if (type == TYPE_DICT) {
+                file.write(position + (long) codeWidth(entries) * rows, encodeTable(table));
+            }
+            codes = null;
+            table = null;
+        }
+
+        private static IOException changed() {
+            return new IOException("The CSV file has changed since its columns were planned");
+        }
+
+        private static byte[] encodeTable(List<byte[]> entries) {
+            int length = 0;
+            for (byte[] entry : entries) {
+                length += entry.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 * (entries.size() + 1) + length);
+            buffer.putInt(entries.size());
+            int offset = 0;
+            buffer.putInt(offset);
+            for (byte[] entry : entries) {
+                offset += entry.length;
+                buffer.putInt(offset);
+            }
+            for (byte[] entry : entries) {
+                buffer.put(entry);
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Writes one part of a column being imported from its place in the run on, COLUMN_WRITE_BYTES at a time.
+     */
+    private static final class Cursor {
+        private final BlockDevice file;
+        private final ByteBuffer buffer = ByteBuffer.allocate(Constants.COLUMN_WRITE_BYTES);
+        private long position; // Where the buffered bytes go
+
+        Cursor(BlockDevice file, long position) {
+            this.file = file;
+            this.position = position;
+        }
+
+        void put(byte value) throws IOException {
+            room(1);
+            buffer.put(value);
+        }
+
+        void putShort(short value) throws IOException {
+            room(2);
+            buffer.putShort(value);
+        }
+
+        void putInt(int value) throws IOException {
+            room(4);
+            buffer.putInt(value);
+        }
+
+        void put(byte[] src, int from, int length) throws IOException {
+            while (length > 0) {
+                room(1);
+                int chunk = Math.min(length, buffer.remaining());
+                buffer.put(src, from, chunk);
+                from += chunk;
+                length -= chunk;
+            }
+        }
+
+        private void room(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (buffer.position() > 0) {
+                file.write(position, buffer.array(), 0, buffer.position());
+                position += buffer.position();
+                buffer.clear();
+            }
+        }
+    }
+}
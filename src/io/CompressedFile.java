@@ -0,0 +1,379 @@
+package io;
+
+import constants.Constants;
+import model.FileControlBlock;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only view of the data blocks of a file stored with the deflate codec. The import packs the file's slotted
+ * pages as usual, but numbers them from 0 as logical blocks and deflates every COMPRESSED_EXTENT_BLOCKS of them
+ * into one extent instead of writing them in place. The extents are stored in one run of adjacent blocks that
+ * starts at the FCB's start block, behind a block-translation map:
+ *   map:     int magic "PCX1", blocks per extent, logical blocks, extent count, then extent count + 1 int offsets
+ *            from the start of the run; extent i is stored at [offset i, offset i + 1)
+ *   extents: the deflated extents, back to back behind the blocks kept for the map, the run padded to whole blocks
+ * The import writes the extents into the run as they are deflated and the map, which it keeps room for up front,
+ * last; a map that outgrows that room moves the run.
+ * The index stores the locators of the logical blocks, so readers address records exactly as in an uncompressed
+ * file: a read through this view at the position of a logical block finds its extent in the map, reads and
+ * inflates the extent and copies from it. Inflated extents are kept in a small LRU cache per file, so a scan
+ * inflates each extent once and lookups close together share one. An extent is first inflated only up to the
+ * end of the bytes read, which is all a point lookup needs; a later read past that inflates it whole.
+ */
+public class CompressedFile implements BlockDevice {
+    private static final int MAGIC = 0x50435831; // "PCX1"
+    private static final int MAP_HEADER_SIZE = 16;
+
+    // Open views by database and file name; weak, so that a closed database's views go with it
+    private static final Map<BlockDevice, Map<String, CompressedFile>> OPEN = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final WeakReference<BlockDevice> database; // Weak, so that the view does not keep its key in OPEN alive
+    private final String fileName;
+    private final int startBlock; // Start of the stored run, to tell a view of a removed file from a new one
+    private final int usedBlocks;
+    private final long date;
+    private final int extentBlocks;
+    private final int blocks; // Logical blocks
+    private final int[] offsets;
+    private final Inflater inflater = new Inflater();
+    private final LinkedHashMap<Integer, Extent> extents = new LinkedHashMap<Integer, Extent>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Extent> eldest) {
+            return size() > Constants.EXTENT_CACHE_EXTENTS;
+        }
+    };
+    private long extentsInflated;
+    private long bytesRead; // Compressed bytes read from the database
+
+    private CompressedFile(BlockDevice database, FileControlBlock fcb) throws IOException {
+        this.database = new WeakReference<>(database);
+        this.fileName = fcb.getFileName();
+        this.startBlock = fcb.getStartBlock();
+        this.usedBlocks = fcb.getUsedBlocks();
+        this.date = fcb.getDate().getTime();
+        long runPosition = blockPosition(startBlock);
+        ByteBuffer header = ByteBuffer.allocate(MAP_HEADER_SIZE);
+        database.read(runPosition, header.array());
+        if (header.getInt() != MAGIC) {
+            throw new IOException("No extent map at block " + startBlock + " of compressed file " + fileName);
+        }
+        this.extentBlocks = header.getInt();
+        this.blocks = header.getInt();
+        int extentCount = header.getInt();
+        ByteBuffer map = ByteBuffer.allocate(4 * (extentCount + 1));
+        database.read(runPosition + MAP_HEADER_SIZE, map.array());
+        this.offsets = new int[extentCount + 1];
+        map.asIntBuffer().get(offsets);
+    }
+
+    /**
+     * Returns the device to read the data blocks of a file through: the database itself for an uncompressed file,
+     * the open view of a compressed one otherwise.
+     * @param database the BlockDevice of the database
+     * @param fcb the FCB of the file, or null
+     * @return the device on which the file's locators address its records
+     * @throws IOException if the extent map cannot be read or the codec is unknown
+     */
+    public static BlockDevice of(BlockDevice database, FileControlBlock fcb) throws IOException {
+        if (fcb == null || fcb.getCodec() == FileControlBlock.CODEC_NONE) {
+            return database;
+        }
+        if (fcb.getCodec() != FileControlBlock.CODEC_DEFLATE) {
+            throw new IOException("Unknown codec " + fcb.getCodec() + " of file " + fcb.getFileName());
+        }
+        synchronized (OPEN) {
+            Map<String, CompressedFile> files = OPEN.computeIfAbsent(database, d -> new HashMap<>());
+            CompressedFile view = files.get(fcb.getFileName());
+            if (view == null || view.startBlock != fcb.getStartBlock() || view.usedBlocks != fcb.getUsedBlocks()
+                    || view.date != fcb.getDate().getTime()) {
+                view = new CompressedFile(database, fcb);
+                files.put(fcb.getFileName(), view);
+            }
+            return view;
+        }
+    }
+
+    /**
+     * Drops the open view of a file, such as one that has been removed.
+     * @param database the BlockDevice of the database
+     * @param fileName the file name
+     */
+    public static void forget(BlockDevice database, String fileName) {
+        synchronized (OPEN) {
+            Map<String, CompressedFile> files = OPEN.get(database);
+            if (files != null) {
+                files.remove(fileName);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of a codec, as shown by dir.
+     * @param codec the codec stored in an FCB
+     * @return the codec name
+     */
+    public static String codecName(byte codec) {
+        switch (codec) {
+            case FileControlBlock.CODEC_NONE:
+                return "none";
+            case FileControlBlock.CODEC_DEFLATE:
+                return "deflate";
+            default:
+                return "unknown (" + codec + ")";
+        }
+    }
+
+    @Override
+    public synchronized int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        long start = position - Constants.HEADER_SIZE; // Logical blocks are addressed as if they followed the header
+        long end = (long) blocks * Constants.BLOCK_SIZE;
+        if (start < 0 || start >= end) {
+            return -1;
+        }
+        int total = (int) Math.min(length, end - start);
+        int extentBytes = extentBlocks * Constants.BLOCK_SIZE;
+        int done = 0;
+        while (done < total) {
+            long current = start + done;
+            int index = (int) (current / extentBytes);
+            int from = (int) (current % extentBytes);
+            int chunk = (int) Math.min(total - done, Math.min(extentBytes, end - (long) index * extentBytes) - from);
+            System.arraycopy(extent(index, from + chunk), from, buffer, offset + done, chunk);
+            done += chunk;
+        }
+        return total;
+    }
+
+    // Returns an extent inflated at least up to needed bytes, from the cache or read from the database
+    private byte[] extent(int index, int needed) throws IOException {
+        Extent extent = extents.get(index);
+        if (extent != null && extent.inflated >= needed) {
+            return extent.data;
+        }
+        if (extent == null) {
+            byte[] compressed = new byte[offsets[index + 1] - offsets[index]];
+            device().read(blockPosition(startBlock) + offsets[index], compressed);
+            bytesRead += compressed.length;
+            extent = new Extent(new byte[Math.min(extentBlocks, blocks - index * extentBlocks) * Constants.BLOCK_SIZE], compressed);
+            extents.put(index, extent);
+        } else {
+            needed = extent.data.length; // Read past the first inflation: inflate the rest too rather than step by step
+        }
+        inflater.reset();
+        inflater.setInput(extent.compressed);
+        try {
+            int inflated = 0;
+            while (inflated < needed && !inflater.finished() && !inflater.needsInput()) {
+                inflated += inflater.inflate(extent.data, inflated, needed - inflated);
+            }
+            if (inflated < needed) {
+                extents.remove(index);
+                throw new IOException("Extent " + index + " of compressed file " + fileName + " is truncated");
+            }
+            extent.inflated = inflated;
+            if (inflated == extent.data.length) {
+                extent.compressed = null;
+            }
+        } catch (DataFormatException e) {
+            extents.remove(index);
+            throw new IOException("Extent " + index + " of compressed file " + fileName + " is corrupt", e);
+        }
+        extentsInflated++;
+        return extent.data;
+    }
+
+    private BlockDevice device() throws IOException {
+        BlockDevice device = database.get();
+        if (device == null) {
+            throw new IOException("The database of compressed file " + fileName + " is closed");
+        }
+        return device;
+    }
+
+    private static long blockPosition(int blockIndex) {
+        return (long) (blockIndex + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+    }
+
+    @Override
+    public void write(long position, byte[] data, int offset, int length) throws IOException {
+        throw new IOException("Compressed file " + fileName + " is read-only");
+    }
+
+    @Override
+    public long length() {
+        return Constants.HEADER_SIZE + (long) blocks * Constants.BLOCK_SIZE;
+    }
+
+    @Override
+    public void setLength(long newLength) throws IOException {
+        throw new IOException("Compressed file " + fileName + " is read-only");
+    }
+
+    @Override
+    public void force() {
+        // Nothing is written through the view
+    }
+
+    @Override
+    public void close() {
+        // The database is closed by its owner
+    }
+
+    @Override
+    public long getSyscalls() {
+        BlockDevice device = database.get();
+        return device == null ? 0 : device.getSyscalls();
+    }
+
+    /**
+     * Returns the number of logical data blocks of the file, as it would use uncompressed.
+     * @return the number of logical blocks
+     */
+    public int getBlocks() {
+        return blocks;
+    }
+
+    public synchronized long getExtentsInflated() {
+        return extentsInflated;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * An inflated extent of the cache; only its first inflated bytes are valid. The compressed bytes are kept
+     * until it is inflated whole.
+     */
+    private static final class Extent {
+        final byte[] data;
+        byte[] compressed;
+        int inflated;
+
+        Extent(byte[] data, byte[] compressed) {
+            this.data = data;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * Collects the data blocks of a file being imported and deflates them an extent at a time. The deflated
+     * extents are kept in memory until finish() returns the run to store, which then goes to one allocation of
+     * adjacent blocks, so the file's blocks stay the single range its FCB describes.
+     */
+    static class Writer {
+        private final Deflater deflater = new Deflater();
+        private final byte[] extent = new byte[Constants.COMPRESSED_EXTENT_BLOCKS * Constants.BLOCK_SIZE];
+        private final byte[] deflated = new byte[Constants.COMPRESSED_EXTENT_BLOCKS * Constants.BLOCK_SIZE]; // Deflater output, appended to the run
+        private final BlockRun run; // Receives the extents as they are deflated; the map is its head
+        private int extentLength; // Bytes of the extent being filled
+        private int blocks; // Logical blocks added
+        private int[] offsets = new int[16]; // Start of each extent, from the end of the map
+        private int extentCount;
+
+        /**
+         * Creates a writer that stores the extents in a run of the database as they are deflated.
+         * @param run the run to write the file into
+         */
+        Writer(BlockRun run) {
+            this.run = run;
+        }
+
+        /**
+         * Keeps room for the map of a file of about the given size in front of the extents, so that the run
+         * need not move when the map is written.
+         * @param bytes the expected size of the file's pages
+         * @throws IOException if an I/O error occurs
+         */
+        void expect(long bytes) throws IOException {
+            long extents = bytes / extent.length + bytes / extent.length / 4 + 1; // A quarter more, for the pages' overhead
+            run.reserveHead((int) ((MAP_HEADER_SIZE + 4 * (extents + 1) + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE));
+        }
+
+        /**
+         * Adds blocks to the file.
+         * @param src the array holding the blocks
+         * @param from the position of the first block in src
+         * @param numBlocks the number of blocks
+         * @return the logical number of the first block added
+         * @throws IOException if an I/O error occurs
+         */
+        int add(byte[] src, int from, int numBlocks) throws IOException {
+            int first = blocks;
+            int length = numBlocks * Constants.BLOCK_SIZE;
+            int done = 0;
+            while (done < length) {
+                int chunk = Math.min(length - done, extent.length - extentLength);
+                System.arraycopy(src, from + done, extent, extentLength, chunk);
+                extentLength += chunk;
+                done += chunk;
+                if (extentLength == extent.length) {
+                    deflateExtent();
+                }
+            }
+            blocks += numBlocks;
+            return first;
+        }
+
+        /**
+         * Returns the number of blocks added, which is also the logical number of the next one.
+         * @return the number of logical blocks
+         */
+        int getBlocks() {
+            return blocks;
+        }
+
+        private void deflateExtent() throws IOException {
+            if (extentCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, extentCount * 2);
+            }
+            offsets[extentCount++] = (int) run.size(); // Checked against the int offsets of the map in finish()
+            deflater.reset();
+            deflater.setInput(extent, 0, extentLength);
+            deflater.finish();
+            while (!deflater.finished()) {
+                run.append(deflated, 0, deflater.deflate(deflated));
+            }
+            extentLength = 0;
+        }
+
+        /**
+         * Deflates the last, partial extent and writes the map in front of the extents.
+         * @return the finished run
+         * @throws IOException if an I/O error occurs, or the file is too large for the offsets of the map
+         */
+        BlockRun finish() throws IOException {
+            if (extentLength > 0) {
+                deflateExtent();
+            }
+            deflater.end();
+            int mapLength = MAP_HEADER_SIZE + 4 * (extentCount + 1);
+            run.reserveHead((mapLength + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE);
+            long base = (long) run.getHeadBlocks() * Constants.BLOCK_SIZE;
+            long length = base + run.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Compressed file too large: " + length + " bytes");
+            }
+            ByteBuffer map = ByteBuffer.allocate(mapLength);
+            map.putInt(MAGIC).putInt(Constants.COMPRESSED_EXTENT_BLOCKS).putInt(blocks).putInt(extentCount);
+            for (int i = 0; i < extentCount; i++) {
+                map.putInt((int) (base + offsets[i]));
+            }
+            map.putInt((int) length);
+            run.finish(map.array());
+            return run;
+        }
+    }
+}
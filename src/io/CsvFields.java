@@ -0,0 +1,71 @@
+package io;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tells which binary types can hold a CSV field without changing its text. A field fits a type only if it is
+ * written the way Java prints that type, so that rendering the stored value gives back the field byte for byte.
+ */
+final class CsvFields {
+    static final long NOT_A_LONG = Long.MIN_VALUE;
+
+    private CsvFields() {
+    }
+
+    /**
+     * Parses a field written as Long.toString writes it.
+     * @param b the array holding the field
+     * @param start the position of the field in b
+     * @param end the position after the field
+     * @return the value, or NOT_A_LONG if the field is not one
+     */
+    static long parseLong(byte[] b, int start, int end) {
+        boolean negative = start < end && b[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 18 || (b[i] == '0' && (end - i > 1 || negative))) {
+            return NOT_A_LONG; // 18 digits always fit, so the value cannot overflow
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = b[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return NOT_A_LONG;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    static boolean isInt(long value) {
+        return value != NOT_A_LONG && value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Tells if a field is written as Float.toString writes it.
+     * @param b the array holding the field
+     * @param start the position of the field in b
+     * @param end the position after the field
+     * @return true if the field is a float printed by Java
+     */
+    static boolean isFloat(byte[] b, int start, int end) {
+        if (end - start < 3 || end - start > 16) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            byte c = b[i];
+            if ((c < '0' || c > '9') && c != '.' && c != '-' && c != 'E') {
+                return false;
+            }
+        }
+        String text = new String(b, start, end - start, StandardCharsets.ISO_8859_1);
+        try {
+            return Float.toString(Float.parseFloat(text)).equals(text);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    static float parseFloat(byte[] b, int start, int end) {
+        return Float.parseFloat(new String(b, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,250 @@
+package io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming CSV tokenizer that works on the raw bytes of the file. A record ends at "\n", "\r\n" or "\r"
+ * outside double quotes, so a quoted field may hold commas and line breaks; "" inside quotes is an escaped
+ * quote. next() reports the bounds of the record and of each field as positions in array(), which stay valid
+ * until the following call, so the caller can copy a record or parse a field without a String per row.
+ *
+ * The tokenizer either reads from a stream through one reused buffer, which grows only for a record longer
+ * than itself, or walks an array that is already in memory, such as one chunk of a pipelined import.
+ */
+public class CsvTokenizer {
+    private final InputStream in; // null when walking an in-memory array
+    private ByteBuffer buffer; // Bytes in [position, limit) are not consumed yet
+    private boolean eof; // No more bytes beyond limit
+    private int recordStart;
+    private int recordEnd;
+    private int fieldCount;
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private long records; // Records returned so far
+
+    /**
+     * Creates a tokenizer that reads a stream.
+     * @param in the stream to read
+     * @param bufferSize the initial size of the reused buffer
+     */
+    public CsvTokenizer(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = ByteBuffer.allocate(Math.max(16, bufferSize));
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Creates a tokenizer that walks bytes already in memory.
+     * @param data the array holding the CSV bytes
+     * @param length the number of bytes to tokenize, from the start of data
+     * @param complete true if the bytes end the file, so that a last record without a line break counts;
+     *                 false if more bytes follow, so that next() stops before an unterminated record
+     */
+    public CsvTokenizer(byte[] data, int length, boolean complete) {
+        this.in = null;
+        this.buffer = ByteBuffer.wrap(data, 0, length);
+        this.eof = complete;
+    }
+
+    /**
+     * Advances to the next record.
+     * @return true if there is a record, false at the end of the input
+     * @throws IOException if the stream cannot be read
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (scan()) {
+                records++;
+                return true;
+            }
+            if (eof || in == null) {
+                return false;
+            }
+            fill();
+        }
+    }
+
+    // Tokenizes the record at the buffer position; returns false if it is not complete within the buffer
+    private boolean scan() {
+        byte[] b = buffer.array();
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (start >= limit) {
+            return false;
+        }
+        fieldCount = 0;
+        int fieldStart = start;
+        boolean quoted = false;
+        for (int i = start; i < limit; i++) {
+            byte c = b[i];
+            if (c == '"') {
+                quoted = !quoted; // An escaped quote "" toggles twice
+            } else if (!quoted) {
+                if (c == ',') {
+                    addField(fieldStart, i);
+                    fieldStart = i + 1;
+                } else if (c == '\n' || c == '\r') {
+                    if (c == '\r' && i + 1 == limit && !eof) {
+                        return false; // The '\n' of a "\r\n" may still follow
+                    }
+                    addField(fieldStart, i);
+                    recordStart = start;
+                    recordEnd = i;
+                    buffer.position(c == '\r' && i + 1 < limit && b[i + 1] == '\n' ? i + 2 : i + 1);
+                    return true;
+                }
+            }
+        }
+        if (!eof) {
+            return false;
+        }
+        addField(fieldStart, limit); // Last record without a line break
+        recordStart = start;
+        recordEnd = limit;
+        buffer.position(limit);
+        return true;
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount++] = end;
+    }
+
+    // Moves the unconsumed bytes to the front of the buffer, growing it if they fill it, and reads more
+    private void fill() throws IOException {
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            buffer.flip();
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+        }
+        int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (n == -1) {
+            eof = true;
+        } else {
+            buffer.position(buffer.position() + n);
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Returns the array that the record and field bounds refer to.
+     * @return the current buffer
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    public int recordStart() {
+        return recordStart;
+    }
+
+    public int recordLength() {
+        return recordEnd - recordStart;
+    }
+
+    /**
+     * Returns the position after the last record returned, where the unconsumed input starts.
+     * @return the position in array()
+     */
+    public int position() {
+        return buffer.position();
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns the start of a field, after the opening quote if the field is quoted.
+     * @param field the field number, from 0
+     * @return the position in array()
+     */
+    public int fieldStart(int field) {
+        int start = fieldStarts[field];
+        return isQuoted(field) ? start + 1 : start;
+    }
+
+    /**
+     * Returns the end of a field, before the closing quote if the field is quoted.
+     * @param field the field number, from 0
+     * @return the position in array() after the last byte of the field
+     */
+    public int fieldEnd(int field) {
+        int end = fieldEnds[field];
+        return isQuoted(field) && end - 1 > fieldStarts[field] && buffer.array()[end - 1] == '"' ? end - 1 : end;
+    }
+
+    /**
+     * Returns the start of a field as it appears in the record, at its opening quote if it is quoted.
+     * @param field the field number, from 0
+     * @return the position in array()
+     */
+    public int rawFieldStart(int field) {
+        return fieldStarts[field];
+    }
+
+    /**
+     * Returns the end of a field as it appears in the record, after its closing quote if it is quoted.
+     * @param field the field number, from 0
+     * @return the position in array() after the last byte of the field
+     */
+    public int rawFieldEnd(int field) {
+        return fieldEnds[field];
+    }
+
+    public boolean isQuoted(int field) {
+        return fieldEnds[field] > fieldStarts[field] && buffer.array()[fieldStarts[field]] == '"';
+    }
+
+    /**
+     * Decodes a field, turning "" inside quotes into one quote.
+     * @param field the field number, from 0
+     * @return the field text
+     */
+    public String fieldString(int field) {
+        String text = new String(buffer.array(), fieldStart(field), fieldEnd(field) - fieldStart(field), StandardCharsets.UTF_8);
+        return isQuoted(field) ? text.replace("\"\"", "\"") : text;
+    }
+
+    /**
+     * Parses a field as a decimal int without creating a String.
+     * @param field the field number, from 0
+     * @return the value
+     * @throws NumberFormatException if the field is not a decimal int
+     */
+    public int fieldInt(int field) {
+        byte[] b = buffer.array();
+        int i = fieldStart(field);
+        int end = fieldEnd(field);
+        boolean negative = i < end && b[i] == '-';
+        if (negative || (i < end && b[i] == '+')) {
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Not a number in field " + field + " of record " + records);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = b[i] - '0';
+            if (digit < 0 || digit > 9 || (value = value * 10 + digit) > (long) Integer.MAX_VALUE + 1) {
+                throw new NumberFormatException("Not an int in field " + field + " of record " + records);
+            }
+        }
+        if (!negative && value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Not an int in field " + field + " of record " + records);
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    public long getRecords() {
+        return records;
+    }
+}
@@ -6,34 +6,39 @@ import metadata.MetadataHandler;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.file.Files;
 
 public class FileCreator {
 
     public FileCreator()  {
     }
     /**
-     * Open the file, if the file does not exist, create the file
+     * Open the file, if the file does not exist, create the file. The write-ahead log next to the file is
+     * replayed and reopened before anything reads the metadata.
      * @param databaseName database name
-     * @return RandomAccessFile object
+     * @return BlockDevice object
      * @throws IOException Exceptions that may be thrown when opening a file
      */
-    public RandomAccessFile openFile(String databaseName) throws IOException {
+    public BlockDevice openFile(String databaseName) throws IOException {
         File file = new File(databaseName);
+        File logFile = new File(databaseName + ".wal");
 
         // If the file exists, open the file
         if (file.exists()) {
             System.out.println("Database opened.");
-            return new RandomAccessFile(file, "rw");
+            BlockDevice device = BlockDevice.open(file);
+            WriteAheadLog.open(device, logFile); // Redo the metadata writes committed before a crash
+            return device;
         } else {
-            RandomAccessFile randomAccessFile = null;
+            BlockDevice device = null;
             try {
-                randomAccessFile = new RandomAccessFile(databaseName, "rw"); // Open the file in read-write mode
-                randomAccessFile.setLength(Constants.FILE_INNIT_SIZE);// Set the initial size of the file
-                writeInitialMetadata(databaseName, randomAccessFile);// Write the initial metadata to the file
-                randomAccessFile.seek(Constants.DATABASE_NAME_OFFSET);// Move the file pointer to the beginning of the file
+                Files.deleteIfExists(logFile.toPath()); // Left by a database that no longer exists
+                device = BlockDevice.open(file); // Open the file in read-write mode
+                device.setLength(Constants.FILE_INNIT_SIZE);// Set the initial size of the file
+                writeInitialMetadata(databaseName, device);// Write the initial metadata to the file
+                WriteAheadLog.open(device, logFile);
                 System.out.println("Database created: " + databaseName);
-                return randomAccessFile;
+                return device;
             } catch (IOException e) {
                 System.err.println("An exception occurred while creating or writing to the file: " + e.getMessage());
                 throw e;
@@ -49,14 +54,14 @@ public class FileCreator {
      * @param file The file to write metadata to.
      * @throws IOException If writing to the file fails.
      */
-    private void writeInitialMetadata(String databaseName, RandomAccessFile file) throws IOException {
+    private void writeInitialMetadata(String databaseName, BlockDevice file) throws IOException {
         MetadataHandler metadataHandler = new MetadataHandler(file);
         metadataHandler.writeInitialMetadata( databaseName); // Write the initial metadata to the file
     }
 
-    public void extendFile(RandomAccessFile file,BlockManager blockManager,  long extendSize) throws IOException {
+    public void extendFile(BlockDevice file,BlockManager blockManager,  long extendSize) throws IOException {
         long currentSize = file.length(); // Get the current size of the file
-        file.setLength(currentSize + extendSize); // Extend the file to the new size
+        file.setLength(currentSize + extendSize); // Extend the file to the new size; mapped engines remap here
         MetadataHandler metadataHandler = new MetadataHandler(file); // Get the metadata handler
         metadataHandler.updateFileSizeInMetadata(currentSize + extendSize); // Update the file size in the metadata
         System.out.println("File extended to " + (currentSize + extendSize) + " bytes."); // Print the new file size
@@ -0,0 +1,567 @@
+package io;
+
+import constants.Constants;
+import manager.BlockManager;
+import model.FileControlBlock;
+import model.SlottedPage;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reader of a file stored as fixed-width binary records. Before an import, the first SCHEMA_SAMPLE_ROWS rows
+ * of the CSV file are sampled to infer a type for every column of its header:
+ *   int32:  4 bytes, for a column whose every field is a decimal int written the way Integer.toString writes it
+ *   int64:  8 bytes, for one that holds longs written the way Long.toString writes them
+ *   float:  4 bytes, for one whose every field is written the way Float.toString writes it
+ *   string: a 2-byte length and the field as it appears in the CSV, quotes included, padded to the longest
+ *           field of the sample
+ * If every record then fits one block and takes no more room than it would in a slotted page, the file is
+ * stored as records of that width, BLOCK_SIZE / width of them per block. A field later in the file that does
+ * not fit its column makes the import start over in slotted pages.
+ *
+ * The records are stored in one run of adjacent blocks that starts at the FCB's start block, behind the schema:
+ *   schema:  int magic "PFW1", rows, record width, first record block relative to the run, column count, then
+ *            per column its type byte, width (short) and name (short length and UTF-8 bytes); padded to whole blocks
+ *   records: row i at block i / (BLOCK_SIZE / width), offset i % (BLOCK_SIZE / width) * width
+ * Record IDs are line numbers, so record N is found by arithmetic, with no index, and rendered back to its CSV
+ * text from the values of its fields.
+ */
+public class FixedWidthFile implements TableFile {
+    public static final String MODE_PROPERTY = "pfs.fixed"; // "auto" stores numeric-looking files as fixed-width records, "off" never does
+    public static final byte TYPE_INT32 = 1;
+    public static final byte TYPE_INT64 = 2;
+    public static final byte TYPE_FLOAT = 3;
+    public static final byte TYPE_STRING = 4;
+    private static final int MAGIC = 0x50465731; // "PFW1"
+    private static final int SCHEMA_HEADER_SIZE = 20;
+
+    private final BlockDevice database;
+    private final String fileName;
+    private final long runPosition;
+    private final int rows;
+    private final int width;
+    private final int perBlock; // Records per block
+    private final int dataBlock;
+    private final Schema schema;
+    private long bytesRead;
+    private long reads;
+
+    private FixedWidthFile(BlockDevice database, FileControlBlock fcb) throws IOException {
+        this.database = database;
+        this.fileName = fcb.getFileName();
+        this.runPosition = (long) (fcb.getStartBlock() + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+        ByteBuffer header = read(runPosition, SCHEMA_HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("No schema at block " + fcb.getStartBlock() + " of fixed-width file " + fileName);
+        }
+        this.rows = header.getInt();
+        this.width = header.getInt();
+        this.dataBlock = header.getInt();
+        int columns = header.getInt();
+        this.perBlock = Constants.BLOCK_SIZE / width;
+        ByteBuffer directory = read(runPosition + SCHEMA_HEADER_SIZE, dataBlock * Constants.BLOCK_SIZE - SCHEMA_HEADER_SIZE);
+        String[] names = new String[columns];
+        byte[] types = new byte[columns];
+        int[] widths = new int[columns];
+        for (int c = 0; c < columns; c++) {
+            types[c] = directory.get();
+            widths[c] = directory.getShort() & 0xFFFF;
+            byte[] name = new byte[directory.getShort() & 0xFFFF];
+            directory.get(name);
+            names[c] = new String(name, StandardCharsets.UTF_8);
+        }
+        this.schema = new Schema(names, types, widths);
+    }
+
+    /**
+     * Opens the records of a file.
+     * @param database the BlockDevice of the database
+     * @param fcb the FCB of a file stored as fixed-width records
+     * @return the reader
+     * @throws IOException if the schema cannot be read
+     */
+    public static FixedWidthFile of(BlockDevice database, FileControlBlock fcb) throws IOException {
+        if (fcb.getLayout() != FileControlBlock.LAYOUT_FIXED) {
+            throw new IOException("File " + fcb.getFileName() + " is not stored as fixed-width records");
+        }
+        return new FixedWidthFile(database, fcb);
+    }
+
+    /**
+     * Tells whether imports may store files as fixed-width records, as -Dpfs.fixed selects.
+     * @return false if the mode is "off"
+     */
+    public static boolean isEnabled() {
+        return !"off".equals(System.getProperty(MODE_PROPERTY, "auto"));
+    }
+
+    /**
+     * Returns the name of a column type, as shown by dir.
+     * @param type the type stored in the schema
+     * @return the type name
+     */
+    public static String typeName(byte type) {
+        switch (type) {
+            case TYPE_INT32:
+                return "int32";
+            case TYPE_INT64:
+                return "int64";
+            case TYPE_FLOAT:
+                return "float";
+            case TYPE_STRING:
+                return "string";
+            default:
+                return "unknown (" + type + ")";
+        }
+    }
+
+    @Override
+    public int findColumn(String column) {
+        for (int c = 0; c < schema.names.length; c++) {
+            if (schema.names[c].equals(column)) {
+                return c;
+            }
+        }
+        try {
+            int number = Integer.parseInt(column);
+            return number >= 1 && number <= schema.names.length ? number - 1 : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the records with IDs in [fromId, fromId + count), with one device read of the blocks that hold them.
+     */
+    @Override
+    public String[] readRows(int fromId, int count) throws IOException {
+        int from = Math.max(0, fromId - 1);
+        int to = (int) Math.min(rows, Math.max(0L, (long) fromId - 1 + count));
+        if (from >= to) {
+            return new String[0];
+        }
+        int firstBlock = from / perBlock;
+        ByteBuffer blocks = read(blockPosition(firstBlock), ((to - 1) / perBlock - firstBlock + 1) * Constants.BLOCK_SIZE);
+        String[] result = new String[to - from];
+        byte[] line = new byte[schema.maxLineLength()];
+        for (int r = from; r < to; r++) {
+            int offset = (r / perBlock - firstBlock) * Constants.BLOCK_SIZE + r % perBlock * width;
+            result[r - from] = render(blocks.array(), offset, line);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the records with the given IDs. Each block that holds one of them is read once, in ascending order,
+     * and runs of adjacent blocks up to QUERY_READ_BLOCKS long with one device read.
+     */
+    @Override
+    public Map<Integer, String> readRows(int[] ids, int count) throws IOException {
+        Map<Integer, String> result = new LinkedHashMap<>();
+        byte[] line = new byte[schema.maxLineLength()];
+        int i = 0;
+        while (i < count && ids[i] < 1) {
+            i++;
+        }
+        while (i < count && ids[i] <= rows) {
+            int firstBlock = (ids[i] - 1) / perBlock;
+            int lastBlock = firstBlock;
+            int end = i + 1;
+            while (end < count && ids[end] <= rows) {
+                int block = (ids[end] - 1) / perBlock;
+                if (block > lastBlock + 1 || block - firstBlock >= Constants.QUERY_READ_BLOCKS) {
+                    break;
+                }
+                lastBlock = block;
+                end++;
+            }
+            ByteBuffer blocks = read(blockPosition(firstBlock), (lastBlock - firstBlock + 1) * Constants.BLOCK_SIZE);
+            for (; i < end; i++) {
+                int row = ids[i] - 1;
+                int offset = (row / perBlock - firstBlock) * Constants.BLOCK_SIZE + row % perBlock * width;
+                result.put(ids[i], render(blocks.array(), offset, line));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Visits every value of one column, decoding only that field of each record.
+     */
+    @Override
+    public void scan(int column, Visitor visitor) throws IOException {
+        int fieldOffset = schema.offset(column);
+        int blocksPerRead = Math.max(1, Constants.COLUMN_SCAN_BYTES / Constants.BLOCK_SIZE);
+        int totalBlocks = (rows + perBlock - 1) / perBlock;
+        for (int first = 0; first < totalBlocks; first += blocksPerRead) {
+            int count = Math.min(blocksPerRead, totalBlocks - first);
+            ByteBuffer blocks = read(blockPosition(first), count * Constants.BLOCK_SIZE);
+            int end = Math.min(rows, (first + count) * perBlock);
+            for (int r = first * perBlock; r < end; r++) {
+                int position = (r / perBlock - first) * Constants.BLOCK_SIZE + r % perBlock * width + fieldOffset;
+                switch (schema.types[column]) {
+                    case TYPE_INT32:
+                        visitor.number(blocks.getInt(position));
+                        break;
+                    case TYPE_INT64:
+                        visitor.number(blocks.getLong(position));
+                        break;
+                    case TYPE_FLOAT:
+                        visitor.number(blocks.getFloat(position));
+                        break;
+                    default:
+                        int length = blocks.getShort(position) & 0xFFFF;
+                        visitor.text(unquote(blocks.array(), position + 2, length), 1);
+                        break;
+                }
+            }
+        }
+    }
+
+    // Renders the record at offset as the CSV text it was imported from; line holds the longest record text
+    private String render(byte[] src, int offset, byte[] line) {
+        ByteBuffer record = ByteBuffer.wrap(src);
+        int length = 0;
+        for (int c = 0; c < schema.types.length; c++) {
+            if (c > 0) {
+                line[length++] = ',';
+            }
+            switch (schema.types[c]) {
+                case TYPE_INT32:
+                    length = putDecimal(line, length, record.getInt(offset));
+                    break;
+                case TYPE_INT64:
+                    length = putDecimal(line, length, record.getLong(offset));
+                    break;
+                case TYPE_FLOAT:
+                    String text = Float.toString(record.getFloat(offset));
+                    for (int i = 0; i < text.length(); i++) {
+                        line[length++] = (byte) text.charAt(i);
+                    }
+                    break;
+                default:
+                    int fieldLength = record.getShort(offset) & 0xFFFF;
+                    System.arraycopy(src, offset + 2, line, length, fieldLength);
+                    length += fieldLength;
+                    break;
+            }
+            offset += schema.widths[c];
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Writes the decimal digits of a value at pos, as Long.toString would; returns the position after them
+    private static int putDecimal(byte[] dst, int pos, long value) {
+        if (value == Long.MIN_VALUE) {
+            byte[] text = Long.toString(value).getBytes(StandardCharsets.ISO_8859_1);
+            System.arraycopy(text, 0, dst, pos, text.length);
+            return pos + text.length;
+        }
+        if (value < 0) {
+            dst[pos++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long n = value; n >= 10; n /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    private long blockPosition(int recordBlock) {
+        return runPosition + (long) (dataBlock + recordBlock) * Constants.BLOCK_SIZE;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        if (length > 0) {
+            database.read(position, bytes);
+            reads++;
+        }
+        bytesRead += length;
+        return ByteBuffer.wrap(bytes);
+    }
+
+    // Decodes a field as the CSV holds it, removing its quotes and turning "" inside them into one quote
+    private static String unquote(byte[] b, int from, int length) {
+        if (length >= 2 && b[from] == '"' && b[from + length - 1] == '"') {
+            return new String(b, from + 1, length - 2, StandardCharsets.UTF_8).replace("\"\"", "\"");
+        }
+        return new String(b, from, length, StandardCharsets.UTF_8);
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return schema.names.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return schema.names[column];
+    }
+
+    public byte getColumnType(int column) {
+        return schema.types[column];
+    }
+
+    public int getRecordWidth() {
+        return width;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public long getReads() {
+        return reads;
+    }
+
+    /**
+     * The column names, types and field widths of a file. Fields follow each other in column order.
+     */
+    static final class Schema {
+        private final String[] names;
+        private final byte[] types;
+        private final int[] widths;
+
+        Schema(String[] names, byte[] types, int[] widths) {
+            this.names = names;
+            this.types = types;
+            this.widths = widths;
+        }
+
+        /**
+         * Infers the schema of a CSV file from its header and its first SCHEMA_SAMPLE_ROWS rows.
+         * @param csvFileName the CSV file
+         * @return the schema, or null if the sample has no rows or rows of other lengths than the header, or
+         *         a record would not fit a block or would take more room than in a slotted page
+         * @throws IOException if the file cannot be read
+         */
+        static Schema infer(String csvFileName) throws IOException {
+            try (InputStream in = new FileInputStream(csvFileName)) {
+                CsvTokenizer tokenizer = new CsvTokenizer(in, Constants.TOKENIZER_BUFFER_BYTES);
+                if (!tokenizer.next()) {
+                    return null;
+                }
+                int columns = tokenizer.fieldCount();
+                String[] names = new String[columns];
+                for (int c = 0; c < columns; c++) {
+                    names[c] = tokenizer.fieldString(c).trim();
+                }
+                boolean[] ints = new boolean[columns];
+                boolean[] longs = new boolean[columns];
+                boolean[] floats = new boolean[columns];
+                int[] longest = new int[columns];
+                Arrays.fill(ints, true);
+                Arrays.fill(longs, true);
+                Arrays.fill(floats, true);
+                long sampleBytes = 0;
+                int sampled = 0;
+                while (sampled < Constants.SCHEMA_SAMPLE_ROWS && tokenizer.next()) {
+                    if (tokenizer.fieldCount() != columns) {
+                        return null;
+                    }
+                    byte[] b = tokenizer.array();
+                    for (int c = 0; c < columns; c++) {
+                        int start = tokenizer.rawFieldStart(c);
+                        int end = tokenizer.rawFieldEnd(c);
+                        long value = CsvFields.parseLong(b, start, end);
+                        ints[c] &= CsvFields.isInt(value);
+                        longs[c] &= value != CsvFields.NOT_A_LONG;
+                        floats[c] = floats[c] && CsvFields.isFloat(b, start, end);
+                        longest[c] = Math.max(longest[c], end - start);
+                    }
+                    sampleBytes += tokenizer.recordLength();
+                    sampled++;
+                }
+                if (sampled == 0) {
+                    return null;
+                }
+                byte[] types = new byte[columns];
+                int[] widths = new int[columns];
+                int width = 0;
+                for (int c = 0; c < columns; c++) {
+                    types[c] = ints[c] ? TYPE_INT32 : longs[c] ? TYPE_INT64 : floats[c] ? TYPE_FLOAT : TYPE_STRING;
+                    widths[c] = ints[c] || floats[c] ? 4 : longs[c] ? 8 : 2 + longest[c];
+                    width += widths[c];
+                }
+                if (width > Constants.BLOCK_SIZE || width > sampleBytes / sampled + SlottedPage.RECORD_OVERHEAD) {
+                    return null;
+                }
+                return new Schema(names, types, widths);
+            }
+        }
+
+        int width() {
+            int width = 0;
+            for (int w : widths) {
+                width += w;
+            }
+            return width;
+        }
+
+        // Position of a field in a record
+        int offset(int column) {
+            int offset = 0;
+            for (int c = 0; c < column; c++) {
+                offset += widths[c];
+            }
+            return offset;
+        }
+
+        // Length of the longest text a record renders to
+        int maxLineLength() {
+            int length = types.length;
+            for (int c = 0; c < types.length; c++) {
+                length += types[c] == TYPE_INT32 ? 11 : types[c] == TYPE_INT64 ? 20 : types[c] == TYPE_FLOAT ? 16 : widths[c] - 2;
+            }
+            return length;
+        }
+
+        // Bytes the schema takes behind the header of the run
+        int directoryLength() {
+            int length = 0;
+            for (String name : names) {
+                length += 5 + name.getBytes(StandardCharsets.UTF_8).length;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Writes the records of a file being imported into a run of adjacent blocks, see BlockRun, one block image at
+     * a time: a block goes to the run when it is full, and the schema is written in front of the records by
+     * finish(). The file's blocks thus stay the single range its FCB describes.
+     */
+    static class Writer {
+        private final Schema schema;
+        private final int width;
+        private final int perBlock;
+        private final int dataBlock;
+        private final BlockRun run;
+        private final byte[] block = new byte[Constants.BLOCK_SIZE]; // Image of the block being filled
+        private int rows;
+
+        /**
+         * Creates a writer that stores the records in a new run of the database.
+         * @param schema the schema of the records
+         * @param file the BlockDevice of the database
+         * @param blockManager the block manager to reserve the run from
+         */
+        Writer(Schema schema, BlockDevice file, BlockManager blockManager) {
+            this.schema = schema;
+            this.width = schema.width();
+            this.perBlock = Constants.BLOCK_SIZE / width;
+            this.dataBlock = (SCHEMA_HEADER_SIZE + schema.directoryLength() + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE;
+            this.run = new BlockRun(file, blockManager, dataBlock);
+        }
+
+        /**
+         * Adds a record to the file.
+         * @param dataId the record ID, which must be the next line number
+         * @param tokenizer the tokenizer positioned on the record
+         * @return false if the record does not fit the schema, and the file must be stored another way
+         * @throws IOException if a full block cannot be written
+         */
+        boolean add(int dataId, CsvTokenizer tokenizer) throws IOException {
+            if (dataId != rows + 1 || tokenizer.fieldCount() != schema.types.length) {
+                return false;
+            }
+            int position = rows % perBlock * width;
+            ByteBuffer record = ByteBuffer.wrap(block);
+            byte[] b = tokenizer.array();
+            for (int c = 0; c < schema.types.length; c++) {
+                int start = tokenizer.rawFieldStart(c);
+                int end = tokenizer.rawFieldEnd(c);
+                switch (schema.types[c]) {
+                    case TYPE_INT32:
+                    case TYPE_INT64: {
+                        long value = CsvFields.parseLong(b, start, end);
+                        if (schema.types[c] == TYPE_INT32 ? !CsvFields.isInt(value) : value == CsvFields.NOT_A_LONG) {
+                            return false;
+                        }
+                        if (schema.types[c] == TYPE_INT32) {
+                            record.putInt(position, (int) value);
+                        } else {
+                            record.putLong(position, value);
+                        }
+                        break;
+                    }
+                    case TYPE_FLOAT:
+                        if (!CsvFields.isFloat(b, start, end)) {
+                            return false;
+                        }
+                        record.putFloat(position, CsvFields.parseFloat(b, start, end));
+                        break;
+                    default:
+                        if (end - start > schema.widths[c] - 2) {
+                            return false;
+                        }
+                        record.putShort(position, (short) (end - start));
+                        System.arraycopy(b, start, block, position + 2, end - start);
+                        break;
+                }
+                position += schema.widths[c];
+            }
+            rows++;
+            if (rows % perBlock == 0) {
+                run.append(block, 0, block.length);
+                Arrays.fill(block, (byte) 0); // Strings are zero-padded
+            }
+            return true;
+        }
+
+        int getRows() {
+            return rows;
+        }
+
+        /**
+         * Writes the last, partial block of records and the schema in front of the records.
+         * @return the finished run
+         * @throws IOException if an I/O error occurs
+         */
+        BlockRun finish() throws IOException {
+            if (rows % perBlock != 0) {
+                run.append(block, 0, block.length);
+            }
+            ByteBuffer header = ByteBuffer.allocate(dataBlock * Constants.BLOCK_SIZE);
+            header.putInt(MAGIC).putInt(rows).putInt(width).putInt(dataBlock).putInt(schema.types.length);
+            for (int c = 0; c < schema.types.length; c++) {
+                byte[] name = schema.names[c].getBytes(StandardCharsets.UTF_8);
+                header.put(schema.types[c]).putShort((short) schema.widths[c]).putShort((short) name.length).put(name);
+            }
+            run.finish(header.array());
+            return run;
+        }
+
+        /**
+         * Drops the records written so far and gives back their blocks.
+         * @throws IOException if an I/O error occurs
+         */
+        void abort() throws IOException {
+            run.abort();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package io;
+
+import constants.Constants;
+import index.Locator;
+import model.SlottedPage;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports a CSV file into slotted pages in three stages:
+ *   reader:  one thread reads the file in chunks of whole records and numbers the records
+ *   workers: a pool of threads tokenizes each chunk and packs its records into slotted pages
+ *   writer:  the calling thread takes the chunks in file order, allocates adjacent blocks for the pages of each
+ *            one, writes them with a single device write and adds the records to the index
+ * The reader hands each chunk to the pool and queues its future; the queue is bounded, so the reader waits when
+ * the workers or the writer fall behind and at most a fixed number of chunks is held in memory.
+ * Records are delimited by the CsvTokenizer, so a quoted field may hold line breaks, and the record bytes are
+ * stored as they appear in the file.
+ */
+public class ImportPipeline {
+    public static final String THREADS_PROPERTY = "pfs.import.threads"; // Number of worker threads; 1 imports sequentially
+
+    private final BlockWriter writer;
+    private final int threads;
+    private long dataSize; // Bytes counted for the FCB, as by the sequential import
+    private int records; // Records imported
+
+    public ImportPipeline(BlockWriter writer, int threads) {
+        this.writer = writer;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns the number of worker threads configured for imports.
+     * @return the value of the pfs.import.threads property, or the number of available processors
+     */
+    public static int configuredThreads() {
+        return Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Imports the lines of a CSV file after the header line, numbering them from 1.
+     * @param csvFileName the name of the CSV file
+     * @throws IOException if the file cannot be read or a record cannot be stored
+     */
+    public void run(String csvFileName) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "pfs-import-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        BlockingQueue<Future<Pages>> queue = new ArrayBlockingQueue<>(2 * threads);
+        Thread reader = new Thread(() -> readChunks(csvFileName, workers, queue), "pfs-import-reader");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            // Writer stage: chunks come out of the queue in file order
+            while (true) {
+                Pages pages = queue.take().get();
+                if (pages == null) {
+                    break;
+                }
+                writer.writePages(pages.run, pages.ids, pages.locators, pages.count);
+                dataSize += pages.dataSize;
+                records += pages.count;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    // Reader stage: cuts the file into chunks of whole records and submits them to the workers
+    private void readChunks(String csvFileName, ExecutorService workers, BlockingQueue<Future<Pages>> queue) {
+        try {
+            try (InputStream in = new FileInputStream(csvFileName)) {
+                byte[] carry = new byte[0]; // Bytes of the unfinished last record of the previous chunk
+                int nextId = 0; // The header record gets 0 and is skipped
+                boolean eof = false;
+                while (!eof) {
+                    byte[] buffer = Arrays.copyOf(carry, Math.max(Constants.IMPORT_CHUNK_BYTES, carry.length * 2));
+                    int length = carry.length;
+                    int n;
+                    while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) != -1) {
+                        length += n;
+                    }
+                    eof = length < buffer.length;
+                    // Cut after the last complete record; at the end of the file take everything
+                    CsvTokenizer tokenizer = new CsvTokenizer(buffer, length, eof);
+                    int count = 0;
+                    while (tokenizer.next()) {
+                        count++;
+                    }
+                    int end = tokenizer.position();
+                    if (end == 0 && !eof) {
+                        carry = Arrays.copyOf(buffer, length); // A record longer than the buffer: read on
+                        continue;
+                    }
+                    carry = Arrays.copyOfRange(buffer, end, length);
+                    int firstId = nextId;
+                    nextId += count;
+                    if (end > 0) {
+                        queue.put(workers.submit(() -> pack(buffer, end, firstId)));
+                    }
+                }
+            }
+            queue.put(CompletableFuture.completedFuture(null));
+        } catch (InterruptedException e) {
+            // The writer stopped early and is no longer taking chunks
+        } catch (IOException | RuntimeException e) {
+            try {
+                queue.put(CompletableFuture.failedFuture(e));
+            } catch (InterruptedException stopped) {
+                // The writer stopped early and is no longer taking chunks
+            }
+        }
+    }
+
+    // Worker stage: packs the records of a chunk, numbered from firstId, into slotted pages
+    private static Pages pack(byte[] buffer, int end, int firstId) throws IOException {
+        Pages pages = new Pages(end);
+        CsvTokenizer tokenizer = new CsvTokenizer(buffer, end, true);
+        for (int id = firstId; tokenizer.next(); id++) {
+            if (id > 0) {
+                pages.add(id, buffer, tokenizer.recordStart(), tokenizer.recordLength());
+            }
+        }
+        pages.finish();
+        return pages;
+    }
+
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+
+    /**
+     * The slotted pages built from one chunk, and the ID and page-relative locator of each record in them.
+     */
+    private static class Pages {
+        byte[] run; // Finished pages, concatenated
+        int[] ids;
+        long[] locators;
+        int count;
+        long dataSize;
+        private byte[] page; // Page being filled
+        private int pageCount; // Pages finished in run
+        private int runLength; // Bytes of run in use
+
+        Pages(int chunkBytes) {
+            run = new byte[(chunkBytes / Constants.BLOCK_SIZE + 2) * Constants.BLOCK_SIZE];
+            ids = new int[chunkBytes / 32 + 16];
+            locators = new long[ids.length];
+        }
+
+        void add(int id, byte[] src, int from, int length) throws IOException {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                locators = Arrays.copyOf(locators, count * 2);
+            }
+            dataSize += CSVReader.recordSize(id, length);
+            if (length > SlottedPage.MAX_INLINE_PAYLOAD) {
+                if (length > 0xFFFF) {
+                    throw new IOException("Record " + id + " is too large: " + length + " bytes");
+                }
+                finishPage();
+                ids[count] = id;
+                locators[count++] = Locator.of(pageCount, SlottedPage.SPANNING_PAYLOAD_OFFSET, length);
+                append(SlottedPage.spanning(id, src, from, length));
+                return;
+            }
+            int offset = page == null ? -1 : SlottedPage.add(page, id, src, from, length);
+            if (offset == -1) {
+                finishPage();
+                page = new byte[Constants.BLOCK_SIZE];
+                SlottedPage.init(page);
+                offset = SlottedPage.add(page, id, src, from, length);
+            }
+            ids[count] = id;
+            locators[count++] = Locator.of(pageCount, offset, length);
+        }
+
+        void finish() {
+            finishPage();
+            run = Arrays.copyOf(run, runLength);
+        }
+
+        private void finishPage() {
+            if (page != null) {
+                append(page);
+                page = null;
+            }
+        }
+
+        private void append(byte[] blocks) {
+            if (runLength + blocks.length > run.length) {
+                run = Arrays.copyOf(run, Math.max(run.length * 2, runLength + blocks.length));
+            }
+            System.arraycopy(blocks, 0, run, runLength, blocks.length);
+            runLength += blocks.length;
+            pageCount += blocks.length / Constants.BLOCK_SIZE;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package io;
+
+import constants.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Block device that maps the database file into memory in fixed-size segments.
+ * Segments are mapped lazily on first access, so reads and writes become plain memory copies
+ * instead of seek + read/write system calls. When the file is extended the trailing (partial)
+ * segment is dropped and remapped with the new length on its next access.
+ * Reads and writes come from one thread at a time, but force() may be called from another, such as the flusher
+ * of the write-ahead log: the segment table is replaced as a whole under the lock whenever it changes, so a force
+ * works on a snapshot while the importing thread maps new segments.
+ */
+public class MappedBlockDevice implements BlockDevice {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0]; // Mapped segments, null until first access
+    private volatile long length;
+    private final AtomicLong syscalls = new AtomicLong(); // Maps, resizes and syncs issued
+
+    public MappedBlockDevice(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.length = this.file.length();
+    }
+
+    /**
+     * Returns the mapped segment with the given index, mapping it if necessary.
+     * @param index the segment index
+     * @return the mapped segment
+     * @throws IOException if the segment cannot be mapped
+     */
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer[] current = segments;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        synchronized (this) {
+            current = segments;
+            MappedByteBuffer segment = index < current.length ? current[index] : null;
+            if (segment == null) {
+                long start = (long) index * Constants.MAPPED_SEGMENT_SIZE;
+                long size = Math.min(Constants.MAPPED_SEGMENT_SIZE, length - start);
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+                MappedByteBuffer[] grown = Arrays.copyOf(current, Math.max(current.length, index + 1));
+                grown[index] = segment;
+                segments = grown;
+                syscalls.incrementAndGet();
+            }
+            return segment;
+        }
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position >= this.length) {
+            return -1;
+        }
+        int total = (int) Math.min(length, this.length - position);
+        int done = 0;
+        while (done < total) {
+            long current = position + done;
+            int index = (int) (current / Constants.MAPPED_SEGMENT_SIZE);
+            int segmentOffset = (int) (current % Constants.MAPPED_SEGMENT_SIZE);
+            MappedByteBuffer segment = segment(index);
+            int chunk = Math.min(total - done, segment.capacity() - segmentOffset);
+            segment.get(segmentOffset, buffer, offset + done, chunk);
+            done += chunk;
+        }
+        return total;
+    }
+
+    @Override
+    public void write(long position, byte[] data, int offset, int length) throws IOException {
+        if (position + length > this.length) {
+            setLength(position + length); // Writing past the end grows the file, as RandomAccessFile does
+        }
+        int done = 0;
+        while (done < length) {
+            long current = position + done;
+            int index = (int) (current / Constants.MAPPED_SEGMENT_SIZE);
+            int segmentOffset = (int) (current % Constants.MAPPED_SEGMENT_SIZE);
+            MappedByteBuffer segment = segment(index);
+            int chunk = Math.min(length - done, segment.capacity() - segmentOffset);
+            segment.put(segmentOffset, data, offset + done, chunk);
+            done += chunk;
+        }
+    }
+
+    @Override
+    public int readInt(long position) throws IOException {
+        int segmentOffset = (int) (position % Constants.MAPPED_SEGMENT_SIZE);
+        if (position + 4 <= length && segmentOffset + 4 <= Constants.MAPPED_SEGMENT_SIZE) {
+            return segment((int) (position / Constants.MAPPED_SEGMENT_SIZE)).getInt(segmentOffset);
+        }
+        return BlockDevice.super.readInt(position);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public synchronized void setLength(long newLength) throws IOException {
+        if (newLength < length) {
+            segments = new MappedByteBuffer[0]; // Truncation invalidates every mapping past the new end
+        } else {
+            // Only the last segment can be partial; drop it so it is remapped with the new size
+            int lastIndex = (int) ((length - 1) / Constants.MAPPED_SEGMENT_SIZE);
+            if (length > 0 && lastIndex < segments.length) {
+                MappedByteBuffer last = segments[lastIndex];
+                if (last != null) {
+                    last.force();
+                    MappedByteBuffer[] dropped = segments.clone();
+                    dropped[lastIndex] = null;
+                    segments = dropped;
+                    syscalls.incrementAndGet();
+                }
+            }
+        }
+        file.setLength(newLength);
+        length = newLength;
+        syscalls.incrementAndGet();
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (MappedByteBuffer segment : segments) { // A snapshot; segments mapped meanwhile hold no older writes
+            if (segment != null) {
+                segment.force();
+                syscalls.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public long getSyscalls() {
+        return syscalls.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        segments = new MappedByteBuffer[0];
+        channel.close();
+        file.close();
+    }
+}
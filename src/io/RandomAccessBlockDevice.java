@@ -0,0 +1,89 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Block device backed by a plain RandomAccessFile. Every access is a seek followed by a read or write call.
+ */
+public class RandomAccessBlockDevice implements BlockDevice {
+    private final RandomAccessFile file;
+    private long syscalls; // Seeks, reads, writes and syncs issued
+
+    public RandomAccessBlockDevice(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        file.seek(position);
+        syscalls += 2;
+        return file.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(long position, byte[] data, int offset, int length) throws IOException {
+        file.seek(position);
+        syscalls += 2;
+        file.write(data, offset, length);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] buffers) throws IOException {
+        FileChannel channel = file.getChannel();
+        channel.position(position);
+        syscalls++;
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers); // One writev call; repeated only if the kernel writes less
+            syscalls++;
+        }
+    }
+
+    @Override
+    public int readInt(long position) throws IOException {
+        file.seek(position);
+        syscalls += 2;
+        return file.readInt();
+    }
+
+    @Override
+    public long readLong(long position) throws IOException {
+        file.seek(position);
+        syscalls += 2;
+        return file.readLong();
+    }
+
+    @Override
+    public long length() throws IOException {
+        return file.length();
+    }
+
+    @Override
+    public void setLength(long newLength) throws IOException {
+        syscalls++;
+        file.setLength(newLength);
+    }
+
+    @Override
+    public void force() throws IOException {
+        syscalls++;
+        file.getChannel().force(false);
+    }
+
+    @Override
+    public long getSyscalls() {
+        return syscalls;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
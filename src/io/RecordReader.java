@@ -0,0 +1,136 @@
+package io;
+
+import constants.Constants;
+import index.Locator;
+import model.SlottedPage;
+import utils.SerializationUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes records from data blocks in either record format: binary slotted pages, where a lookup is a binary
+ * search over the slot directory plus one slice, and the original "id:N;data:...;" text blocks, which are parsed
+ * as a whole. The format is recognised per block, so files imported before and after the switch can be mixed.
+ */
+public class RecordReader {
+    private final BlockDevice device;
+    private final SerializationUtils serializationUtils = new SerializationUtils();
+
+    public RecordReader(BlockDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Reads one data block.
+     * @param blockId the block ID
+     * @return the block contents, or null if the block lies past the end of the file
+     * @throws IOException if an I/O error occurs
+     */
+    public byte[] readBlock(int blockId) throws IOException {
+        byte[] block = new byte[Constants.BLOCK_SIZE];
+        int bytesRead = device.read(toPosition(blockId), block);
+        return bytesRead == -1 ? null : block;
+    }
+
+    /**
+     * Returns one record of a block.
+     * @param block the contents of the block
+     * @param blockId the block ID, used to read the rest of a record stored in a run of blocks
+     * @param id the record ID
+     * @return the record, or null if the block does not hold it
+     * @throws IOException if an I/O error occurs
+     */
+    public String readRecord(byte[] block, int blockId, int id) throws IOException {
+        if (!SlottedPage.isSlotted(block)) {
+            return decodeText(block).get(String.valueOf(id));
+        }
+        int slot = SlottedPage.find(block, id);
+        return slot == -1 ? null : SlottedPage.getPayload(withContinuation(block, blockId, slot), slot);
+    }
+
+    /**
+     * Returns one record through its index locator. For an exact locator a single positioned read fetches the
+     * record's first block up to the end of the record; the block header tells the format, and the record is
+     * sliced out without searching the page or parsing its neighbours. A locator that names only a block falls
+     * back to reading and decoding that block.
+     * @param locator the locator stored in the index for the record
+     * @param id the record ID
+     * @return the record, or null if it could not be found
+     * @throws IOException if an I/O error occurs
+     */
+    public String readRecord(long locator, int id) throws IOException {
+        if (locator == Locator.NONE) {
+            return null;
+        }
+        if (!Locator.isExact(locator)) {
+            byte[] block = readBlock(Locator.block(locator));
+            return block == null ? null : readRecord(block, Locator.block(locator), id);
+        }
+        int offset = Locator.offset(locator);
+        byte[] bytes = new byte[offset + Locator.length(locator)];
+        if (device.read(toPosition(Locator.block(locator)), bytes) < bytes.length) {
+            return null;
+        }
+        return slice(bytes, 0, offset, Locator.length(locator), id);
+    }
+
+    /**
+     * Decodes a record located inside a buffer that starts with the record's first block.
+     * @param buffer the buffer
+     * @param blockStart the position of the first block within the buffer
+     * @param offset the offset of the record within that block
+     * @param length the length of the record
+     * @param id the record ID
+     * @return the record
+     */
+    public String slice(byte[] buffer, int blockStart, int offset, int length, int id) {
+        int start = blockStart + offset;
+        if (buffer[blockStart] == SlottedPage.MARKER) {
+            return new String(buffer, start, length, StandardCharsets.UTF_8);
+        }
+        return serializationUtils.deserializeData(new String(buffer, start, length)).get(String.valueOf(id));
+    }
+
+    /**
+     * Returns every record of a block, keyed by record ID.
+     * @param block the contents of the block
+     * @param blockId the block ID, used to read the rest of a record stored in a run of blocks
+     * @return the records of the block
+     * @throws IOException if an I/O error occurs
+     */
+    public Map<String, String> decodeBlock(byte[] block, int blockId) throws IOException {
+        if (!SlottedPage.isSlotted(block)) {
+            return decodeText(block);
+        }
+        int count = SlottedPage.getCount(block);
+        Map<String, String> records = new HashMap<>(count * 2);
+        for (int slot = 0; slot < count; slot++) {
+            String data = SlottedPage.getPayload(withContinuation(block, blockId, slot), slot);
+            records.put(String.valueOf(SlottedPage.getId(block, slot)), data);
+        }
+        return records;
+    }
+
+    private Map<String, String> decodeText(byte[] block) {
+        return serializationUtils.deserializeData(new String(block));
+    }
+
+    // Returns the block followed by the continuation blocks the payload of the slot extends into
+    private byte[] withContinuation(byte[] block, int blockId, int slot) throws IOException {
+        int end = SlottedPage.payloadEnd(block, slot);
+        if (end <= block.length) {
+            return block;
+        }
+        byte[] run = new byte[end];
+        System.arraycopy(block, 0, run, 0, block.length);
+        device.read(toPosition(blockId) + block.length, run, block.length, end - block.length);
+        return run;
+    }
+
+    private static long toPosition(int blockId) {
+        return (long) (blockId + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,94 @@
+package io;
+
+import model.FileControlBlock;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A file whose records are addressed by their row rather than through an index: a file stored in columns, see
+ * ColumnarFile, or in fixed-width binary records, see FixedWidthFile. Record IDs are line numbers, so row i holds
+ * record i + 1, and records are rendered back to the CSV text they were imported from.
+ */
+public interface TableFile {
+
+    /**
+     * Opens a file by the layout its FCB records.
+     * @param database the BlockDevice of the database
+     * @param fcb the FCB of the file
+     * @return the reader, or null for a file stored in rows
+     * @throws IOException if the file's directory cannot be read or its layout is unknown
+     */
+    static TableFile of(BlockDevice database, FileControlBlock fcb) throws IOException {
+        switch (fcb.getLayout()) {
+            case FileControlBlock.LAYOUT_ROWS:
+                return null;
+            case FileControlBlock.LAYOUT_COLUMNS:
+                return ColumnarFile.of(database, fcb);
+            case FileControlBlock.LAYOUT_FIXED:
+                return FixedWidthFile.of(database, fcb);
+            default:
+                throw new IOException("Unknown layout " + fcb.getLayout() + " of file " + fcb.getFileName());
+        }
+    }
+
+    int getRows();
+
+    int getColumnCount();
+
+    String getColumnName(int column);
+
+    /**
+     * Finds a column by name, or by its number from 1.
+     * @param column the column name or number
+     * @return the column index from 0, or -1 if there is no such column
+     */
+    int findColumn(String column);
+
+    /**
+     * Reads the records with IDs in [fromId, fromId + count).
+     * @param fromId the first record ID
+     * @param count the number of records; IDs below 1 or past the last row are left out
+     * @return the records, in ID order from max(1, fromId)
+     * @throws IOException if an I/O error occurs
+     */
+    String[] readRows(int fromId, int count) throws IOException;
+
+    /**
+     * Reads the records with the given IDs.
+     * @param ids the record IDs, in ascending order without duplicates
+     * @param count the number of IDs
+     * @return the records found, keyed by ID in ascending order; IDs not in the file are left out
+     * @throws IOException if an I/O error occurs
+     */
+    Map<Integer, String> readRows(int[] ids, int count) throws IOException;
+
+    /**
+     * Visits every value of one column. Strings are reported without the quotes of the CSV.
+     * @param column the column index, from 0
+     * @param visitor receives the values
+     * @throws IOException if an I/O error occurs
+     */
+    void scan(int column, Visitor visitor) throws IOException;
+
+    /**
+     * Returns the bytes read from the database by this reader so far.
+     * @return the number of bytes
+     */
+    long getBytesRead();
+
+    /**
+     * Returns the device reads issued by this reader so far.
+     * @return the number of reads
+     */
+    long getReads();
+
+    /**
+     * Receives the values of a column scan.
+     */
+    interface Visitor {
+        void number(double value);
+
+        void text(String value, int count);
+    }
+}
@@ -0,0 +1,535 @@
+package io;
+
+import constants.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Redo log of the metadata of a database, kept in a file next to it (the database name followed by ".wal"),
+ * so that a crash in the middle of put, rm or upgrade leaves the database as the last committed operation left it.
+ *
+ * The metadata is the header, the bitmap tail and the catalog blocks. While the log is open, writes to them go
+ * through write(): each one is appended to the log and kept in memory, where read() still sees it, and reaches
+ * its place in the database only once the operation has committed and its records are on disk. Data and index
+ * pages are written in place as before. They only go to blocks that are free in the last committed state, since
+ * BlockManager holds the blocks released by a transaction until it has been applied, so forcing the database
+ * before the log is all a commit needs to make them durable with it. The one exception is the bitmap tail, which
+ * moves to the new end of the file when the file grows: its old blocks are reused at once, so that the file stays
+ * contiguous, after protect() has forced their committed content into the log as an undo record. The writes the
+ * open transaction made to them before are dropped, in memory and on replay, since they would land on whatever
+ * the blocks are reused for.
+ *
+ * Durability modes, selected with the {@value #MODE_PROPERTY} property:
+ *   none      no log; metadata is written in place, as before
+ *   import    each commit forces the database and the log before it returns (the default)
+ *   periodic  commits return at once; a background thread forces the database and the log every
+ *             {@value #INTERVAL_PROPERTY} milliseconds, or a commit does so once WAL_GROUP_BYTES of log are
+ *             waiting, so that one force covers all the commits since the last one. A crash loses at most the
+ *             commits of the last interval, never the consistency of the database.
+ *
+ * Opening a database replays the writes of every transaction whose commit record is in the log, in order, and
+ * ignores a torn or uncommitted end, except for its undo records, which are restored; the log is then emptied.
+ * It is also emptied once it grows past WAL_CHECKPOINT_BYTES, after the database has been forced, and when it
+ * is closed.
+ *
+ * Record layout: int body length, body, int CRC-32 of the body. The body is
+ *   byte type (1 write, 2 commit, 3 undo), long transaction, long position, the bytes (none for a commit)
+ */
+public class WriteAheadLog {
+    public static final String MODE_PROPERTY = "pfs.wal"; // none, import or periodic
+    public static final String INTERVAL_PROPERTY = "pfs.wal.interval.ms"; // Group commit interval of periodic mode
+
+    private static final byte WRITE = 1;
+    private static final byte COMMIT = 2;
+    private static final byte UNDO = 3;
+    private static final int BODY_HEADER_SIZE = 1 + 8 + 8; // Type, transaction, position
+
+    private static final Map<BlockDevice, WriteAheadLog> LOGS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * How soon a commit reaches the disk.
+     */
+    public enum Durability {
+        NONE,
+        IMPORT,
+        PERIODIC
+    }
+
+    private final WeakReference<BlockDevice> database; // Weak, so that the log does not keep its key in LOGS alive
+    private final File file;
+    private final FileChannel channel;
+    private final Durability durability;
+    private final ScheduledExecutorService flusher; // Forces the log in periodic mode; null otherwise
+    private byte[] buffer = new byte[Constants.BLOCK_SIZE * 16]; // Records not yet written to the log file
+    private int bufferLength;
+    private long logLength; // Bytes in the log file
+    private long committedEnd; // Position in the log, counting the buffer, just past the last commit record
+    private final List<Write> pending = new ArrayList<>(); // Writes of the open transaction
+    private final ArrayDeque<Write> committed = new ArrayDeque<>(); // Committed writes not yet in place, oldest first
+    private final Map<Long, byte[]> images = new HashMap<>(); // Latest content of the blocks touched by the writes above
+    private long transaction = 1; // The open transaction
+    private long lastCommitted; // Last transaction whose commit record is in the buffer or the log
+    private long lastDurable; // Last transaction whose commit record has been forced
+    private long lastApplied; // Last transaction whose writes are in place
+    private boolean undoLogged; // The open transaction has undo records, so the log must not be emptied
+    private Throwable failure; // Error of the last background force, reported by the next commit
+    private long commits;
+    private long forces;
+    private long bytesLogged;
+    private long checkpoints;
+    private int replayed; // Transactions replayed when the database was opened
+
+    private WriteAheadLog(BlockDevice database, File file, Durability durability, long intervalMillis) throws IOException {
+        this.database = new WeakReference<>(database);
+        this.file = file;
+        this.durability = durability;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (durability == Durability.PERIODIC) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "pfs-wal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::backgroundForce, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Replays the log of a database left by a crash and opens a new one in the mode selected by the
+     * {@value #MODE_PROPERTY} property. Call before anything reads the metadata of the database.
+     * @param database the BlockDevice of the database
+     * @param file the log file
+     * @return the log, or null in mode none
+     * @throws IOException if the log cannot be replayed or created
+     */
+    public static WriteAheadLog open(BlockDevice database, File file) throws IOException {
+        Durability durability = Durability.valueOf(System.getProperty(MODE_PROPERTY, Durability.IMPORT.name()).toUpperCase());
+        int replayed = file.exists() ? replay(database, file) : 0;
+        if (durability == Durability.NONE) {
+            Files.deleteIfExists(file.toPath());
+            return null;
+        }
+        WriteAheadLog log = new WriteAheadLog(database, file, durability,
+                Long.getLong(INTERVAL_PROPERTY, Constants.WAL_GROUP_INTERVAL_MS));
+        log.replayed = replayed;
+        LOGS.put(database, log);
+        return log;
+    }
+
+    /**
+     * Returns the open log of a database.
+     * @param database the BlockDevice of the database
+     * @return the log, or null if the database has none
+     */
+    public static WriteAheadLog of(BlockDevice database) {
+        return LOGS.get(database);
+    }
+
+    /**
+     * Writes metadata: through the log of the database if it has one, in place otherwise.
+     * @param database the BlockDevice of the database
+     * @param position the position in the database
+     * @param data the array holding the bytes
+     * @param offset the position of the bytes in data
+     * @param length the number of bytes
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(BlockDevice database, long position, byte[] data, int offset, int length) throws IOException {
+        WriteAheadLog log = LOGS.get(database);
+        if (log == null) {
+            database.write(position, data, offset, length);
+        } else {
+            log.append(position, data, offset, length);
+        }
+    }
+
+    /**
+     * Reads metadata, including the logged writes that are not in place yet.
+     * @param database the BlockDevice of the database
+     * @param position the position in the database
+     * @param buffer the buffer to fill
+     * @throws IOException if an I/O error occurs
+     */
+    public static void read(BlockDevice database, long position, byte[] buffer) throws IOException {
+        database.read(position, buffer);
+        WriteAheadLog log = LOGS.get(database);
+        if (log != null) {
+            log.overlay(position, buffer);
+        }
+    }
+
+    /**
+     * Commits the writes logged since the last commit, if the database has a log.
+     * @param database the BlockDevice of the database
+     * @throws IOException if the log cannot be written
+     */
+    public static void commit(BlockDevice database) throws IOException {
+        WriteAheadLog log = LOGS.get(database);
+        if (log != null) {
+            log.commit();
+        }
+    }
+
+    /**
+     * Commits the open transaction, puts every write in place and deletes the log, if the database has one.
+     * Call before closing the BlockDevice.
+     * @param database the BlockDevice of the database
+     * @throws IOException if the log cannot be written
+     */
+    public static void close(BlockDevice database) throws IOException {
+        WriteAheadLog log = LOGS.remove(database);
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    // Applies the writes of the committed transactions in the log file to the database, then empties the file
+    private static int replay(BlockDevice database, File file) throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<Write> writes = new ArrayList<>();
+        List<Write> undos = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        int transactions = 0;
+        while (log.remaining() >= 4) {
+            int length = log.getInt();
+            if (length < BODY_HEADER_SIZE || length > log.remaining() - 4) {
+                break; // Torn record
+            }
+            int body = log.position();
+            crc.reset();
+            crc.update(log.array(), body, length);
+            if ((int) crc.getValue() != log.getInt(body + length)) {
+                break;
+            }
+            byte type = log.get();
+            long id = log.getLong();
+            long position = log.getLong();
+            byte[] data = new byte[length - BODY_HEADER_SIZE];
+            log.get(data);
+            log.getInt(); // CRC
+            if (type == WRITE) {
+                writes.add(new Write(id, position, data));
+            } else if (type == UNDO) {
+                discard(writes, position, position + data.length); // The range was given up after these writes
+                undos.add(new Write(id, position, data));
+            } else if (type == COMMIT) {
+                for (Write write : writes) {
+                    if (write.transaction == id) {
+                        put(database, write);
+                    }
+                }
+                writes.clear();
+                undos.clear();
+                transactions++;
+            }
+        }
+        for (int i = undos.size() - 1; i >= 0; i--) {
+            put(database, undos.get(i)); // The transaction did not commit: restore what it was allowed to overwrite
+        }
+        if (transactions > 0 || !undos.isEmpty()) {
+            database.force();
+            System.out.println("Write-ahead log: replayed " + transactions + " committed transactions"
+                    + (undos.isEmpty() ? "." : ", rolled back an unfinished one."));
+        }
+        Files.delete(file.toPath());
+        return transactions;
+    }
+
+    private static void put(BlockDevice database, Write write) throws IOException {
+        long end = write.position + write.data.length;
+        if (end > database.length()) {
+            database.setLength(end); // The growth of the file may not have reached the disk
+        }
+        database.write(write.position, write.data);
+    }
+
+    private synchronized void append(long position, byte[] data, int offset, int length) throws IOException {
+        applyDurable();
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        pending.add(new Write(transaction, position, copy));
+        appendRecord(WRITE, position, copy);
+        BlockDevice device = database.get();
+        for (long block = position / Constants.BLOCK_SIZE; block * Constants.BLOCK_SIZE < position + length; block++) {
+            byte[] image = images.get(block);
+            if (image == null && device != null) {
+                image = new byte[Constants.BLOCK_SIZE];
+                device.read(block * Constants.BLOCK_SIZE, image); // No logged write is waiting for this block
+                images.put(block, image);
+            }
+            if (image != null) {
+                copyOverlap(position, copy, block * Constants.BLOCK_SIZE, image);
+            }
+        }
+    }
+
+    private void appendRecord(byte type, long position, byte[] data) {
+        int length = BODY_HEADER_SIZE + data.length;
+        if (bufferLength + length + 8 > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, bufferLength + length + 8));
+        }
+        ByteBuffer record = ByteBuffer.wrap(buffer, bufferLength, length + 8);
+        record.putInt(length).put(type).putLong(transaction).putLong(position).put(data);
+        CRC32 crc = new CRC32();
+        crc.update(buffer, bufferLength + 4, length);
+        record.putInt((int) crc.getValue());
+        bufferLength += length + 8;
+    }
+
+    // Copies the content of the blocks with logged writes over what was read in place
+    private synchronized void overlay(long position, byte[] buffer) {
+        if (images.isEmpty()) {
+            return;
+        }
+        for (long block = position / Constants.BLOCK_SIZE; block * Constants.BLOCK_SIZE < position + buffer.length; block++) {
+            byte[] image = images.get(block);
+            if (image != null) {
+                copyOverlap(block * Constants.BLOCK_SIZE, image, position, buffer);
+            }
+        }
+    }
+
+    // Copies the bytes of source, which start at sourcePosition, that overlap target, which starts at targetPosition
+    private static void copyOverlap(long sourcePosition, byte[] source, long targetPosition, byte[] target) {
+        long start = Math.max(sourcePosition, targetPosition);
+        long end = Math.min(sourcePosition + source.length, targetPosition + target.length);
+        if (start < end) {
+            System.arraycopy(source, (int) (start - sourcePosition), target, (int) (start - targetPosition), (int) (end - start));
+        }
+    }
+
+    /**
+     * Ends the open transaction. In import mode, and in periodic mode once WAL_GROUP_BYTES of log are waiting,
+     * forces the database and the log and puts the writes in place before returning.
+     * @throws IOException if the log cannot be written, or the last background force failed
+     */
+    public synchronized void commit() throws IOException {
+        if (failure != null) {
+            Throwable e = failure;
+            failure = null;
+            throw e instanceof IOException ? (IOException) e : new IOException("Background force of the log failed", e);
+        }
+        applyDurable();
+        if (pending.isEmpty()) {
+            return;
+        }
+        appendRecord(COMMIT, 0, new byte[0]);
+        committed.addAll(pending);
+        pending.clear();
+        undoLogged = false;
+        lastCommitted = transaction++;
+        committedEnd = logLength + bufferLength;
+        commits++;
+        if (durability == Durability.IMPORT || bufferLength >= Constants.WAL_GROUP_BYTES) {
+            force();
+            applyDurable();
+        }
+    }
+
+    /**
+     * Saves the committed content of a range of the database in the log before the open transaction overwrites
+     * it in place, so that a crash before the transaction commits restores it, and drops the writes the open
+     * transaction has logged to the range. Forces the log, and the database first if commits are waiting, before
+     * returning.
+     * @param position the position of the range
+     * @param length the length of the range
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void protect(long position, int length) throws IOException {
+        BlockDevice device = database.get();
+        if (device == null) {
+            return;
+        }
+        force();
+        applyDurable(); // The range now holds its committed content
+        byte[] content = new byte[length];
+        device.read(position, content);
+        appendRecord(UNDO, position, content);
+        undoLogged = true;
+        writeLog(bufferLength);
+        discard(pending, position, position + length);
+        for (long block = position / Constants.BLOCK_SIZE; block * Constants.BLOCK_SIZE < position + length; block++) {
+            images.remove(block); // Only the dropped writes were waiting for these blocks
+        }
+    }
+
+    // Removes the bytes in [start, end) from the writes, keeping the order of what remains
+    private static void discard(List<Write> writes, long start, long end) {
+        for (int i = writes.size() - 1; i >= 0; i--) {
+            Write write = writes.get(i);
+            long writeEnd = write.position + write.data.length;
+            if (writeEnd <= start || write.position >= end) {
+                continue;
+            }
+            writes.remove(i);
+            if (writeEnd > end) {
+                writes.add(i, new Write(write.transaction, end,
+                        Arrays.copyOfRange(write.data, (int) (end - write.position), write.data.length)));
+            }
+            if (write.position < start) {
+                writes.add(i, new Write(write.transaction, write.position,
+                        Arrays.copyOf(write.data, (int) (start - write.position))));
+            }
+        }
+    }
+
+    // Forces the data written so far, then the log records up to the last commit. The database is forced without
+    // holding the lock of the log, so commits and logged writes are not held up by it; the device itself must allow
+    // a force from another thread. The buffer pool blocks its reads and writes meanwhile, the mapped device does not
+    private void force() throws IOException {
+        BlockDevice device = database.get();
+        long target;
+        long end;
+        synchronized (this) {
+            if (lastDurable >= lastCommitted || device == null) {
+                return;
+            }
+            target = lastCommitted;
+            end = committedEnd;
+        }
+        device.force(); // Data and index pages first: a durable commit must not point at pages still in memory
+        synchronized (this) {
+            if (lastDurable >= target) {
+                return; // Another thread forced it meanwhile
+            }
+            writeLog((int) (end - logLength)); // Later commits may point at pages written after the force
+            lastDurable = target;
+        }
+    }
+
+    // Writes the first length bytes of buffered records to the log file and forces it
+    private void writeLog(int length) throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(buffer, 0, length);
+        while (records.hasRemaining()) {
+            logLength += channel.write(records, logLength);
+        }
+        channel.force(false);
+        System.arraycopy(buffer, length, buffer, 0, bufferLength - length);
+        bufferLength -= length;
+        bytesLogged += length;
+        forces++;
+    }
+
+    // Any error is kept for the next commit: one escaping here would cancel the periodic task for good
+    private void backgroundForce() {
+        try {
+            force();
+        } catch (Throwable e) {
+            synchronized (this) {
+                failure = e;
+            }
+        }
+    }
+
+    // Puts the writes of the durable transactions in place, and empties the log once it is large and idle
+    private void applyDurable() throws IOException {
+        BlockDevice device = database.get();
+        if (device == null) {
+            return;
+        }
+        while (!committed.isEmpty() && committed.peek().transaction <= lastDurable) {
+            Write write = committed.poll();
+            device.write(write.position, write.data);
+        }
+        lastApplied = lastDurable;
+        if (committed.isEmpty() && pending.isEmpty()) {
+            images.clear(); // Every block is up to date in place
+            if (logLength >= Constants.WAL_CHECKPOINT_BYTES && !undoLogged) {
+                checkpoint(device);
+            }
+        }
+    }
+
+    // Makes the writes in place durable so that the log can be emptied
+    private void checkpoint(BlockDevice device) throws IOException {
+        device.force();
+        channel.truncate(0);
+        logLength = 0;
+        committedEnd = 0;
+        checkpoints++;
+    }
+
+    /**
+     * Returns the open transaction, to which writes are being logged.
+     * @return the transaction number
+     */
+    public synchronized long getTransaction() {
+        return transaction;
+    }
+
+    /**
+     * Tells whether the writes of a transaction are durable and in place, so that blocks it released may be reused.
+     * @param transaction the transaction number
+     * @return true if the transaction has been applied
+     * @throws IOException if an I/O error occurs while applying durable writes
+     */
+    public synchronized boolean isApplied(long transaction) throws IOException {
+        applyDurable();
+        return transaction <= lastApplied;
+    }
+
+    private synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        commit();
+        force();
+        applyDurable();
+        BlockDevice device = database.get();
+        if (device != null) {
+            device.force();
+        }
+        channel.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Returns the statistics of the log.
+     * @return the mode, the number of commits, forces and checkpoints, the bytes logged and the replayed transactions
+     */
+    public synchronized String getStats() {
+        return String.format("Write-ahead log (%s): %d commits, %d forces, %d bytes logged, %d checkpoints, "
+                        + "%d transactions replayed on open%n",
+                durability.name().toLowerCase(), commits, forces, bytesLogged, checkpoints, replayed);
+    }
+
+    /**
+     * One logged write.
+     */
+    private static class Write {
+        final long transaction;
+        final long position;
+        final byte[] data;
+
+        Write(long transaction, long position, byte[] data) {
+            this.transaction = transaction;
+            this.position = position;
+            this.data = data;
+        }
+    }
+}
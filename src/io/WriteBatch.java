@@ -0,0 +1,139 @@
+package io;
+
+import constants.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Write-behind buffer for data blocks. Writers stage whole block images instead of writing each record
+ * fragment; a flush sorts the staged blocks and writes every run of adjacent blocks with one gathering write.
+ * A staged image is held by reference, so a page that is still being filled can be staged after every record
+ * and the flush writes its latest contents.
+ */
+public class WriteBatch {
+    public static final String BLOCKS_PROPERTY = "pfs.write.batch.blocks"; // Staged blocks that trigger a flush; 1 writes through
+
+    private final BlockDevice device;
+    private final int maxBlocks;
+    private int[] blocks; // Staged block numbers, in staging order
+    private ByteBuffer[] images; // Staged block images
+    private int count;
+    private long flushes; // Gathering writes issued
+
+    public WriteBatch(BlockDevice device) {
+        this(device, Integer.getInteger(BLOCKS_PROPERTY, Constants.WRITE_BATCH_BLOCKS));
+    }
+
+    public WriteBatch(BlockDevice device, int maxBlocks) {
+        this.device = device;
+        this.maxBlocks = Math.max(1, maxBlocks);
+        this.blocks = new int[Math.min(this.maxBlocks, 1024)];
+        this.images = new ByteBuffer[blocks.length];
+    }
+
+    /**
+     * Stages the image of one block, flushing the batch when it reaches its threshold.
+     * @param block the block number
+     * @param image the block contents, starting at offset 0
+     * @throws IOException if the flush fails
+     */
+    public void stage(int block, byte[] image) throws IOException {
+        stage(block, image, 0);
+    }
+
+    /**
+     * Stages the image of one block taken from a larger array, such as one block of a multi-block run.
+     * @param block the block number
+     * @param source the array holding the block contents
+     * @param offset the position of the block contents in source
+     * @throws IOException if the flush fails
+     */
+    public void stage(int block, byte[] source, int offset) throws IOException {
+        if (count > 0 && blocks[count - 1] == block) {
+            images[count - 1] = ByteBuffer.wrap(source, offset, Constants.BLOCK_SIZE); // Same page staged again
+            return;
+        }
+        if (count == blocks.length) {
+            blocks = Arrays.copyOf(blocks, count * 2);
+            images = Arrays.copyOf(images, count * 2);
+        }
+        blocks[count] = block;
+        images[count++] = ByteBuffer.wrap(source, offset, Constants.BLOCK_SIZE);
+        if (count >= maxBlocks) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the staged blocks, one gathering write per run of adjacent blocks.
+     * A block staged more than once is written with its latest image.
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        // Sort by block, then by staging order, so the last image of a block comes last among its duplicates
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = ((long) blocks[i] << 32) | i;
+        }
+        Arrays.sort(order);
+        ByteBuffer[] run = new ByteBuffer[count];
+        int runLength = 0;
+        int runStart = -1;
+        for (int i = 0; i < count; i++) {
+            int block = (int) (order[i] >>> 32);
+            if (i + 1 < count && (int) (order[i + 1] >>> 32) == block) {
+                continue; // Superseded by a later image of the same block
+            }
+            if (runLength > 0 && block != runStart + runLength) {
+                writeRun(runStart, run, runLength);
+                runLength = 0;
+            }
+            if (runLength == 0) {
+                runStart = block;
+            }
+            run[runLength++] = images[(int) order[i]];
+        }
+        writeRun(runStart, run, runLength);
+        Arrays.fill(images, 0, count, null);
+        count = 0;
+    }
+
+    /**
+     * Overwrites a range of blocks with zeros, writing runs of up to the batch threshold with one gathering
+     * write each. Staged blocks are flushed first so that they cannot overwrite the zeros later.
+     * @param startBlock the first block
+     * @param numBlocks the number of blocks
+     * @throws IOException if an I/O error occurs
+     */
+    public void zero(int startBlock, int numBlocks) throws IOException {
+        flush();
+        byte[] zeros = new byte[Constants.BLOCK_SIZE];
+        ByteBuffer[] run = new ByteBuffer[Math.min(numBlocks, maxBlocks)];
+        for (int done = 0; done < numBlocks; done += run.length) {
+            int length = Math.min(run.length, numBlocks - done);
+            for (int i = 0; i < length; i++) {
+                run[i] = ByteBuffer.wrap(zeros);
+            }
+            writeRun(startBlock + done, run, length);
+        }
+    }
+
+    private void writeRun(int startBlock, ByteBuffer[] run, int length) throws IOException {
+        long position = (long) (startBlock + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+        device.write(position, length == run.length ? run : Arrays.copyOf(run, length));
+        flushes++;
+    }
+
+    public int getStagedBlocks() {
+        return count;
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+}
@@ -0,0 +1,164 @@
+package manager;
+
+import constants.Constants;
+import io.BlockDevice;
+import io.CsvTokenizer;
+import io.TableFile;
+import model.FileControlBlock;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summarizes one column of a file: the count, minimum, maximum, sum and average of its numbers, and the most
+ * frequent of its other values. A file stored in columns is summarized from that column's blocks alone, and one
+ * of fixed-width records by decoding the one field of each record, see io.TableFile; a file stored in rows is
+ * scanned whole, and the field is cut out of every record.
+ */
+public class AggregateManager {
+    private static final int TOP_VALUES = 5; // Most frequent values reported for a text column
+
+    private final QueryManager queryManager;
+    private long lastBytesRead; // Bytes of the file read by the last aggregate
+
+    public AggregateManager(QueryManager queryManager) {
+        this.queryManager = queryManager;
+    }
+
+    /**
+     * Summarizes a column.
+     * @param database the BlockDevice representing the database
+     * @param fcb the FCB of the file
+     * @param column the column name, for a file that keeps its header, or the column number from 1
+     * @return the summary, or null if the file has no such column
+     * @throws IOException if an I/O error occurs
+     */
+    public Summary aggregate(BlockDevice database, FileControlBlock fcb, String column) throws IOException {
+        Summary summary = new Summary(column);
+        TableFile table = TableFile.of(database, fcb);
+        if (table != null) {
+            int index = table.findColumn(column);
+            if (index < 0) {
+                return null;
+            }
+            summary.name = table.getColumnName(index);
+            table.scan(index, summary);
+            lastBytesRead = table.getBytesRead();
+            return summary;
+        }
+        int field;
+        try {
+            field = Integer.parseInt(column) - 1;
+        } catch (NumberFormatException e) {
+            return null; // Files stored in rows do not keep the names of the header
+        }
+        if (field < 0) {
+            return null;
+        }
+        queryManager.scanRecords(database, fcb.getFileName(), (record, id) -> {
+            byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+            CsvTokenizer tokenizer = new CsvTokenizer(bytes, bytes.length, true);
+            try {
+                if (tokenizer.next() && field < tokenizer.fieldCount()) {
+                    summary.text(tokenizer.fieldString(field), 1);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // In-memory input does not throw
+            }
+        });
+        lastBytesRead = (long) queryManager.getLastBlocksRead() * Constants.BLOCK_SIZE;
+        return summary;
+    }
+
+    public long getLastBytesRead() {
+        return lastBytesRead;
+    }
+
+    /**
+     * The summary of one column.
+     */
+    public static class Summary implements TableFile.Visitor {
+        private String name;
+        private long numbers;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private final Map<String, Integer> texts = new HashMap<>();
+        private long textCount;
+
+        Summary(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void number(double value) {
+            numbers++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        /**
+         * Adds a value held by count rows: a number if it parses as one, text otherwise.
+         * @param value the value, without the quotes of the CSV
+         * @param count the number of rows that hold it
+         */
+        @Override
+        public void text(String value, int count) {
+            double number;
+            try {
+                number = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                textCount += count;
+                texts.merge(value, count, Integer::sum);
+                return;
+            }
+            numbers += count;
+            sum += number * count;
+            min = Math.min(min, number);
+            max = Math.max(max, number);
+        }
+
+        public long getNumbers() {
+            return numbers;
+        }
+
+        public double getSum() {
+            return sum;
+        }
+
+        public double getAverage() {
+            return numbers == 0 ? Double.NaN : sum / numbers;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name).append(':');
+            if (numbers > 0) {
+                sb.append(String.format(" %d numbers, min %s, max %s, sum %s, avg %.4f", numbers,
+                        format(min), format(max), format(sum), sum / numbers));
+            }
+            if (textCount > 0) {
+                List<Map.Entry<String, Integer>> top = new ArrayList<>(texts.entrySet());
+                top.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey()) : Integer.compare(b.getValue(), a.getValue()));
+                sb.append(numbers > 0 ? ";" : "").append(' ').append(textCount).append(" values, ")
+                        .append(texts.size()).append(" distinct; most frequent:");
+                for (int i = 0; i < Math.min(TOP_VALUES, top.size()); i++) {
+                    sb.append(i == 0 ? " " : ", ").append(top.get(i).getKey()).append(" (").append(top.get(i).getValue()).append(')');
+                }
+            }
+            if (numbers == 0 && textCount == 0) {
+                sb.append(" no values");
+            }
+            return sb.toString();
+        }
+
+        private static String format(double value) {
+            return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+        }
+    }
+}
@@ -1,50 +1,120 @@
 package manager;
 import constants.Constants;
+import io.BlockDevice;
+import io.WriteAheadLog;
 import metadata.MetadataHandler;
-import utils.ApplicationContext;
-import utils.Tools;
+import model.BlockBitmap;
 
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.Vector;
+import java.util.ArrayDeque;
 
 public class BlockManager {
-    private Vector<Boolean> bitmap;
+    private BlockBitmap bitmap;
+    private FreeExtentTree freeExtents; // Free runs of the bitmap, for contiguous allocation
     private int totalBlocks;
-    private RandomAccessFile file;
+    private BlockDevice file;
+    private final ArrayDeque<long[]> held = new ArrayDeque<>(); // Released runs {first, end, transaction}, oldest first
 
 
 
 
     public BlockManager() {
         this.totalBlocks = (Constants.FILE_INNIT_SIZE - Constants.HEADER_SIZE) / Constants.BLOCK_SIZE;
-        this.bitmap = new Vector<>(totalBlocks);
-        initializeBitmap();
+        this.bitmap = new BlockBitmap(totalBlocks);
+        this.freeExtents = FreeExtentTree.fromBitmap(bitmap);
     }
 
-    public BlockManager(RandomAccessFile file) throws IOException {
+    public BlockManager(BlockDevice file) throws IOException {
         this.file = file;
         MetadataHandler metadataHandler = new MetadataHandler(file);
         long fileSize = metadataHandler.readDatabaseSize();
         // Calculate the total number of blocks in the file
         this.totalBlocks = (int) ((fileSize - Constants.HEADER_SIZE) / Constants.BLOCK_SIZE);
         // Read the bitmap from the metadata
-        Vector<Boolean> bitmapFromMetadata = metadataHandler.readBitmapFromMetadata();
+        BlockBitmap bitmapFromMetadata = metadataHandler.readBitmapFromMetadata();
         if (bitmapFromMetadata != null && bitmapFromMetadata.size() == totalBlocks) {
             // If a valid bitmap exists in the metadata, use it
             this.bitmap = bitmapFromMetadata;
         } else {
             // Otherwise, create a new bitmap
-            this.bitmap = new Vector<>(totalBlocks);
-            initializeBitmap();
+            this.bitmap = new BlockBitmap(totalBlocks);
         }
+        reserveBitmapTail(totalBlocks, 0);
+        this.freeExtents = FreeExtentTree.fromBitmap(bitmap);
+    }
 
+    /**
+     * Marks the last blocks of the file, which hold the bitmap bytes beyond the header, as used, and releases the
+     * blocks of the previous tail after the file has grown.
+     * @param oldTotalBlocks the number of blocks before the file grew
+     * @param oldTailBlocks the number of tail blocks before the file grew
+     */
+    private void reserveBitmapTail(int oldTotalBlocks, int oldTailBlocks) throws IOException {
+        int tailBlocks = MetadataHandler.bitmapTailBlocks(totalBlocks);
+        if (oldTailBlocks > 0) {
+            int from = oldTotalBlocks - oldTailBlocks;
+            int to = Math.min(oldTotalBlocks, totalBlocks - tailBlocks);
+            WriteAheadLog log = WriteAheadLog.of(file);
+            if (log != null && from < to) {
+                // The committed bitmap may still be there: log it before the blocks are reused by this transaction
+                log.protect((long) (from + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE, (to - from) * Constants.BLOCK_SIZE);
+            }
+            bitmap.setRange(from, to, false);
+            freeExtents.markFree(from, to);
+        }
+        if (tailBlocks > 0) {
+            bitmap.setRange(totalBlocks - tailBlocks, totalBlocks, true);
+            if (freeExtents != null) { // Built from the bitmap after this when the manager is loaded
+                freeExtents.markUsed(totalBlocks - tailBlocks, totalBlocks);
+            }
+        }
     }
 
-    private void initializeBitmap() {
-        for (int i = 0; i < totalBlocks; i++) {
-            bitmap.add(false);
+    // Frees the blocks [from, to). While the file has a write-ahead log they are held instead, still marked used
+    // in memory, until the transaction releasing them has been applied: the last committed metadata may point at them
+    private void release(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        WriteAheadLog log = file == null ? null : WriteAheadLog.of(file);
+        if (log == null) {
+            bitmap.setRange(from, to, false);
+            freeExtents.markFree(from, to);
+        } else {
+            held.add(new long[]{from, to, log.getTransaction()});
+        }
+    }
+
+    /**
+     * Tells whether released blocks are held until the transaction that released them is durable. They are
+     * cleared when they become free, so callers releasing blocks need not clear them.
+     * @return true if the file has a write-ahead log
+     */
+    public boolean isDeferringRelease() {
+        return file != null && WriteAheadLog.of(file) != null;
+    }
+
+    /**
+     * Clears and frees the held blocks whose releasing transaction has been applied.
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void reclaimReleasedBlocks() throws IOException {
+        if (held.isEmpty()) {
+            return;
+        }
+        WriteAheadLog log = WriteAheadLog.of(file);
+        while (!held.isEmpty() && (log == null || log.isApplied(held.peek()[2]))) {
+            long[] run = held.poll();
+            int from = (int) run[0];
+            int to = (int) run[1];
+            byte[] zeros = new byte[Math.min(to - from, Constants.WRITE_BATCH_BLOCKS) * Constants.BLOCK_SIZE];
+            for (int block = from; block < to; block += zeros.length / Constants.BLOCK_SIZE) {
+                int length = Math.min(zeros.length, (to - block) * Constants.BLOCK_SIZE);
+                file.write((long) (block + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE, zeros, 0, length);
+            }
+            bitmap.setRange(from, to, false);
+            freeExtents.markFree(from, to);
         }
     }
 
@@ -55,78 +125,111 @@ public class BlockManager {
      * @throws IOException if an I/O error occurs
      */
     public synchronized int allocateBlock(int startIndex) throws IOException {
-        // Allocate a free block starting from the specified index
-        for (int i = startIndex; i < totalBlocks; i++) {
-            if (!bitmap.get(i)) {
-                bitmap.set(i, true);
-                return i;
-            }
+        if (!held.isEmpty()) {
+            reclaimReleasedBlocks();
         }
-        return -1;
+        // Allocate a free block starting from the specified index, skipping fully used words
+        int i = bitmap.nextClearBit(startIndex);
+        if (i != -1) {
+            bitmap.set(i, true);
+            freeExtents.markUsed(i, i + 1);
+        }
+        return i;
     }
 
     /**
      * Allocates a contiguous set of free blocks and returns an array of block indices.
+     * The blocks are taken from the smallest free extent that can hold them (best fit).
      * @param numBlocks the number of blocks to allocate
      * @return an array of allocated block indices, or null if not enough contiguous blocks are found
      * @throws IOException if an I/O error occurs
      */
     public synchronized int[] allocateContiguousBlocks(int numBlocks) throws IOException {
-        int startIndex = 0;
-        int contiguousBlocks = 0;
+        if (!held.isEmpty()) {
+            reclaimReleasedBlocks();
+        }
+        int startIndex = freeExtents.allocateBestFit(numBlocks);
+        if (startIndex == -1) {
+            // If not enough contiguous blocks are found, return null.
+            return null;
+        }
+        bitmap.setRange(startIndex, startIndex + numBlocks, true);
         int[] allocatedBlocks = new int[numBlocks];
-        // Allocate a contiguous set of free blocks
-        for (int i = 0; i < totalBlocks; i++) {
-            if (!bitmap.get(i)) {
-                // If the current block is free, increment the contiguous blocks count.
-                if (contiguousBlocks == 0) {
-                    startIndex = i;
-                }
-                contiguousBlocks++;
-                if (contiguousBlocks == numBlocks) {
-                    // If enough contiguous blocks are found, allocate them and return the block indices.
-                    for (int j = 0; j < numBlocks; j++) {
-                        bitmap.set(startIndex + j, true);
-                        allocatedBlocks[j] = startIndex + j;
-                    }
-                    return allocatedBlocks;
-                }
-            } else {
-                contiguousBlocks = 0;
-            }
+        for (int j = 0; j < numBlocks; j++) {
+            allocatedBlocks[j] = startIndex + j;
+        }
+        return allocatedBlocks;
+    }
+
+    /**
+     * Allocates the blocks [startBlock, startBlock + numBlocks) if all of them are free, such as to grow a run
+     * of adjacent blocks in place.
+     * @param startBlock the first block
+     * @param numBlocks the number of blocks
+     * @return true if the blocks were free and are now allocated
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized boolean allocateBlocksAt(int startBlock, int numBlocks) throws IOException {
+        if (!held.isEmpty()) {
+            reclaimReleasedBlocks();
+        }
+        if (startBlock < 0 || numBlocks > freeBlocksFrom(startBlock)) {
+            return false;
+        }
+        bitmap.setRange(startBlock, startBlock + numBlocks, true);
+        freeExtents.markUsed(startBlock, startBlock + numBlocks);
+        return true;
+    }
+
+    /**
+     * Returns the number of free blocks from a block up to the next used block or the end of the file.
+     * The blocks that hold the end of the bitmap are used, so a run that reaches them ends where the file
+     * can be extended.
+     * @param blockIndex the first block
+     * @return the number of free blocks
+     */
+    public synchronized int freeBlocksFrom(int blockIndex) {
+        if (blockIndex >= totalBlocks) {
+            return 0;
+        }
+        int used = bitmap.nextSetBit(blockIndex);
+        return (used == -1 ? totalBlocks : used) - blockIndex;
+    }
+
+    /**
+     * Frees blocks allocated since the last commit at once, without holding them while the file has a
+     * write-ahead log: no committed metadata can point at them. Used for the unused end of a run reserved
+     * ahead of a file being imported. The blocks must be clear.
+     * @param startBlock the first block
+     * @param numBlocks the number of blocks
+     */
+    public synchronized void freeUncommittedBlocks(int startBlock, int numBlocks) {
+        int from = Math.max(startBlock, 0);
+        int to = Math.min(startBlock + numBlocks, totalBlocks);
+        if (from < to) {
+            bitmap.setRange(from, to, false);
+            freeExtents.markFree(from, to);
         }
-        // If not enough contiguous blocks are found, return null.
-        return null;
     }
 
 
     /**
      * Expands the bitmap to accommodate the new file size.
-     * @param file the RandomAccessFile representing the file
+     * @param file the BlockDevice representing the file
      * @param newFileSize the new file size
      * @throws IOException if an I/O error occurs
      */
-    public synchronized void expand(RandomAccessFile file, long newFileSize) throws IOException {
+    public synchronized void expand(BlockDevice file, long newFileSize) throws IOException {
 
         long newTotalBlocks = (newFileSize-Constants.HEADER_SIZE) / Constants.BLOCK_SIZE;
-        int oldBitmapSize = bitmap.size();
-
-        // Create a new bitmap with the updated total number of blocks
-        Vector<Boolean> newBitmap = new Vector<>((int) newTotalBlocks);
 
-        // Copy the existing bitmap to the new bitmap
-        for (int i = 0; i < oldBitmapSize; i++) {
-            newBitmap.add(bitmap.get(i));
-        }
-
-        // Add new blocks to the bitmap
-        for (int i = oldBitmapSize; i < newTotalBlocks; i++) {
-            newBitmap.add(false);
-        }
-
-        // Update the bitmap and total blocks
-        this.bitmap = newBitmap;
+        // Grow the bitmap; the new blocks are free, except those that now hold the end of the bitmap
+        int oldTotalBlocks = totalBlocks;
+        int oldTailBlocks = MetadataHandler.bitmapTailBlocks(oldTotalBlocks);
+        bitmap.grow((int) newTotalBlocks);
         this.totalBlocks = (int) newTotalBlocks;
+        freeExtents.markFree(oldTotalBlocks, totalBlocks);
+        reserveBitmapTail(oldTotalBlocks, oldTailBlocks);
 
         MetadataHandler metadataHandler = new MetadataHandler(file);
         byte[] updatedBitmapBytes = getBitmapAsBytes();
@@ -135,7 +238,7 @@ public class BlockManager {
 
     public synchronized void freeBlock(int blockIndex) {
         if (blockIndex >= 0 && blockIndex < totalBlocks) {
-            bitmap.set(blockIndex, false);
+            release(blockIndex, blockIndex + 1);
         }
     }
 
@@ -144,42 +247,37 @@ public class BlockManager {
     public int getTotalBlocks() {
         return totalBlocks;
     }
-    public byte[] getBitmapAsBytes() {
-        int byteCount = (int) Math.ceil(totalBlocks / 8.0);
-        byte[] bytes = new byte[byteCount];
-
-        for (int i = 0; i < totalBlocks; i++) {
-            if (bitmap.get(i)) {
-                bytes[i / 8] |= (1 << (i % 8));
-            }
+    /**
+     * Returns the bitmap as it should be stored: held blocks are free in it.
+     * @return the bitmap bytes
+     */
+    public synchronized byte[] getBitmapAsBytes() {
+        if (held.isEmpty()) {
+            return bitmap.toBytes();
         }
-
-        return bytes;
+        BlockBitmap stored = bitmap.copy();
+        for (long[] run : held) {
+            stored.setRange((int) run[0], (int) run[1], false); // Whole words at a time
+        }
+        return stored.toBytes();
     }
 
     public int getUsedBlocks() {
-        int usedBlocks = 0;
-        for (boolean isUsed : bitmap) {
-            if (isUsed) {
-                usedBlocks++;
-            }
-        }
-        return usedBlocks;
+        return bitmap.usedCount();
     }
 
-    public long getRemainingSpace(RandomAccessFile file) throws IOException {
-        int usedBlocks = 0;
-        for (boolean isUsed : bitmap) {
-            if (isUsed) {
-                usedBlocks++;
-            }
-        }
-        long usedSpace = (long) usedBlocks * Constants.BLOCK_SIZE;
+    public long getRemainingSpace(BlockDevice file) throws IOException {
+        long usedSpace = (long) bitmap.usedCount() * Constants.BLOCK_SIZE;
         return file.length() - usedSpace- Constants.HEADER_SIZE;
     }
     //setter
-    public void setBlockUsed(int blockIndex, boolean used) {
+    public synchronized void setBlockUsed(int blockIndex, boolean used) {
         bitmap.set(blockIndex, used);
+        if (used) {
+            freeExtents.markUsed(blockIndex, blockIndex + 1);
+        } else {
+            freeExtents.markFree(blockIndex, blockIndex + 1);
+        }
     }
 
     //tools
@@ -196,12 +294,7 @@ public class BlockManager {
      * @throws IOException if an I/O error occurs
      */
     public int findFirstFreeBlock() throws IOException {
-        for (int i = 0; i < totalBlocks; i++) {
-            if (!isBlockUsed(i)) {
-                return i;
-            }
-        }
-        return -1;
+        return bitmap.nextClearBit(0);
     }
 
     /**
@@ -216,22 +309,22 @@ public class BlockManager {
 
     /**
      * Releases a contiguous set of blocks starting from the start block index.
+     * The released run is coalesced with any adjacent free extents.
      * @param startBlock the index of the start block
      * @param numBlocks the number of blocks to release
      * @throws IOException if an I/O error occurs
      */
     public synchronized void releaseContiguousBlocks(int startBlock, int numBlocks) throws IOException {
         // Release a contiguous set of blocks starting from the start block index
-        for (int i = startBlock; i < startBlock + numBlocks; i++) {
-            if (i >= 0 && i < totalBlocks) {
-                bitmap.set(i, false);
-            }
-        }
+        int from = Math.max(startBlock, 0);
+        int to = Math.min(startBlock + numBlocks, totalBlocks);
+        release(from, to);
         // Update the bitmap in the metadata
-        RandomAccessFile file = new RandomAccessFile(ApplicationContext.getDbFileName(), "rw");
-        MetadataHandler metadataHandler = new MetadataHandler(file);
-        byte[] updatedBitmapBytes = getBitmapAsBytes();
-        metadataHandler.updateBitmapInMetadata(updatedBitmapBytes, totalBlocks);
+        if (file != null) {
+            MetadataHandler metadataHandler = new MetadataHandler(file);
+            byte[] updatedBitmapBytes = getBitmapAsBytes();
+            metadataHandler.updateBitmapInMetadata(updatedBitmapBytes, totalBlocks);
+        }
     }
 
     /**
@@ -239,12 +332,14 @@ public class BlockManager {
      * @return the number of available blocks
      */
     public int getAvailableBlocks() {
-        int availableBlocks = 0;
-        for (boolean isUsed : bitmap) {
-            if (!isUsed) {
-                availableBlocks++;
-            }
-        }
-        return availableBlocks;
+        return bitmap.freeCount();
+    }
+
+    /**
+     * Returns a report on how the free space is fragmented into extents.
+     * @return the fragmentation report
+     */
+    public String getFragmentationReport() {
+        return "Total blocks: " + totalBlocks + "\n" + freeExtents.getReport();
     }
 }
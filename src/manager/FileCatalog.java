@@ -0,0 +1,434 @@
+package manager;
+
+import constants.Constants;
+import io.BlockDevice;
+import io.FileCreator;
+import io.WriteAheadLog;
+import metadata.MetadataHandler;
+import model.FileControlBlock;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Catalog of the files in a database: an on-disk hash table of FileControlBlocks keyed by file name.
+ * The buckets are a run of adjacent data blocks; a bucket that overflows continues in a chain of single blocks.
+ * When the catalog holds more than LOAD_FACTOR files per bucket, it is rehashed into twice as many buckets.
+ * The header region that used to hold the whole FCB list now holds the catalog descriptor:
+ *   int magic, int first bucket block, int bucket count, int file count
+ * Databases whose header still holds an FCB list are read as before and converted on the first update.
+ *
+ * One catalog is shared by all users of a BlockDevice. It caches the FCBs it has read, and every update goes
+ * through it, so the cache stays coherent across put, rm and upgrade; callers receive copies. Catalog blocks are
+ * written and read through the write-ahead log of the database, if it has one.
+ *
+ * Bucket block layout:
+ *   [0..1] entry count, [2..3] end of the entries, [4..7] next block of the chain, or -1
+ *   entries from byte 8: [2-byte length][FileControlBlock.toBytes()]
+ */
+public class FileCatalog {
+    private static final int MAGIC = 0xCA7A1001; // Negative, so it cannot be the count of a header FCB list
+    private static final int INITIAL_BUCKETS = 8;
+    private static final int LOAD_FACTOR = 2; // Files per bucket before the catalog grows
+    private static final int COUNT_OFFSET = 0;
+    private static final int END_OFFSET = 2;
+    private static final int NEXT_OFFSET = 4;
+    private static final int ENTRIES_OFFSET = 8;
+    private static final int MAX_ENTRY_SIZE = Constants.BLOCK_SIZE - ENTRIES_OFFSET - 2;
+
+    private static final Map<BlockDevice, FileCatalog> CATALOGS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private boolean loaded;
+    private boolean legacy; // The header still holds an FCB list
+    private List<FileControlBlock> legacyList;
+    private int firstBucket;
+    private int bucketCount;
+    private int fileCount;
+    private final Map<String, FileControlBlock> cache = new HashMap<>(); // FCBs read or written, by file name
+    private long blockReads; // Catalog blocks read
+
+    /**
+     * Returns the catalog of a database.
+     * @param file the BlockDevice representing the database
+     * @return the catalog shared by all users of the device
+     */
+    public static FileCatalog of(BlockDevice file) {
+        synchronized (CATALOGS) {
+            return CATALOGS.computeIfAbsent(file, f -> new FileCatalog());
+        }
+    }
+
+    // Reads the descriptor, or the FCB list of an older database, from the header
+    private void load(BlockDevice file) throws IOException {
+        if (loaded) {
+            return;
+        }
+        byte[] region = new MetadataHandler(file).readFCBList();
+        ByteBuffer descriptor = ByteBuffer.wrap(region);
+        if (descriptor.getInt(0) == MAGIC) {
+            firstBucket = descriptor.getInt(4);
+            bucketCount = descriptor.getInt(8);
+            fileCount = descriptor.getInt(12);
+        } else {
+            legacy = true;
+            legacyList = readLegacyList(region);
+            fileCount = legacyList.size();
+            for (FileControlBlock fcb : legacyList) {
+                cache.put(fcb.getFileName(), fcb);
+            }
+        }
+        loaded = true;
+    }
+
+    private static List<FileControlBlock> readLegacyList(byte[] region) throws IOException {
+        List<FileControlBlock> fcbList = new ArrayList<>();
+        DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(region));
+        int fcbListSize = dataInputStream.readInt();
+        for (int i = 0; i < fcbListSize; i++) {
+            byte[] fcbBytes = new byte[dataInputStream.readInt()];
+            dataInputStream.readFully(fcbBytes);
+            fcbList.add(FileControlBlock.fromBytes(fcbBytes));
+        }
+        return fcbList;
+    }
+
+    /**
+     * Finds the FCB of a file, reading only the chain of its bucket if it is not cached.
+     * @param file the BlockDevice representing the database
+     * @param fileName the file name
+     * @return a copy of the FCB, or null if there is no such file
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized FileControlBlock find(BlockDevice file, String fileName) throws IOException {
+        load(file);
+        FileControlBlock fcb = cache.get(fileName);
+        if (fcb == null && !legacy && bucketCount > 0) {
+            for (byte[] entry : readChain(file, bucketOf(fileName))) {
+                if (nameEquals(entry, fileName)) {
+                    fcb = FileControlBlock.fromBytes(entry);
+                    cache.put(fileName, fcb);
+                    break;
+                }
+            }
+        }
+        return fcb == null ? null : copy(fcb);
+    }
+
+    /**
+     * Lists the FCBs of all files, oldest first.
+     * @param file the BlockDevice representing the database
+     * @return copies of the FCBs
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized List<FileControlBlock> list(BlockDevice file) throws IOException {
+        load(file);
+        List<FileControlBlock> fcbList = new ArrayList<>();
+        if (legacy) {
+            for (FileControlBlock fcb : legacyList) {
+                fcbList.add(copy(fcb));
+            }
+            return fcbList;
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            for (byte[] entry : readChain(file, firstBucket + bucket)) {
+                FileControlBlock fcb = FileControlBlock.fromBytes(entry);
+                cache.put(fcb.getFileName(), fcb);
+                fcbList.add(copy(fcb));
+            }
+        }
+        fcbList.sort(Comparator.comparing(FileControlBlock::getDate));
+        return fcbList;
+    }
+
+    /**
+     * Checks whether the FCB of a file fits in one catalog entry.
+     * @param fcb the FCB to check
+     * @return false if its name and secondary indexes take more room than an entry has
+     * @throws IOException if the FCB cannot be serialized
+     */
+    public static boolean fits(FileControlBlock fcb) throws IOException {
+        return fcb.toBytes().length <= MAX_ENTRY_SIZE;
+    }
+
+    /**
+     * Adds the FCB of a file, or replaces the FCB with the same file name. Only the chain of its bucket is
+     * rewritten, unless the catalog grows.
+     * @param file the BlockDevice representing the database
+     * @param blockManager the BlockManager to allocate catalog blocks from
+     * @param fcb the FCB to store
+     * @throws IOException if an I/O error occurs or the file name is too long
+     */
+    public synchronized void put(BlockDevice file, BlockManager blockManager, FileControlBlock fcb) throws IOException {
+        load(file);
+        byte[] entry = fcb.toBytes();
+        if (entry.length > MAX_ENTRY_SIZE) {
+            throw new IOException("File name too long for the catalog: " + fcb.getFileName());
+        }
+        if (legacy) {
+            convert(file, blockManager);
+        }
+        int bucket = bucketOf(fcb.getFileName());
+        List<byte[]> entries = readChain(file, bucket);
+        boolean replaced = false;
+        for (int i = 0; i < entries.size() && !replaced; i++) {
+            if (nameEquals(entries.get(i), fcb.getFileName())) {
+                entries.set(i, entry);
+                replaced = true;
+            }
+        }
+        if (!replaced) {
+            entries.add(entry);
+            fileCount++;
+        }
+        writeChain(file, blockManager, bucket, entries);
+        cache.put(fcb.getFileName(), copy(fcb));
+        if (fileCount > bucketCount * LOAD_FACTOR) {
+            rehash(file, blockManager, bucketCount * 2);
+        }
+        writeDescriptor(file);
+    }
+
+    /**
+     * Removes the FCB of a file.
+     * @param file the BlockDevice representing the database
+     * @param blockManager the BlockManager to release emptied overflow blocks to
+     * @param fileName the file name
+     * @return true if the file was in the catalog
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized boolean remove(BlockDevice file, BlockManager blockManager, String fileName) throws IOException {
+        load(file);
+        if (legacy) {
+            convert(file, blockManager);
+        }
+        cache.remove(fileName);
+        int bucket = bucketOf(fileName);
+        List<byte[]> entries = readChain(file, bucket);
+        boolean removed = entries.removeIf(entry -> nameEquals(entry, fileName));
+        if (removed) {
+            fileCount--;
+            writeChain(file, blockManager, bucket, entries);
+            writeDescriptor(file);
+        }
+        return removed;
+    }
+
+    // Moves the FCB list of an older database from the header into a new catalog
+    private void convert(BlockDevice file, BlockManager blockManager) throws IOException {
+        legacy = false;
+        bucketCount = 0;
+        fileCount = 0;
+        rehash(file, blockManager, INITIAL_BUCKETS);
+        for (FileControlBlock fcb : legacyList) {
+            int bucket = bucketOf(fcb.getFileName());
+            List<byte[]> entries = readChain(file, bucket);
+            entries.add(fcb.toBytes());
+            writeChain(file, blockManager, bucket, entries);
+            fileCount++;
+        }
+        legacyList = null;
+        if (fileCount > bucketCount * LOAD_FACTOR) {
+            rehash(file, blockManager, Integer.highestOneBit(fileCount / LOAD_FACTOR) * 2);
+        }
+        writeDescriptor(file);
+    }
+
+    // Moves every entry into a new run of buckets and releases the old buckets and their chains
+    private void rehash(BlockDevice file, BlockManager blockManager, int newBucketCount) throws IOException {
+        List<List<byte[]>> buckets = new ArrayList<>();
+        for (int i = 0; i < newBucketCount; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            for (byte[] entry : readChain(file, firstBucket + bucket)) {
+                buckets.get(hash(entryName(entry)) & (newBucketCount - 1)).add(entry);
+            }
+        }
+        int oldFirst = firstBucket;
+        int oldCount = bucketCount;
+        int[] run = blockManager.allocateContiguousBlocks(newBucketCount);
+        if (run == null) {
+            long bytes = (long) newBucketCount * Constants.BLOCK_SIZE;
+            new FileCreator().extendFile(file, blockManager, Math.max(Constants.FILE_INNIT_SIZE, bytes));
+            run = blockManager.allocateContiguousBlocks(newBucketCount);
+        }
+        firstBucket = run[0];
+        bucketCount = newBucketCount;
+        for (int bucket = 0; bucket < newBucketCount; bucket++) {
+            writeChain(file, blockManager, firstBucket + bucket, buckets.get(bucket), -1);
+        }
+        for (int bucket = 0; bucket < oldCount; bucket++) {
+            releaseChain(file, blockManager, next(readBlock(file, oldFirst + bucket)));
+        }
+        if (oldCount > 0) {
+            blockManager.releaseContiguousBlocks(oldFirst, oldCount);
+            for (int bucket = 0; bucket < oldCount && !blockManager.isDeferringRelease(); bucket++) {
+                writeBlock(file, oldFirst + bucket, new byte[Constants.BLOCK_SIZE]);
+            }
+        }
+    }
+
+    private void writeDescriptor(BlockDevice file) throws IOException {
+        ByteBuffer descriptor = ByteBuffer.allocate(16);
+        descriptor.putInt(MAGIC).putInt(firstBucket).putInt(bucketCount).putInt(fileCount);
+        new MetadataHandler(file).updateFCBListInMetadata(descriptor.array());
+    }
+
+    // Reads the entries of a bucket and its overflow chain
+    private List<byte[]> readChain(BlockDevice file, int block) throws IOException {
+        List<byte[]> entries = new ArrayList<>();
+        while (block != -1) {
+            byte[] page = readBlock(file, block);
+            int count = getShort(page, COUNT_OFFSET);
+            int position = ENTRIES_OFFSET;
+            for (int i = 0; i < count; i++) {
+                int length = getShort(page, position);
+                byte[] entry = new byte[length];
+                System.arraycopy(page, position + 2, entry, 0, length);
+                entries.add(entry);
+                position += 2 + length;
+            }
+            block = next(page);
+        }
+        return entries;
+    }
+
+    private void writeChain(BlockDevice file, BlockManager blockManager, int bucket, List<byte[]> entries) throws IOException {
+        writeChain(file, blockManager, bucket, entries, next(readBlock(file, bucket)));
+    }
+
+    // Packs the entries into the bucket block and as many chain blocks as they need, reusing the existing chain
+    private void writeChain(BlockDevice file, BlockManager blockManager, int bucket, List<byte[]> entries,
+                            int chain) throws IOException {
+        int block = bucket;
+        int index = 0;
+        while (true) {
+            byte[] page = new byte[Constants.BLOCK_SIZE];
+            int count = 0;
+            int position = ENTRIES_OFFSET;
+            while (index < entries.size() && position + 2 + entries.get(index).length <= Constants.BLOCK_SIZE) {
+                byte[] entry = entries.get(index++);
+                putShort(page, position, entry.length);
+                System.arraycopy(entry, 0, page, position + 2, entry.length);
+                position += 2 + entry.length;
+                count++;
+            }
+            putShort(page, COUNT_OFFSET, count);
+            putShort(page, END_OFFSET, position);
+            int next = -1;
+            if (index < entries.size()) {
+                if (chain != -1) {
+                    next = chain;
+                    chain = next(readBlock(file, chain));
+                } else {
+                    next = allocateBlock(file, blockManager);
+                }
+            }
+            ByteBuffer.wrap(page).putInt(NEXT_OFFSET, next);
+            writeBlock(file, block, page);
+            if (next == -1) {
+                releaseChain(file, blockManager, chain); // Chain blocks no longer needed
+                return;
+            }
+            block = next;
+        }
+    }
+
+    private void releaseChain(BlockDevice file, BlockManager blockManager, int block) throws IOException {
+        while (block != -1) {
+            int next = next(readBlock(file, block));
+            blockManager.releaseContiguousBlocks(block, 1);
+            if (!blockManager.isDeferringRelease()) {
+                writeBlock(file, block, new byte[Constants.BLOCK_SIZE]);
+            }
+            block = next;
+        }
+    }
+
+    private int allocateBlock(BlockDevice file, BlockManager blockManager) throws IOException {
+        int block = blockManager.allocateBlock(0);
+        if (block == -1) {
+            new FileCreator().extendFile(file, blockManager, Constants.FILE_INNIT_SIZE);
+            block = blockManager.allocateBlock(0);
+        }
+        return block;
+    }
+
+    private byte[] readBlock(BlockDevice file, int block) throws IOException {
+        byte[] page = new byte[Constants.BLOCK_SIZE];
+        WriteAheadLog.read(file, blockPosition(block), page);
+        blockReads++;
+        return page;
+    }
+
+    private void writeBlock(BlockDevice file, int block, byte[] page) throws IOException {
+        WriteAheadLog.write(file, blockPosition(block), page, 0, page.length);
+    }
+
+    private int bucketOf(String fileName) {
+        return firstBucket + (hash(fileName) & (bucketCount - 1));
+    }
+
+    private static int hash(String fileName) {
+        int h = fileName.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // Compares the name at the start of a serialized FCB with a file name
+    private static boolean nameEquals(byte[] entry, String fileName) {
+        return entryName(entry).equals(fileName);
+    }
+
+    private static String entryName(byte[] entry) {
+        int length = ByteBuffer.wrap(entry).getInt(0);
+        return new String(entry, 4, length, StandardCharsets.UTF_8);
+    }
+
+    private static FileControlBlock copy(FileControlBlock fcb) {
+        FileControlBlock copy = new FileControlBlock(fcb.getFileName(), fcb.getStartBlock(), fcb.getUsedBlocks(),
+                fcb.getFileSize(), fcb.getIndexStartPosition(), fcb.getIndexEndPosition(), fcb.getDate());
+        copy.setCodec(fcb.getCodec());
+        copy.setLayout(fcb.getLayout());
+        copy.setSecondaryIndexes(fcb.getSecondaryIndexes());
+        return copy;
+    }
+
+    private static int next(byte[] page) {
+        return ByteBuffer.wrap(page).getInt(NEXT_OFFSET);
+    }
+
+    private static int getShort(byte[] page, int offset) {
+        return ((page[offset] & 0xFF) << 8) | (page[offset + 1] & 0xFF);
+    }
+
+    private static void putShort(byte[] page, int offset, int value) {
+        page[offset] = (byte) (value >>> 8);
+        page[offset + 1] = (byte) value;
+    }
+
+    private static long blockPosition(int block) {
+        return (long) (block + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+    }
+
+    public synchronized int getFileCount() {
+        return fileCount;
+    }
+
+    public synchronized int getBucketCount() {
+        return bucketCount;
+    }
+
+    public synchronized long getBlockReads() {
+        return blockReads;
+    }
+}
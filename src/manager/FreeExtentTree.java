@@ -0,0 +1,164 @@
+package manager;
+
+import model.BlockBitmap;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Index of the free extents (runs of free blocks) of the database, kept in sync with the bitmap by BlockManager.
+ * Extents are stored twice: ordered by start block, for splitting and coalescing neighbours, and ordered by
+ * (length, start), so a best-fit request for N contiguous blocks is a single ceiling lookup.
+ * All operations are O(log e) in the number of free extents.
+ */
+public class FreeExtentTree {
+    private final TreeMap<Integer, Integer> byStart = new TreeMap<>(); // start block -> extent length
+    private final TreeSet<Long> bySize = new TreeSet<>(); // (length << 32 | start), ordered by length then start
+    private int freeBlocks;
+
+    /**
+     * Builds the extent index from a bitmap by walking its free runs.
+     * @param bitmap the block bitmap
+     * @return the extent index
+     */
+    public static FreeExtentTree fromBitmap(BlockBitmap bitmap) {
+        FreeExtentTree tree = new FreeExtentTree();
+        int start = bitmap.nextClearBit(0);
+        while (start != -1) {
+            int end = bitmap.nextSetBit(start);
+            if (end == -1) {
+                end = bitmap.size();
+            }
+            tree.insert(start, end - start);
+            start = bitmap.nextClearBit(end);
+        }
+        return tree;
+    }
+
+    private static long sizeKey(int start, int length) {
+        return ((long) length << 32) | start;
+    }
+
+    private void insert(int start, int length) {
+        byStart.put(start, length);
+        bySize.add(sizeKey(start, length));
+        freeBlocks += length;
+    }
+
+    private void remove(int start, int length) {
+        byStart.remove(start);
+        bySize.remove(sizeKey(start, length));
+        freeBlocks -= length;
+    }
+
+    /**
+     * Takes numBlocks contiguous blocks from the smallest free extent that can hold them.
+     * @param numBlocks the number of blocks needed
+     * @return the first block of the allocated run, or -1 if no extent is large enough
+     */
+    public int allocateBestFit(int numBlocks) {
+        Long key = bySize.ceiling(sizeKey(0, numBlocks));
+        if (key == null) {
+            return -1;
+        }
+        int start = (int) (key & 0xFFFFFFFFL);
+        int length = (int) (key >>> 32);
+        remove(start, length);
+        if (length > numBlocks) {
+            insert(start + numBlocks, length - numBlocks);
+        }
+        return start;
+    }
+
+    /**
+     * Removes the blocks [from, to) from the free extents, splitting extents as needed.
+     * @param from the first block (inclusive)
+     * @param to the last block (exclusive)
+     */
+    public void markUsed(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        Map.Entry<Integer, Integer> extent = byStart.floorEntry(from);
+        if (extent == null || extent.getKey() + extent.getValue() <= from) {
+            extent = byStart.higherEntry(from);
+        }
+        while (extent != null && extent.getKey() < to) {
+            int start = extent.getKey();
+            int end = start + extent.getValue();
+            remove(start, end - start);
+            if (start < from) {
+                insert(start, from - start);
+            }
+            if (end > to) {
+                insert(to, end - to);
+            }
+            extent = byStart.higherEntry(start);
+        }
+    }
+
+    /**
+     * Adds the blocks [from, to) to the free extents, coalescing with adjacent or overlapping extents.
+     * @param from the first block (inclusive)
+     * @param to the last block (exclusive)
+     */
+    public void markFree(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int start = from;
+        int end = to;
+        Map.Entry<Integer, Integer> before = byStart.floorEntry(from);
+        if (before != null && before.getKey() + before.getValue() >= from) {
+            start = before.getKey();
+            end = Math.max(end, before.getKey() + before.getValue());
+            remove(before.getKey(), before.getValue());
+        }
+        NavigableMap<Integer, Integer> following = byStart.subMap(from, true, end, true);
+        while (!following.isEmpty()) {
+            Map.Entry<Integer, Integer> next = following.firstEntry();
+            end = Math.max(end, next.getKey() + next.getValue());
+            remove(next.getKey(), next.getValue());
+            following = byStart.subMap(from, true, end, true);
+        }
+        insert(start, end - start);
+    }
+
+    public int getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    public int getExtentCount() {
+        return byStart.size();
+    }
+
+    public int getLargestExtent() {
+        return bySize.isEmpty() ? 0 : (int) (bySize.last() >>> 32);
+    }
+
+    /**
+     * Builds a human-readable fragmentation report: extent count, largest extent,
+     * external fragmentation (share of free space outside the largest extent) and a size histogram.
+     * @return the report
+     */
+    public String getReport() {
+        int[] histogram = new int[6]; // 1, 2-7, 8-63, 64-511, 512-4095, 4096+ blocks
+        for (int length : byStart.values()) {
+            int bucket = length == 1 ? 0 : Math.min(5, (31 - Integer.numberOfLeadingZeros(length)) / 3 + 1);
+            histogram[bucket]++;
+        }
+        double fragmentation = freeBlocks == 0 ? 0 : 100.0 * (freeBlocks - getLargestExtent()) / freeBlocks;
+        StringBuilder sb = new StringBuilder();
+        sb.append("Free blocks: ").append(freeBlocks).append("\n");
+        sb.append("Free extents: ").append(byStart.size()).append("\n");
+        sb.append("Largest free extent: ").append(getLargestExtent()).append(" blocks\n");
+        sb.append(String.format("Fragmentation: %.1f%%%n", fragmentation));
+        String[] labels = {"1", "2-7", "8-63", "64-511", "512-4095", "4096+"};
+        for (int i = 0; i < histogram.length; i++) {
+            sb.append(String.format("  extents of %-9s blocks: %d%n", labels[i], histogram[i]));
+        }
+        return sb.toString();
+    }
+}
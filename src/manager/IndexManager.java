@@ -2,28 +2,137 @@ package manager;
 
 import constants.Constants;
 import index.BTreeIndex;
-import io.FileCreator;
+import index.KeyIndex;
+import index.PagedBTree;
+import io.BlockDevice;
 import metadata.MetadataHandler;
 import model.FileControlBlock;
 import utils.ApplicationContext;
 import utils.SerializationUtils;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class IndexManager {
+    public static final String CACHE_BUDGET_PROPERTY = "pfs.index.cache.bytes"; // Memory budget of the index cache
+    private static final long TREE_ENTRY_BYTES = 16; // Estimated heap cost of one deserialized BTreeIndex entry (key, locator, slack)
+    private static final long HANDLE_BYTES = 128; // Estimated heap cost of an open PagedBTree handle
+
+    // Open indexes by file name, least recently used first
+    private final LinkedHashMap<String, CachedIndex> indexCache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, long[]> cacheStats = new TreeMap<>(); // file name -> {hits, misses}
+    private long cacheBudget = Long.getLong(CACHE_BUDGET_PROPERTY, Constants.INDEX_CACHE_BYTES);
+    private long cachedBytes;
+    private BlockDevice cacheDevice; // Database the cached indexes belong to
+
+    private static final class CachedIndex {
+        final KeyIndex index;
+        final long bytes;
+
+        CachedIndex(KeyIndex index, long bytes) {
+            this.index = index;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Returns the index of a file, served from the index cache when possible. A cached index needs no FCB lookup,
+     * meta page read or deserialization; entries are evicted least recently used first once the estimated
+     * memory of the cached indexes exceeds the cache budget.
+     * @param database the BlockDevice representing the database
+     * @param fileName the name of the file to read the index from
+     * @return the index of the file
+     * @throws IOException if an I/O error occurs
+     */
+    public KeyIndex readIndexFromFile(BlockDevice database, String fileName) throws IOException {
+        if (database != cacheDevice) {
+            clearCache(); // The cache belongs to a single database
+            cacheDevice = database;
+        }
+        long[] stats = cacheStats.computeIfAbsent(fileName, name -> new long[2]);
+        CachedIndex cached = indexCache.get(fileName);
+        if (cached != null) {
+            stats[0]++;
+            return cached.index;
+        }
+        stats[1]++;
+        KeyIndex index = loadIndex(database, fileName);
+        long bytes = index instanceof BTreeIndex ? index.size() * TREE_ENTRY_BYTES : HANDLE_BYTES;
+        if (bytes <= cacheBudget) {
+            indexCache.put(fileName, new CachedIndex(index, bytes));
+            cachedBytes += bytes;
+            evictOverBudget();
+        }
+        return index;
+    }
+
+    private void evictOverBudget() {
+        Iterator<CachedIndex> leastRecentFirst = indexCache.values().iterator();
+        while (cachedBytes > cacheBudget && leastRecentFirst.hasNext()) {
+            cachedBytes -= leastRecentFirst.next().bytes;
+            leastRecentFirst.remove();
+        }
+    }
+
+    /**
+     * Drops the cached index of a file; called whenever the file's index is written or removed.
+     * @param fileName the name of the file
+     */
+    public void invalidate(String fileName) {
+        CachedIndex removed = indexCache.remove(fileName);
+        if (removed != null) {
+            cachedBytes -= removed.bytes;
+        }
+    }
 
     /**
-     * Reads the index data from the file based on the FCB information and returns the deserialized BTreeIndex.
-     * @param database the RandomAccessFile representing the database
+     * Drops every cached index.
+     */
+    public void clearCache() {
+        indexCache.clear();
+        cachedBytes = 0;
+    }
+
+    public void setCacheBudget(long cacheBudget) {
+        this.cacheBudget = cacheBudget;
+        evictOverBudget();
+    }
+
+    /**
+     * Returns the index cache usage and the per-file hit rates.
+     * @return the statistics, one line per file
+     */
+    public String getCacheStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Index cache: %d indexes, %d/%d bytes%n", indexCache.size(), cachedBytes, cacheBudget));
+        for (Map.Entry<String, long[]> entry : cacheStats.entrySet()) {
+            long hits = entry.getValue()[0];
+            long misses = entry.getValue()[1];
+            sb.append(String.format("  %-20s %d hits, %d misses (%.1f%% hit rate)%s%n", entry.getKey(), hits, misses,
+                    100.0 * hits / (hits + misses), indexCache.containsKey(entry.getKey()) ? "" : " [not cached]"));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Opens the index of a file based on the FCB information. Paged indexes are opened lazily:
+     * only the meta page is read here, and each lookup reads the pages on its root-to-leaf path.
+     * Indexes written by older versions as a single serialized tree are deserialized as before.
+     * @param database the BlockDevice representing the database
      * @param fileName the name of the file to read the index from
-     * @return the deserialized BTreeIndex
+     * @return the index of the file
      * @throws IOException if an I/O error occurs
      */
-    public BTreeIndex readIndexFromFile(RandomAccessFile database, String fileName) throws IOException {
+    private KeyIndex loadIndex(BlockDevice database, String fileName) throws IOException {
         FCBManager fcbManager = new FCBManager();
         FileControlBlock fcb = fcbManager.findFCBByFileName(database,fileName);
 
+        if (PagedBTree.isPagedIndex(database, fcb.getIndexStartPosition())) {
+            return PagedBTree.open(database, null, fcb.getIndexStartPosition());
+        }
 
         int startPosition = (int) fcb.getIndexStartPosition();
         int endPosition = (int) fcb.getIndexEndPosition();
@@ -32,8 +141,7 @@ public class IndexManager {
         int indexDataLength = (int) (endPosition -startPosition);
         // Read the index data from the file
         byte[] indexData = new byte[indexDataLength];
-        database.seek(startPosition);
-        database.read(indexData);
+        database.read(startPosition, indexData);
 
         // Deserialize the index data
         SerializationUtils serializationUtils = new SerializationUtils();
@@ -42,52 +150,34 @@ public class IndexManager {
     }
 
     /**
-     * Writes the serialized BTreeIndex to the file. It allocates contiguous blocks for the index data
-     * and updates the FCB and metadata.
-     * @param database the RandomAccessFile representing the database
+     * Writes the BTreeIndex built during the import to the file as a paged B+tree, one node per block,
+     * bulk-loaded bottom-up, and records the position of its meta page in the FCB.
+     * @param database the BlockDevice representing the database
      * @param blockManager the BlockManager instance
      * @param indexTree the BTreeIndex to write
      * @throws IOException if an I/O error occurs
      */
-    public void writeIndexToFile(RandomAccessFile database, BlockManager blockManager, BTreeIndex indexTree) throws IOException {
+    public void writeIndexToFile(BlockDevice database, BlockManager blockManager, BTreeIndex indexTree) throws IOException {
         FCBManager fcbManager = new FCBManager();
-        SerializationUtils serializationUtils = new SerializationUtils();
 
-        // Serialize the index tree
-        byte[] indexData = serializationUtils.serializeIndexTree(indexTree);
-        int indexDataLength = indexData.length;
-        int requiredBlocks = (int) Math.ceil((double) indexDataLength / Constants.BLOCK_SIZE);
-        int[] allocatedBlocks = blockManager.allocateContiguousBlocks(requiredBlocks);
-        int currentBlockIndex = blockManager.allocateBlock(0);
-
-        if (allocatedBlocks == null) {
-            // Expand the file size to accommodate the index data
-            int expandUnits = (int) Math.ceil((double) indexDataLength / Constants.FILE_INNIT_SIZE);
-            // Extend the file size
-            FileCreator fileCreator = new FileCreator();
-            fileCreator.extendFile(database,blockManager, expandUnits * Constants.FILE_INNIT_SIZE);
-            // Allocate contiguous blocks for the index data
-            allocatedBlocks = blockManager.allocateContiguousBlocks(requiredBlocks);
-
-        }
+        // Bulk-load the sorted entries into a new paged tree, leaves first, without splitting any page
+        PagedBTree pagedTree = PagedBTree.bulkLoad(database, blockManager, indexTree, Constants.INDEX_FILL_FACTOR);
 
-        // Write the index data to the allocated blocks
-        int startBlockIndex = allocatedBlocks[0];
-        long indexStartPosition = (long) (startBlockIndex + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
-        long indexEndPosition = indexStartPosition + indexDataLength;
-        database.seek(indexStartPosition);
-        database.write(indexData);
+        long indexStartPosition = pagedTree.getMetaPosition();
+        long indexEndPosition = indexStartPosition + Constants.BLOCK_SIZE;
 
         // Update the FCB with the index position information
         String fileName = ApplicationContext.getCsvFileName();
+        invalidate(fileName);
         FileControlBlock fcb = fcbManager.findFCBByFileName(database,fileName);
         fcb.setIndexStartPosition(indexStartPosition);
         fcb.setIndexEndPosition(indexEndPosition);
 
         // Update the FCB in the metadata
-        fcbManager.updateOrAddFCBInMetadata(database,fcb);
+        fcbManager.updateOrAddFCBInMetadata(database,blockManager,fcb);
         MetadataHandler metadataHandler = new MetadataHandler(database);
         metadataHandler.updateBitmapInMetadata(blockManager.getBitmapAsBytes(),blockManager.getTotalBlocks());
+        metadataHandler.flush(); // Write the changed header ranges
 
     }
 
@@ -95,39 +185,45 @@ public class IndexManager {
     /**
      * Removes the index data for the specified file. It releases the allocated blocks, clears the index data,
      * updates the FCB, and updates the bitmap in the metadata.
-     * @param database the RandomAccessFile representing the database
+     * @param database the BlockDevice representing the database
      * @param blockManager the BlockManager instance
      * @param fileName the name of the file to remove the index for
      * @throws IOException if an I/O error occurs
      */
-    public void removeIndexForFile(RandomAccessFile database, BlockManager blockManager, String fileName) throws IOException {
+    public void removeIndexForFile(BlockDevice database, BlockManager blockManager, String fileName) throws IOException {
         FCBManager fcbManager = new FCBManager();
         FileControlBlock fcb = fcbManager.findFCBByFileName(database, fileName);
+        invalidate(fileName);
 
         // If the FCB has index position information
         if (fcb != null) {
-            int startBlockIndex = (int) ((fcb.getIndexStartPosition() - Constants.HEADER_SIZE) / Constants.BLOCK_SIZE);
-            int endBlockIndex = (int) ((fcb.getIndexEndPosition() - Constants.HEADER_SIZE) / Constants.BLOCK_SIZE);
-
-            // Release the contiguous blocks
-            blockManager.releaseContiguousBlocks(startBlockIndex, endBlockIndex - startBlockIndex + 1);
-
-            // Clear the index data in the blocks
-            byte[] emptyData = new byte[Constants.BLOCK_SIZE];
-            for (int i = startBlockIndex; i <= endBlockIndex; i++) {
-                long position = (long) (i + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
-                database.seek(position);
-                database.write(emptyData);
+            if (PagedBTree.isPagedIndex(database, fcb.getIndexStartPosition())) {
+                // Release and clear every page of the tree
+                PagedBTree.open(database, blockManager, fcb.getIndexStartPosition()).free();
+            } else {
+                int startBlockIndex = (int) ((fcb.getIndexStartPosition() - Constants.HEADER_SIZE) / Constants.BLOCK_SIZE);
+                int endBlockIndex = (int) ((fcb.getIndexEndPosition() - 1 - Constants.HEADER_SIZE) / Constants.BLOCK_SIZE); // Last block holding index bytes
+
+                // Release the contiguous blocks
+                blockManager.releaseContiguousBlocks(startBlockIndex, endBlockIndex - startBlockIndex + 1);
+
+                // Clear the index data in the blocks, unless the block manager does so once the release is durable
+                byte[] emptyData = new byte[Constants.BLOCK_SIZE];
+                for (int i = startBlockIndex; i <= endBlockIndex && !blockManager.isDeferringRelease(); i++) {
+                    long position = (long) (i + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+                    database.write(position, emptyData);
+                }
             }
 
             // Update the FCB with the index position information
             fcb.setIndexStartPosition(0);
             fcb.setIndexEndPosition(0);
-            fcbManager.updateOrAddFCBInMetadata(database, fcb);
+            fcbManager.updateOrAddFCBInMetadata(database, blockManager, fcb);
 
             // Update the bitmap in the metadata
             MetadataHandler metadataHandler = new MetadataHandler(database);
             metadataHandler.updateBitmapInMetadata(blockManager.getBitmapAsBytes(), blockManager.getTotalBlocks());
+            metadataHandler.flush(); // Write the changed header ranges
         }
     }
 }
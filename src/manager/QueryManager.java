@@ -0,0 +1,277 @@
+package manager;
+
+import constants.Constants;
+import index.KeyIndex;
+import index.Locator;
+import io.BlockDevice;
+import io.CompressedFile;
+import io.RecordReader;
+import io.TableFile;
+import model.FileControlBlock;
+import model.SlottedPage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Answers queries that return many records of a file at once. The matching entries are collected from the
+ * file's index first; the data blocks they point to are then de-duplicated and read in ascending block order,
+ * with runs of adjacent blocks fetched by a single device read. Records are cut from those reads by the
+ * (block, offset, length) locators the index stores. Files stored in columns or fixed-width records have no
+ * index; their records are addressed by row, see io.TableFile.
+ */
+public class QueryManager {
+    private final IndexManager indexManager;
+    private int lastBlocksRead; // Distinct data blocks read by the last query
+    private int lastDeviceReads; // Device reads issued by the last query
+
+    public QueryManager(IndexManager indexManager) {
+        this.indexManager = indexManager;
+    }
+
+    /**
+     * Returns every record of a file whose ID lies in [fromId, toId].
+     * @param database the BlockDevice representing the database
+     * @param fileName the name of the file to query
+     * @param fromId the smallest record ID of the range
+     * @param toId the largest record ID of the range
+     * @return the records found, keyed by ID in ascending order
+     * @throws IOException if an I/O error occurs
+     */
+    public Map<Integer, String> findRange(BlockDevice database, String fileName, int fromId, int toId) throws IOException {
+        TableFile table = tableFile(database, fileName);
+        if (table != null) {
+            int first = Math.max(1, fromId);
+            String[] rows = table.readRows(first, (int) Math.min(Integer.MAX_VALUE, Math.max(0L, (long) toId - first + 1)));
+            Map<Integer, String> result = new LinkedHashMap<>();
+            for (int i = 0; i < rows.length; i++) {
+                result.put(first + i, rows[i]);
+            }
+            countTableReads(table);
+            return result;
+        }
+        KeyIndex index = indexManager.readIndexFromFile(database, fileName);
+        int[] ids = new int[16];
+        long[] locators = new long[16];
+        int count = 0;
+        KeyIndex.Cursor cursor = index.scan(fromId, toId);
+        while (cursor.next()) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                locators = Arrays.copyOf(locators, count * 2);
+            }
+            ids[count] = cursor.key();
+            locators[count++] = cursor.value();
+        }
+        return readRecords(dataDevice(database, fileName), ids, locators, count);
+    }
+
+    /**
+     * Returns the records of a file with the given IDs. The IDs are sorted and resolved against the index in one
+     * pass, then the records are grouped by block so that each block is read once.
+     * @param database the BlockDevice representing the database
+     * @param fileName the name of the file to query
+     * @param ids the record IDs to fetch, in any order; duplicates are ignored
+     * @return the records found, keyed by ID in ascending order; IDs not in the file are left out
+     * @throws IOException if an I/O error occurs
+     */
+    public Map<Integer, String> findMany(BlockDevice database, String fileName, int[] ids) throws IOException {
+        int[] sortedIds = Arrays.stream(ids).sorted().distinct().toArray();
+        TableFile table = tableFile(database, fileName);
+        if (table != null) {
+            Map<Integer, String> result = table.readRows(sortedIds, sortedIds.length);
+            countTableReads(table);
+            return result;
+        }
+        KeyIndex index = indexManager.readIndexFromFile(database, fileName);
+        long[] locators = index.getMany(sortedIds);
+
+        // Keep only the IDs the index knows
+        int count = 0;
+        for (int i = 0; i < sortedIds.length; i++) {
+            if (locators[i] != Locator.NONE) {
+                sortedIds[count] = sortedIds[i];
+                locators[count++] = locators[i];
+            }
+        }
+        return readRecords(dataDevice(database, fileName), sortedIds, locators, count);
+    }
+
+    /**
+     * Visits every record of a file in ID order. The index is walked in batches of QUERY_SCAN_RECORDS entries,
+     * and the records of each batch are read as findMany() reads them; a table file is read in batches of rows.
+     * The blocks and device reads of all batches are added up.
+     * @param database the BlockDevice representing the database
+     * @param fileName the name of the file to scan
+     * @param visitor receives each record and its ID
+     * @throws IOException if an I/O error occurs
+     */
+    public void scanRecords(BlockDevice database, String fileName, ObjIntConsumer<String> visitor) throws IOException {
+        int blocksRead = 0;
+        int deviceReads = 0;
+        TableFile table = tableFile(database, fileName);
+        if (table != null) {
+            for (int from = 1; from <= table.getRows(); from += Constants.QUERY_SCAN_RECORDS) {
+                String[] rows = table.readRows(from, Constants.QUERY_SCAN_RECORDS);
+                for (int i = 0; i < rows.length; i++) {
+                    visitor.accept(rows[i], from + i);
+                }
+            }
+            countTableReads(table);
+            return;
+        }
+        BlockDevice data = dataDevice(database, fileName);
+        KeyIndex.Cursor cursor = indexManager.readIndexFromFile(database, fileName).scan(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        int[] ids = new int[Constants.QUERY_SCAN_RECORDS];
+        long[] locators = new long[Constants.QUERY_SCAN_RECORDS];
+        boolean more = true;
+        while (more) {
+            int count = 0;
+            while (count < ids.length && (more = cursor.next())) {
+                ids[count] = cursor.key();
+                locators[count++] = cursor.value();
+            }
+            if (count > 0) {
+                for (Map.Entry<Integer, String> record : readRecords(data, ids, locators, count).entrySet()) {
+                    visitor.accept(record.getValue(), record.getKey());
+                }
+                blocksRead += lastBlocksRead;
+                deviceReads += lastDeviceReads;
+            }
+        }
+        lastBlocksRead = blocksRead;
+        lastDeviceReads = deviceReads;
+    }
+
+    // Opens a file whose records are addressed by row, or returns null for a file stored in rows
+    private static TableFile tableFile(BlockDevice database, String fileName) throws IOException {
+        FileControlBlock fcb = new FCBManager().findFCBByFileName(database, fileName);
+        return fcb == null ? null : TableFile.of(database, fcb);
+    }
+
+    // Reports the bytes a query of a table file read as blocks
+    private void countTableReads(TableFile table) {
+        lastBlocksRead = (int) ((table.getBytesRead() + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE);
+        lastDeviceReads = (int) table.getReads();
+    }
+
+    // Returns the device the locators of a file address: the database, or the view of a compressed file
+    private static BlockDevice dataDevice(BlockDevice database, String fileName) throws IOException {
+        return CompressedFile.of(database, new FCBManager().findFCBByFileName(database, fileName));
+    }
+
+    /**
+     * Reads the records with the given IDs from the positions the index maps them to.
+     * Each distinct block is read once, in ascending block order; a record whose locator gives its exact position
+     * is sliced straight out of the run that holds it, and one that extends past the end of its run is read alone.
+     * @param database the BlockDevice representing the database
+     * @param ids the record IDs, in the order the results are returned
+     * @param locators the locator of each record
+     * @param count the number of records
+     * @return the records found, keyed by ID in the order of ids
+     * @throws IOException if an I/O error occurs
+     */
+    private Map<Integer, String> readRecords(BlockDevice database, int[] ids, long[] locators, int count) throws IOException {
+        // Distinct blocks in ascending order, including the blocks an exactly located record continues into
+        int[] sorted = new int[Math.max(16, count)];
+        int covered = 0;
+        for (int i = 0; i < count; i++) {
+            int first = Locator.block(locators[i]);
+            int last = first + (Locator.offset(locators[i]) + Math.max(1, Locator.length(locators[i])) - 1) / Constants.BLOCK_SIZE;
+            for (int blockId = first; blockId <= last; blockId++) {
+                if (covered == sorted.length) {
+                    sorted = Arrays.copyOf(sorted, covered * 2);
+                }
+                sorted[covered++] = blockId;
+            }
+        }
+        Arrays.sort(sorted, 0, covered);
+        int distinct = 0;
+        for (int i = 0; i < covered; i++) {
+            if (distinct == 0 || sorted[i] != sorted[distinct - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+
+        // Read runs of adjacent blocks with one device read each
+        int[] runOf = new int[distinct];
+        int[] runFirst = new int[distinct];
+        byte[][] runs = readBlocks(database, sorted, distinct, runOf, runFirst);
+
+        // Exact locators are sliced from their run; slotted pages are otherwise searched per record, and text
+        // blocks are parsed once and the result shared
+        RecordReader recordReader = new RecordReader(database);
+        Map<Integer, Map<String, String>> textBlocks = new HashMap<>();
+        Map<Integer, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int blockId = Locator.block(locators[i]);
+            int b = Arrays.binarySearch(sorted, 0, distinct, blockId);
+            byte[] run = runs[runOf[b]];
+            int blockStart = (blockId - runFirst[runOf[b]]) * Constants.BLOCK_SIZE;
+            String data;
+            if (Locator.isExact(locators[i])) {
+                int end = blockStart + Locator.offset(locators[i]) + Locator.length(locators[i]);
+                data = end <= run.length
+                        ? recordReader.slice(run, blockStart, Locator.offset(locators[i]), Locator.length(locators[i]), ids[i])
+                        : readAlone(recordReader, locators[i], ids[i]);
+            } else {
+                byte[] page = Arrays.copyOfRange(run, blockStart, blockStart + Constants.BLOCK_SIZE);
+                if (SlottedPage.isSlotted(page)) {
+                    data = recordReader.readRecord(page, blockId, ids[i]);
+                } else {
+                    Map<String, String> blockRecords = textBlocks.get(blockId);
+                    if (blockRecords == null) {
+                        blockRecords = recordReader.decodeBlock(page, blockId);
+                        textBlocks.put(blockId, blockRecords);
+                    }
+                    data = blockRecords.get(String.valueOf(ids[i]));
+                }
+            }
+            if (data != null) {
+                result.put(ids[i], data);
+            }
+        }
+        return result;
+    }
+
+    // Reads a record that does not fit in the run of its first block with a positioned read of its own
+    private String readAlone(RecordReader recordReader, long locator, int id) throws IOException {
+        lastDeviceReads++;
+        return recordReader.readRecord(locator, id);
+    }
+
+    // Reads the blocks in runs of adjacent blocks; runOf receives the run of each block, runFirst the first block of each run
+    private byte[][] readBlocks(BlockDevice database, int[] sorted, int distinct, int[] runOf, int[] runFirst) throws IOException {
+        byte[][] runs = new byte[distinct][];
+        int runCount = 0;
+        lastBlocksRead = distinct;
+        lastDeviceReads = 0;
+        for (int i = 0; i < distinct; ) {
+            int runEnd = i + 1;
+            while (runEnd < distinct && runEnd - i < Constants.QUERY_READ_BLOCKS && sorted[runEnd] == sorted[runEnd - 1] + 1) {
+                runEnd++;
+            }
+            long position = (long) (sorted[i] + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+            byte[] run = new byte[(runEnd - i) * Constants.BLOCK_SIZE];
+            database.read(position, run, 0, run.length);
+            lastDeviceReads++;
+            Arrays.fill(runOf, i, runEnd, runCount);
+            runFirst[runCount] = sorted[i];
+            runs[runCount++] = run;
+            i = runEnd;
+        }
+        return runs;
+    }
+
+    public int getLastBlocksRead() {
+        return lastBlocksRead;
+    }
+
+    public int getLastDeviceReads() {
+        return lastDeviceReads;
+    }
+}
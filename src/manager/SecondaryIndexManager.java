@@ -0,0 +1,702 @@
+package manager;
+
+import constants.Constants;
+import index.BTreeIndex;
+import index.KeyIndex;
+import index.Locator;
+import index.PagedBTree;
+import index.StringBTree;
+import io.BlockDevice;
+import io.CsvTokenizer;
+import io.FileCreator;
+import io.TableFile;
+import metadata.MetadataHandler;
+import model.FileControlBlock;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds and queries secondary indexes: indexes from the values of one column, or of a pair of columns, to the
+ * IDs of the records that hold them. An index is a paged B+tree whose keys are the values of its leading column
+ * and whose values are the positions of posting lists. The posting lists are stored back to back in key order
+ * in one run of adjacent blocks, so the lists of a range of keys are read together. A list is an int count
+ * followed by its entries: the record IDs in ascending order, or, for a composite index, the value key of the
+ * trailing column and the record ID packed into a long, in ascending order of both.
+ * A leading column whose values all print back as ints is keyed by the ints, see index.PagedBTree; any other
+ * leading column is keyed by the UTF-8 bytes of its values, see index.StringBTree, which also serves prefix
+ * searches. The trailing column of a composite index is keyed like an int column, and values that are not ints
+ * by their hash. Since hashes collide and text keys are cut to StringBTree.MAX_KEY_BYTES, a posting list may
+ * hold the records of several values, so the records fetched for a value are checked against it.
+ * Record IDs do not change when a file is upgraded, so the index of a file stays valid for as long as the file
+ * exists; the records are fetched through the primary index, or by row for a file stored in columns or
+ * fixed-width records.
+ */
+public class SecondaryIndexManager {
+    private final QueryManager queryManager;
+    private FileControlBlock.SecondaryIndex lastIndex; // Index used by the last find, or null after a scan
+    private int lastCandidates; // Records fetched by the last find before checking their values
+    private long lastPostingBytes; // Bytes of posting lists read by the last find
+
+    public SecondaryIndexManager(QueryManager queryManager) {
+        this.queryManager = queryManager;
+    }
+
+    /**
+     * Returns the key a value is indexed under.
+     * @param value the field value, without the quotes of the CSV
+     * @return the int the value prints back as, or else the hash of the value
+     */
+    public static int keyOf(String value) {
+        return isInt(value) ? Integer.parseInt(value) : value.hashCode();
+    }
+
+    /**
+     * Finds the field a column name refers to. Files stored in columns or fixed-width records keep the names
+     * of their header; for a file stored in rows, the header is read from the CSV file it was imported from.
+     * @param database the BlockDevice representing the database
+     * @param fcb the FCB of the file
+     * @param column the column name, or the column number from 1
+     * @return the field number from 0, or -1 if there is no such column or its name cannot be resolved
+     * @throws IOException if an I/O error occurs
+     */
+    public int findField(BlockDevice database, FileControlBlock fcb, String column) throws IOException {
+        TableFile table = TableFile.of(database, fcb);
+        if (table != null) {
+            return table.findColumn(column);
+        }
+        try {
+            return Math.max(-1, Integer.parseInt(column) - 1);
+        } catch (NumberFormatException e) {
+            // A name; look it up in the header of the CSV file
+        }
+        String[] header = readHeader(fcb.getFileName());
+        return header == null ? -1 : Arrays.asList(header).indexOf(column);
+    }
+
+    /**
+     * Builds the secondary index on a column, or on a pair of columns, of a file and records it in the FCB,
+     * replacing an older index on the same columns. Every record is read once; the value keys and record IDs
+     * are sorted in memory, then the posting lists are written as one run and the tree is bulk-loaded over them:
+     * an int-keyed tree if every value of the leading column is an int, a string-keyed one otherwise.
+     * @param database the BlockDevice representing the database
+     * @param blockManager the BlockManager to allocate the blocks from
+     * @param fileName the name of the file
+     * @param column the column name or number from 1, or two of them separated by a comma for a composite index
+     *               led by the first
+     * @return the index, or null if the file has no such column
+     * @throws IOException if an I/O error occurs or the catalog entry of the file has no room for the index
+     */
+    public FileControlBlock.SecondaryIndex createIndex(BlockDevice database, BlockManager blockManager, String fileName,
+                                                       String column) throws IOException {
+        FCBManager fcbManager = new FCBManager();
+        FileControlBlock fcb = fcbManager.findFCBByFileName(database, fileName);
+        String[] columns = column.split(",", -1);
+        if (columns.length > 2) {
+            return null;
+        }
+        int field = findField(database, fcb, columns[0]);
+        int trailingField = columns.length == 2 ? findField(database, fcb, columns[1]) : -1;
+        if (field < 0 || (columns.length == 2 && (trailingField < 0 || trailingField == field))) {
+            return null;
+        }
+        FileControlBlock.SecondaryIndex old = null;
+        for (FileControlBlock.SecondaryIndex other : fcb.getSecondaryIndexes()) {
+            if (other.getColumn().equals(column)
+                    || (other.getField() == field && other.getTrailingField() == trailingField)) {
+                old = other; // The same columns, perhaps named another way
+            }
+        }
+        if (old != null) {
+            fcb.removeSecondaryIndex(old.getColumn());
+        }
+        fcb.putSecondaryIndex(new FileControlBlock.SecondaryIndex(column, field, trailingField, 0, 0, 0));
+        if (!FileCatalog.fits(fcb)) {
+            throw new IOException("No room in the catalog entry of " + fileName + " for an index on " + column);
+        }
+
+        // Collect a (value number, record ID) pair for every record that has the fields, and the trailing key of
+        // each ID; the distinct values of the leading column are numbered in the order they are met
+        Map<String, Integer> distinct = new HashMap<>();
+        boolean[] allInts = {true};
+        long[][] collected = {new long[1024]};
+        int[][] trailingKeys = {new int[trailingField >= 0 ? 1024 : 0]};
+        int[] count = new int[1];
+        int lastField = Math.max(field, trailingField);
+        queryManager.scanRecords(database, fileName, (record, id) -> {
+            CsvTokenizer tokenizer = tokenize(record);
+            if (tokenizer == null || lastField >= tokenizer.fieldCount()) {
+                return;
+            }
+            if (count[0] == collected[0].length) {
+                collected[0] = Arrays.copyOf(collected[0], count[0] * 2);
+            }
+            String value = tokenizer.fieldString(field);
+            Integer number = distinct.get(value);
+            if (number == null) {
+                number = distinct.size();
+                distinct.put(value, number);
+                allInts[0] &= isInt(value);
+            }
+            collected[0][count[0]++] = (long) number << 32 | id;
+            if (trailingField >= 0) {
+                if (id >= trailingKeys[0].length) {
+                    trailingKeys[0] = Arrays.copyOf(trailingKeys[0], Math.max(id + 1, trailingKeys[0].length * 2));
+                }
+                trailingKeys[0][id] = keyOf(tokenizer.fieldString(trailingField));
+            }
+        });
+        long[] pairs = collected[0];
+        int n = count[0];
+
+        // A column of ints is keyed by the ints; any other column by its text, ranked in unsigned byte order
+        int[] keyOfNumber = new int[distinct.size()];
+        byte[][] textKeys = null;
+        if (allInts[0]) {
+            for (Map.Entry<String, Integer> entry : distinct.entrySet()) {
+                keyOfNumber[entry.getValue()] = Integer.parseInt(entry.getKey());
+            }
+        } else {
+            byte[][] texts = new byte[distinct.size()][];
+            Integer[] order = new Integer[texts.length];
+            for (Map.Entry<String, Integer> entry : distinct.entrySet()) {
+                texts[entry.getValue()] = StringBTree.keyOf(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                order[entry.getValue()] = entry.getValue();
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(texts[a], texts[b]));
+            textKeys = new byte[texts.length][];
+            int ranks = 0;
+            for (int i = 0; i < order.length; i++) {
+                if (i == 0 || !Arrays.equals(texts[order[i]], texts[order[i - 1]])) {
+                    textKeys[ranks++] = texts[order[i]];
+                }
+                keyOfNumber[order[i]] = ranks - 1; // Values cut to the same key share its rank
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            pairs[i] = (long) keyOfNumber[(int) (pairs[i] >>> 32)] << 32 | (pairs[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(pairs, 0, n); // By key, then by record ID
+
+        // Lay the posting lists out back to back, one per distinct key
+        int entryBytes = trailingField >= 0 ? 8 : 4;
+        int keys = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || (int) (pairs[i] >> 32) != (int) (pairs[i - 1] >> 32)) {
+                keys++;
+            }
+        }
+        int blocks = Math.max(1, (int) ((4L * keys + (long) entryBytes * n + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE));
+        int start = allocateRun(database, blockManager, blocks);
+        long runPosition = blockPosition(start);
+        ByteBuffer run = ByteBuffer.allocate(blocks * Constants.BLOCK_SIZE);
+        BTreeIndex.Builder entries = new BTreeIndex.Builder(1.0); // The tree is never inserted into
+        long[] listPositions = new long[textKeys != null ? keys : 0];
+        int listCount = 0;
+        long[] list = new long[0];
+        for (int i = 0; i < n; ) {
+            int key = (int) (pairs[i] >> 32);
+            int end = i;
+            while (end < n && (int) (pairs[end] >> 32) == key) {
+                end++;
+            }
+            if (textKeys != null) {
+                listPositions[listCount++] = runPosition + run.position();
+            } else {
+                entries.add(key, runPosition + run.position());
+            }
+            run.putInt(end - i);
+            if (trailingField < 0) {
+                for (; i < end; i++) {
+                    run.putInt((int) pairs[i]);
+                }
+            } else {
+                // Order the entries of the key by trailing key, then by record ID
+                if (list.length < end - i) {
+                    list = new long[end - i];
+                }
+                for (int j = i; j < end; j++) {
+                    int id = (int) pairs[j];
+                    list[j - i] = (long) trailingKeys[0][id] << 32 | id;
+                }
+                Arrays.sort(list, 0, end - i);
+                for (int j = 0; j < end - i; j++) {
+                    run.putLong(list[j]);
+                }
+                i = end;
+            }
+        }
+        database.write(runPosition, run.array());
+        long metaPosition = textKeys != null
+                ? StringBTree.bulkLoad(database, blockManager, textKeys, listPositions, keys).getMetaPosition()
+                : PagedBTree.bulkLoad(database, blockManager, entries.build(), 1.0).getMetaPosition();
+
+        FileControlBlock.SecondaryIndex index = new FileControlBlock.SecondaryIndex(column, field, trailingField,
+                metaPosition, start, blocks);
+        fcb.putSecondaryIndex(index);
+        if (old != null) {
+            release(database, blockManager, old);
+        }
+        fcbManager.updateOrAddFCBInMetadata(database, blockManager, fcb);
+        MetadataHandler metadataHandler = new MetadataHandler(database);
+        metadataHandler.updateBitmapInMetadata(blockManager.getBitmapAsBytes(), blockManager.getTotalBlocks());
+        metadataHandler.flush(); // Write the changed header ranges
+        return index;
+    }
+
+    /**
+     * Returns the records of a file whose fields in one or two columns equal the given values. A composite index
+     * on both columns is searched for the pair of keys within the posting list of the leading one; otherwise an
+     * index led by one of the columns supplies the candidates, preferably one on that column alone, since its
+     * lists are smaller. The records are fetched together. Without a usable index, every record is scanned.
+     * @param database the BlockDevice representing the database
+     * @param fcb the FCB of the file
+     * @param columns the column names, or the column numbers from 1
+     * @param values the value of each column, without the quotes of the CSV
+     * @return the matching records, keyed by ID in ascending order, or null if the file has no such column
+     * @throws IOException if an I/O error occurs
+     */
+    public Map<Integer, String> find(BlockDevice database, FileControlBlock fcb, String[] columns, String[] values)
+            throws IOException {
+        int[] fields = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            fields[i] = findField(database, fcb, fcb.findSecondaryIndex(columns[i]), columns[i]);
+            if (fields[i] < 0) {
+                return null;
+            }
+        }
+
+        // Pick the index: one on both columns, then one on a single column, then a composite one led by a column
+        FileControlBlock.SecondaryIndex index = null;
+        int leading = -1;
+        int rank = 0;
+        for (FileControlBlock.SecondaryIndex other : fcb.getSecondaryIndexes()) {
+            for (int i = 0; i < fields.length; i++) {
+                if (other.getField() != fields[i]) {
+                    continue;
+                }
+                int trailing = fields.length == 2 ? fields[1 - i] : -1;
+                int otherRank = other.getTrailingField() < 0 ? 2 : other.getTrailingField() == trailing ? 3 : 1;
+                if (otherRank > rank) {
+                    index = other;
+                    leading = i;
+                    rank = otherRank;
+                }
+            }
+        }
+        lastIndex = index;
+        lastPostingBytes = 0;
+        Map<Integer, String> records;
+        if (index != null) {
+            int[] ids = rank == 3
+                    ? lookup(database, index, values[leading], keyOf(values[1 - leading]))
+                    : lookup(database, index, values[leading]);
+            records = queryManager.findMany(database, fcb.getFileName(), ids);
+        } else {
+            Map<Integer, String> scanned = new LinkedHashMap<>();
+            queryManager.scanRecords(database, fcb.getFileName(), (record, id) -> {
+                if (matches(record, fields, values)) {
+                    scanned.put(id, record);
+                }
+            });
+            records = scanned;
+        }
+        lastCandidates = records.size();
+        // Drop the records of other values that share a key, and those the index did not check
+        for (Iterator<String> it = records.values().iterator(); it.hasNext(); ) {
+            if (!matches(it.next(), fields, values)) {
+                it.remove();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Returns the records of a file whose field in a column is an int in [from, to]. An int-keyed index led by
+     * the column is walked from the first key in the range to the last; their posting lists lie next to each
+     * other, so they are fetched by one read, and the records they name are fetched together. Without such an
+     * index, every record is scanned.
+     * @param database the BlockDevice representing the database
+     * @param fcb the FCB of the file
+     * @param column the column name, or the column number from 1
+     * @param from the smallest value of the range
+     * @param to the largest value of the range
+     * @return the matching records, keyed by ID in ascending order, or null if the file has no such column
+     * @throws IOException if an I/O error occurs
+     */
+    public Map<Integer, String> findRange(BlockDevice database, FileControlBlock fcb, String column, int from, int to)
+            throws IOException {
+        int field = findField(database, fcb, fcb.findSecondaryIndex(column), column);
+        if (field < 0) {
+            return null;
+        }
+        FileControlBlock.SecondaryIndex index = findLeadingIndex(database, fcb, field, false);
+        lastIndex = index;
+        lastPostingBytes = 0;
+        Map<Integer, String> records;
+        if (index != null) {
+            records = queryManager.findMany(database, fcb.getFileName(), lookupRange(database, index, from, to));
+        } else {
+            Map<Integer, String> scanned = new LinkedHashMap<>();
+            queryManager.scanRecords(database, fcb.getFileName(), (record, id) -> {
+                if (inRange(record, field, from, to)) {
+                    scanned.put(id, record);
+                }
+            });
+            records = scanned;
+        }
+        lastCandidates = records.size();
+        // Drop the records of values that are not ints but whose hash falls in the range
+        for (Iterator<String> it = records.values().iterator(); it.hasNext(); ) {
+            if (!inRange(it.next(), field, from, to)) {
+                it.remove();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Returns the records of a file whose field in a column starts with a prefix. A string-keyed index led by
+     * the column is walked along its leaves over the keys that start with the prefix; their posting lists lie
+     * next to each other, so they are fetched by one read, and the records they name are fetched together.
+     * Without such an index, every record is scanned.
+     * @param database the BlockDevice representing the database
+     * @param fcb the FCB of the file
+     * @param column the column name, or the column number from 1
+     * @param prefix the prefix, without the quotes of the CSV
+     * @return the matching records, keyed by ID in ascending order, or null if the file has no such column
+     * @throws IOException if an I/O error occurs
+     */
+    public Map<Integer, String> findPrefix(BlockDevice database, FileControlBlock fcb, String column, String prefix)
+            throws IOException {
+        int field = findField(database, fcb, fcb.findSecondaryIndex(column), column);
+        if (field < 0) {
+            return null;
+        }
+        FileControlBlock.SecondaryIndex index = findLeadingIndex(database, fcb, field, true);
+        lastIndex = index;
+        lastPostingBytes = 0;
+        Map<Integer, String> records;
+        if (index != null) {
+            long[] positions = {-1, -1};
+            StringBTree.open(database, null, index.getMetaPosition()).scanPrefix(
+                    prefix.getBytes(StandardCharsets.UTF_8), position -> {
+                        positions[0] = positions[0] < 0 ? position : positions[0];
+                        positions[1] = position;
+                    });
+            records = queryManager.findMany(database, fcb.getFileName(),
+                    readLists(database, index, positions[0], positions[1]));
+        } else {
+            Map<Integer, String> scanned = new LinkedHashMap<>();
+            queryManager.scanRecords(database, fcb.getFileName(), (record, id) -> {
+                if (startsWith(record, field, prefix)) {
+                    scanned.put(id, record);
+                }
+            });
+            records = scanned;
+        }
+        lastCandidates = records.size();
+        // Drop the records of longer keys cut to the prefix
+        for (Iterator<String> it = records.values().iterator(); it.hasNext(); ) {
+            if (!startsWith(it.next(), field, prefix)) {
+                it.remove();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Describes the tree of an index.
+     * @param database the BlockDevice representing the database
+     * @param index the secondary index
+     * @return the number of keys, their kind and the levels and pages of the tree
+     * @throws IOException if an I/O error occurs
+     */
+    public String describe(BlockDevice database, FileControlBlock.SecondaryIndex index) throws IOException {
+        if (StringBTree.isStringIndex(database, index.getMetaPosition())) {
+            StringBTree tree = StringBTree.open(database, null, index.getMetaPosition());
+            return String.format("%d text keys in %d levels of %d pages", tree.size(), tree.height() + 1,
+                    tree.getPages());
+        }
+        PagedBTree tree = PagedBTree.open(database, null, index.getMetaPosition());
+        return String.format("%d int keys in %d levels", tree.size(), tree.height() + 1);
+    }
+
+    /**
+     * Reads the posting list of a key.
+     * @param database the BlockDevice representing the database
+     * @param index the secondary index
+     * @param value the value of the leading column
+     * @return the IDs of the records indexed under the key of the value
+     * @throws IOException if an I/O error occurs
+     */
+    public int[] lookup(BlockDevice database, FileControlBlock.SecondaryIndex index, String value) throws IOException {
+        ByteBuffer list = readList(database, index, value);
+        int[] ids = new int[list.remaining() / entryBytes(index)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = index.getTrailingField() < 0 ? list.getInt() : (int) list.getLong();
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the entries of a composite index for a pair of keys: the posting list of the leading value is
+     * binary-searched for the entries with the trailing key.
+     * @param database the BlockDevice representing the database
+     * @param index the composite index
+     * @param value the value of the leading column
+     * @param trailingKey the value key of the trailing column
+     * @return the IDs of the records indexed under both keys, in ascending order
+     * @throws IOException if an I/O error occurs
+     */
+    public int[] lookup(BlockDevice database, FileControlBlock.SecondaryIndex index, String value, int trailingKey)
+            throws IOException {
+        ByteBuffer list = readList(database, index, value);
+        int count = list.remaining() / 8;
+        // First entry whose trailing key is not below the one sought
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if ((int) (list.getLong(8 * mid) >> 32) < trailingKey) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int end = lo;
+        while (end < count && (int) (list.getLong(8 * end) >> 32) == trailingKey) {
+            end++;
+        }
+        int[] ids = new int[end - lo];
+        for (int i = lo; i < end; i++) {
+            ids[i - lo] = (int) list.getLong(8 * i);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the posting lists of every key in a range with one device read: the tree's leaves are walked from
+     * the first key to the last, and the lists from the first one to the end of the last one are fetched in
+     * one piece.
+     * @param database the BlockDevice representing the database
+     * @param index the int-keyed secondary index
+     * @param from the smallest key of the range
+     * @param to the largest key of the range
+     * @return the IDs of the records indexed under the keys
+     * @throws IOException if an I/O error occurs
+     */
+    public int[] lookupRange(BlockDevice database, FileControlBlock.SecondaryIndex index, int from, int to)
+            throws IOException {
+        KeyIndex.Cursor cursor = PagedBTree.open(database, null, index.getMetaPosition()).scan(from, to);
+        long first = -1;
+        long last = -1;
+        while (cursor.next()) {
+            first = first < 0 ? cursor.value() : first;
+            last = cursor.value();
+        }
+        return readLists(database, index, first, last);
+    }
+
+    // Reads the adjacent posting lists from the one at first to the one at last, or none if first is negative
+    private int[] readLists(BlockDevice database, FileControlBlock.SecondaryIndex index, long first, long last)
+            throws IOException {
+        if (first < 0) {
+            return new int[0];
+        }
+        int entryBytes = entryBytes(index);
+        long end = last + 4 + (long) entryBytes * database.readInt(last);
+        ByteBuffer lists = ByteBuffer.allocate((int) (end - first));
+        database.read(first, lists.array());
+        lastPostingBytes += lists.capacity();
+        int[] ids = new int[(lists.capacity() - 4) / entryBytes];
+        int count = 0;
+        while (lists.hasRemaining()) {
+            for (int i = lists.getInt(); i > 0; i--) {
+                ids[count++] = entryBytes == 4 ? lists.getInt() : (int) lists.getLong();
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Removes every secondary index of a file: the pages of each tree and the runs of its posting lists are
+     * released and cleared, and the FCB no longer records them.
+     * @param database the BlockDevice representing the database
+     * @param blockManager the BlockManager instance
+     * @param fileName the name of the file
+     * @throws IOException if an I/O error occurs
+     */
+    public void removeIndexes(BlockDevice database, BlockManager blockManager, String fileName) throws IOException {
+        FCBManager fcbManager = new FCBManager();
+        FileControlBlock fcb = fcbManager.findFCBByFileName(database, fileName);
+        if (fcb == null || fcb.getSecondaryIndexes().isEmpty()) {
+            return;
+        }
+        for (FileControlBlock.SecondaryIndex index : fcb.getSecondaryIndexes()) {
+            release(database, blockManager, index);
+        }
+        fcb.setSecondaryIndexes(Collections.emptyList());
+        fcbManager.updateOrAddFCBInMetadata(database, blockManager, fcb);
+        MetadataHandler metadataHandler = new MetadataHandler(database);
+        metadataHandler.updateBitmapInMetadata(blockManager.getBitmapAsBytes(), blockManager.getTotalBlocks());
+        metadataHandler.flush(); // Write the changed header ranges
+    }
+
+    public FileControlBlock.SecondaryIndex getLastIndex() {
+        return lastIndex;
+    }
+
+    public int getLastCandidates() {
+        return lastCandidates;
+    }
+
+    public long getLastPostingBytes() {
+        return lastPostingBytes;
+    }
+
+    // Resolves a column of a query; a single-column index remembers the field of the name it was built for
+    private int findField(BlockDevice database, FileControlBlock fcb, FileControlBlock.SecondaryIndex named,
+                          String column) throws IOException {
+        return named != null && named.getTrailingField() < 0 ? named.getField() : findField(database, fcb, column);
+    }
+
+    // Picks an index led by a field and keyed by text or by ints, preferably the one on the field alone,
+    // whose lists are smaller; returns null if there is none
+    private static FileControlBlock.SecondaryIndex findLeadingIndex(BlockDevice database, FileControlBlock fcb,
+                                                                    int field, boolean text) throws IOException {
+        FileControlBlock.SecondaryIndex index = null;
+        for (FileControlBlock.SecondaryIndex other : fcb.getSecondaryIndexes()) {
+            if (other.getField() == field && (index == null || other.getTrailingField() < 0)
+                    && StringBTree.isStringIndex(database, other.getMetaPosition()) == text) {
+                index = other;
+            }
+        }
+        return index;
+    }
+
+    // Reads the posting list of a value; the returned buffer holds its entries
+    private ByteBuffer readList(BlockDevice database, FileControlBlock.SecondaryIndex index, String value)
+            throws IOException {
+        long position = StringBTree.isStringIndex(database, index.getMetaPosition())
+                ? StringBTree.open(database, null, index.getMetaPosition()).get(value.getBytes(StandardCharsets.UTF_8))
+                : PagedBTree.open(database, null, index.getMetaPosition()).get(keyOf(value));
+        if (position == Locator.NONE) {
+            return ByteBuffer.allocate(0);
+        }
+        byte[] bytes = new byte[entryBytes(index) * database.readInt(position)];
+        database.read(position + 4, bytes);
+        lastPostingBytes += 4 + bytes.length;
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static int entryBytes(FileControlBlock.SecondaryIndex index) {
+        return index.getTrailingField() < 0 ? 4 : 8;
+    }
+
+    // Releases the tree and the posting lists of an index
+    private static void release(BlockDevice database, BlockManager blockManager, FileControlBlock.SecondaryIndex index)
+            throws IOException {
+        if (StringBTree.isStringIndex(database, index.getMetaPosition())) {
+            StringBTree.open(database, blockManager, index.getMetaPosition()).free();
+        } else {
+            PagedBTree.open(database, blockManager, index.getMetaPosition()).free();
+        }
+        blockManager.releaseContiguousBlocks(index.getPostingsBlock(), index.getPostingsBlocks());
+        if (!blockManager.isDeferringRelease()) { // Otherwise the block manager clears them once the release is durable
+            database.write(blockPosition(index.getPostingsBlock()),
+                    new byte[index.getPostingsBlocks() * Constants.BLOCK_SIZE]);
+        }
+    }
+
+    // Checks whether a value is an int written as Java prints it
+    private static boolean isInt(String value) {
+        try {
+            return Integer.toString(Integer.parseInt(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Checks whether a record holds each value in its field
+    private static boolean matches(String record, int[] fields, String[] values) {
+        CsvTokenizer tokenizer = tokenize(record);
+        for (int i = 0; i < fields.length; i++) {
+            if (tokenizer == null || fields[i] >= tokenizer.fieldCount()
+                    || !tokenizer.fieldString(fields[i]).equals(values[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Checks whether a record holds an int in [from, to], written as Java prints it, in the field
+    private static boolean inRange(String record, int field, int from, int to) {
+        CsvTokenizer tokenizer = tokenize(record);
+        if (tokenizer == null || field >= tokenizer.fieldCount()) {
+            return false;
+        }
+        String value = tokenizer.fieldString(field);
+        int key = keyOf(value);
+        return key >= from && key <= to && Integer.toString(key).equals(value);
+    }
+
+    // Checks whether a record holds a value starting with the prefix in the field
+    private static boolean startsWith(String record, int field, String prefix) {
+        CsvTokenizer tokenizer = tokenize(record);
+        return tokenizer != null && field < tokenizer.fieldCount() && tokenizer.fieldString(field).startsWith(prefix);
+    }
+
+    // Splits a record into its fields, or returns null for an empty record
+    private static CsvTokenizer tokenize(String record) {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        CsvTokenizer tokenizer = new CsvTokenizer(bytes, bytes.length, true);
+        try {
+            return tokenizer.next() ? tokenizer : null;
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // In-memory input does not throw
+        }
+    }
+
+    // Reads the header of a CSV file, or returns null if the file is gone
+    private static String[] readHeader(String csvFileName) throws IOException {
+        try (InputStream in = new FileInputStream(csvFileName)) {
+            CsvTokenizer tokenizer = new CsvTokenizer(in, Constants.TOKENIZER_BUFFER_BYTES);
+            if (!tokenizer.next()) {
+                return null;
+            }
+            String[] header = new String[tokenizer.fieldCount()];
+            for (int i = 0; i < header.length; i++) {
+                header[i] = tokenizer.fieldString(i);
+            }
+            return header;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    // Allocates a run of adjacent blocks, extending the file if no free extent is large enough
+    private static int allocateRun(BlockDevice database, BlockManager blockManager, int blocks) throws IOException {
+        int[] run = blockManager.allocateContiguousBlocks(blocks);
+        if (run == null) {
+            long bytes = (long) blocks * Constants.BLOCK_SIZE;
+            new FileCreator().extendFile(database, blockManager, Math.max(Constants.FILE_INNIT_SIZE, bytes));
+            run = blockManager.allocateContiguousBlocks(blocks);
+        }
+        return run[0];
+    }
+
+    private static long blockPosition(int blockIndex) {
+        return (long) (blockIndex + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,108 @@
+package manager;
+
+import index.KeyIndex;
+import index.Locator;
+import index.PagedBTree;
+import io.BlockDevice;
+import io.BlockWriter;
+import io.RecordReader;
+import model.FileControlBlock;
+import model.SlottedPage;
+import utils.ApplicationContext;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rewrites files imported in the text record format ("id:N;data:...;"), or indexed before record locators
+ * existed, into binary slotted pages. The records are copied in ID order into newly allocated blocks and
+ * indexed again; the old data blocks and the old index are released afterwards.
+ */
+public class UpgradeManager {
+
+    /**
+     * Checks whether a file is stored in the text record format or has an index without record locators.
+     * @param database the BlockDevice representing the database
+     * @param fcb the FCB of the file
+     * @return true if the first data block of the file holds text records, or its index maps IDs to blocks only;
+     * compressed files are always slotted and located, and columnar files have no records to upgrade
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean needsUpgrade(BlockDevice database, FileControlBlock fcb) throws IOException {
+        if (fcb.getUsedBlocks() <= 0 || fcb.getCodec() != FileControlBlock.CODEC_NONE
+                || fcb.getLayout() != FileControlBlock.LAYOUT_ROWS) {
+            return false;
+        }
+        byte[] first = new RecordReader(database).readBlock(fcb.getStartBlock());
+        if (first != null && !SlottedPage.isSlotted(first)) {
+            return true;
+        }
+        // Older indexes are either serialized trees or "PBT1" paged trees, neither of which stores locators
+        long indexPosition = fcb.getIndexStartPosition();
+        return indexPosition > 0 && !(PagedBTree.isPagedIndex(database, indexPosition)
+                && PagedBTree.open(database, null, indexPosition).hasLocators());
+    }
+
+    /**
+     * Upgrades a file to slotted pages.
+     * @param database the BlockDevice representing the database
+     * @param blockManager the BlockManager instance
+     * @param indexManager the IndexManager holding the file's index
+     * @param fileName the name of the file to upgrade
+     * @return the number of data blocks the file uses after the upgrade, or -1 if it already used slotted pages
+     * @throws IOException if an I/O error occurs
+     */
+    public int upgradeFile(BlockDevice database, BlockManager blockManager, IndexManager indexManager,
+                           String fileName) throws IOException {
+        FCBManager fcbManager = new FCBManager();
+        FileControlBlock fcb = fcbManager.findFCBByFileName(database, fileName);
+        if (fcb == null || !needsUpgrade(database, fcb)) {
+            return -1;
+        }
+        ApplicationContext.setCsvFileName(fileName);
+        RecordReader reader = new RecordReader(database);
+        BlockWriter writer = new BlockWriter(database, blockManager);
+        writer.setSlotted(true);
+        int newStartBlock = blockManager.findFirstFreeBlock();
+
+        // Copy the records in ID order; records without an exact locator are found by parsing their block once
+        KeyIndex index = indexManager.readIndexFromFile(database, fileName);
+        KeyIndex.Cursor cursor = index.scan(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        int currentBlock = -1;
+        Map<String, String> blockRecords = null;
+        while (cursor.next()) {
+            String data;
+            if (Locator.isExact(cursor.value())) {
+                data = reader.readRecord(cursor.value(), cursor.key());
+            } else {
+                if (Locator.block(cursor.value()) != currentBlock) {
+                    currentBlock = Locator.block(cursor.value());
+                    byte[] block = reader.readBlock(currentBlock);
+                    blockRecords = block == null ? null : reader.decodeBlock(block, currentBlock);
+                }
+                data = blockRecords == null ? null : blockRecords.get(String.valueOf(cursor.key()));
+            }
+            if (data != null) {
+                Map<String, String> record = new HashMap<>();
+                record.put("id", String.valueOf(cursor.key()));
+                record.put("data", data);
+                writer.write(blockManager, record);
+            }
+        }
+
+        writer.flush();
+
+        // Release the old index and data blocks, then point the FCB at the new blocks and index them
+        indexManager.removeIndexForFile(database, blockManager, fileName);
+        blockManager.releaseContiguousBlocks(fcb.getStartBlock(), fcb.getUsedBlocks());
+        writer.clearBlocks(fcb.getStartBlock(), fcb.getUsedBlocks());
+        fcb.setStartBlock(newStartBlock);
+        fcb.setUsedBlocks(writer.getUsedBlocks());
+        fcb.setIndexStartPosition(0);
+        fcb.setIndexEndPosition(0);
+        fcbManager.updateOrAddFCBInMetadata(database, blockManager, fcb);
+        indexManager.writeIndexToFile(database, blockManager, writer.getIndexTree());
+        return writer.getUsedBlocks();
+    }
+}
@@ -0,0 +1,159 @@
+package metadata;
+
+import io.BlockDevice;
+import io.WriteAheadLog;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * In-memory copy of a metadata region of a database file: the header, or the part of the bitmap that does not
+ * fit in it. Updates change the image and record the byte ranges that now differ from the file; flush() writes
+ * only those ranges. Rewriting a field with the bytes it already holds, such as the unchanged parts of the
+ * bitmap, leaves nothing to write. The image is loaded with one read of the region.
+ */
+class HeaderImage {
+    private static final int MERGE_GAP = 32; // Dirty ranges closer than this are written as one range
+
+    private final WeakReference<BlockDevice> file; // Weak, so that the image does not keep its key in MetadataHandler alive
+    private final long base; // Position of the region in the file
+    private final byte[] image;
+    private int[] dirtyStarts = new int[8]; // Sorted, disjoint dirty ranges [start, end) of the image
+    private int[] dirtyEnds = new int[8];
+    private int dirtyCount;
+    private long flushes; // Flushes that wrote at least one range
+    private long writes; // Device writes issued by flushes
+    private long bytesWritten;
+
+    HeaderImage(BlockDevice file, long base, int size) throws IOException {
+        this.file = new WeakReference<>(file);
+        this.base = base;
+        this.image = new byte[size];
+        int from = 0;
+        int n;
+        while (from < size && (n = file.read(base + from, image, from, size - from)) > 0) {
+            from += n; // Bytes beyond the end of the file stay zero
+        }
+    }
+
+    long getBase() {
+        return base;
+    }
+
+    int size() {
+        return image.length;
+    }
+
+    synchronized void read(int offset, byte[] buffer, int from, int length) {
+        System.arraycopy(image, offset, buffer, from, length);
+    }
+
+    synchronized int readInt(int offset) {
+        return ((image[offset] & 0xFF) << 24) | ((image[offset + 1] & 0xFF) << 16)
+                | ((image[offset + 2] & 0xFF) << 8) | (image[offset + 3] & 0xFF);
+    }
+
+    synchronized long readLong(int offset) {
+        return ((long) readInt(offset) << 32) | (readInt(offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Copies bytes into the image, marking as dirty only the runs of bytes that change.
+     * @param offset the position in the region
+     * @param data the array holding the new bytes
+     * @param from the position of the new bytes in data
+     * @param length the number of bytes to copy
+     */
+    synchronized void write(int offset, byte[] data, int from, int length) {
+        int i = 0;
+        while (i < length) {
+            if (image[offset + i] == data[from + i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < length && image[offset + i] != data[from + i]) {
+                image[offset + i] = data[from + i];
+                i++;
+            }
+            markDirty(offset + start, offset + i);
+        }
+    }
+
+    synchronized void writeInt(int offset, int value) {
+        write(offset, new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value}, 0, 4);
+    }
+
+    synchronized void writeLong(int offset, long value) {
+        byte[] b = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            b[i] = (byte) value;
+            value >>>= 8;
+        }
+        write(offset, b, 0, 8);
+    }
+
+    // Adds [start, end) to the dirty ranges, merging it with ranges that overlap it or lie within MERGE_GAP
+    private void markDirty(int start, int end) {
+        int i = 0;
+        while (i < dirtyCount && dirtyEnds[i] + MERGE_GAP < start) {
+            i++;
+        }
+        int j = i;
+        while (j < dirtyCount && dirtyStarts[j] <= end + MERGE_GAP) {
+            start = Math.min(start, dirtyStarts[j]);
+            end = Math.max(end, dirtyEnds[j]);
+            j++;
+        }
+        // Ranges i..j-1 are replaced by the merged range
+        int shift = 1 - (j - i);
+        if (dirtyCount + shift > dirtyStarts.length) {
+            dirtyStarts = Arrays.copyOf(dirtyStarts, dirtyStarts.length * 2);
+            dirtyEnds = Arrays.copyOf(dirtyEnds, dirtyEnds.length * 2);
+        }
+        System.arraycopy(dirtyStarts, j, dirtyStarts, j + shift, dirtyCount - j);
+        System.arraycopy(dirtyEnds, j, dirtyEnds, j + shift, dirtyCount - j);
+        dirtyStarts[i] = start;
+        dirtyEnds[i] = end;
+        dirtyCount += shift;
+    }
+
+    /**
+     * Writes the dirty ranges to the file, one write per range, through its write-ahead log if it has one.
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void flush() throws IOException {
+        BlockDevice device = file.get();
+        if (dirtyCount == 0 || device == null) {
+            return;
+        }
+        for (int i = 0; i < dirtyCount; i++) {
+            WriteAheadLog.write(device, base + dirtyStarts[i], image, dirtyStarts[i], dirtyEnds[i] - dirtyStarts[i]);
+            bytesWritten += dirtyEnds[i] - dirtyStarts[i];
+        }
+        writes += dirtyCount;
+        flushes++;
+        dirtyCount = 0;
+    }
+
+    synchronized int getDirtyBytes() {
+        int bytes = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            bytes += dirtyEnds[i] - dirtyStarts[i];
+        }
+        return bytes;
+    }
+
+    synchronized long getFlushes() {
+        return flushes;
+    }
+
+    synchronized long getWrites() {
+        return writes;
+    }
+
+    synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+}
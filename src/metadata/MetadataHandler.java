@@ -1,21 +1,75 @@
 package metadata;
 
 import constants.Constants;
-import utils.Tools;
+import io.BlockDevice;
+import io.WriteAheadLog;
+import model.BlockBitmap;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Vector;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+/**
+ * Reads and updates the header of a database file. All handlers of one BlockDevice share a HeaderImage, so reads
+ * are served from memory and updates only change the image; the changed byte ranges reach the file when flush()
+ * is called at a commit point (the end of an import, an index write or a delete) or when the handler is closed.
+ * When the file has a write-ahead log, flushed ranges go to the log, and commit() ends the transaction that
+ * makes them durable together with the catalog writes of the same operation.
+ *
+ * The bitmap starts in the header. The bytes that do not fit there are kept in the last blocks of the file,
+ * the bitmap tail, which BlockManager reserves and moves when the file grows.
+ */
 public class MetadataHandler {
-    private RandomAccessFile file;
+    private static final Map<BlockDevice, HeaderImage> IMAGES = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Map<BlockDevice, HeaderImage> TAILS = Collections.synchronizedMap(new WeakHashMap<>());
 
-    public MetadataHandler(RandomAccessFile file) {
+    private BlockDevice file;
+    private HeaderImage header;
+
+    public MetadataHandler(BlockDevice file) {
         this.file = file;
     }
 
+    // Returns the header image shared by the handlers of this file, loading it on first use
+    private HeaderImage header() throws IOException {
+        if (header == null) {
+            synchronized (IMAGES) {
+                header = IMAGES.get(file);
+                if (header == null) {
+                    header = new HeaderImage(file, 0, Constants.HEADER_SIZE);
+                    IMAGES.put(file, header);
+                }
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Returns the number of blocks at the end of the file that hold the bitmap bytes beyond the header.
+     * @param totalBlocks the total number of blocks
+     * @return the number of tail blocks, 0 while the bitmap fits in the header
+     */
+    public static int bitmapTailBlocks(int totalBlocks) {
+        int bytes = (totalBlocks + 7) / 8 - Constants.BITMAP_INLINE_SIZE;
+        return bytes <= 0 ? 0 : (bytes + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE;
+    }
+
+    // Returns the image of the bitmap tail for this number of blocks, replacing the image of a tail that moved
+    private HeaderImage tail(int totalBlocks) throws IOException {
+        int blocks = bitmapTailBlocks(totalBlocks);
+        long base = (long) (totalBlocks - blocks + Constants.HEADER_BLOCKS) * Constants.BLOCK_SIZE;
+        synchronized (TAILS) {
+            HeaderImage tail = TAILS.get(file);
+            if (tail == null || tail.getBase() != base || tail.size() != blocks * Constants.BLOCK_SIZE) {
+                tail = new HeaderImage(file, base, blocks * Constants.BLOCK_SIZE); // The old tail blocks are free now
+                TAILS.put(file, tail);
+            }
+            return tail;
+        }
+    }
+
     /**
      * Writes the initial metadata to the file.
      * @param databaseName the name of the database
@@ -25,6 +79,7 @@ public class MetadataHandler {
         writeDatabaseNameWithPadding(databaseName);
         writeInitialValues();
         initializeBitmap();
+        flush();
     }
 
     /**
@@ -35,10 +90,9 @@ public class MetadataHandler {
     private void writeDatabaseNameWithPadding(String string) throws IOException {
         byte[] stringBytes = string.getBytes();
         int totalSize = Constants.DATABASE_NAME_SIZE;
-        file.seek(Constants.DATABASE_NAME_OFFSET);
-        file.write(stringBytes);
+        header().write(Constants.DATABASE_NAME_OFFSET, stringBytes, 0, stringBytes.length);
         if (stringBytes.length < totalSize) {
-            file.write(new byte[totalSize - stringBytes.length]);
+            writeBytePadding(Constants.DATABASE_NAME_OFFSET + stringBytes.length, totalSize - stringBytes.length);
         }
     }
 
@@ -64,9 +118,8 @@ public class MetadataHandler {
      * @param value the integer value to write
      * @throws IOException if an I/O error occurs
      */
-    private void writeIntValue(long offset, int value) throws IOException {
-        file.seek(offset);
-        file.writeInt(value);
+    private void writeIntValue(int offset, int value) throws IOException {
+        header().writeInt(offset, value);
     }
 
     /**
@@ -75,9 +128,8 @@ public class MetadataHandler {
      * @param value the long value to write
      * @throws IOException if an I/O error occurs
      */
-    private void writeLongValue(long offset, long value) throws IOException {
-        file.seek(offset);
-        file.writeLong(value);
+    private void writeLongValue(int offset, long value) throws IOException {
+        header().writeLong(offset, value);
     }
 
     /**
@@ -86,9 +138,8 @@ public class MetadataHandler {
      * @param size the size of the padding
      * @throws IOException if an I/O error occurs
      */
-    private void writeBytePadding(long offset, int size) throws IOException {
-        file.seek(offset);
-        file.write(new byte[size]);
+    private void writeBytePadding(int offset, int size) throws IOException {
+        header().write(offset, new byte[size], 0, size);
     }
 
 
@@ -103,17 +154,78 @@ public class MetadataHandler {
 
 
     /**
-     * Updates the bitmap in the metadata.
+     * Updates the bitmap in the metadata, in the header and, for large files, in the bitmap tail.
+     * Only the bytes that differ from the current bitmap become dirty.
      * @param bitmapBytes the bitmap bytes
      * @param totalBlock the total number of blocks
      * @throws IOException if an I/O error occurs
      */
     public void updateBitmapInMetadata(byte[] bitmapBytes, int totalBlock) throws IOException {
-        file.seek(Constants.TOTAL_BLOCK_OFFSET);
-        file.writeInt(totalBlock);
-        file.seek(Constants.BITMAP_OFFSET);
-        file.write(bitmapBytes);
+        writeIntValue(Constants.TOTAL_BLOCK_OFFSET, totalBlock);
+        int inline = Math.min(bitmapBytes.length, Constants.BITMAP_INLINE_SIZE);
+        header().write(Constants.BITMAP_OFFSET, bitmapBytes, 0, inline);
+        if (bitmapBytes.length > inline) {
+            tail(totalBlock).write(0, bitmapBytes, inline, bitmapBytes.length - inline);
+        }
+    }
+
+    /**
+     * Updates the FCB list in the metadata. Only the bytes that differ from the current list become dirty.
+     * @param fcbListBytes the serialized FCB list
+     * @throws IOException if an I/O error occurs
+     */
+    public void updateFCBListInMetadata(byte[] fcbListBytes) throws IOException {
+        header().write(Constants.FCB_LIST_OFFSET, fcbListBytes, 0, fcbListBytes.length);
+    }
+
+    /**
+     * Writes the header ranges changed since the last flush to the file. Called at the commit points of the
+     * operations that change metadata, so that each one writes the header at most a few times.
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        HeaderImage tail = TAILS.get(file);
+        if (tail != null) {
+            tail.flush();
+        }
+        header().flush();
+    }
+
+    /**
+     * Flushes the header and commits the metadata changes of the current operation to the write-ahead log, if
+     * the file has one. Called at the end of each command that changes the database.
+     * @throws IOException if an I/O error occurs
+     */
+    public void commit() throws IOException {
+        flush();
+        WriteAheadLog.commit(file);
+    }
+
+    /**
+     * Flushes the header, closes the write-ahead log and forgets the image of the file. Call before closing the
+     * BlockDevice.
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        flush();
+        WriteAheadLog.close(file);
+        IMAGES.remove(file);
+        TAILS.remove(file);
+        header = null;
+    }
 
+    /**
+     * Returns the header write statistics of the file.
+     * @return the number of flushes, writes and bytes written, and the bytes waiting for the next flush
+     * @throws IOException if the header cannot be loaded
+     */
+    public String getStats() throws IOException {
+        HeaderImage header = header();
+        HeaderImage tail = TAILS.get(file);
+        return String.format("Header: %d flushes, %d writes, %d bytes written, %d bytes dirty%s%n",
+                header.getFlushes(), header.getWrites(), header.getBytesWritten(), header.getDirtyBytes(),
+                tail == null ? "" : String.format("; bitmap tail: %d blocks, %d bytes written, %d bytes dirty",
+                        tail.size() / Constants.BLOCK_SIZE, tail.getBytesWritten(), tail.getDirtyBytes()));
     }
 
 
@@ -123,9 +235,8 @@ public class MetadataHandler {
      * @throws IOException if an I/O error occurs
      */
     public String readDatabaseName() throws IOException {
-        file.seek(Constants.DATABASE_NAME_OFFSET);
         byte[] buffer = new byte[Constants.DATABASE_NAME_SIZE];
-        file.read(buffer);
+        header().read(Constants.DATABASE_NAME_OFFSET, buffer, 0, buffer.length);
         return new String(buffer).trim();
     }
 
@@ -135,8 +246,7 @@ public class MetadataHandler {
      * @throws IOException if an I/O error occurs
      */
     public long readDatabaseSize() throws IOException {
-        file.seek(Constants.DATABASE_SIZE_OFFSET);
-        return file.readLong();
+        return header().readLong(Constants.DATABASE_SIZE_OFFSET);
     }
 
 
@@ -146,8 +256,7 @@ public class MetadataHandler {
      * @throws IOException if an I/O error occurs
      */
     public int readTotalPFSFiles() throws IOException {
-        file.seek(Constants.TOTAL_PFS_FILES_OFFSET);
-        return file.readInt();
+        return header().readInt(Constants.TOTAL_PFS_FILES_OFFSET);
     }
 
     /**
@@ -156,9 +265,8 @@ public class MetadataHandler {
      * @throws IOException if an I/O error occurs
      */
     public String readPFSFilesList() throws IOException {
-        file.seek(Constants.PFS_FILES_LIST_OFFSET);
         byte[] buffer = new byte[Constants.PFS_FILES_LIST_SIZE];
-        file.read(buffer);
+        header().read(Constants.PFS_FILES_LIST_OFFSET, buffer, 0, buffer.length);
         return new String(buffer).trim();
     }
 
@@ -169,8 +277,7 @@ public class MetadataHandler {
      * @throws IOException if an I/O error occurs
      */
     public int readKeyValueEntries() throws IOException {
-        file.seek(Constants.KEY_VALUE_ENTRIES_OFFSET);
-        return file.readInt();
+        return header().readInt(Constants.KEY_VALUE_ENTRIES_OFFSET);
     }
 
 
@@ -180,8 +287,7 @@ public class MetadataHandler {
      * @throws IOException if an I/O error occurs
      */
     public Date readCreateDate() throws IOException {
-        file.seek(Constants.CREATE_DATE_OFFSET);
-        return new Date(file.readLong());
+        return new Date(header().readLong(Constants.CREATE_DATE_OFFSET));
     }
     /**
      * Reads the block size from the file.
@@ -189,8 +295,7 @@ public class MetadataHandler {
      * @throws IOException if an I/O error occurs
      */
     public int readBlockSize() throws IOException {
-        file.seek(Constants.BLOCK_SIZE_OFFSET);
-        return file.readInt();
+        return header().readInt(Constants.BLOCK_SIZE_OFFSET);
     }
 
     /**
@@ -199,9 +304,8 @@ public class MetadataHandler {
      * @throws IOException if an I/O error occurs
      */
     public byte[] readFCBList() throws IOException {
-        file.seek(Constants.FCB_LIST_OFFSET);
         byte[] buffer = new byte[Constants.FCB_LIST_SIZE];
-        file.read(buffer);
+        header().read(Constants.FCB_LIST_OFFSET, buffer, 0, buffer.length);
         return buffer;
     }
 
@@ -211,27 +315,24 @@ public class MetadataHandler {
      * @throws IOException if an I/O error occurs
      */
     public int readTotalBlock() throws IOException {
-        file.seek(Constants.TOTAL_BLOCK_OFFSET);
-        return file.readInt();
+        return header().readInt(Constants.TOTAL_BLOCK_OFFSET);
     }
     /**
      * Reads the bitmap from the metadata.
-     * @return the bitmap as a vector of booleans
+     * @return the bitmap, one bit per block
      */
-    public Vector<Boolean> readBitmapFromMetadata() {
-        Vector<Boolean> bitmap = new Vector<>();
+    public BlockBitmap readBitmapFromMetadata() {
+        BlockBitmap bitmap = new BlockBitmap(0);
         try {
-            file.seek(Constants.TOTAL_BLOCK_OFFSET);
-            int totalBlock = file.readInt();
+            int totalBlock = readTotalBlock();
             int byteCount = (int) Math.ceil(totalBlock / 8.0);
-            file.seek(Constants.BITMAP_OFFSET);
             byte[] bitmapBytes = new byte[byteCount];
-            file.read(bitmapBytes);
-            for (byte b : bitmapBytes) {
-                for (int i = 0; i < 8; i++) {
-                    bitmap.add((b & (1 << i)) != 0);
-                }
+            int inline = Math.min(byteCount, Constants.BITMAP_INLINE_SIZE);
+            header().read(Constants.BITMAP_OFFSET, bitmapBytes, 0, inline);
+            if (byteCount > inline) {
+                tail(totalBlock).read(0, bitmapBytes, inline, byteCount - inline);
             }
+            bitmap = BlockBitmap.fromBytes(bitmapBytes, totalBlock);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -244,8 +345,7 @@ public class MetadataHandler {
      */
     private void initializeBitmap() throws IOException {
         int totalBlocks = readTotalBlock();
-        Vector<Boolean> bitmap = new Vector<>(Collections.nCopies(totalBlocks, false));
-        byte[] bitmapBytes = Tools.getBitmapAsBytes(bitmap);
+        byte[] bitmapBytes = new BlockBitmap(totalBlocks).toBytes();
         updateBitmapInMetadata(bitmapBytes, totalBlocks);
     }
 }
@@ -0,0 +1,192 @@
+package model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Block allocation bitmap packed into 64-bit words. Bit i is set when block i is in use.
+ * The on-disk layout (bit i stored in byte i / 8 at bit i % 8) is the little-endian byte order
+ * of the words, so conversion to and from the header bytes is a straight word copy.
+ */
+public class BlockBitmap {
+    private long[] words;
+    private int size;       // Number of blocks tracked by the bitmap
+    private int usedCount;  // Number of set bits, maintained on every change
+
+    public BlockBitmap(int size) {
+        this.size = size;
+        this.words = new long[wordCount(size)];
+    }
+
+    private static int wordCount(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * Builds a bitmap from its on-disk byte representation.
+     * @param bytes the bitmap bytes read from the header
+     * @param size the number of blocks the bitmap covers
+     * @return the decoded bitmap
+     */
+    public static BlockBitmap fromBytes(byte[] bytes, int size) {
+        BlockBitmap bitmap = new BlockBitmap(size);
+        byte[] padded = Arrays.copyOf(bytes, bitmap.words.length * 8);
+        ByteBuffer.wrap(padded).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(bitmap.words);
+        bitmap.clearTail();
+        for (long word : bitmap.words) {
+            bitmap.usedCount += Long.bitCount(word);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the on-disk byte representation of the bitmap (one bit per block).
+     * @return the bitmap bytes
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put(words);
+        return Arrays.copyOf(buffer.array(), (size + 7) >>> 3);
+    }
+
+    /**
+     * Returns an independent copy of the bitmap, such as to change it before it is stored.
+     * @return the copy
+     */
+    public BlockBitmap copy() {
+        BlockBitmap copy = new BlockBitmap(size);
+        copy.words = words.clone();
+        copy.usedCount = usedCount;
+        return copy;
+    }
+
+    // Clears any bits beyond the logical size, e.g. padding read from the header
+    private void clearTail() {
+        if ((size & 63) != 0) {
+            words[words.length - 1] &= (1L << size) - 1;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int usedCount() {
+        return usedCount;
+    }
+
+    public int freeCount() {
+        return size - usedCount;
+    }
+
+    public boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Marks a single block as used or free.
+     * @param index the block index
+     * @param used true to mark the block as used, false to mark it as free
+     */
+    public void set(int index, boolean used) {
+        long mask = 1L << index;
+        long word = words[index >>> 6];
+        if (used && (word & mask) == 0) {
+            words[index >>> 6] = word | mask;
+            usedCount++;
+        } else if (!used && (word & mask) != 0) {
+            words[index >>> 6] = word & ~mask;
+            usedCount--;
+        }
+    }
+
+    /**
+     * Marks the blocks in [fromIndex, toIndex) as used or free, a word at a time.
+     * @param fromIndex the first block index (inclusive)
+     * @param toIndex the last block index (exclusive)
+     * @param used true to mark the blocks as used, false to mark them as free
+     */
+    public void setRange(int fromIndex, int toIndex, boolean used) {
+        if (fromIndex >= toIndex) {
+            return;
+        }
+        int firstWord = fromIndex >>> 6;
+        int lastWord = (toIndex - 1) >>> 6;
+        for (int w = firstWord; w <= lastWord; w++) {
+            long mask = -1L;
+            if (w == firstWord) {
+                mask &= -1L << fromIndex;
+            }
+            if (w == lastWord) {
+                mask &= -1L >>> -toIndex;
+            }
+            long before = words[w];
+            words[w] = used ? before | mask : before & ~mask;
+            usedCount += Long.bitCount(words[w]) - Long.bitCount(before);
+        }
+    }
+
+    /**
+     * Returns the index of the first free block at or after fromIndex, skipping full words.
+     * @param fromIndex the index to start searching from
+     * @return the index of the first free block, or -1 if there is none
+     */
+    public int nextClearBit(int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        if (fromIndex >= size) {
+            return -1;
+        }
+        int w = fromIndex >>> 6;
+        long word = ~words[w] & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(word);
+                return index < size ? index : -1;
+            }
+            if (++w == words.length) {
+                return -1;
+            }
+            word = ~words[w];
+        }
+    }
+
+    /**
+     * Returns the index of the first used block at or after fromIndex, skipping empty words.
+     * @param fromIndex the index to start searching from
+     * @return the index of the first used block, or -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        if (fromIndex >= size) {
+            return -1;
+        }
+        int w = fromIndex >>> 6;
+        long word = words[w] & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++w == words.length) {
+                return -1;
+            }
+            word = words[w];
+        }
+    }
+
+    /**
+     * Grows the bitmap to cover newSize blocks. New blocks are free.
+     * @param newSize the new number of blocks
+     */
+    public void grow(int newSize) {
+        if (newSize <= size) {
+            return;
+        }
+        words = Arrays.copyOf(words, wordCount(newSize));
+        size = newSize;
+    }
+}
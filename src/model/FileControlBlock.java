@@ -2,9 +2,18 @@ package model;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 public class FileControlBlock {
+    public static final byte CODEC_NONE = 0; // Data blocks stored as they are
+    public static final byte CODEC_DEFLATE = 1; // Data blocks stored as deflate-compressed extents, see io.CompressedFile
+    public static final byte LAYOUT_ROWS = 0; // Records stored whole, in slotted pages or text blocks
+    public static final byte LAYOUT_COLUMNS = 1; // Records split into per-column runs, see io.ColumnarFile
+    public static final byte LAYOUT_FIXED = 2; // Records stored as fixed-width binary rows, see io.FixedWidthFile
+
     private String fileName;
     private int startBlock;
     private int usedBlocks;
@@ -12,8 +21,9 @@ public class FileControlBlock {
     private Date date;
     private long indexStartPosition;
     private long indexEndPosition;
-
-
+    private byte codec = CODEC_NONE;
+    private byte layout = LAYOUT_ROWS;
+    private List<SecondaryIndex> secondaryIndexes = new ArrayList<>(); // Indexes on the values of single columns
 
     public FileControlBlock(String fileName, int startBlock, int usedBlocks, int fileSize, long indexStartPosition, long indexEndPosition, Date date) {
         this.fileName = fileName;
@@ -80,6 +90,58 @@ public class FileControlBlock {
     public void setDate(Date date) {
         this.date = date;
     }
+
+    public byte getCodec() {
+        return codec;
+    }
+
+    public void setCodec(byte codec) {
+        this.codec = codec;
+    }
+
+    public byte getLayout() {
+        return layout;
+    }
+
+    public void setLayout(byte layout) {
+        this.layout = layout;
+    }
+
+    public List<SecondaryIndex> getSecondaryIndexes() {
+        return Collections.unmodifiableList(secondaryIndexes);
+    }
+
+    public void setSecondaryIndexes(List<SecondaryIndex> secondaryIndexes) {
+        this.secondaryIndexes = new ArrayList<>(secondaryIndexes);
+    }
+
+    /**
+     * Finds the secondary index on a column.
+     * @param column the column name the index was built for
+     * @return the index, or null if the column is not indexed
+     */
+    public SecondaryIndex findSecondaryIndex(String column) {
+        for (SecondaryIndex index : secondaryIndexes) {
+            if (index.getColumn().equals(column)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a secondary index, replacing the one on the same column.
+     * @param index the index to record
+     */
+    public void putSecondaryIndex(SecondaryIndex index) {
+        removeSecondaryIndex(index.getColumn());
+        secondaryIndexes.add(index);
+    }
+
+    public void removeSecondaryIndex(String column) {
+        secondaryIndexes.removeIf(index -> index.getColumn().equals(column));
+    }
+
     public byte[] toBytes() throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
@@ -105,6 +167,29 @@ public class FileControlBlock {
         // Write the date
         dataOutputStream.writeLong(date.getTime());
 
+        // Write the codec of the data blocks
+        dataOutputStream.writeByte(codec);
+
+        // Write the layout of the records
+        dataOutputStream.writeByte(layout);
+
+        // Write the secondary indexes
+        dataOutputStream.writeByte(secondaryIndexes.size());
+        for (SecondaryIndex index : secondaryIndexes) {
+            byte[] columnBytes = index.getColumn().getBytes(StandardCharsets.UTF_8);
+            dataOutputStream.writeShort(columnBytes.length);
+            dataOutputStream.write(columnBytes);
+            dataOutputStream.writeShort(index.getField());
+            dataOutputStream.writeLong(index.getMetaPosition());
+            dataOutputStream.writeInt(index.getPostingsBlock());
+            dataOutputStream.writeInt(index.getPostingsBlocks());
+        }
+
+        // Write the trailing column of each secondary index, or -1 for an index on one column
+        for (SecondaryIndex index : secondaryIndexes) {
+            dataOutputStream.writeShort(index.getTrailingField());
+        }
+
         // Return the byte array
         return outputStream.toByteArray();
     }
@@ -138,10 +223,82 @@ public class FileControlBlock {
         long dateTimestamp = dataInputStream.readLong();
         Date date = new Date(dateTimestamp);
 
+        // Read the codec, the layout and the secondary indexes; entries written before compression existed end
+        // after the date, entries written before columnar files after the codec, and older ones after the layout
+        FileControlBlock fcb = new FileControlBlock(fileName,startBlock,usedBlocks, fileSize, indexStartPosition,indexEndPosition, date);
+        if (dataInputStream.available() > 0) {
+            fcb.setCodec(dataInputStream.readByte());
+        }
+        if (dataInputStream.available() > 0) {
+            fcb.setLayout(dataInputStream.readByte());
+        }
+        int indexCount = dataInputStream.available() > 0 ? dataInputStream.readUnsignedByte() : 0;
+        for (int i = 0; i < indexCount; i++) {
+            byte[] columnBytes = new byte[dataInputStream.readUnsignedShort()];
+            dataInputStream.readFully(columnBytes);
+            fcb.secondaryIndexes.add(new SecondaryIndex(new String(columnBytes, StandardCharsets.UTF_8),
+                    dataInputStream.readUnsignedShort(), -1, dataInputStream.readLong(), dataInputStream.readInt(),
+                    dataInputStream.readInt()));
+        }
+        for (int i = 0; i < indexCount && dataInputStream.available() > 0; i++) { // Entries before composite indexes end here
+            SecondaryIndex index = fcb.secondaryIndexes.get(i);
+            fcb.secondaryIndexes.set(i, new SecondaryIndex(index.getColumn(), index.getField(),
+                    dataInputStream.readShort(), index.getMetaPosition(), index.getPostingsBlock(), index.getPostingsBlocks()));
+        }
 
         // Return the FileControlBlock object
-        return new FileControlBlock(fileName,startBlock,usedBlocks, fileSize, indexStartPosition,indexEndPosition, date);
+        return fcb;
     }
 
-
+    /**
+     * Where the secondary index on one column, or on a leading and a trailing column, is stored: a paged B+tree
+     * from the value keys of the leading column to posting lists, and the run of blocks holding the posting
+     * lists, see manager.SecondaryIndexManager.
+     */
+    public static final class SecondaryIndex {
+        private final String column;
+        private final int field;
+        private final int trailingField;
+        private final long metaPosition;
+        private final int postingsBlock;
+        private final int postingsBlocks;
+
+        public SecondaryIndex(String column, int field, int trailingField, long metaPosition, int postingsBlock,
+                              int postingsBlocks) {
+            this.column = column;
+            this.field = field;
+            this.trailingField = trailingField;
+            this.metaPosition = metaPosition;
+            this.postingsBlock = postingsBlock;
+            this.postingsBlocks = postingsBlocks;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public int getField() {
+            return field;
+        }
+
+        /**
+         * Returns the field of the trailing column of a composite index.
+         * @return the field number from 0, or -1 for an index on one column
+         */
+        public int getTrailingField() {
+            return trailingField;
+        }
+
+        public long getMetaPosition() {
+            return metaPosition;
+        }
+
+        public int getPostingsBlock() {
+            return postingsBlock;
+        }
+
+        public int getPostingsBlocks() {
+            return postingsBlocks;
+        }
+    }
 }
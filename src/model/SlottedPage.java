@@ -0,0 +1,206 @@
+package model;
+
+import constants.Constants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary slotted layout of a data block. A slotted block starts with a marker byte that never occurs in
+ * UTF-8 text, so it can be told apart from a block of "id:N;data:...;" text records.
+ *
+ * Block layout (all values big-endian):
+ *   header:         marker (0xFF), version, slot count (short), start of the payload area (short)
+ *   slot directory: (record ID, payload offset (short)) per slot, sorted by record ID
+ *   payload area:   grows down from the end of the block; each payload is a length (short) followed by UTF-8 bytes
+ * A record too large for an empty block is stored alone in a run of adjacent blocks: its payload starts right
+ * after the single slot and continues through the following blocks.
+ */
+public class SlottedPage {
+    public static final byte MARKER = (byte) 0xFF;
+    private static final byte VERSION = 1;
+    private static final int COUNT_OFFSET = 2;
+    private static final int DATA_START_OFFSET = 4;
+    private static final int HEADER_SIZE = 6;
+    private static final int SLOT_SIZE = 6;
+    private static final int LENGTH_SIZE = 2;
+    public static final int MAX_INLINE_PAYLOAD = Constants.BLOCK_SIZE - HEADER_SIZE - SLOT_SIZE - LENGTH_SIZE;
+    public static final int RECORD_OVERHEAD = SLOT_SIZE + LENGTH_SIZE; // Page bytes a record takes besides its payload
+    public static final int SPANNING_PAYLOAD_OFFSET = HEADER_SIZE + SLOT_SIZE + LENGTH_SIZE; // Record bytes in a run
+
+    private SlottedPage() {
+    }
+
+    /**
+     * Checks whether a block uses the slotted layout.
+     * @param block the block contents
+     * @return true if the block starts with the slotted-page marker
+     */
+    public static boolean isSlotted(byte[] block) {
+        return block.length > 0 && block[0] == MARKER;
+    }
+
+    /**
+     * Formats an empty slotted page.
+     * @param page a block-sized array
+     */
+    public static void init(byte[] page) {
+        Arrays.fill(page, (byte) 0);
+        page[0] = MARKER;
+        page[1] = VERSION;
+        putShort(page, COUNT_OFFSET, 0);
+        putShort(page, DATA_START_OFFSET, Constants.BLOCK_SIZE);
+    }
+
+    /**
+     * Adds a record to a page, keeping the slot directory sorted by record ID.
+     * @param page the page, formatted by init()
+     * @param id the record ID
+     * @param payload the record bytes, at most MAX_INLINE_PAYLOAD long
+     * @return the offset of the record bytes within the page, or -1 if the page has no room for the record
+     */
+    public static int add(byte[] page, int id, byte[] payload) {
+        return add(page, id, payload, 0, payload.length);
+    }
+
+    /**
+     * Adds a record whose bytes are a slice of a larger array, such as a line of an input buffer.
+     * @param page the page, formatted by init()
+     * @param id the record ID
+     * @param src the array holding the record bytes
+     * @param from the position of the first record byte in src
+     * @param length the number of record bytes, at most MAX_INLINE_PAYLOAD
+     * @return the offset of the record bytes within the page, or -1 if the page has no room for the record
+     */
+    public static int add(byte[] page, int id, byte[] src, int from, int length) {
+        int count = getCount(page);
+        int dataStart = getShort(page, DATA_START_OFFSET);
+        int slotsEnd = HEADER_SIZE + (count + 1) * SLOT_SIZE;
+        int offset = dataStart - LENGTH_SIZE - length;
+        if (offset < slotsEnd) {
+            return -1;
+        }
+        putShort(page, offset, length);
+        System.arraycopy(src, from, page, offset + LENGTH_SIZE, length);
+
+        // Slots arrive in ascending ID order during an import, so the search normally ends at the last slot
+        int slot = count;
+        while (slot > 0 && getId(page, slot - 1) > id) {
+            slot--;
+        }
+        int slotPos = HEADER_SIZE + slot * SLOT_SIZE;
+        System.arraycopy(page, slotPos, page, slotPos + SLOT_SIZE, (count - slot) * SLOT_SIZE);
+        putInt(page, slotPos, id);
+        putShort(page, slotPos + 4, offset);
+        putShort(page, COUNT_OFFSET, count + 1);
+        putShort(page, DATA_START_OFFSET, offset);
+        return offset + LENGTH_SIZE;
+    }
+
+    /**
+     * Builds the run of blocks that holds a record too large for a single page.
+     * @param id the record ID
+     * @param payload the record bytes
+     * @return the blocks of the run, concatenated
+     */
+    public static byte[] spanning(int id, byte[] payload) {
+        return spanning(id, payload, 0, payload.length);
+    }
+
+    /**
+     * Builds the run of blocks that holds a record too large for a single page from a slice of a larger array.
+     * @param id the record ID
+     * @param src the array holding the record bytes
+     * @param from the position of the first record byte in src
+     * @param length the number of record bytes
+     * @return the blocks of the run, concatenated
+     */
+    public static byte[] spanning(int id, byte[] src, int from, int length) {
+        int offset = HEADER_SIZE + SLOT_SIZE;
+        int blocks = (offset + LENGTH_SIZE + length + Constants.BLOCK_SIZE - 1) / Constants.BLOCK_SIZE;
+        byte[] run = new byte[blocks * Constants.BLOCK_SIZE];
+        run[0] = MARKER;
+        run[1] = VERSION;
+        putShort(run, COUNT_OFFSET, 1);
+        putShort(run, DATA_START_OFFSET, offset);
+        putInt(run, HEADER_SIZE, id);
+        putShort(run, HEADER_SIZE + 4, offset);
+        putShort(run, offset, length);
+        System.arraycopy(src, from, run, offset + LENGTH_SIZE, length);
+        return run;
+    }
+
+    public static int getCount(byte[] page) {
+        return getShort(page, COUNT_OFFSET);
+    }
+
+    public static int getId(byte[] page, int slot) {
+        return getInt(page, HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    /**
+     * Finds the slot of a record by binary search over the slot directory.
+     * @param page the page
+     * @param id the record ID
+     * @return the slot number, or -1 if the page does not hold the record
+     */
+    public static int find(byte[] page, int id) {
+        int lo = 0;
+        int hi = getCount(page) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midId = getId(page, mid);
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of bytes, counted from the start of the page, that must be read to hold a slot's
+     * payload. It exceeds the block size only for a record stored in a run of blocks.
+     * @param page the page
+     * @param slot the slot number
+     * @return the end of the payload relative to the start of the page
+     */
+    public static int payloadEnd(byte[] page, int slot) {
+        int offset = getShort(page, HEADER_SIZE + slot * SLOT_SIZE + 4);
+        return offset + LENGTH_SIZE + getShort(page, offset);
+    }
+
+    /**
+     * Decodes the payload of a slot.
+     * @param pages the page, followed by the continuation blocks if the payload extends beyond it
+     * @param slot the slot number
+     * @return the record text
+     */
+    public static String getPayload(byte[] pages, int slot) {
+        int offset = getShort(pages, HEADER_SIZE + slot * SLOT_SIZE + 4);
+        return new String(pages, offset + LENGTH_SIZE, getShort(pages, offset), StandardCharsets.UTF_8);
+    }
+
+    private static int getShort(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private static void putShort(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 8);
+        b[pos + 1] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+    }
+}
@@ -6,9 +6,12 @@ import java.util.HashMap;
 import java.util.Map;
 
 import index.BTreeIndex;
+import index.Locator;
 
 
 public class SerializationUtils {
+    private static final String RECORD_SEPARATOR = ";id:"; // Separates consecutive records in a block
+    private BTreeIndex.Node lastLeaf; // Last leaf read by deserializeNode, linked to the next one
     /**
      * Serializes the index tree to a byte array.
      * @param indexTree the index tree to serialize
@@ -47,14 +50,11 @@ public class SerializationUtils {
 
         // 写入节点中的键值对
         for (int i = 0; i < node.m; i++) {
-            BTreeIndex.Entry entry = node.children[i];
-            dos.writeInt(entry.key); // 写入键
-//            System.out.println("Entry key: " + entry.key);
-            dos.writeInt(entry.val); // 写入值
-//            System.out.println( "Entry val: " + entry.val);
+            dos.writeInt(node.keys[i]); // 写入键
+            dos.writeInt(height > 0 ? -1 : Locator.block(node.vals[i])); // 写入值; 内部节点不使用值; this format keeps block numbers only
             if (height > 0) {
                 // 如果不是叶子节点,递归序列化子节点
-                serializeNode(dos, entry.next, height - 1);
+                serializeNode(dos, node.children[i], height - 1);
             }
         }
     }
@@ -74,7 +74,8 @@ public class SerializationUtils {
         int height = dis.readInt(); // 读取索引树的高度
 
         BTreeIndex indexTree = new BTreeIndex();
-        indexTree.root = deserializeNode(dis, height);
+        lastLeaf = null;
+        indexTree.root = deserializeNode(dis, height, indexTree.getFanout());
         indexTree.height = height;
         indexTree.n = size;
 
@@ -85,32 +86,36 @@ public class SerializationUtils {
      * Deserializes a node of the index tree from the data input stream.
      * @param dis the data input stream
      * @param height the height of the node
+     * @param fanout the fanout of the tree being read; a node written with more entries keeps its size
      * @return the deserialized node
      * @throws IOException if an I/O error occurs
      */
-    public BTreeIndex.Node deserializeNode(DataInputStream dis, int height) throws IOException {
+    public BTreeIndex.Node deserializeNode(DataInputStream dis, int height, int fanout) throws IOException {
         // Read the metadata of the node
         int id = dis.readInt();
         int m = dis.readInt();
 
-        BTreeIndex.Node node = new BTreeIndex.Node(m);
+        BTreeIndex.Node node = new BTreeIndex.Node(m, Math.max(m, fanout), height == 0);
         node.id = id;
 
         // Read the key-value pairs of the node
         for (int i = 0; i < m; i++) {
-            int key = dis.readInt(); // read the key
+            node.keys[i] = dis.readInt(); // read the key
             int val = dis.readInt(); // read the value
 
-            BTreeIndex.Entry entry;
             if (height > 0) {
                 // If it's not a leaf node, recursively deserialize the child node
-                BTreeIndex.Node child = deserializeNode(dis, height - 1);
-                entry = new BTreeIndex.Entry(key, val, child);
+                node.children[i] = deserializeNode(dis, height - 1, fanout);
             } else {
-                entry = new BTreeIndex.Entry(key, val, null);
+                node.vals[i] = Locator.ofBlock(val);
             }
-
-            node.children[i] = entry;
+        }
+        if (height == 0) {
+            // Leaves are read left to right; link each one to its right sibling
+            if (lastLeaf != null) {
+                lastLeaf.next = node;
+            }
+            lastLeaf = node;
         }
 
         return node;
@@ -137,9 +142,14 @@ public class SerializationUtils {
     public Map<String, String> deserializeData(String serializedData) {
         Map<String, String> movieDataMap = new HashMap<>();
 
-        String[] pairs = serializedData.split(";id:");
-
-        for (String pair : pairs) {
+        // Cut the block at each record separator with indexOf rather than a regex split
+        for (int start = 0; start <= serializedData.length(); ) {
+            int end = serializedData.indexOf(RECORD_SEPARATOR, start);
+            if (end == -1) {
+                end = serializedData.length();
+            }
+            String pair = serializedData.substring(start, end);
+            start = end + RECORD_SEPARATOR.length();
             if (!pair.trim().isEmpty()) {
                 // Split the pair into "id" and "data"
                 String[] idDataPair = pair.split(";", 2);
@@ -148,6 +158,10 @@ public class SerializationUtils {
                     // Extract the "id" and "data" values
                     String id = idDataPair[0].replace("id:", "").trim();
                     String movieData = idDataPair[1].replace("data:", "").trim();
+                    if (end == serializedData.length() && movieData.endsWith(";")) {
+                        // The last record keeps its closing ';', which the separator removes from the others
+                        movieData = movieData.substring(0, movieData.length() - 1);
+                    }
 
                     // Add the values to the movie data map
                     movieDataMap.put(id, movieData);